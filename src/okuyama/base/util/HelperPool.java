@@ -6,6 +6,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
 
 import java.util.ArrayList;
 import okuyama.base.util.ILogger;
@@ -52,6 +53,9 @@ public class  HelperPool extends Thread {
     // 呼び出し時に直接渡すパラメータ
     private static ArrayBlockingQueue helperParamQueue = new ArrayBlockingQueue(20000);
 
+    // Helperを実行するスレッドの生成元 nullの場合は通常のスレッド
+    private static volatile ThreadFactory helperThreadFactory = null;
+
     public HelperPool() {
         poolRunning = true;
         
@@ -189,11 +193,70 @@ public class  HelperPool extends Thread {
         helperNameList.add(helperConfigMap.getHelperName());
         configMap.put(helperConfigMap.getHelperName(),helperConfigMap);
         helperMap.put(helperConfigMap.getHelperName(),new ArrayList());
-        executorServiceMap.put(helperConfigMap.getHelperName(), Executors.newCachedThreadPool());
+        if (helperThreadFactory != null) {
+            executorServiceMap.put(helperConfigMap.getHelperName(), Executors.newCachedThreadPool(helperThreadFactory));
+        } else {
+            executorServiceMap.put(helperConfigMap.getHelperName(), Executors.newCachedThreadPool());
+        }
         serviceParameterQueueMap.put(helperConfigMap.getHelperName(), new ArrayBlockingQueue(20000));
     }
 
 
+    /**
+     * 以降に管理を開始するHelperを仮想スレッドで実行する.<br>
+     * managedHelperConfigより前に呼び出す必要がある.<br>
+     * 仮想スレッドは少数のキャリアスレッド上で実行されるため、ソケットの読み込み等で待機する<br>
+     * Helperを大量に実行してもOSのスレッドを消費しない.<br>
+     * 仮想スレッドが利用出来ないJavaVMの場合は何もせずにfalseを返し、通常のスレッドで実行する.<br>
+     *
+     * @return boolean true:仮想スレッドを使用する
+     */
+    public static boolean useVirtualThread() {
+        try {
+            // Thread.ofVirtual().name("OkuyamaHelper-", 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", new Class[]{String.class, Long.TYPE}).invoke(builder, new Object[]{"OkuyamaHelper-", new Long(0)});
+            helperThreadFactory = (ThreadFactory)builderClass.getMethod("factory", new Class[0]).invoke(builder, new Object[0]);
+            return true;
+        } catch (Exception e) {
+            logger.info("HelperPool - useVirtualThread - Virtual thread is not supported [" + System.getProperty("java.version") + "]");
+        }
+        return false;
+    }
+
+
+    /**
+     * Helperを仮想スレッドで実行しているかを返す.<br>
+     *
+     * @return boolean
+     */
+    public static boolean isVirtualThread() {
+        return helperThreadFactory != null;
+    }
+
+
+    /**
+     * Helperと同じ種類のスレッドを作成するThreadFactoryを返す.<br>
+     * 仮想スレッド時は仮想スレッド、それ以外はデーモンスレッドを作成する.<br>
+     * Helper以外で要求を処理するスレッドを作成する場合に使用する.<br>
+     *
+     * @param name スレッド名
+     * @return ThreadFactory
+     */
+    public static ThreadFactory getHelperThreadFactory(final String name) {
+        if (helperThreadFactory != null) return helperThreadFactory;
+
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
     /**
      * オリジナルのキュー領域を作成する.<br>
      *
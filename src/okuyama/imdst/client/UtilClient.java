@@ -6,6 +6,7 @@ import java.net.*;
 import java.util.zip.*;
 
 import okuyama.imdst.util.*;
+import okuyama.imdst.util.translog.*;
 
 /**
  * okuyama用のUtilityクライアント.<br>
@@ -30,6 +31,8 @@ public class UtilClient {
             System.out.println("Command4. DataNode is added args1=adddatanode args2=MasterNode-IPAdress:PortNo args3=DataNodeIPAddress:PortNo args4=Slave1-DataNodeIpAddress:PortNo args5=Slave2-DataNodeIpAddress:PortNo");
             System.out.println("Command5. DataNode save key list output args1=keylist args2=DataNode-IPAdress:PortNo");
             System.out.println("Command6. Replace AllMasterNodeInfos args1=replacemasternode args2=MasterNode-IPAdress:PortNo args3=Replace AllMasterNodeInfos config");
+            System.out.println("Command7. Convert text transaction log to binary format args1=convertlog args2=TextLogFile args3=OutputBinaryLogFile");
+            System.out.println("Command8. Point-in-time restore from archive args1=pitrestore args2=ArchiveDir args3=TargetTime(yyyyMMddHHmmss or milli) args4=OutputBackupFile args5=DataNodeTransactionLogFile(Option - 'none' is archive only) args6=ReplayThreads(Option)");
             System.exit(1);
         }
 
@@ -131,6 +134,84 @@ public class UtilClient {
             keylist(args[1]);
         }
 
+        if (args[0].equals("convertlog")) {
+            if (args.length < 3) {
+                System.out.println("Argument Error! args[0]=Command, args[1]=TextLogFile, args[2]=OutputBinaryLogFile");
+                System.exit(1);
+            }
+
+            convertLog(args[1], args[2]);
+        }
+
+        if (args[0].equals("pitrestore")) {
+            if (args.length < 4) {
+                System.out.println("Argument Error! args[0]=Command, args[1]=ArchiveDir, args[2]=TargetTime, args[3]=OutputBackupFile, args[4]=DataNodeTransactionLogFile(Option), args[5]=ReplayThreads(Option), args[6]=DataNodeKeyFileDirs(Option, Comma separated)");
+                System.exit(1);
+            }
+
+            String workKeyFilePath = null;
+            if (args.length > 4 && !args[4].equals("none")) workKeyFilePath = args[4];
+            int replayThreads = Runtime.getRuntime().availableProcessors();
+            if (args.length > 5) replayThreads = Integer.parseInt(args[5]);
+            String[] keyFileDirs = null;
+            if (args.length > 6) keyFileDirs = args[6].split(",");
+
+            pointInTimeRestore(args[1], args[2], args[3], workKeyFilePath, keyFileDirs, replayThreads);
+        }
+
+    }
+
+
+    /**
+     * テキストフォーマットのトランザクションログをバイナリフォーマットに変換する.<br>
+     *
+     * @param textLogFile 変換元ファイル
+     * @param binaryLogFile 変換後ファイル
+     */
+    public static void convertLog(String textLogFile, String binaryLogFile) {
+        try {
+            File srcFile = new File(textLogFile);
+            if (TransactionLogFormat.isBinaryLog(srcFile)) {
+                System.out.println("Already binary format [" + textLogFile + "]");
+                return;
+            }
+
+            int count = TransactionLogConverter.convert(srcFile, new File(binaryLogFile));
+            System.out.println("Convert end [" + textLogFile + "] -> [" + binaryLogFile + "] Records=" + count);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * DataNodeのアーカイブから指定の時間のデータを復元し、バックアップファイルとして書き出す.<br>
+     * 書き出したファイルをDataNodeのバックアップファイルとして、トランザクションログが存在しない状態で起動する.<br>
+     *
+     * @param archiveDir アーカイブのディレクトリ(DataNodeの-tladで指定したディレクトリ)
+     * @param targetTime 復元する時間(yyyyMMddHHmmss形式またはミリ秒)
+     * @param outputFile 書き出し先のバックアップファイル
+     * @param workKeyFilePath アーカイブされていないトランザクションログも使用する場合はDataNodeのトランザクションログのパス 使用しない場合はnull
+     * @param keyFileDirs DataNodeのKeyファイルのディレクトリ(パーティションに分割されたトランザクションログの検索に使用する) 使用しない場合はnull
+     * @param replayThreads ログの再実行を行うスレッド数
+     */
+    public static void pointInTimeRestore(String archiveDir, String targetTime, String outputFile, String workKeyFilePath, String[] keyFileDirs, int replayThreads) {
+        try {
+            long time = 0L;
+            if (targetTime.length() == 14) {
+                time = new java.text.SimpleDateFormat("yyyyMMddHHmmss").parse(targetTime).getTime();
+            } else {
+                time = Long.parseLong(targetTime);
+            }
+
+            long start = System.currentTimeMillis();
+            PointInTimeRestorer restorer = new PointInTimeRestorer(new File(archiveDir), time, workKeyFilePath, keyFileDirs, replayThreads);
+            restorer.restore(new File(outputFile));
+            System.out.println("Restore end [" + outputFile + "] TargetTime=" + new Date(time) + " CheckpointTime=" + new Date(restorer.getCheckpointTime()) + " Keys=" + restorer.getRestoreCount() + " Time=" + (System.currentTimeMillis() - start) + "ms");
+            System.out.println(" Replay " + restorer.getReplayStatus());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
 
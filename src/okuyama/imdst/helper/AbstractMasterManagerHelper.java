@@ -6,6 +6,7 @@ import java.net.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import okuyama.base.lang.BatchException;
 import okuyama.base.job.AbstractHelper;
@@ -36,6 +37,10 @@ abstract public class AbstractMasterManagerHelper extends AbstractHelper {
 
     protected static ConcurrentHashMap keyNodeConnectPool = new ConcurrentHashMap(1024, 1000, 256);
 
+    // keyNodeConnectPoolにノード単位のPoolを作成する際のLock
+    // 仮想スレッドで実行している場合にキャリアスレッドを占有しないようにReentrantLockを使用する
+    private static final ReentrantLock keyNodeConnectPoolLock = new ReentrantLock();
+
     private static HashMap moveData4ConsistentHash = null;
 
     private static boolean executeKeyNodeOptimizationFlg = false;
@@ -1554,7 +1559,8 @@ abstract public class AbstractMasterManagerHelper extends AbstractHelper {
                 ((ArrayBlockingQueue)keyNodeConnectPool.get(connectionFullName)).offer(keyNodeConnector);
             } else {
 
-                synchronized(keyNodeConnectPool) {
+                keyNodeConnectPoolLock.lock();
+                try {
 
                     if (!keyNodeConnectPool.containsKey(connectionFullName)) {
 
@@ -1563,8 +1569,10 @@ abstract public class AbstractMasterManagerHelper extends AbstractHelper {
                         keyNodeConnectPool.put(connectionFullName, connPoolQueue);
                     } else {
 
-                        addKeyNodeCacheConnectionPool(keyNodeConnector);
+                        ((ArrayBlockingQueue)keyNodeConnectPool.get(connectionFullName)).offer(keyNodeConnector);
                     }
+                } finally {
+                    keyNodeConnectPoolLock.unlock();
                 }
             }
         }
@@ -14,6 +14,7 @@ import okuyama.imdst.util.ImdstDefine;
 import okuyama.imdst.util.DataDispatcher;
 import okuyama.imdst.util.StatusUtil;
 import okuyama.imdst.util.JavaSystemApi;
+import okuyama.imdst.util.io.KeyNodeRequestReader;
 
 /**
  * クライアント(本クラスからするとMasterNode)からの接続があった際に、Socketからの各IOクラスの<br>
@@ -64,9 +65,14 @@ public class KeyManagerConnectHelper extends AbstractHelper {
                 socket.setTcpNoDelay(true);
                 PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
                 //PrintWriter pw = new PrintWriter(socket.getOutputStream());
-                BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
-
-                Object[] clientMap = new Object[6];
+                BufferedReader br = null;
+                if (ImdstDefine.dataNodeRequestDecoder) {
+                    br = new KeyNodeRequestReader(socket.getInputStream());
+                } else {
+                    br = new BufferedReader(new InputStreamReader(socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+                }
+
+                Object[] clientMap = new Object[9];
                 clientMap[ImdstDefine.paramSocket] = socket;
                 clientMap[ImdstDefine.paramPw] = pw;
                 clientMap[ImdstDefine.paramBr] = br;
@@ -74,6 +80,10 @@ public class KeyManagerConnectHelper extends AbstractHelper {
                 clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                 clientMap[ImdstDefine.paramCheckCount] = new Integer(0);
 
+                // バイナリ形式に切り替えた接続で使用するストリーム
+                clientMap[ImdstDefine.paramBis] = socket.getInputStream();
+                clientMap[ImdstDefine.paramBos] = socket.getOutputStream();
+
                 Object[] queueParam = new Object[1];
                 queueParam[0] = clientMap;
                 super.addSmallSizeParameterQueue(addQueueNames, queueParam);
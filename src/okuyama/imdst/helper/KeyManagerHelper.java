@@ -4,12 +4,17 @@ import java.io.*;
 import java.util.*;
 import java.net.*;
 import javax.script.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import okuyama.base.JavaMain;
 import okuyama.base.lang.BatchException;
 import okuyama.base.job.AbstractHelper;
 import okuyama.base.job.IJob;
+import okuyama.base.util.HelperPool;
 import okuyama.base.util.ILogger;
 import okuyama.base.util.LoggerFactory;
 import okuyama.imdst.util.KeyMapManager;
@@ -19,6 +24,8 @@ import okuyama.imdst.util.SystemUtil;
 import okuyama.imdst.util.protocol.*;
 import okuyama.imdst.util.JavaSystemApi;
 import okuyama.imdst.util.SystemUtil;
+import okuyama.imdst.util.io.KeyNodeBinaryProtocol;
+import okuyama.imdst.util.io.KeyNodeRequestReader;
 
 import com.sun.mail.util.BASE64DecoderStream;
 import com.sun.mail.util.BASE64EncoderStream;
@@ -50,6 +57,10 @@ public class KeyManagerHelper extends AbstractHelper {
 
     private static final int returnProccessingCount = 2;
 
+    // 接続専用のHelperの場合に担当する接続(仮想スレッド時にKeyManagerJobが接続毎に起動する)
+    // 担当の接続のみを切断まで処理し、キューは経由しない
+    private Object[] dedicatedClientMap = null;
+
 
     // プロトコルモード
     private String protocolMode = null;
@@ -63,12 +74,38 @@ public class KeyManagerHelper extends AbstractHelper {
     private ScriptEngineManager manager = null;
     private ScriptEngine engine = null;
 
+    // KeyNodeRequestReaderで分解した要求のパラメータ(Helper毎に再利用する)
+    private String[] requestParameters = new String[4];
+
+    // バイナリ形式の接続と多重化された接続で受信した要求を処理するスレッドプール
+    // KeyManagerJobがinitBinaryRequestExecutorで作成する(未作成の場合は受信したスレッドで処理する)
+    private static volatile ThreadPoolExecutor binaryRequestExecutor = null;
+
 
     /**
      * Logger.<br>
      */
     private static ILogger logger = LoggerFactory.createLogger(KeyManagerHelper.class);
 
+    /**
+     * バイナリ形式の接続と多重化された接続で受信した要求を処理するスレッドプールを作成する.<br>
+     * スレッドはHelperPoolのHelperと同じ種類(仮想スレッド時は仮想スレッド)で、最大threadSize個.<br>
+     * 処理待ちの要求がqueueSize件を超えた場合は受信したスレッドで処理するため、<br>
+     * 処理が追いつくまでその接続からの受信が止まる.<br>
+     *
+     * @param threadSize 最大スレッド数(DataNodeの処理スレッド数)
+     * @param queueSize 処理待ちの要求の最大数
+     */
+    public static void initBinaryRequestExecutor(int threadSize, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadSize, threadSize, 60L, TimeUnit.SECONDS, 
+                                                             new ArrayBlockingQueue(queueSize), 
+                                                             HelperPool.getHelperThreadFactory("KeyManagerHelper-BinaryRequest"), 
+                                                             new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        binaryRequestExecutor = executor;
+    }
+
+
     // 初期化メソッド定義
     public void initHelper(String initValue) {
         this.protocolMode = initValue;
@@ -102,6 +139,7 @@ public class KeyManagerHelper extends AbstractHelper {
 
             String clientParametersStr = null;
             String[] clientParameterList = null;
+            boolean decodedRequest = false;
 
             String requestHashCode = null;
             String requestDataNode = null;
@@ -138,8 +176,16 @@ public class KeyManagerHelper extends AbstractHelper {
             // Helperの全体数と現在処理中の数を知るためのKey値
             bindQueueWaitHelperCountKey = (String)parameters[3];
 
+            // 接続専用のHelperの場合は担当する接続
+            if (parameters.length > 4) this.dedicatedClientMap = (Object[])parameters[4];
+
             // 全体処理数を取得
-            numberOfQueueBindWaitCounter = (AtomicInteger)super.getHelperShareParam(bindQueueWaitHelperCountKey);
+            // 接続専用のHelperは他のHelperとキューを共有しないため、待機カウンターも共有しない
+            if (this.dedicatedClientMap != null) {
+                numberOfQueueBindWaitCounter = new AtomicInteger(0);
+            } else {
+                numberOfQueueBindWaitCounter = (AtomicInteger)super.getHelperShareParam(bindQueueWaitHelperCountKey);
+            }
 
             // プロトコル決定
             if (this.protocolMode != null && !this.protocolMode.trim().equals("") && !this.protocolMode.equals("okuyama")) {
@@ -167,7 +213,9 @@ public class KeyManagerHelper extends AbstractHelper {
                     if (closeFlg == true || reloopSameClient == false) {
 
                         // キューを待ち受ける
-                        queueParam = super.pollSpecificationParameterQueue(pollQueueName);
+                        // 接続専用のHelperは担当の接続が切断された時点で終了する
+                        queueParam = this.pollClientConnect(pollQueueName, queueParam, closeFlg);
+                        if (queueParam == null) break;
 
                         queueMap = (Object[])queueParam[0];
 
@@ -204,7 +252,7 @@ public class KeyManagerHelper extends AbstractHelper {
                                 // 処理が完了したらキューに戻す
                                 queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                                 queueParam[0] = queueMap;
-                                super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                                this.returnClientConnect(addQueueNames, queueParam);
                                 continue;
                             }
 
@@ -217,11 +265,20 @@ public class KeyManagerHelper extends AbstractHelper {
                     } else {
 
                         // okuyamaプロトコル
-                        clientParametersStr = br.readLine();
+                        // KeyNodeRequestReaderの場合はset、getを受信バッファ上で分解し、1行の文字列は作成しない
+                        decodedRequest = false;
+                        if (br instanceof KeyNodeRequestReader) {
+
+                            clientParametersStr = ((KeyNodeRequestReader)br).readRequest(this.requestParameters);
+                            decodedRequest = ((KeyNodeRequestReader)br).isDecoded();
+                        } else {
+
+                            clientParametersStr = br.readLine();
+                        }
 
                         // Debugログ書き出し
                         if (StatusUtil.getDebugOption()) 
-                            SystemUtil.debugLine(clientInfo + " : Request  : " + clientParametersStr);
+                            SystemUtil.debugLine(clientInfo + " : Request  : " + (decodedRequest ? this.joinRequestParameters() : clientParametersStr));
                     }
 
 
@@ -237,10 +294,48 @@ public class KeyManagerHelper extends AbstractHelper {
                     }
 
 
+                    // MasterNodeからのバイナリ形式のネゴシエーション
+                    // 以降の要求はBinaryConnectionが処理するため、接続はキューに戻さない
+                    if (this.porotocolTaker == null && clientParametersStr.equals(KeyNodeBinaryProtocol.negotiationRequest)) {
+
+                        this.startBinaryConnection(queueMap);
+
+                        // 接続専用のHelperは接続を引き渡して終了する
+                        if (this.dedicatedClientMap != null) {
+                            pw = null;
+                            br = null;
+                            soc = null;
+                            break;
+                        }
+                        continue;
+                    }
+
+
+                    // MasterNodeからの多重化のネゴシエーション
+                    // 以降の要求はMultiplexConnectionが処理するため、接続はキューに戻さない
+                    if (this.porotocolTaker == null && clientParametersStr.equals(ImdstDefine.keyNodeMultiplexNegotiationRequest)) {
+
+                        this.startMultiplexConnection(queueMap);
+
+                        // 接続専用のHelperは接続を引き渡して終了する
+                        if (this.dedicatedClientMap != null) {
+                            pw = null;
+                            br = null;
+                            soc = null;
+                            break;
+                        }
+                        continue;
+                    }
+
+
                     // クライアントからのパラメータ分解
 //                    clientParameterList = clientParametersStr.split(ImdstDefine.keyHelperClientParamSep);
 
-                    clientParameterList = clientParameterSplit(clientParametersStr, ImdstDefine.keyHelperClientParamSep);
+                    if (decodedRequest) {
+                        clientParameterList = this.requestParameters;
+                    } else {
+                        clientParameterList = clientParameterSplit(clientParametersStr, ImdstDefine.keyHelperClientParamSep);
+                    }
                     // 処理番号を取り出し
                     if(clientParameterList[0] == null ||  clientParameterList[0].equals("")) clientParameterList[0] = "-1";
                     int methodNo = Integer.parseInt(clientParameterList[0]);
@@ -262,11 +357,19 @@ public class KeyManagerHelper extends AbstractHelper {
 
                             // メソッド呼び出し
                             retParams = this.setDatanode(requestHashCode, requestDataNode, transactionCode);
-                            retParamBuf.append(retParams[0]);
-                            retParamBuf.append(ImdstDefine.keyHelperClientParamSep);
-                            retParamBuf.append(retParams[1]);
-                            retParamBuf.append(ImdstDefine.keyHelperClientParamSep);
-                            retParamBuf.append(retParams[2]);
+
+                            // プロトコルに合わせて処理を分岐
+                            if (this.porotocolTaker != null) {
+
+                                retParamBuf.append(retParams[0]);
+                                retParamBuf.append(ImdstDefine.keyHelperClientParamSep);
+                                retParamBuf.append(retParams[1]);
+                                retParamBuf.append(ImdstDefine.keyHelperClientParamSep);
+                                retParamBuf.append(retParams[2]);
+                            } else {
+
+                                this.sendResponse(pw, retParams, clientInfo);
+                            }
                             break;
                         case -1 :
 
@@ -401,25 +504,7 @@ public class KeyManagerHelper extends AbstractHelper {
                                     }
                                 } else {
 
-                                    pw.print(retParams[0]);
-                                    pw.print(ImdstDefine.keyHelperClientParamSep);
-                                    pw.print(retParams[1]);
-                                    if (retParams.length > 2) {
-                                        pw.print(ImdstDefine.keyHelperClientParamSep);
-                                        pw.print(retParams[2]);
-                                    }
-                                    pw.println("");
-                                    pw.flush();
-                                    // Debugログ書き出し
-                                    if (StatusUtil.getDebugOption()) {
-
-                                        String debugLogStr = retParams[0] + ImdstDefine.keyHelperClientParamSep + retParams[1];
-                                        if (retParams.length > 2) {
-                                            debugLogStr = debugLogStr + ImdstDefine.keyHelperClientParamSep;
-                                            debugLogStr = debugLogStr + retParams[2];
-                                        }
-                                        SystemUtil.debugLine(clientInfo + " : Response : " + debugLogStr);
-                                    }
+                                    this.sendResponse(pw, retParams, clientInfo);
                                 }
 
 
@@ -706,8 +791,13 @@ public class KeyManagerHelper extends AbstractHelper {
                         case 24 :
 
                             // KeyManagerの差分データを読み込んで渡す
+                            // 3番目のパラメータが指定された場合はその連番から再開し、各行の先頭に連番を付加する
                             // !! MasterManagerでDataNodeの一時停止状態になってから呼び出される前提 !!
-                            this.keyMapManager.outputDiffKeyMapObj2Stream(pw, br);
+                            if (clientParameterList.length > 2) {
+                                this.keyMapManager.outputDiffKeyMapObj2Stream(pw, br, Long.parseLong(clientParameterList[2]));
+                            } else {
+                                this.keyMapManager.outputDiffKeyMapObj2Stream(pw, br);
+                            }
                             pw.flush();
                             //retParamBuf = null;
                             break;
@@ -1140,6 +1230,13 @@ public class KeyManagerHelper extends AbstractHelper {
                         default :
 
                             logger.debug("KeyManagerHelper No Method =[" + clientParameterList[0] + "]");
+
+                            // 未対応のネゴシエーションは拒否を応答し、MasterNodeがタイムアウトを待たずに判定出来るようにする
+                            if (methodNo >= ImdstDefine.keyNodeNegotiationMethodNoMin && methodNo <= ImdstDefine.keyNodeNegotiationMethodNoMax) {
+                                retParamBuf.append(methodNo);
+                                retParamBuf.append(ImdstDefine.keyHelperClientParamSep);
+                                retParamBuf.append("false");
+                            }
                             break;
                     }
 
@@ -1190,7 +1287,7 @@ public class KeyManagerHelper extends AbstractHelper {
                             // 読み込みタイムアウトなら読み出し待機Queueに戻す
                             queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                             queueParam[0] = queueMap;
-                            super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                            this.returnClientConnect(addQueueNames, queueParam);
                             reloopSameClient = false;
                         } catch (Throwable te) {
 
@@ -1203,7 +1300,7 @@ public class KeyManagerHelper extends AbstractHelper {
                         // 処理が完了したら読み出し確認キュー(KeyManagerAcceptHelper)に戻す
                         queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                         queueParam[0] = queueMap;
-                        super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                        this.returnClientConnect(addQueueNames, queueParam);
                         reloopSameClient = false;
                     }
 
@@ -1269,6 +1366,250 @@ public class KeyManagerHelper extends AbstractHelper {
     public void endHelper() {
     }
 
+    /**
+     * 処理する接続を取得する.<br>
+     * 接続専用のHelperは担当の接続を返し、切断済みの場合はnullを返す.<br>
+     * それ以外はキューに接続が格納されるまで待機する.<br>
+     *
+     * @param pollQueueName 待ち受けるキュー名
+     * @param queueParam 処理中の接続
+     * @param closeFlg 処理中の接続を切断済み
+     * @return Object[] 接続
+     */
+    private Object[] pollClientConnect(String pollQueueName, Object[] queueParam, boolean closeFlg) {
+        if (this.dedicatedClientMap == null) return super.pollSpecificationParameterQueue(pollQueueName);
+
+        if (closeFlg) return null;
+        if (queueParam != null) return queueParam;
+
+        queueParam = new Object[1];
+        queueParam[0] = this.dedicatedClientMap;
+        return queueParam;
+    }
+
+
+    /**
+     * 処理が完了した接続をキューに戻す.<br>
+     * 接続専用のHelperはキューに戻さずに同一の接続の読み込みを続ける.<br>
+     *
+     * @param addQueueNames 戻し先のキュー名
+     * @param queueParam 接続
+     * @throw Exception
+     */
+    private void returnClientConnect(String[] addQueueNames, Object[] queueParam) throws Exception {
+        if (this.dedicatedClientMap != null) return;
+        super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+    }
+
+
+    /**
+     * 多重化された要求を処理し、応答を返す.<br>
+     * 要求は"接頭辞 + 要求番号 + 区切り文字 + 通常の要求"の形式で、応答も同じ形式で返す.<br>
+     * 対象はset(1)、get(2)、remove(5)、setOnlyOnce(6)のみ.<br>
+     *
+     * @param requestLine 要求
+     * @return String 応答 要求の形式が不正な場合はnull
+     */
+    private String executeMultiplexRequest(String requestLine) {
+        int sepIdx = requestLine.indexOf(ImdstDefine.keyHelperClientParamSep);
+        if (requestLine.indexOf(ImdstDefine.keyNodeMultiplexPrefix) != 0 || sepIdx == -1) {
+            logger.error("KeyManagerHelper - executeMultiplexRequest - Illegal Request =[" + requestLine + "]");
+            return null;
+        }
+
+        String requestNo = requestLine.substring(ImdstDefine.keyNodeMultiplexPrefix.length(), sepIdx);
+        String request = requestLine.substring(sepIdx + 1);
+        String[] retParams = null;
+
+        try {
+            String[] clientParameterList = clientParameterSplit(request, ImdstDefine.keyHelperClientParamSep);
+            String requestDataNode = null;
+
+            switch (Integer.parseInt(clientParameterList[0])) {
+
+                case 1 :
+                case 6 :
+
+                    requestDataNode = clientParameterList[3];
+
+                    // 値の中にセパレータ文字列が入っている場合もデータとしてあつかう
+                    if (clientParameterList.length > 4) {
+                        requestDataNode = requestDataNode + 
+                            ImdstDefine.keyHelperClientParamSep + 
+                                clientParameterList[4];
+                    }
+
+                    if (clientParameterList[0].equals("1")) {
+                        retParams = this.setDatanode(clientParameterList[1], requestDataNode, clientParameterList[2]);
+                    } else {
+                        retParams = this.setDatanodeOnlyOnce(clientParameterList[1], requestDataNode, clientParameterList[2]);
+                    }
+                    break;
+                case 2 :
+
+                    retParams = this.getDatanode(clientParameterList[1]);
+                    break;
+                case 5 :
+
+                    retParams = this.removeDatanode(clientParameterList[1], clientParameterList[2]);
+                    break;
+                default :
+
+                    retParams = new String[3];
+                    retParams[0] = clientParameterList[0];
+                    retParams[1] = "false";
+                    retParams[2] = "NG:Multiplex request not supported";
+            }
+        } catch (Exception e) {
+            logger.error("KeyManagerHelper - executeMultiplexRequest - Error =[" + request + "]", e);
+            retParams = new String[3];
+            retParams[0] = "-1";
+            retParams[1] = "false";
+            retParams[2] = "NG:KeyManagerHelper - executeMultiplexRequest - Exception - " + e.toString();
+        }
+
+        StringBuilder retBuf = new StringBuilder(ImdstDefine.stringBufferSmallSize);
+        retBuf.append(ImdstDefine.keyNodeMultiplexPrefix);
+        retBuf.append(requestNo);
+        for (int i = 0; i < retParams.length; i++) {
+            retBuf.append(ImdstDefine.keyHelperClientParamSep);
+            retBuf.append(retParams[i]);
+        }
+
+        // Debugログ書き出し
+        if (StatusUtil.getDebugOption()) 
+            SystemUtil.debugLine("Multiplex : Response : " + retBuf);
+
+        return retBuf.toString();
+    }
+
+
+    /**
+     * okuyamaプロトコルで処理結果を応答する.<br>
+     * 応答の文字列を作成せずに処理結果をWriterのバッファに直接書き込む.<br>
+     *
+     * @param pw 応答先
+     * @param retParams 処理結果
+     * @param clientInfo 接続情報(Debugログ用)
+     */
+    private void sendResponse(PrintWriter pw, String[] retParams, String clientInfo) {
+        pw.print(retParams[0]);
+        for (int i = 1; i < retParams.length; i++) {
+            pw.print(ImdstDefine.keyHelperClientParamSep);
+            pw.print(retParams[i]);
+        }
+        pw.println("");
+        pw.flush();
+
+        // Debugログ書き出し
+        if (StatusUtil.getDebugOption()) {
+
+            StringBuilder debugLogBuf = new StringBuilder(ImdstDefine.stringBufferSmallSize);
+            for (int i = 0; i < retParams.length; i++) {
+                if (i > 0) debugLogBuf.append(ImdstDefine.keyHelperClientParamSep);
+                debugLogBuf.append(retParams[i]);
+            }
+            SystemUtil.debugLine(clientInfo + " : Response : " + debugLogBuf);
+        }
+    }
+
+
+    // Debugログ用にKeyNodeRequestReaderで分解した要求を1行に戻す
+    private String joinRequestParameters() {
+        StringBuilder buf = new StringBuilder(ImdstDefine.stringBufferSmallSize);
+        buf.append(this.requestParameters[0]);
+        for (int i = 1; i < this.requestParameters.length && this.requestParameters[i] != null; i++) {
+            buf.append(ImdstDefine.keyHelperClientParamSep);
+            buf.append(this.requestParameters[i]);
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * バイナリ形式のネゴシエーションの成立を応答し、接続をBinaryConnectionに引き渡す.<br>
+     *
+     * @param queueMap 接続情報
+     * @throw Exception
+     */
+    private void startBinaryConnection(Object[] queueMap) throws Exception {
+        Socket soc = (Socket)queueMap[ImdstDefine.paramSocket];
+        PrintWriter pw = (PrintWriter)queueMap[ImdstDefine.paramPw];
+
+        pw.println(KeyNodeBinaryProtocol.negotiationResponse);
+        pw.flush();
+
+        BinaryConnection binaryConnection = new BinaryConnection(soc, (InputStream)queueMap[ImdstDefine.paramBis], (OutputStream)queueMap[ImdstDefine.paramBos]);
+        HelperPool.getHelperThreadFactory("KeyManagerHelper-BinaryConnection").newThread(binaryConnection).start();
+    }
+
+
+    /**
+     * 多重化のネゴシエーションの成立を応答し、接続をMultiplexConnectionに引き渡す.<br>
+     *
+     * @param queueMap 接続情報
+     * @throw Exception
+     */
+    private void startMultiplexConnection(Object[] queueMap) throws Exception {
+        Socket soc = (Socket)queueMap[ImdstDefine.paramSocket];
+        PrintWriter pw = (PrintWriter)queueMap[ImdstDefine.paramPw];
+        BufferedReader br = (BufferedReader)queueMap[ImdstDefine.paramBr];
+
+        pw.println(ImdstDefine.keyNodeMultiplexNegotiationResponse);
+        pw.flush();
+
+        MultiplexConnection multiplexConnection = new MultiplexConnection(soc, pw, br);
+        HelperPool.getHelperThreadFactory("KeyManagerHelper-MultiplexConnection").newThread(multiplexConnection).start();
+    }
+
+
+    /**
+     * バイナリ形式の要求を処理する.<br>
+     * 処理結果はテキスト形式の要求と同一.<br>
+     *
+     * @param frame 要求
+     * @return String[] 処理結果
+     */
+    private String[] executeBinaryRequest(KeyNodeBinaryProtocol.Frame frame) {
+        String[] retParams = null;
+
+        try {
+            switch (frame.getOpcode()) {
+
+                case KeyNodeBinaryProtocol.opSet :
+
+                    retParams = this.setDatanode(frame.getKey(), frame.getValue(), frame.getOption());
+                    break;
+                case KeyNodeBinaryProtocol.opSetOnlyOnce :
+
+                    retParams = this.setDatanodeOnlyOnce(frame.getKey(), frame.getValue(), frame.getOption());
+                    break;
+                case KeyNodeBinaryProtocol.opGet :
+
+                    retParams = this.getDatanode(frame.getKey());
+                    break;
+                case KeyNodeBinaryProtocol.opRemove :
+
+                    retParams = this.removeDatanode(frame.getKey(), frame.getOption());
+                    break;
+                default :
+
+                    retParams = new String[3];
+                    retParams[0] = String.valueOf(frame.getOpcode());
+                    retParams[1] = "false";
+                    retParams[2] = "NG:Binary request not supported";
+            }
+        } catch (Exception e) {
+            logger.error("KeyManagerHelper - executeBinaryRequest - Error", e);
+            retParams = new String[3];
+            retParams[0] = String.valueOf(frame.getOpcode());
+            retParams[1] = "false";
+            retParams[2] = "NG:KeyManagerHelper - executeBinaryRequest - Exception - " + e.toString();
+        }
+        return retParams;
+    }
+
+
     // KeyとDataNode値を格納する
     private String[] setDatanode(String key, String dataNodeStr, String transactionCode) {
         //logger.debug("KeyManagerHelper - setDatanode - start = [" + new String(BASE64DecoderStream.decode(key.getBytes())) + "]");
@@ -1514,7 +1855,8 @@ public class KeyManagerHelper extends AbstractHelper {
         String[] retStrs = null;
         try {
             if(!this.keyMapManager.checkError()) {
-                String ret = this.keyMapManager.getKeyPair(key);
+                // 削除対象の有効期限切れデータは取得時に削除する
+                String ret = this.keyMapManager.getKeyPairRemoveExpired(key);
                 if (ret != null) {
                     //String ret = this.keyMapManager.getKeyPair(key);
 
@@ -1565,9 +1907,12 @@ public class KeyManagerHelper extends AbstractHelper {
 
 
                         // 有効日付をUpdate
-                        String[] valueSplit = ret.split(ImdstDefine.keyHelperClientParamSep);
-                        if (valueSplit.length > 1) {
-                            String[] valueData = valueSplit[1].split("!");
+                        // Value全体を分解せずに、1つ目と2つ目の区切り文字の間(メタ情報)のみ取り出す
+                        int valueSepIdx = ret.indexOf(ImdstDefine.keyHelperClientParamSep);
+                        if (valueSepIdx != -1) {
+                            int metaEndIdx = ret.indexOf(ImdstDefine.keyHelperClientParamSep, valueSepIdx + 1);
+                            String metaStr = metaEndIdx == -1 ? ret.substring(valueSepIdx + 1) : ret.substring(valueSepIdx + 1, metaEndIdx);
+                            String[] valueData = metaStr.split("!");
                             if (valueData.length >1) {
 
                                 String[] metaColumns = valueData[0].split(AbstractProtocolTaker.metaColumnSep);
@@ -1578,7 +1923,7 @@ public class KeyManagerHelper extends AbstractHelper {
 
                                         if(metaColumns.length > 2) {
                                             metaColumns[1] = AbstractProtocolTaker.calcExpireTime(metaColumns[2]);
-                                            ret = valueSplit[0] + 
+                                            ret = ret.substring(0, valueSepIdx) + 
                                                   ImdstDefine.keyHelperClientParamSep + 
                                                   metaColumns[0] + 
                                                   AbstractProtocolTaker.metaColumnSep +
@@ -2560,4 +2905,176 @@ public class KeyManagerHelper extends AbstractHelper {
         }
     }
 
-}
\ No newline at end of file
+
+    /**
+     * バイナリ形式に切り替えたMasterNodeからの接続.<br>
+     * 受信したフレームを共有のスレッドプールで処理し、応答は処理が完了した順に返す.<br>
+     * スレッドプールの処理待ちが上限に達している場合は本スレッドで処理し、その間は受信しない.<br>
+     * 受信はHelperと同じ種類のスレッド(仮想スレッド時は仮想スレッド)で行う.<br>
+     */
+    class BinaryConnection implements Runnable {
+
+        private Socket socket = null;
+
+        private DataInputStream dis = null;
+
+        private DataOutputStream dos = null;
+
+        // 応答の書き込みを排他する(仮想スレッドで書き込み待ちとなる場合があるためReentrantLock)
+        private ReentrantLock writeLock = new ReentrantLock();
+
+
+        BinaryConnection(Socket socket, InputStream is, OutputStream os) {
+            this.socket = socket;
+            this.dis = new DataInputStream(new BufferedInputStream(is, 8192 * 4));
+            this.dos = new DataOutputStream(new BufferedOutputStream(os, 8192 * 4));
+        }
+
+
+        public void run() {
+            try {
+                KeyNodeBinaryProtocol.Frame frame = null;
+                while ((frame = KeyNodeBinaryProtocol.readFrame(this.dis)) != null) {
+
+                    final KeyNodeBinaryProtocol.Frame request = frame;
+                    ThreadPoolExecutor executor = binaryRequestExecutor;
+                    if (executor == null) {
+                        this.execute(request);
+                        continue;
+                    }
+
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            execute(request);
+                        }
+                    });
+                }
+            } catch (IOException ie) {
+                logger.info("KeyManagerHelper - BinaryConnection - Closed " + ie.toString());
+            } catch (Throwable te) {
+                logger.error("KeyManagerHelper - BinaryConnection - Error", te);
+            } finally {
+                this.close();
+            }
+        }
+
+
+        private void execute(KeyNodeBinaryProtocol.Frame frame) {
+            String[] retParams = executeBinaryRequest(frame);
+            byte[] response = KeyNodeBinaryProtocol.encodeResponse(frame.getRequestNo(), frame.getOpcode(), retParams);
+
+            // Debugログ書き出し
+            if (StatusUtil.getDebugOption()) 
+                SystemUtil.debugLine("Binary : Response : " + frame.getRequestNo() + ImdstDefine.keyHelperClientParamSep + retParams[0] + ImdstDefine.keyHelperClientParamSep + retParams[1]);
+
+            try {
+                this.writeLock.lock();
+                try {
+                    this.dos.write(response);
+                    this.dos.flush();
+                } finally {
+                    this.writeLock.unlock();
+                }
+            } catch (IOException ie) {
+                this.close();
+            }
+        }
+
+
+        private void close() {
+            try {
+                this.dis.close();
+            } catch (IOException ie) {
+            }
+
+            try {
+                this.socket.close();
+            } catch (IOException ie) {
+            }
+        }
+    }
+
+
+
+    /**
+     * 多重化のネゴシエーションが成立したMasterNodeからの接続.<br>
+     * 受信した要求を共有のスレッドプールで処理し、応答は要求番号を付けて処理が完了した順に返す.<br>
+     * スレッドプールの処理待ちが上限に達している場合は本スレッドで処理し、その間は受信しない.<br>
+     */
+    class MultiplexConnection implements Runnable {
+
+        private Socket socket = null;
+
+        private PrintWriter pw = null;
+
+        private BufferedReader br = null;
+
+        // 応答の書き込みを排他する(仮想スレッドで書き込み待ちとなる場合があるためReentrantLock)
+        private ReentrantLock writeLock = new ReentrantLock();
+
+
+        MultiplexConnection(Socket socket, PrintWriter pw, BufferedReader br) {
+            this.socket = socket;
+            this.pw = pw;
+            this.br = br;
+        }
+
+
+        public void run() {
+            try {
+                String requestLine = null;
+                while ((requestLine = this.br.readLine()) != null) {
+
+                    if (requestLine.equals(ImdstDefine.imdstConnectExitRequest)) break;
+
+                    final String request = requestLine;
+                    ThreadPoolExecutor executor = binaryRequestExecutor;
+                    if (executor == null) {
+                        this.execute(request);
+                        continue;
+                    }
+
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            execute(request);
+                        }
+                    });
+                }
+            } catch (IOException ie) {
+                logger.info("KeyManagerHelper - MultiplexConnection - Closed " + ie.toString());
+            } catch (Throwable te) {
+                logger.error("KeyManagerHelper - MultiplexConnection - Error", te);
+            } finally {
+                this.close();
+            }
+        }
+
+
+        private void execute(String requestLine) {
+            String response = executeMultiplexRequest(requestLine);
+            if (response == null) return;
+
+            this.writeLock.lock();
+            try {
+                this.pw.println(response);
+                this.pw.flush();
+                if (this.pw.checkError()) this.close();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+
+        private void close() {
+            try {
+                this.br.close();
+            } catch (IOException ie) {
+            }
+
+            try {
+                this.socket.close();
+            } catch (IOException ie) {
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import okuyama.imdst.util.ImdstDefine;
 import okuyama.imdst.util.DataDispatcher;
 import okuyama.imdst.util.StatusUtil;
 import okuyama.imdst.util.io.NodeDnsUtil;
+import okuyama.imdst.util.translog.DiffChangeLog;
 
 /**
  * KeyNodeの監視を行うHelperクラス<br>
@@ -479,25 +480,16 @@ public class KeyNodeWatchHelper extends AbstractMasterManagerHelper {
 
             logger.info("Data Recover Schedule [" + masterNodeInfo + " => " + nodeInfo + "]");
             // コピー先KeyNodeとの接続を確立
-            socket = new Socket(NodeDnsUtil.getNameToReal(nodeName), nodePort);
-            socket.setSoTimeout(ImdstDefine.recoverConnectionTimeout);
-
-
-            OutputStreamWriter osw = new OutputStreamWriter(socket.getOutputStream() , ImdstDefine.keyHelperClientParamEncoding);
-            pw = new PrintWriter(new BufferedWriter(osw));
-
-            InputStreamReader isr = new InputStreamReader(socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding);
-            br = new BufferedReader(isr);
+            Object[] connection = this.openRecoverConnection(nodeName, nodePort);
+            socket = (Socket)connection[0];
+            pw = (PrintWriter)connection[1];
+            br = (BufferedReader)connection[2];
 
             // コピー元KeyNodeとの接続を確立
-            msocket = new Socket(NodeDnsUtil.getNameToReal(masterNodeName), masterNodePort);
-            msocket.setSoTimeout(ImdstDefine.recoverConnectionTimeout);
-
-            OutputStreamWriter mosw = new OutputStreamWriter(msocket.getOutputStream() , ImdstDefine.keyHelperClientParamEncoding);
-            mpw = new PrintWriter(new BufferedWriter(mosw));
-
-            InputStreamReader misr = new InputStreamReader(msocket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding);
-            mbr = new BufferedReader(misr);
+            Object[] mconnection = this.openRecoverConnection(masterNodeName, masterNodePort);
+            msocket = (Socket)mconnection[0];
+            mpw = (PrintWriter)mconnection[1];
+            mbr = (BufferedReader)mconnection[2];
 
             // データコピー開始
             StringBuilder buf = new StringBuilder();
@@ -571,61 +563,103 @@ public class KeyNodeWatchHelper extends AbstractMasterManagerHelper {
                 throw new Exception("send Data Error Ret=[" + sendRet + "]");
             }
 
-            logger.info("Recover Step - 10");
-            // 停止完了後差分データを取得
-            // この瞬間登録、削除は一時的に停止する。
-            buf = new StringBuilder();
-            // 処理番号24
-            buf.append("24");
-            buf.append(ImdstDefine.keyHelperClientParamSep);
-            buf.append("true");
-
-            // 送信
-            mpw.println(buf.toString());
-            mpw.flush();
-
+            // 差分データの転送が通信エラーで中断した場合は、両ノードと接続し直して
+            // コピー先が取り込み済みの連番の次から再開する
+            // 連番を付加しないバージョンのコピー元の場合は再開出来ないため、従来通りリカバリを失敗とする
+            long diffNextSeq = 1L;
+            boolean diffResumable = true;
+            int resumeCount = 0;
+            while (true) {
+                try {
+                    if (resumeCount > 0) {
+                        // 中断したコネクションを切断すると両ノードの処理は終了する
+                        socket.close();
+                        msocket.close();
+
+                        connection = this.openRecoverConnection(nodeName, nodePort);
+                        socket = (Socket)connection[0];
+                        pw = (PrintWriter)connection[1];
+                        br = (BufferedReader)connection[2];
+
+                        mconnection = this.openRecoverConnection(masterNodeName, masterNodePort);
+                        msocket = (Socket)mconnection[0];
+                        mpw = (PrintWriter)mconnection[1];
+                        mbr = (BufferedReader)mconnection[2];
+                    }
 
-            logger.info("Recover Step - 11");
-            // 差分データを送る
-            buf = new StringBuilder();
-            buf.append("25");
-            buf.append(ImdstDefine.keyHelperClientParamSep);
-            pw.println(buf.toString());
-            pw.flush();
+                    logger.info("Recover Step - 10 FromSeq[" + diffNextSeq + "]");
+                    // 停止完了後差分データを取得
+                    // この瞬間登録、削除は一時的に停止する。
+                    buf = new StringBuilder();
+                    // 処理番号24
+                    buf.append("24");
+                    buf.append(ImdstDefine.keyHelperClientParamSep);
+                    buf.append("true");
+                    buf.append(ImdstDefine.keyHelperClientParamSep);
+                    buf.append(diffNextSeq);
+
+                    // 送信
+                    mpw.println(buf.toString());
+                    mpw.flush();
 
-            // データを送信
-            String diffDataStr = null;
-            int diffCount = 0;
-            while((diffDataStr = mbr.readLine()) != null) {
-                diffCount++;
-                if ((diffCount % 10) == 0) 
-                    logger.info("Recover Step - 11 - DiffSendCount[" + diffCount + "]");
 
-                if (diffDataStr.equals("-1")) break;
-                pw.println(diffDataStr);
-                pw.flush();
+                    logger.info("Recover Step - 11");
+                    // 差分データを送る
+                    buf = new StringBuilder();
+                    buf.append("25");
+                    buf.append(ImdstDefine.keyHelperClientParamSep);
+                    pw.println(buf.toString());
+                    pw.flush();
 
-                diffDataStr = null;
-                // 転送先の取り込み完了を待つ
-                String inputEnd = br.readLine();
+                    // データを送信
+                    // 1行は"行の最後の差分データの連番,差分データ"の形式(連番を付加しないバージョンの場合は差分データのみ)
+                    String diffDataStr = null;
+                    int diffCount = 0;
+                    while((diffDataStr = mbr.readLine()) != null) {
+                        diffCount++;
+                        if ((diffCount % 10) == 0) 
+                            logger.info("Recover Step - 11 - DiffSendCount[" + diffCount + "]");
+
+                        if (diffDataStr.equals("-1")) break;
+                        if (diffDataStr.equals("-2")) throw new Exception("Diff Data Output Error FromSeq=[" + diffNextSeq + "]");
+
+                        long lineSeq = DiffChangeLog.parseTransferLineSeq(diffDataStr);
+                        if (lineSeq < 0L) diffResumable = false;
+                        pw.println(DiffChangeLog.getTransferLineData(diffDataStr));
+                        pw.flush();
+
+                        diffDataStr = null;
+                        // 転送先の取り込み完了を待つ
+                        String inputEnd = br.readLine();
+                        if (inputEnd == null) throw new IOException("Diff Data Input Connection Closed");
+                        if (lineSeq >= 0L) diffNextSeq = lineSeq + 1;
+
+                        mpw.println(inputEnd);
+                        mpw.flush();
+                    }
+                    if (diffDataStr == null) throw new IOException("Diff Data Output Connection Closed");
 
-                mpw.println(inputEnd);
-                mpw.flush();
-            }
+                    pw.println("-1");
+                    pw.flush();
 
-            pw.println("-1");
-            pw.flush();
+                    logger.info("Recover Step - 12");
+                    // 取り込み完了を確認
+                    if((diffDataInputRet = br.readLine()) != null) {
 
-            logger.info("Recover Step - 12");
-            // 取り込み完了を確認
-            if((diffDataInputRet = br.readLine()) != null) {
+                        logger.info("Recover Step - 13");
+                        if(!diffDataInputRet.equals("1")) throw new Exception("Diff Data Input Error Ret=[" + diffDataInputRet + "]");
+                    } else {
 
-                logger.info("Recover Step - 13");
-                if(!diffDataInputRet.equals("1")) throw new Exception("Diff Data Input Error Ret=[" + diffDataInputRet + "]");
-            } else {
+                        logger.info("Recover Step - 14");
+                        throw new IOException("Diff Data Input Error Ret=[" + diffDataInputRet + "]");
+                    }
+                    break;
+                } catch (IOException ie) {
 
-                logger.info("Recover Step - 14");
-                throw new Exception("Diff Data Input Error Ret=[" + diffDataInputRet + "]");
+                    resumeCount++;
+                    if (!diffResumable || resumeCount > ImdstDefine.recoverDiffDataResumeCount) throw ie;
+                    logger.error("Recover Diff Data Transfer Error Resume FromSeq=[" + diffNextSeq + "] Count=[" + resumeCount + "]", ie);
+                }
             }
 
             logger.info("Recover Step - 15");
@@ -692,4 +726,19 @@ public class KeyNodeWatchHelper extends AbstractMasterManagerHelper {
         }
         return ret;
     }
+
+
+    // リカバリー用のコネクションを作成し、[Socket, PrintWriter, BufferedReader]を返す
+    private Object[] openRecoverConnection(String nodeName, int nodePort) throws IOException {
+        Socket socket = new Socket(NodeDnsUtil.getNameToReal(nodeName), nodePort);
+        socket.setSoTimeout(ImdstDefine.recoverConnectionTimeout);
+
+        OutputStreamWriter osw = new OutputStreamWriter(socket.getOutputStream() , ImdstDefine.keyHelperClientParamEncoding);
+        PrintWriter pw = new PrintWriter(new BufferedWriter(osw));
+
+        InputStreamReader isr = new InputStreamReader(socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding);
+        BufferedReader br = new BufferedReader(isr);
+
+        return new Object[]{socket, pw, br};
+    }
 }
\ No newline at end of file
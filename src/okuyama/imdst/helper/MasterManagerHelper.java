@@ -64,6 +64,10 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
 
     private static final int returnProccessingCount = 2;
 
+    // 接続専用のHelperの場合に担当する接続(仮想スレッド時にMasterManagerJobが接続毎に起動する)
+    // 担当の接続のみを切断まで処理し、キューは経由しない
+    private Object[] dedicatedClientMap = null;
+
     // 更新時間
     private long setTime = 0;
     private Random rnd = new Random();
@@ -236,8 +240,16 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
             // Helperの全体数と現在処理中の数を知るためのKey値
             bindQueueWaitHelperCountKey = (String)parameters[8];
 
+            // 接続専用のHelperの場合は担当する接続
+            if (parameters.length > 9) this.dedicatedClientMap = (Object[])parameters[9];
+
             // 全体処理数を取得
-            numberOfQueueBindWaitCounter = (AtomicInteger)super.getHelperShareParam(bindQueueWaitHelperCountKey);
+            // 接続専用のHelperは他のHelperとキューを共有しないため、待機カウンターも共有しない
+            if (this.dedicatedClientMap != null) {
+                numberOfQueueBindWaitCounter = new AtomicInteger(0);
+            } else {
+                numberOfQueueBindWaitCounter = (AtomicInteger)super.getHelperShareParam(bindQueueWaitHelperCountKey);
+            }
 
             // Queue用の変数
             Object[] queueParam = null;
@@ -262,7 +274,9 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
                     if (closeFlg == true || reloopSameClient == false) {
 
                         // Queueから処理取得
-                        queueParam = super.pollSpecificationParameterQueue(pollQueueName);
+                        // 接続専用のHelperは担当の接続が切断された時点で終了する
+                        queueParam = this.pollClientConnect(pollQueueName, queueParam, closeFlg);
+                        if (queueParam == null) break;
 
                         // Queueからのパラメータ
                         queueMap = (Object[])queueParam[0];
@@ -312,7 +326,7 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
                             // 処理が完了したらQueueに戻す
                             queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                             queueParam[0] = queueMap;
-                            super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                            this.returnClientConnect(addQueueNames, queueParam);
                             continue;
                         }
 
@@ -1153,7 +1167,7 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
                             // 読み込みタイムアウトなら読み出し待機Queueに戻す
                             queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                             queueParam[0] = queueMap;
-                            super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                            this.returnClientConnect(addQueueNames, queueParam);
                             reloopSameClient = false;
                         } catch (Throwable te) {
 
@@ -1166,7 +1180,7 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
                         // 処理が完了したら読み出し待機Queueに戻す
                         queueMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
                         queueParam[0] = queueMap;
-                        super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+                        this.returnClientConnect(addQueueNames, queueParam);
                         reloopSameClient = false;
                     }
                 } catch (ArrayIndexOutOfBoundsException aiobe) {
@@ -1234,6 +1248,42 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
     }
 
 
+    /**
+     * 処理する接続を取得する.<br>
+     * 接続専用のHelperは担当の接続を返し、切断済みの場合はnullを返す.<br>
+     * それ以外はQueueに接続が格納されるまで待機する.<br>
+     *
+     * @param pollQueueName 待ち受けるQueue名
+     * @param queueParam 処理中の接続
+     * @param closeFlg 処理中の接続を切断済み
+     * @return Object[] 接続
+     */
+    private Object[] pollClientConnect(String pollQueueName, Object[] queueParam, boolean closeFlg) {
+        if (this.dedicatedClientMap == null) return super.pollSpecificationParameterQueue(pollQueueName);
+
+        if (closeFlg) return null;
+        if (queueParam != null) return queueParam;
+
+        queueParam = new Object[1];
+        queueParam[0] = this.dedicatedClientMap;
+        return queueParam;
+    }
+
+
+    /**
+     * 処理が完了した接続をQueueに戻す.<br>
+     * 接続専用のHelperはQueueに戻さずに同一の接続の読み込みを続ける.<br>
+     *
+     * @param addQueueNames 戻し先のQueue名
+     * @param queueParam 接続
+     * @throw Exception
+     */
+    private void returnClientConnect(String[] addQueueNames, Object[] queueParam) throws Exception {
+        if (this.dedicatedClientMap != null) return;
+        super.addSmallSizeParameterQueue(addQueueNames, queueParam);
+    }
+
+
     /**
      * Client初期化情報を返す.<br>
      *
@@ -9944,6 +9994,9 @@ public class MasterManagerHelper extends AbstractMasterManagerHelper {
             if (keyNodeConnector == null) {
                 // 接続が存在しない場合は自身で接続処理を行う
                 keyNodeConnector = new KeyNodeConnector(keyNodeName, Integer.parseInt(keyNodePort), keyNodeFullName);
+
+                // 多重化時はset、get、removeを共有の接続で送信する
+                if (ImdstDefine.multiplexDataNodeConnection) keyNodeConnector.setMultiplexMode();
                 keyNodeConnector.connect();
             }
 
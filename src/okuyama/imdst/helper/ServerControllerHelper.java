@@ -179,6 +179,36 @@ public class ServerControllerHelper extends AbstractMasterManagerHelper {
                         pw.println(size);
                         pw.flush();
 
+                        br.close();
+                        pw.close();
+                        Thread.sleep(500);
+                        soc.close();
+                    } else if (command.equals("valuecache")) {
+
+                        pw.println(command + " Success");
+                        pw.println(StatusUtil.getValueCacheStatus().toString());
+                        pw.flush();
+
+                        br.close();
+                        pw.close();
+                        Thread.sleep(500);
+                        soc.close();
+                    } else if (command.equals("keyindex")) {
+
+                        pw.println(command + " Success");
+                        pw.println(StatusUtil.getKeyIndexStatus().toString());
+                        pw.flush();
+
+                        br.close();
+                        pw.close();
+                        Thread.sleep(500);
+                        soc.close();
+                    } else if (command.equals("replay")) {
+
+                        pw.println(command + " Success");
+                        pw.println(StatusUtil.getReplayStatus().toString());
+                        pw.flush();
+
                         br.close();
                         pw.close();
                         Thread.sleep(500);
@@ -298,6 +328,9 @@ public class ServerControllerHelper extends AbstractMasterManagerHelper {
                         pw.println("allsize");
                         pw.println("cname");
                         pw.println("rname");
+                        pw.println("valuecache");
+                        pw.println("keyindex");
+                        pw.println("replay");
                         pw.println("fullgc");
                         pw.println("netdebug");
                         pw.println("jobstatus");
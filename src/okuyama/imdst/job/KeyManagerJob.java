@@ -3,20 +3,27 @@ package okuyama.imdst.job;
 import java.io.*;
 import java.util.zip.Deflater;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import okuyama.base.lang.BatchException;
 import okuyama.base.job.AbstractJob;
 import okuyama.base.job.AbstractHelper;
 import okuyama.base.job.IJob;
+import okuyama.base.util.HelperPool;
 import okuyama.base.util.ILogger;
 import okuyama.base.util.LoggerFactory;
 
+import okuyama.imdst.helper.KeyManagerHelper;
 import okuyama.imdst.util.JavaSystemApi;
 import okuyama.imdst.util.KeyMapManager;
 import okuyama.imdst.util.ImdstDefine;
 import okuyama.imdst.util.StatusUtil;
+import okuyama.imdst.util.SystemUtil;
 import okuyama.imdst.util.JavaSystemApi;
+import okuyama.imdst.util.io.KeyNodeRequestReader;
+import okuyama.imdst.util.io.SelectorConnection;
+import okuyama.imdst.util.io.SelectorFrontEnd;
 
 /**
  * keyとValueの関係を管理するJob、自身でポートを上げて待ち受ける.<br>
@@ -38,6 +45,8 @@ public class KeyManagerJob extends AbstractJob implements IJob {
 
     private String diskCacheFilePath = null;
 
+    private String dataFileAccessType = null;
+
     private boolean workFileMemoryMode = false;
     private String workFileMemoryModeStr = null;
 
@@ -68,6 +77,12 @@ public class KeyManagerJob extends AbstractJob implements IJob {
     // サーバーソケット
     ServerSocket serverSocket = null;
 
+    // Selectorで接続を管理する場合の接続受付部(ImdstDefine.selectorFrontEnd)
+    private SelectorFrontEnd selectorFrontEnd = null;
+
+    // 仮想スレッド時に接続毎に専用のKeyManagerHelperを起動する
+    private boolean dedicatedConnectHelper = false;
+
     // KeyMapManagerインスタンス
     private KeyMapManager keyMapManager = null;
 
@@ -117,12 +132,18 @@ public class KeyManagerJob extends AbstractJob implements IJob {
 
         ////// 設定反映 //////
 
-        // データ永続化Mapのタイプを設定(現在はokuyama.imdst.util.serializemap.SerializeMapか通常のConcurrentHashMapベースのMap
+        // データ永続化Mapのタイプを設定(現在はokuyama.imdst.util.serializemap.SerializeMapかokuyama.imdst.util.offheapmap.OffHeapSlabMapかokuyama.imdst.util.packedmap.PackedKeyIndexMapか通常のConcurrentHashMapベースのMap
         String dataSaveMapType = (String)super.getPropertiesValue(ImdstDefine.Prop_DataSaveMapType);
         if (dataSaveMapType != null &&  dataSaveMapType.toLowerCase().equals(ImdstDefine.Prop_DataSaveMapTypeSerialize)) {
             // SerializeMap
             ImdstDefine.useSerializeMap = true;
             ImdstDefine.serializerClassName = (String)super.getPropertiesValue(ImdstDefine.Prop_SerializerClassName);
+        } else if (dataSaveMapType != null &&  dataSaveMapType.toLowerCase().equals(ImdstDefine.Prop_DataSaveMapTypeOffHeap)) {
+            // OffHeapSlabMap
+            ImdstDefine.useOffHeapSlabMap = true;
+        } else if (dataSaveMapType != null &&  dataSaveMapType.toLowerCase().equals(ImdstDefine.Prop_DataSaveMapTypePacked)) {
+            // PackedKeyIndexMap
+            ImdstDefine.usePackedKeyIndexMap = true;
         }
 
 
@@ -134,15 +155,30 @@ public class KeyManagerJob extends AbstractJob implements IJob {
         } else {
 
             String saveDataCompressType = (String)super.getPropertiesValue(ImdstDefine.Prop_SaveDataCompressType);
-            if (saveDataCompress != null && !saveDataCompressType.equals("")) { 
+            if (saveDataCompressType != null && !saveDataCompressType.equals("")) { 
                 if (saveDataCompressType.equals("1")) {
                     ImdstDefine.valueCompresserLevel = Deflater.BEST_SPEED;
                 } else if (saveDataCompressType.equals("9")) {
                     ImdstDefine.valueCompresserLevel = Deflater.BEST_COMPRESSION;
+                } else if (saveDataCompressType.toLowerCase().equals(ImdstDefine.Prop_SaveDataCompressTypeLz)) {
+                    // LZ系の高速なコーデック
+                    ImdstDefine.valueCompressCodec = "okuyama.imdst.util.compress.LzValueCodec";
+                } else if (saveDataCompressType.indexOf(".") != -1) {
+                    // IValueCodecの実装クラス名
+                    ImdstDefine.valueCompressCodec = saveDataCompressType;
                 }
             }
         }
 
+        // 指定されたコーデックを起動時に登録し、再起動前に圧縮されたValueを圧縮解除出来るようにする
+        // タグが利用出来ないコーデックの場合は起動しない
+        try {
+            SystemUtil.initValueCodec();
+        } catch (Exception e) {
+            logger.error("KeyManagerJob - initJob - SaveDataCompressType Error", e);
+            throw new IllegalArgumentException("SaveDataCompressType Error " + ImdstDefine.valueCompressCodec + " " + e.getMessage());
+        }
+
 
         // データ永続化トランザクションファイルの遅延設定
         String transactionFileCommit = (String)super.getPropertiesValue(ImdstDefine.Prop_DataSaveTransactionFileEveryCommit);
@@ -223,6 +259,12 @@ public class KeyManagerJob extends AbstractJob implements IJob {
         }
         this.maxWorkerParallelQueueNames = new String[new Long(this.maxWorkerParallelQueue).intValue()];
 
+        // 仮想スレッド時は処理スレッドをvirtualThreadWorkerSizeまで増やす
+        // Selectorを使用しない場合は接続毎に専用のHelperを起動するため、バイナリ形式、多重化された要求を処理するスレッド数の上限となる
+        if (ImdstDefine.useVirtualThread && this.maxWorkerParallelExecution < ImdstDefine.virtualThreadWorkerSize) {
+            this.maxWorkerParallelExecution = ImdstDefine.virtualThreadWorkerSize;
+        }
+
 
 
         logger.debug("KeyManagerJob - initJob - end");
@@ -264,7 +306,12 @@ public class KeyManagerJob extends AbstractJob implements IJob {
                 bindAddress= new InetSocketAddress(this.bindIpAddress, this.portNo);
             }
 
-            this.serverSocket = new ServerSocket();
+            // Selector時はAcceptしたソケットをノンブロッキングにするため、ServerSocketChannelで待ち受ける
+            if (this.selectorFrontEnd != null) {
+                this.serverSocket = ServerSocketChannel.open().socket();
+            } else {
+                this.serverSocket = new ServerSocket();
+            }
 
             if (ImdstDefine.tcpReceiveBufferSize != 0) {
                 this.serverSocket.setReceiveBufferSize(ImdstDefine.tcpReceiveBufferSize);
@@ -299,6 +346,20 @@ public class KeyManagerJob extends AbstractJob implements IJob {
                         socket.setSendBufferSize(ImdstDefine.tcpSendBufferSize);
                     }
 
+                    if (this.selectorFrontEnd != null) {
+
+                        // Selectorに登録
+                        this.registerSelectorConnection(socket);
+                        continue;
+                    }
+
+                    if (this.dedicatedConnectHelper) {
+
+                        // 接続専用のHelperを起動
+                        this.executeDedicatedHelper(socket);
+                        continue;
+                    }
+
                     Object[] helperParam = new Object[1];
                     helperParam[0] = socket;
 
@@ -323,6 +384,77 @@ public class KeyManagerJob extends AbstractJob implements IJob {
     }
 
 
+    /**
+     * Accept済みのソケットをSelectorに登録する.<br>
+     * 接続情報の作成はKeyManagerConnectHelperと同様.<br>
+     *
+     * @param socket
+     * @throws Exception
+     */
+    private void registerSelectorConnection(Socket socket) throws Exception {
+        SelectorConnection connection = this.selectorFrontEnd.createConnection(socket.getChannel());
+
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
+        BufferedReader br = null;
+        if (ImdstDefine.dataNodeRequestDecoder) {
+            br = new KeyNodeRequestReader(connection.getInputStream());
+        } else {
+            br = new BufferedReader(new InputStreamReader(connection.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+        }
+
+        Object[] clientMap = new Object[9];
+        clientMap[ImdstDefine.paramSocket] = socket;
+        clientMap[ImdstDefine.paramPw] = pw;
+        clientMap[ImdstDefine.paramBr] = br;
+        clientMap[ImdstDefine.paramStart] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramCheckCount] = new Integer(0);
+        clientMap[ImdstDefine.paramBis] = connection.getInputStream();
+        clientMap[ImdstDefine.paramBos] = connection.getOutputStream();
+
+        this.selectorFrontEnd.register(connection, clientMap);
+    }
+
+
+    /**
+     * Accept済みのソケットを処理する接続専用のKeyManagerHelperを起動する.<br>
+     * 仮想スレッド時にSelectorを使用しない場合は、接続毎に仮想スレッドで実行するHelperが切断まで読み込みを待つ.<br>
+     * 接続をキューで受け渡さないため、KeyManagerAcceptHelperによる無操作時の自動切断は行われない.<br>
+     * 接続情報の作成はKeyManagerConnectHelperと同様.<br>
+     *
+     * @param socket
+     * @throws Exception
+     */
+    private void executeDedicatedHelper(Socket socket) throws Exception {
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
+        BufferedReader br = null;
+        if (ImdstDefine.dataNodeRequestDecoder) {
+            br = new KeyNodeRequestReader(socket.getInputStream());
+        } else {
+            br = new BufferedReader(new InputStreamReader(socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+        }
+
+        Object[] clientMap = new Object[9];
+        clientMap[ImdstDefine.paramSocket] = socket;
+        clientMap[ImdstDefine.paramPw] = pw;
+        clientMap[ImdstDefine.paramBr] = br;
+        clientMap[ImdstDefine.paramStart] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramCheckCount] = new Integer(0);
+        clientMap[ImdstDefine.paramBis] = socket.getInputStream();
+        clientMap[ImdstDefine.paramBos] = socket.getOutputStream();
+
+        Object[] helperParam = new Object[5];
+        helperParam[0] = this.keyMapManager;
+        helperParam[1] = null;
+        helperParam[2] = null;
+        helperParam[3] = null;
+        helperParam[4] = clientMap;
+
+        super.executeHelper("KeyManagerHelper", helperParam);
+    }
+
+
     /**
      * データ永続化用のKeyMapManagerを初期化.<br>
      *
@@ -365,6 +497,9 @@ public class KeyManagerJob extends AbstractJob implements IJob {
             // DiskCache用のファイルパス
             this.diskCacheFilePath = super.getPropertiesValue(super.getJobName() + ImdstDefine.Prop_DiskCacheFilePath);
 
+            // 共有データファイルの読み込み方式
+            this.dataFileAccessType = super.getPropertiesValue(super.getJobName() + ImdstDefine.Prop_DataFileAccessType);
+
 
             // workファイルを保持するか判断
             if (workFileMemoryModeStr != null && workFileMemoryModeStr.equals("true")) workFileMemoryMode = true;
@@ -397,11 +532,11 @@ public class KeyManagerJob extends AbstractJob implements IJob {
             if (keyStoreForFileFlg) {
 
                 // Key is FileStoreMode
-                this.keyMapManager = new KeyMapManager(keyMapFiles[0], keyMapFiles[1], workFileMemoryMode, keySize, dataMemoryMode, keyStoreDirs, this.diskCacheFilePath);
+                this.keyMapManager = new KeyMapManager(keyMapFiles[0], keyMapFiles[1], workFileMemoryMode, keySize, dataMemoryMode, keyStoreDirs, this.diskCacheFilePath, this.dataFileAccessType);
             } else {
 
                 // Key is MemoryStoreMode
-                this.keyMapManager = new KeyMapManager(keyMapFiles[0], keyMapFiles[1], workFileMemoryMode, keySize, dataMemoryMode, memoryLimitSizeInt, virtualStorageDirs, this.diskCacheFilePath);
+                this.keyMapManager = new KeyMapManager(keyMapFiles[0], keyMapFiles[1], workFileMemoryMode, keySize, dataMemoryMode, memoryLimitSizeInt, virtualStorageDirs, this.diskCacheFilePath, this.dataFileAccessType);
             }
             this.keyMapManager.start();
 
@@ -428,42 +563,33 @@ public class KeyManagerJob extends AbstractJob implements IJob {
         long queueIndex = 0L;
         try {
             
-            for (int i = 0; i < this.maxConnectParallelQueue; i++) {
-                super.createUniqueHelperParamQueue("KeyManagerConnectHelper" + this.myPrefix + i, 7000);
-                this.maxConnectParallelQueueNames[i] = "KeyManagerConnectHelper" + this.myPrefix + i;
-            }
-
-            for (int i = 0; i < this.maxAcceptParallelQueue; i++) {
-                super.createUniqueHelperParamQueue("KeyManagerAcceptHelper" + this.myPrefix + i, 5000);
-                this.maxAcceptParallelQueueNames[i] = "KeyManagerAcceptHelper" + this.myPrefix + i;
-            }
-
             for (int i = 0; i < this.maxWorkerParallelQueue; i++) {
                 super.createUniqueHelperParamQueue("KeyManagerHelper" + this.myPrefix + i, 5000);
                 this.maxWorkerParallelQueueNames[i] = "KeyManagerHelper" + this.myPrefix + i;
             }
 
+            // 処理完了後に接続を戻すキュー
+            String[] returnQueueNames = this.maxAcceptParallelQueueNames;
 
+            if (ImdstDefine.selectorFrontEnd) {
 
-            // 監視スレッド起動
-            for (int i = 0; i < maxConnectParallelExecution; i++) {
-                queueIndex = (i+1) % this.maxConnectParallelQueue;
+                // Selector時はConnectHelper、AcceptHelperを起動しない
+                long idleTimeout = ImdstDefine.selectorFrontEndIdleTimeout == -1 ? -1L : ImdstDefine.selectorFrontEndIdleTimeout * 1000L;
+                this.selectorFrontEnd = new SelectorFrontEnd("KeyManager" + this.myPrefix, ImdstDefine.selectorFrontEndThreads, this.maxWorkerParallelQueueNames, idleTimeout);
+                this.selectorFrontEnd.start();
+                returnQueueNames = this.selectorFrontEnd.getReturnQueueNames();
+            } else if (HelperPool.isVirtualThread()) {
 
-                Object[] queueParam = new Object[2];
-                queueParam[0] = "KeyManagerConnectHelper" + this.myPrefix + queueIndex;
-                queueParam[1] = this.maxAcceptParallelQueueNames;
-                super.executeHelper("KeyManagerConnectHelper", queueParam, true);
+                // 仮想スレッド時は接続毎に専用のHelperを起動するため、ConnectHelper、AcceptHelper、処理待ちのHelperを起動しない
+                this.dedicatedConnectHelper = true;
+            } else {
+                this.initAcceptHelper();
             }
 
-            for (int i = 0; i < maxAcceptParallelExecution; i++) {
-                queueIndex = (i+1) % this.maxAcceptParallelQueue;
-
-                Object[] queueParam = new Object[2];
-                queueParam[0] = "KeyManagerAcceptHelper" + this.myPrefix + queueIndex;
-                queueParam[1] = this.maxWorkerParallelQueueNames;
-                super.executeHelper("KeyManagerAcceptHelper", queueParam, true);
-            }
 
+            // MasterNodeからのバイナリ形式の要求は処理スレッドと同数を上限とするスレッドプールで処理する
+            KeyManagerHelper.initBinaryRequestExecutor(this.maxWorkerParallelExecution, this.maxWorkerParallelExecution);
+            if (this.dedicatedConnectHelper) return;
 
             // KeyManagerHelper設定
             Object[] helperShareParams = new Object[(this.maxWorkerParallelQueue * 2)];
@@ -489,7 +615,7 @@ public class KeyManagerJob extends AbstractJob implements IJob {
                 Object[] queueParam = new Object[4];
                 queueParam[0] = this.keyMapManager;
                 queueParam[1] = "KeyManagerHelper" + this.myPrefix + queueIndex;
-                queueParam[2] = this.maxAcceptParallelQueueNames;
+                queueParam[2] = returnQueueNames;
                 queueParam[3] = "Bind-KeyManagerHelper" + this.myPrefix + queueIndex;
 
                 if (i == 0) {
@@ -503,4 +629,43 @@ public class KeyManagerJob extends AbstractJob implements IJob {
                 e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+
+    /**
+     * 接続をHelperで管理する場合のConnectHelper、AcceptHelperを起動する.<br>
+     *
+     * @throws Exception
+     */
+    private void initAcceptHelper() throws Exception {
+        long queueIndex = 0L;
+
+        for (int i = 0; i < this.maxConnectParallelQueue; i++) {
+            super.createUniqueHelperParamQueue("KeyManagerConnectHelper" + this.myPrefix + i, 7000);
+            this.maxConnectParallelQueueNames[i] = "KeyManagerConnectHelper" + this.myPrefix + i;
+        }
+
+        for (int i = 0; i < this.maxAcceptParallelQueue; i++) {
+            super.createUniqueHelperParamQueue("KeyManagerAcceptHelper" + this.myPrefix + i, 5000);
+            this.maxAcceptParallelQueueNames[i] = "KeyManagerAcceptHelper" + this.myPrefix + i;
+        }
+
+        // 監視スレッド起動
+        for (int i = 0; i < maxConnectParallelExecution; i++) {
+            queueIndex = (i+1) % this.maxConnectParallelQueue;
+
+            Object[] queueParam = new Object[2];
+            queueParam[0] = "KeyManagerConnectHelper" + this.myPrefix + queueIndex;
+            queueParam[1] = this.maxAcceptParallelQueueNames;
+            super.executeHelper("KeyManagerConnectHelper", queueParam, true);
+        }
+
+        for (int i = 0; i < maxAcceptParallelExecution; i++) {
+            queueIndex = (i+1) % this.maxAcceptParallelQueue;
+
+            Object[] queueParam = new Object[2];
+            queueParam[0] = "KeyManagerAcceptHelper" + this.myPrefix + queueIndex;
+            queueParam[1] = this.maxWorkerParallelQueueNames;
+            super.executeHelper("KeyManagerAcceptHelper", queueParam, true);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package okuyama.imdst.job;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -10,6 +11,7 @@ import okuyama.base.lang.BatchException;
 import okuyama.base.job.AbstractJob;
 import okuyama.base.job.AbstractHelper;
 import okuyama.base.job.IJob;
+import okuyama.base.util.HelperPool;
 import okuyama.base.util.ILogger;
 import okuyama.base.util.LoggerFactory;
 import okuyama.imdst.util.KeyMapManager;
@@ -18,6 +20,10 @@ import okuyama.imdst.util.ImdstDefine;
 import okuyama.imdst.util.DataDispatcher;
 import okuyama.imdst.util.StatusUtil;
 import okuyama.imdst.util.SystemUtil;
+import okuyama.imdst.util.JavaSystemApi;
+import okuyama.imdst.util.io.CustomReader;
+import okuyama.imdst.util.io.SelectorConnection;
+import okuyama.imdst.util.io.SelectorFrontEnd;
 
 import com.sun.mail.util.BASE64EncoderStream;
 
@@ -66,6 +72,12 @@ public class MasterManagerJob extends AbstractJob implements IJob {
     // サーバーソケット
     ServerSocket serverSocket = null;
 
+    // Selectorで接続を管理する場合の接続受付部(ImdstDefine.selectorFrontEnd)
+    private SelectorFrontEnd selectorFrontEnd = null;
+
+    // 仮想スレッド時に接続毎に専用のMasterManagerHelperを起動する
+    private boolean dedicatedConnectHelper = false;
+
 
     /**
      * Logger.<br>
@@ -166,6 +178,12 @@ public class MasterManagerJob extends AbstractJob implements IJob {
         }
         this.maxWorkerParallelQueueNames = new String[new Long(this.maxWorkerParallelQueue).intValue()];
 
+        // 仮想スレッド時にSelectorを使用しない場合は接続毎に専用のHelperを起動するため、処理スレッド数は使用しない
+        // Selectorを使用する場合は処理スレッド(Helper)をvirtualThreadWorkerSizeまで増やす
+        if (ImdstDefine.useVirtualThread && ImdstDefine.selectorFrontEnd && this.maxWorkerParallelExecution < ImdstDefine.virtualThreadWorkerSize) {
+            this.maxWorkerParallelExecution = ImdstDefine.virtualThreadWorkerSize;
+        }
+
 
         // データ取得時に使用するノード使用割合を決定
         balanceModes = new Boolean[balancePattern];
@@ -297,7 +315,12 @@ public class MasterManagerJob extends AbstractJob implements IJob {
                 bindAddress = new InetSocketAddress(this.bindIpAddress, this.portNo);
             }
 
-            this.serverSocket = new ServerSocket();
+            // Selector時はAcceptしたソケットをノンブロッキングにするため、ServerSocketChannelで待ち受ける
+            if (ImdstDefine.selectorFrontEnd) {
+                this.serverSocket = ServerSocketChannel.open().socket();
+            } else {
+                this.serverSocket = new ServerSocket();
+            }
 
             if (ImdstDefine.tcpReceiveBufferSize != 0) {
                 this.serverSocket.setReceiveBufferSize(ImdstDefine.tcpReceiveBufferSize);
@@ -310,39 +333,55 @@ public class MasterManagerJob extends AbstractJob implements IJob {
 
 
             // オリジナルのキュー領域を作成
-            for (int i = 0; i < this.maxConnectParallelQueue; i++) {
-                super.createUniqueHelperParamQueue("MasterManagerConnectHelper" + i, 10000);
-                this.maxConnectParallelQueueNames[i] = "MasterManagerConnectHelper" + i;
-            }
-
-            for (int i = 0; i < this.maxAcceptParallelQueue; i++) {
-                super.createUniqueHelperParamQueue("MasterManagerAcceptHelper" + i, 10000);
-                this.maxAcceptParallelQueueNames[i] = "MasterManagerAcceptHelper" + i;
-            }
-
             for (int i = 0; i < this.maxWorkerParallelQueue; i++) {
                 super.createUniqueHelperParamQueue("MasterManagerHelper" + i, 10000);
                 this.maxWorkerParallelQueueNames[i] = "MasterManagerHelper" + i;
             }
 
+            // 処理完了後に接続を戻すキュー
+            String[] returnQueueNames = this.maxAcceptParallelQueueNames;
 
-            // Worker用Helperを起動
-            // 引数は取得用Queueプレフィックス
-            // 引数は追加用Queue数
-            for (int i = 0; i < this.maxConnectParallelExecution; i++) {
-                queueIndex = (i+1) % this.maxConnectParallelQueue;
-                helperParams = new Object[2];
-                helperParams[0] = "MasterManagerConnectHelper" + queueIndex;
-                helperParams[1] = this.maxAcceptParallelQueueNames;
-                super.executeHelper("MasterManagerConnectHelper", helperParams, true);
-            }
+            if (ImdstDefine.selectorFrontEnd) {
 
-            for (int i = 0; i < this.maxAcceptParallelExecution; i++) {
-                queueIndex = (i+1) % this.maxAcceptParallelQueue;
-                helperParams = new Object[2];
-                helperParams[0] = "MasterManagerAcceptHelper" + queueIndex;
-                helperParams[1] = this.maxWorkerParallelQueueNames;
-                super.executeHelper("MasterManagerAcceptHelper", helperParams, true);
+                // Selector時はConnectHelper、AcceptHelperを起動しない
+                long idleTimeout = ImdstDefine.selectorFrontEndIdleTimeout == -1 ? -1L : ImdstDefine.selectorFrontEndIdleTimeout * 1000L;
+                this.selectorFrontEnd = new SelectorFrontEnd("MasterManager", ImdstDefine.selectorFrontEndThreads, this.maxWorkerParallelQueueNames, idleTimeout);
+                this.selectorFrontEnd.start();
+                returnQueueNames = this.selectorFrontEnd.getReturnQueueNames();
+            } else if (HelperPool.isVirtualThread()) {
+
+                // 仮想スレッド時は接続毎に専用のHelperを起動するため、ConnectHelper、AcceptHelper、処理待ちのHelperを起動しない
+                this.dedicatedConnectHelper = true;
+            } else {
+
+                for (int i = 0; i < this.maxConnectParallelQueue; i++) {
+                    super.createUniqueHelperParamQueue("MasterManagerConnectHelper" + i, 10000);
+                    this.maxConnectParallelQueueNames[i] = "MasterManagerConnectHelper" + i;
+                }
+
+                for (int i = 0; i < this.maxAcceptParallelQueue; i++) {
+                    super.createUniqueHelperParamQueue("MasterManagerAcceptHelper" + i, 10000);
+                    this.maxAcceptParallelQueueNames[i] = "MasterManagerAcceptHelper" + i;
+                }
+
+                // Worker用Helperを起動
+                // 引数は取得用Queueプレフィックス
+                // 引数は追加用Queue数
+                for (int i = 0; i < this.maxConnectParallelExecution; i++) {
+                    queueIndex = (i+1) % this.maxConnectParallelQueue;
+                    helperParams = new Object[2];
+                    helperParams[0] = "MasterManagerConnectHelper" + queueIndex;
+                    helperParams[1] = this.maxAcceptParallelQueueNames;
+                    super.executeHelper("MasterManagerConnectHelper", helperParams, true);
+                }
+
+                for (int i = 0; i < this.maxAcceptParallelExecution; i++) {
+                    queueIndex = (i+1) % this.maxAcceptParallelQueue;
+                    helperParams = new Object[2];
+                    helperParams[0] = "MasterManagerAcceptHelper" + queueIndex;
+                    helperParams[1] = this.maxWorkerParallelQueueNames;
+                    super.executeHelper("MasterManagerAcceptHelper", helperParams, true);
+                }
             }
 
 
@@ -368,7 +407,7 @@ public class MasterManagerJob extends AbstractJob implements IJob {
 
 
             queueIndex = 0;
-            for (int i = 0; i < this.maxWorkerParallelExecution; i++) {
+            for (int i = 0; !this.dedicatedConnectHelper && i < this.maxWorkerParallelExecution; i++) {
                 queueIndex = (i+1) % this.maxWorkerParallelQueue;
 
                 helperParams = new Object[paramSize];
@@ -379,7 +418,7 @@ public class MasterManagerJob extends AbstractJob implements IJob {
                 helperParams[4] = StatusUtil.isTransactionMode();
                 helperParams[5] = StatusUtil.getTransactionNode();
                 helperParams[6] = "MasterManagerHelper" + queueIndex;
-                helperParams[7] = this.maxAcceptParallelQueueNames;
+                helperParams[7] = returnQueueNames;
                 helperParams[8] = "Bind-MasterManagerHelper" + queueIndex;
 
                 if (i == 0) {
@@ -420,6 +459,22 @@ public class MasterManagerJob extends AbstractJob implements IJob {
                         socket.setSendBufferSize(ImdstDefine.tcpSendBufferSize);
                     }
 
+                    if (this.selectorFrontEnd != null) {
+
+                        // Selectorに登録
+                        this.registerSelectorConnection(socket, queueParam[1]);
+                        accessCount++;
+                        continue;
+                    }
+
+                    if (this.dedicatedConnectHelper) {
+
+                        // 接続専用のHelperを起動
+                        this.executeDedicatedHelper(socket, queueParam[1], paramSize);
+                        accessCount++;
+                        continue;
+                    }
+
                     // ソケット格納
                     queueParam[0] = socket;
 
@@ -436,7 +491,11 @@ public class MasterManagerJob extends AbstractJob implements IJob {
                     } finally {
                         try {
 
-                            this.serverSocket = new ServerSocket();
+                            if (this.selectorFrontEnd != null) {
+                                this.serverSocket = ServerSocketChannel.open().socket();
+                            } else {
+                                this.serverSocket = new ServerSocket();
+                            }
                             this.serverSocket.bind(bindAddress, this.backLog);
                             // 共有領域にServerソケットのポインタを格納
                             super.setJobShareParam(super.getJobName() + "_ServeSocket", this.serverSocket);
@@ -469,6 +528,95 @@ public class MasterManagerJob extends AbstractJob implements IJob {
     }
 
 
+    /**
+     * Accept済みのソケットをSelectorに登録する.<br>
+     * 接続情報の作成はMasterManagerConnectHelperと同様.<br>
+     *
+     * @param socket
+     * @param balance ロードバランスの指定
+     * @throw Exception
+     */
+    private void registerSelectorConnection(Socket socket, Object balance) throws Exception {
+        SelectorConnection connection = this.selectorFrontEnd.createConnection(socket.getChannel());
+
+        // ログ書き出し
+        logger.info("Accept : " + socket.toString());
+        SystemUtil.debugLine("Accept : " + socket.toString());
+
+        BufferedOutputStream bos = new BufferedOutputStream(connection.getOutputStream());
+        PrintWriter pw = new PrintWriter(
+                            new BufferedWriter(
+                                new OutputStreamWriter(connection.getOutputStream(), 
+                                                        ImdstDefine.keyHelperClientParamEncoding)));
+        CustomReader cr = new CustomReader(connection.getInputStream());
+
+        Object[] clientMap = new Object[9];
+        clientMap[ImdstDefine.paramSocket] = socket;
+        clientMap[ImdstDefine.paramPw] = pw;
+        clientMap[ImdstDefine.paramBr] = cr;
+        clientMap[ImdstDefine.paramStart] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramBalance] = balance;
+        clientMap[ImdstDefine.paramCheckCountMaster] = new Integer(0);
+        clientMap[ImdstDefine.paramBis] = cr;
+        clientMap[ImdstDefine.paramBos] = bos;
+
+        this.selectorFrontEnd.register(connection, clientMap);
+    }
+
+
+    /**
+     * Accept済みのソケットを処理する接続専用のMasterManagerHelperを起動する.<br>
+     * 仮想スレッド時にSelectorを使用しない場合は、接続毎に仮想スレッドで実行するHelperが切断まで読み込みを待つ.<br>
+     * 接続をQueueで受け渡さないため、MasterManagerAcceptHelperによる無操作時の自動切断は行われない.<br>
+     * 接続情報の作成はMasterManagerConnectHelperと同様.<br>
+     *
+     * @param socket
+     * @param balance ロードバランスの指定
+     * @param paramSize 処理待ちのHelperの引数の数
+     * @throw Exception
+     */
+    private void executeDedicatedHelper(Socket socket, Object balance, int paramSize) throws Exception {
+
+        // ログ書き出し
+        logger.info("Accept : " + socket.toString());
+        SystemUtil.debugLine("Accept : " + socket.toString());
+
+        BufferedOutputStream bos = new BufferedOutputStream(socket.getOutputStream());
+        PrintWriter pw = new PrintWriter(
+                            new BufferedWriter(
+                                new OutputStreamWriter(socket.getOutputStream(), 
+                                                        ImdstDefine.keyHelperClientParamEncoding)));
+        CustomReader cr = new CustomReader(socket.getInputStream());
+
+        Object[] clientMap = new Object[9];
+        clientMap[ImdstDefine.paramSocket] = socket;
+        clientMap[ImdstDefine.paramPw] = pw;
+        clientMap[ImdstDefine.paramBr] = cr;
+        clientMap[ImdstDefine.paramStart] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
+        clientMap[ImdstDefine.paramBalance] = balance;
+        clientMap[ImdstDefine.paramCheckCountMaster] = new Integer(0);
+        clientMap[ImdstDefine.paramBis] = cr;
+        clientMap[ImdstDefine.paramBos] = bos;
+
+        // 処理待ちのHelperと同様の引数の後ろに担当する接続を指定する
+        Object[] helperParams = new Object[paramSize + 1];
+        helperParams[0] = null;
+        helperParams[1] = null;
+        helperParams[2] = this.mode;
+        helperParams[3] = null;
+        helperParams[4] = StatusUtil.isTransactionMode();
+        helperParams[5] = StatusUtil.getTransactionNode();
+        helperParams[6] = null;
+        helperParams[7] = null;
+        helperParams[8] = null;
+        helperParams[paramSize] = clientMap;
+
+        super.executeHelper("MasterManagerHelper", helperParams);
+    }
+
+
     /**
      * ConsistentHashアルゴリズム処理.<br>
      * ServerSocketをOpenしてクライアントを待ち受ける.<br>
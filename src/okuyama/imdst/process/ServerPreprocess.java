@@ -6,6 +6,7 @@ import java.util.Map;
 import okuyama.base.lang.BatchDefine;
 import okuyama.base.lang.BatchException;
 import okuyama.base.process.IProcess;
+import okuyama.base.util.HelperPool;
 import okuyama.imdst.util.ImdstDefine;
 import okuyama.imdst.util.StatusUtil;
 
@@ -54,6 +55,38 @@ import okuyama.imdst.util.StatusUtil;
  * -vacscl Key値の数とファイルの行数の差がこの数値を超えると強制的にvacuumを行う
  * -vacat  Vacuum実行時に事前に以下のミリ秒の間アクセスがないと実行許可となる
  * -vac  Vacuumを行わない場合はfasle
+ * -vcms ImdstDefine.valueCacheMaxByteSize / ValueをFileで保持する際のValueキャッシュのサイズをメガバイト単位で指定する 0の場合はキャッシュを利用しない デフォルトは32
+ * -dfsm ImdstDefine.dataFileSegmentMode / ValueをFileで保持する際に共有データファイルを追記型のセグメントで管理するかの指定 true=管理する false=従来通り更新位置を上書きする(デフォルト)
+ * -dfsmm ImdstDefine.dataFileSegmentMigration / -dfsm trueの場合に既存の固定長の共有データファイルをセグメント管理に変換するかの指定 true=変換する false=変換しない(デフォルト) 変換は元に戻せない
+ * -dfsss ImdstDefine.dataFileSlabSlotSizes / 共有データファイルをセグメントで管理する際のサイズクラス毎の1データのサイズ(バイト)をカンマ区切りで指定する デフォルトは256,1024,4096
+ * -dfclr ImdstDefine.dataFileCompactionLiveRatio / 有効データの割合(%)がこの値を下回ったセグメントを圧縮する デフォルトは50
+ * -dfcms ImdstDefine.dataFileCompactionMaxBytesPerSecond / セグメント圧縮時のデータ移動量の上限をキロバイト/秒単位で指定する デフォルトは8192
+ * -vbp ImdstDefine.valueBinaryPack / Valueをメモリに保存する際にBase64部分をデコードしたバイナリで格納するかの指定 true=格納する(デフォルト) false=Base64の文字列のまま格納する
+ * -tlgc ImdstDefine.transactionLogGroupCommit / WALログを都度書き込みにした場合にグループコミットを行うかの指定 true=行う(デフォルト) false=1件毎に書き込みとfsyncを行う
+ * -tlgcd ImdstDefine.transactionLogGroupCommitMaxDelay / グループコミット時に後続のログを待つ最大時間(ミリ秒) デフォルトは0(前回の書き込み中に登録されたログのみまとめる)
+ * -tlgcbs ImdstDefine.transactionLogGroupCommitMaxBatchSize / グループコミット時に1回の書き込みとfsyncでまとめる最大件数 デフォルトは512
+ * -tlrt ImdstDefine.transactionLogReplayThreads / 起動時にWALログを復元する際のレコードの反映を行うスレッド数 デフォルトはCPUのコア数
+ * -tlp ImdstDefine.transactionLogPartitions / 都度書き込み時にWALログを分割して並列に書き込むパーティション数 デフォルトは1(分割しない)
+ * -tlad ImdstDefine.transactionLogArchiveDir / チェックポイントで不要となったWALログ(メモリモード時はチェックポイントも)を保存するアーカイブのディレクトリ 未指定の場合は削除する
+ * -tlarh ImdstDefine.transactionLogArchiveRetentionHours / アーカイブの保存期間(時間) デフォルトは168
+ * -tlaci ImdstDefine.transactionLogArchiveCheckpointInterval / アーカイブにチェックポイントを保存する間隔(分) デフォルトは360
+ * -icp ImdstDefine.incrementalCheckpoint / バックアップ用のスナップショットObjectを変更部分のみの差分(チェックポイント)で出力するかの指定 true=差分(デフォルト) false=毎回全てのデータを出力
+ * -cpbc ImdstDefine.checkpointBucketCount / チェックポイントで変更を管理するKeyのハッシュバケット数 デフォルトは65536
+ * -cpmdc ImdstDefine.checkpointMergeDeltaCount / チェックポイントの差分をベースイメージに統合する差分数 デフォルトは8
+ * -kii ImdstDefine.keyIndexImage / Fileモード時にKeyのIndexイメージを書き出し、起動時にイメージから復元するかの指定 true=復元する(デフォルト) false=復元しない
+ * -kiilt ImdstDefine.keyIndexImageLoadThreads / 起動時にKeyのIndexイメージを反映するスレッド数 デフォルトはCPUのコア数
+ * -ei ImdstDefine.expiryIndex / 有効期限が設定されたKeyを有効期限毎のIndexで管理し、有効期限切れデータの削除を全件走査せずに行うかの指定 true=行う(デフォルト) false=全件走査
+ * -sfe ImdstDefine.selectorFrontEnd / クライアントの接続をSelectorで管理し、リクエストを受信した接続のみ処理スレッドに渡すかの指定 true=Selector false=従来のHelperで管理(デフォルト)
+ * -sfet ImdstDefine.selectorFrontEndThreads / Selector時のSelectorのスレッド数 デフォルトは1
+ * -sfeit ImdstDefine.selectorFrontEndIdleTimeout / Selector時に無操作の接続をクローズするまでの時間(秒) -1は切断なし デフォルトは1800
+ * -vt ImdstDefine.useVirtualThread / 処理スレッド(Helper)を仮想スレッドで実行するかの指定 true=仮想スレッド(仮想スレッドが利用可能なJavaVMのみ Selectorを使用しない場合は接続毎にHelperを起動) false=通常のスレッド(デフォルト)
+ * -vtws ImdstDefine.virtualThreadWorkerSize / 仮想スレッド時の処理スレッドの最小数(Selector時のHelper数、DataNodeのバイナリ形式、多重化された要求を処理するスレッド数) デフォルトは2048
+ * -mdc ImdstDefine.multiplexDataNodeConnection / MasterNodeからDataNodeへのset、get、removeを少数の接続で多重化して送信するかの指定 true=多重化(接続時にネゴシエーションを行い、多重化に未対応のDataNodeには要求毎に接続を使用) false=要求毎に接続を使用(デフォルト)
+ * -mdcc ImdstDefine.multiplexDataNodeConnectionSockets / 多重化時のDataNode1台あたりの接続数 デフォルトは2
+ * -bdp ImdstDefine.binaryDataNodeProtocol / 多重化時にDataNodeとの送受信をバイナリ形式で行うかの指定 true=接続毎にネゴシエーションし、対応しているDataNodeとはバイナリ形式(未対応の従来のDataNodeは初回の接続時にnodeConnectionOpenTimeoutの間応答を待つ) false=テキスト形式(デフォルト)
+ * -drd ImdstDefine.dataNodeRequestDecoder / DataNodeで要求を受信バッファ上で分解するかの指定 true=set、getは1行の文字列を作成せずに分解する false=従来通り1行ずつ文字列として読み込む(デフォルト)
+ * -dmms ImdstDefine.diffDataModeMaxSize / リカバリー中の差分モードで記録する差分データの最大サイズ(メガバイト) 超えた場合は差分モードをOffにする デフォルトは4096
+ * -dmto ImdstDefine.diffDataModeTimeout / 差分モード中にリカバリーのデータ転送が行われない状態が続いた場合に差分モードをOffにするまでの時間(秒) デフォルトは1800
  *
  * <br>
  * @author T.Okuyama
@@ -424,6 +457,410 @@ public class ServerPreprocess implements IProcess {
                         }
                     }
 
+                    // -vcms
+                    if (startOptions[i].trim().equals("-vcms")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                long cacheSize = Long.parseLong(startOptions[i+1]);
+                                if (cacheSize > 0) {
+                                    ImdstDefine.valueCacheMaxByteSize = cacheSize * 1024L * 1024L;
+                                } else {
+                                    ImdstDefine.useValueCache = false;
+                                }
+                                settingStartParameterMap.put("-vcms", startOptions[i+1]);
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -dfsm
+                    if (startOptions[i].trim().equals("-dfsm")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.dataFileSegmentMode = true;
+                                settingStartParameterMap.put("-dfsm", "true");
+                            } else if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.dataFileSegmentMode = false;
+                                settingStartParameterMap.put("-dfsm", "false");
+                            }
+                        }
+                    }
+
+                    // -dfsmm
+                    if (startOptions[i].trim().equals("-dfsmm")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.dataFileSegmentMigration = true;
+                                settingStartParameterMap.put("-dfsmm", "true");
+                            }
+                        }
+                    }
+
+                    // -dfsss
+                    if (startOptions[i].trim().equals("-dfsss")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                String[] slotSizeStrs = startOptions[i+1].trim().split(",");
+                                int[] slotSizes = new int[slotSizeStrs.length];
+                                for (int idx = 0; idx < slotSizeStrs.length; idx++) {
+                                    slotSizes[idx] = Integer.parseInt(slotSizeStrs[idx].trim());
+                                }
+                                ImdstDefine.dataFileSlabSlotSizes = slotSizes;
+                                settingStartParameterMap.put("-dfsss", startOptions[i+1]);
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -dfclr
+                    if (startOptions[i].trim().equals("-dfclr")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                ImdstDefine.dataFileCompactionLiveRatio = Integer.parseInt(startOptions[i+1]);
+                                settingStartParameterMap.put("-dfclr", startOptions[i+1]);
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -dfcms
+                    if (startOptions[i].trim().equals("-dfcms")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                long maxBytes = Long.parseLong(startOptions[i+1]);
+                                if (maxBytes > 0) {
+                                    ImdstDefine.dataFileCompactionMaxBytesPerSecond = maxBytes * 1024L;
+                                    settingStartParameterMap.put("-dfcms", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -vbp
+                    if (startOptions[i].trim().equals("-vbp")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.valueBinaryPack = false;
+                                settingStartParameterMap.put("-vbp", "false");
+                            }
+                        }
+                    }
+
+                    // -tlgc
+                    if (startOptions[i].trim().equals("-tlgc")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.transactionLogGroupCommit = false;
+                                settingStartParameterMap.put("-tlgc", "false");
+                            }
+                        }
+                    }
+
+                    // -tlgcd
+                    if (startOptions[i].trim().equals("-tlgcd")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                long maxDelay = Long.parseLong(startOptions[i+1]);
+                                if (maxDelay >= 0) {
+                                    ImdstDefine.transactionLogGroupCommitMaxDelay = maxDelay;
+                                    settingStartParameterMap.put("-tlgcd", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -tlgcbs
+                    if (startOptions[i].trim().equals("-tlgcbs")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int maxBatchSize = Integer.parseInt(startOptions[i+1]);
+                                if (maxBatchSize > 0) {
+                                    ImdstDefine.transactionLogGroupCommitMaxBatchSize = maxBatchSize;
+                                    settingStartParameterMap.put("-tlgcbs", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -tlrt
+                    if (startOptions[i].trim().equals("-tlrt")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int replayThreads = Integer.parseInt(startOptions[i+1]);
+                                if (replayThreads > 0) {
+                                    ImdstDefine.transactionLogReplayThreads = replayThreads;
+                                    settingStartParameterMap.put("-tlrt", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -tlp
+                    if (startOptions[i].trim().equals("-tlp")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int partitions = Integer.parseInt(startOptions[i+1]);
+                                if (partitions > 0) {
+                                    ImdstDefine.transactionLogPartitions = partitions;
+                                    settingStartParameterMap.put("-tlp", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -tlad
+                    if (startOptions[i].trim().equals("-tlad")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && !startOptions[i+1].trim().equals("")) {
+                                ImdstDefine.transactionLogArchiveDir = startOptions[i+1].trim();
+                                settingStartParameterMap.put("-tlad", startOptions[i+1].trim());
+                            }
+                        }
+                    }
+
+                    // -tlarh
+                    if (startOptions[i].trim().equals("-tlarh")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int retentionHours = Integer.parseInt(startOptions[i+1]);
+                                if (retentionHours > 0) {
+                                    ImdstDefine.transactionLogArchiveRetentionHours = retentionHours;
+                                    settingStartParameterMap.put("-tlarh", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -tlaci
+                    if (startOptions[i].trim().equals("-tlaci")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int checkpointInterval = Integer.parseInt(startOptions[i+1]);
+                                if (checkpointInterval >= 0) {
+                                    ImdstDefine.transactionLogArchiveCheckpointInterval = checkpointInterval;
+                                    settingStartParameterMap.put("-tlaci", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -icp
+                    if (startOptions[i].trim().equals("-icp")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.incrementalCheckpoint = false;
+                                settingStartParameterMap.put("-icp", "false");
+                            }
+                        }
+                    }
+
+                    // -cpbc
+                    if (startOptions[i].trim().equals("-cpbc")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int bucketCount = Integer.parseInt(startOptions[i+1]);
+                                if (bucketCount > 0) {
+                                    ImdstDefine.checkpointBucketCount = bucketCount;
+                                    settingStartParameterMap.put("-cpbc", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -cpmdc
+                    if (startOptions[i].trim().equals("-cpmdc")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int mergeDeltaCount = Integer.parseInt(startOptions[i+1]);
+                                if (mergeDeltaCount > 0) {
+                                    ImdstDefine.checkpointMergeDeltaCount = mergeDeltaCount;
+                                    settingStartParameterMap.put("-cpmdc", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -kii
+                    if (startOptions[i].trim().equals("-kii")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.keyIndexImage = false;
+                                settingStartParameterMap.put("-kii", "false");
+                            }
+                        }
+                    }
+
+                    // -kiilt
+                    if (startOptions[i].trim().equals("-kiilt")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int loadThreads = Integer.parseInt(startOptions[i+1]);
+                                if (loadThreads > 0) {
+                                    ImdstDefine.keyIndexImageLoadThreads = loadThreads;
+                                    settingStartParameterMap.put("-kiilt", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -ei
+                    if (startOptions[i].trim().equals("-ei")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("false")) {
+                                ImdstDefine.expiryIndex = false;
+                                settingStartParameterMap.put("-ei", "false");
+                            }
+                        }
+                    }
+
+                    // -sfe
+                    if (startOptions[i].trim().equals("-sfe")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.selectorFrontEnd = true;
+                                settingStartParameterMap.put("-sfe", "true");
+                            }
+                        }
+                    }
+
+                    // -sfet
+                    if (startOptions[i].trim().equals("-sfet")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int selectorThreads = Integer.parseInt(startOptions[i+1]);
+                                if (selectorThreads > 0) {
+                                    ImdstDefine.selectorFrontEndThreads = selectorThreads;
+                                    settingStartParameterMap.put("-sfet", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -sfeit
+                    if (startOptions[i].trim().equals("-sfeit")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int idleTimeout = Integer.parseInt(startOptions[i+1]);
+                                if (idleTimeout > 0 || idleTimeout == -1) {
+                                    ImdstDefine.selectorFrontEndIdleTimeout = idleTimeout;
+                                    settingStartParameterMap.put("-sfeit", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -vt
+                    if (startOptions[i].trim().equals("-vt")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                if (HelperPool.useVirtualThread()) {
+                                    ImdstDefine.useVirtualThread = true;
+                                    settingStartParameterMap.put("-vt", "true");
+                                } else {
+                                    System.out.println("Virtual thread is not supported on this JavaVM. -vt is ignored");
+                                }
+                            }
+                        }
+                    }
+
+                    // -vtws
+                    if (startOptions[i].trim().equals("-vtws")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int workerSize = Integer.parseInt(startOptions[i+1]);
+                                if (workerSize > 0) {
+                                    ImdstDefine.virtualThreadWorkerSize = workerSize;
+                                    settingStartParameterMap.put("-vtws", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -mdc
+                    if (startOptions[i].trim().equals("-mdc")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.multiplexDataNodeConnection = true;
+                                settingStartParameterMap.put("-mdc", "true");
+                            }
+                        }
+                    }
+
+                    // -mdcc
+                    if (startOptions[i].trim().equals("-mdcc")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                int sockets = Integer.parseInt(startOptions[i+1]);
+                                if (sockets > 0) {
+                                    ImdstDefine.multiplexDataNodeConnectionSockets = sockets;
+                                    settingStartParameterMap.put("-mdcc", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -bdp
+                    if (startOptions[i].trim().equals("-bdp")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.binaryDataNodeProtocol = true;
+                                settingStartParameterMap.put("-bdp", "true");
+                            }
+                        }
+                    }
+
+                    // -drd
+                    if (startOptions[i].trim().equals("-drd")) {
+                        if (startOptions.length > (i+1)) {
+                            if (startOptions[i+1] != null && startOptions[i+1].trim().equals("true")) {
+                                ImdstDefine.dataNodeRequestDecoder = true;
+                                settingStartParameterMap.put("-drd", "true");
+                            }
+                        }
+                    }
+
+                    // -dmms
+                    if (startOptions[i].trim().equals("-dmms")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                long maxSize = Long.parseLong(startOptions[i+1]);
+                                if (maxSize > 0) {
+                                    ImdstDefine.diffDataModeMaxSize = maxSize;
+                                    settingStartParameterMap.put("-dmms", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
+                    // -dmto
+                    if (startOptions[i].trim().equals("-dmto")) {
+                        if (startOptions.length > (i+1)) {
+                            try {
+                                long timeout = Long.parseLong(startOptions[i+1]);
+                                if (timeout > 0) {
+                                    ImdstDefine.diffDataModeTimeout = timeout * 1000L;
+                                    settingStartParameterMap.put("-dmto", startOptions[i+1]);
+                                }
+                            } catch(NumberFormatException nfe) {
+                            }
+                        }
+                    }
+
                     // -efsmo
                     if (startOptions[i].trim().equals("-efsmo")) {
                         if (startOptions.length > (i+1)) {
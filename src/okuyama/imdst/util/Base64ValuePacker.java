@@ -0,0 +1,192 @@
+package okuyama.imdst.util;
+
+/**
+ * メモリ保存時のValueのBase64部分をバイナリに変換して格納するためのユーティリティ.<br>
+ * DataNodeが受け取るValueは"Base64でエンコードされた文字列"+"メタ情報"の形式であるため、<br>
+ * 先頭のBase64部分をデコードしたbyte配列とメタ情報部分に分けて格納し、Base64による増加分(1/3)を削減する.<br>
+ * 取り出し時は再度Base64でエンコードし、元の文字列と同一のbyte配列に戻す.<br>
+ * 再エンコードで同一の文字列に戻らない(パディングのbitが0ではない)部分はメタ情報部分として扱う.<br>
+ * 変換後のレイアウトは以下.<br>
+ * [デコード後のレングス(可変長)][デコード後のbyte配列][メタ情報部分のbyte配列]<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class Base64ValuePacker {
+
+    // 変換対象とする最小のBase64部分の長さ
+    private static final int minPackLength = 16;
+
+    private static final byte[] encodeTable = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final int[] decodeTable = new int[256];
+
+    static {
+        for (int i = 0; i < decodeTable.length; i++) {
+            decodeTable[i] = -1;
+        }
+        for (int i = 0; i < encodeTable.length; i++) {
+            decodeTable[encodeTable[i]] = i;
+        }
+    }
+
+
+    /**
+     * 変換処理.<br>
+     * 先頭に変換対象のBase64部分が無い場合はnullを返す.<br>
+     *
+     * @param src Valueのbyte配列
+     * @param headerSize 返却値の先頭に確保する領域のサイズ
+     * @return byte[] 先頭のheaderSize分は未設定
+     */
+    public static byte[] pack(byte[] src, int headerSize) {
+        int base64Len = base64Length(src);
+        if (base64Len < minPackLength) return null;
+
+        int padding = 0;
+        if (src[base64Len - 1] == '=') padding++;
+        if (src[base64Len - 2] == '=') padding++;
+
+        int rawLen = (base64Len / 4) * 3 - padding;
+        int suffixLen = src.length - base64Len;
+
+        byte[] ret = new byte[headerSize + varIntSize(rawLen) + rawLen + suffixLen];
+        int dp = writeVarInt(ret, headerSize, rawLen);
+
+        // 4文字を3byteに変換
+        int fullEnd = base64Len - (padding > 0 ? 4 : 0);
+        for (int sp = 0; sp < fullEnd; sp = sp + 4) {
+            int bits = (decodeTable[src[sp] & 0xFF] << 18) | (decodeTable[src[sp + 1] & 0xFF] << 12) | (decodeTable[src[sp + 2] & 0xFF] << 6) | decodeTable[src[sp + 3] & 0xFF];
+            ret[dp] = (byte)(bits >>> 16);
+            ret[dp + 1] = (byte)(bits >>> 8);
+            ret[dp + 2] = (byte)bits;
+            dp = dp + 3;
+        }
+
+        if (padding > 0) {
+            int bits = (decodeTable[src[fullEnd] & 0xFF] << 18) | (decodeTable[src[fullEnd + 1] & 0xFF] << 12);
+            if (padding == 1) bits = bits | (decodeTable[src[fullEnd + 2] & 0xFF] << 6);
+
+            ret[dp] = (byte)(bits >>> 16);
+            dp++;
+            if (padding == 1) {
+                ret[dp] = (byte)(bits >>> 8);
+                dp++;
+            }
+        }
+
+        System.arraycopy(src, base64Len, ret, dp, suffixLen);
+        return ret;
+    }
+
+
+    /**
+     * 復元処理.<br>
+     *
+     * @param src packで変換したbyte配列
+     * @param offset 変換したデータの開始位置
+     * @return byte[] 変換前のValueのbyte配列
+     */
+    public static byte[] unpack(byte[] src, int offset) {
+        int sp = offset;
+        int rawLen = 0;
+        int shift = 0;
+        while (true) {
+            int b = src[sp++];
+            rawLen = rawLen | ((b & 0x7F) << shift);
+            if ((b & 0x80) == 0) break;
+            shift = shift + 7;
+        }
+
+        int suffixLen = src.length - sp - rawLen;
+        byte[] ret = new byte[((rawLen + 2) / 3) * 4 + suffixLen];
+        int dp = 0;
+
+        // 3byteを4文字に変換
+        int fullEnd = sp + (rawLen / 3) * 3;
+        while (sp < fullEnd) {
+            int bits = ((src[sp] & 0xFF) << 16) | ((src[sp + 1] & 0xFF) << 8) | (src[sp + 2] & 0xFF);
+            ret[dp] = encodeTable[bits >>> 18];
+            ret[dp + 1] = encodeTable[(bits >>> 12) & 0x3F];
+            ret[dp + 2] = encodeTable[(bits >>> 6) & 0x3F];
+            ret[dp + 3] = encodeTable[bits & 0x3F];
+            sp = sp + 3;
+            dp = dp + 4;
+        }
+
+        int remain = rawLen % 3;
+        if (remain > 0) {
+            int bits = (src[sp] & 0xFF) << 16;
+            if (remain == 2) bits = bits | ((src[sp + 1] & 0xFF) << 8);
+
+            ret[dp] = encodeTable[bits >>> 18];
+            ret[dp + 1] = encodeTable[(bits >>> 12) & 0x3F];
+            ret[dp + 2] = (remain == 2) ? encodeTable[(bits >>> 6) & 0x3F] : (byte)'=';
+            ret[dp + 3] = (byte)'=';
+            sp = sp + remain;
+            dp = dp + 4;
+        }
+
+        System.arraycopy(src, sp, ret, dp, suffixLen);
+        return ret;
+    }
+
+
+    /**
+     * 指定位置以降のbyte配列を返す.<br>
+     *
+     * @param src
+     * @param offset
+     * @return byte[]
+     */
+    public static byte[] subArray(byte[] src, int offset) {
+        byte[] ret = new byte[src.length - offset];
+        System.arraycopy(src, offset, ret, 0, ret.length);
+        return ret;
+    }
+
+
+    // 先頭のBase64部分の長さを返す
+    // 再エンコードで同一の文字列に戻る長さ(4の倍数)に切り詰める
+    private static int base64Length(byte[] src) {
+        int alphaLen = 0;
+        while (alphaLen < src.length && decodeTable[src[alphaLen] & 0xFF] != -1) {
+            alphaLen++;
+        }
+
+        int padding = 0;
+        while ((alphaLen + padding) < src.length && padding < 2 && src[alphaLen + padding] == '=') {
+            padding++;
+        }
+
+        if (padding > 0 && ((alphaLen + padding) % 4) == 0) {
+
+            // パディングで使われないbitが0の場合のみ同一の文字列に戻る
+            int lastBits = decodeTable[src[alphaLen - 1] & 0xFF];
+            int unusedMask = (padding == 1) ? 0x03 : 0x0F;
+            if ((lastBits & unusedMask) == 0) return alphaLen + padding;
+        }
+        return (alphaLen / 4) * 4;
+    }
+
+
+    private static int varIntSize(int value) {
+        int ret = 1;
+        while (value >= 0x80) {
+            value = value >>> 7;
+            ret++;
+        }
+        return ret;
+    }
+
+
+    private static int writeVarInt(byte[] dst, int dp, int value) {
+        while (value >= 0x80) {
+            dst[dp] = (byte)((value & 0x7F) | 0x80);
+            value = value >>> 7;
+            dp++;
+        }
+        dst[dp] = (byte)value;
+        return dp + 1;
+    }
+}
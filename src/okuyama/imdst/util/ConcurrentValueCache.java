@@ -0,0 +1,449 @@
+package okuyama.imdst.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+
+/**
+ * 並列アクセス可能なサイズ上限付きキャッシュ.<br>
+ * 主にFileMode時のValueのキャッシュに利用.<br>
+ * 読み込みはロックを取得せずに実行される.<br>
+ * 格納データ毎に重み(バイト数など)を指定し、重みの合計が上限を超えないように追い出しを行う.<br>
+ * 追い出し対象はCLOCK方式で選択し、新規登録データは参照頻度の推定値が追い出し対象より<br>
+ * 高い場合のみ登録される(TinyLFU).<br>
+ * 参照頻度は4bitのカウンターを利用したCount-Min Sketchで推定する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class ConcurrentValueCache {
+
+    private ConcurrentHashMap cacheMap = null;
+
+    // 追い出し対象を選択するためのCLOCK
+    private ConcurrentLinkedQueue clockQueue = null;
+
+    // clockQueue内に残っている削除、更新済みデータの数
+    private int staleCount = 0;
+
+    // 削除、更新済みデータがこの倍率を超えた場合にclockQueueを詰める
+    private static final int compactFactor = 2;
+
+    private static final int compactMinCount = 64;
+
+    private FrequencySketch sketch = null;
+
+    // 登録、削除時のLock
+    private final ReentrantLock w = new ReentrantLock();
+
+    private long maxWeight = 0L;
+
+    private volatile long nowWeight = 0L;
+
+    private AtomicLong hitCount = new AtomicLong(0L);
+
+    private AtomicLong missCount = new AtomicLong(0L);
+
+    private AtomicLong evictionCount = new AtomicLong(0L);
+
+    private AtomicLong rejectCount = new AtomicLong(0L);
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param maxWeight 格納データの重みの合計の上限
+     * @param expectedSize 格納データ数の予想値(参照頻度の推定に利用)
+     */
+    public ConcurrentValueCache(long maxWeight, int expectedSize) {
+        if (expectedSize < 16) expectedSize = 16;
+
+        this.maxWeight = maxWeight;
+        this.cacheMap = new ConcurrentHashMap(expectedSize, 0.75f, 64);
+        this.clockQueue = new ConcurrentLinkedQueue();
+        this.sketch = new FrequencySketch(expectedSize);
+    }
+
+
+    /**
+     * get<br>
+     * ロックを取得せずに実行される.<br>
+     *
+     * @param key
+     * @return Object 存在しない場合はnull
+     */
+    public Object get(Object key) {
+        this.sketch.increment(spread(key.hashCode()));
+
+        CacheEntry entry = (CacheEntry)this.cacheMap.get(key);
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        Object value = entry.value;
+        if (value == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        entry.referenced = true;
+        this.hitCount.incrementAndGet();
+        return value;
+    }
+
+
+    /**
+     * containsKey<br>
+     *
+     * @param key
+     * @return boolean
+     */
+    public boolean containsKey(Object key) {
+        return this.cacheMap.containsKey(key);
+    }
+
+
+    /**
+     * put<br>
+     * 重みの合計が上限を超える場合は、追い出し対象より参照頻度が高い場合のみ登録される.<br>
+     *
+     * @param key
+     * @param value
+     * @param weight 格納データの重み
+     * @return Object 登録前のValue
+     */
+    public Object put(Object key, Object value, long weight) {
+        int hash = spread(key.hashCode());
+        Object ret = null;
+
+        w.lock();
+        try {
+            CacheEntry oldEntry = (CacheEntry)this.cacheMap.get(key);
+            if (oldEntry != null) {
+                ret = oldEntry.value;
+                this.markRemoved(oldEntry);
+                this.nowWeight = this.nowWeight - oldEntry.weight;
+            }
+
+            // 単体で上限を超えるデータは登録しない
+            if (weight > this.maxWeight) {
+                if (oldEntry != null) this.cacheMap.remove(key);
+                this.compactClockQueue();
+                return ret;
+            }
+
+            while ((this.nowWeight + weight) > this.maxWeight) {
+
+                CacheEntry victim = this.nextVictim();
+                if (victim == null) break;
+
+                // 既に登録済みのKeyの更新は頻度を比較しない
+                if (oldEntry == null && this.sketch.frequency(hash) <= this.sketch.frequency(victim.hash)) {
+                    this.clockQueue.offer(victim);
+                    this.rejectCount.incrementAndGet();
+                    this.compactClockQueue();
+                    return ret;
+                }
+
+                this.cacheMap.remove(victim.key, victim);
+                victim.removed = true;
+                victim.value = null;
+                this.nowWeight = this.nowWeight - victim.weight;
+                this.evictionCount.incrementAndGet();
+            }
+
+            CacheEntry entry = new CacheEntry(key, value, weight, hash);
+            this.cacheMap.put(key, entry);
+            this.clockQueue.offer(entry);
+            this.nowWeight = this.nowWeight + weight;
+            this.compactClockQueue();
+        } finally {
+            w.unlock();
+        }
+        return ret;
+    }
+
+
+    // CLOCK方式で追い出し対象を選択する
+    // 参照済みのデータは参照フラグを落として末尾に戻す
+    private CacheEntry nextVictim() {
+        CacheEntry entry = null;
+        while ((entry = (CacheEntry)this.clockQueue.poll()) != null) {
+
+            if (entry.removed) {
+                this.staleCount--;
+                continue;
+            }
+
+            if (entry.referenced) {
+                entry.referenced = false;
+                this.clockQueue.offer(entry);
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+
+    // 削除、更新済みのデータを追い出し対象から外す
+    // Valueの参照はこの時点で解放し、clockQueueからは走査時か詰め直し時に取り除く
+    private void markRemoved(CacheEntry entry) {
+        entry.removed = true;
+        entry.value = null;
+        this.staleCount++;
+    }
+
+
+    // 削除、更新済みのデータが有効なデータ数に対して一定数を超えた場合にclockQueueを詰める
+    // 重みの上限に達しない状態で更新、削除が続いた場合にclockQueueが伸び続けることを防ぐ
+    private void compactClockQueue() {
+        if (this.staleCount <= compactMinCount || this.staleCount <= (this.cacheMap.size() * compactFactor)) return;
+
+        for (Iterator it = this.clockQueue.iterator(); it.hasNext();) {
+            CacheEntry entry = (CacheEntry)it.next();
+            if (entry.removed) it.remove();
+        }
+        this.staleCount = 0;
+    }
+
+
+    /**
+     * remove<br>
+     *
+     * @param key
+     * @return Object 削除したValue
+     */
+    public Object remove(Object key) {
+        w.lock();
+        try {
+            CacheEntry entry = (CacheEntry)this.cacheMap.remove(key);
+            if (entry == null) return null;
+
+            Object ret = entry.value;
+            this.markRemoved(entry);
+            this.nowWeight = this.nowWeight - entry.weight;
+            this.compactClockQueue();
+            return ret;
+        } finally {
+            w.unlock();
+        }
+    }
+
+
+    /**
+     * clear<br>
+     *
+     */
+    public void clear() {
+        w.lock();
+        try {
+            this.cacheMap.clear();
+            this.clockQueue.clear();
+            this.staleCount = 0;
+            this.nowWeight = 0L;
+        } finally {
+            w.unlock();
+        }
+    }
+
+
+    /**
+     * keySet<br>
+     * 走査中の更新は反映されない場合がある.<br>
+     *
+     * @return Set
+     */
+    public Set keySet() {
+        return this.cacheMap.keySet();
+    }
+
+
+    public int size() {
+        return this.cacheMap.size();
+    }
+
+
+    /**
+     * 追い出し対象の選択に利用しているデータ数を返す.<br>
+     * 削除、更新済みで未だ取り除かれていないデータを含む.<br>
+     *
+     * @return int
+     */
+    public int getClockSize() {
+        return this.clockQueue.size();
+    }
+
+
+    public long getWeight() {
+        return this.nowWeight;
+    }
+
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+
+    public long getRejectCount() {
+        return this.rejectCount.get();
+    }
+
+
+    /**
+     * キャッシュの状態を文字列で返す.<br>
+     *
+     * @return String
+     */
+    public String getStatus() {
+        StringBuilder buf = new StringBuilder(128);
+        buf.append("Size=");
+        buf.append(this.size());
+        buf.append(", Weight=");
+        buf.append(this.nowWeight);
+        buf.append("/");
+        buf.append(this.maxWeight);
+        buf.append(", Hit=");
+        buf.append(this.hitCount.get());
+        buf.append(", Miss=");
+        buf.append(this.missCount.get());
+        buf.append(", Eviction=");
+        buf.append(this.evictionCount.get());
+        buf.append(", Reject=");
+        buf.append(this.rejectCount.get());
+        return buf.toString();
+    }
+
+
+    private static int spread(int hash) {
+        hash = hash * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+
+    /**
+     * キャッシュの格納データ.<br>
+     */
+    static class CacheEntry {
+        Object key = null;
+        volatile Object value = null;
+        long weight = 0L;
+        int hash = 0;
+
+        // CLOCKの参照フラグ
+        volatile boolean referenced = false;
+
+        // 削除、更新済みの場合true
+        volatile boolean removed = false;
+
+        CacheEntry(Object key, Object value, long weight, int hash) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.hash = hash;
+        }
+    }
+
+
+    /**
+     * 参照頻度の推定.<br>
+     * 1つのlongに4bitのカウンターを16個格納し、4つのHash値で更新する.<br>
+     * 更新はロックを取得せずに行うため、並列に更新された場合は加算が失われることがあるが、<br>
+     * 推定値として利用するため許容する.<br>
+     * 加算回数が一定数に達した時点で全カウンターを半分にし、過去の参照の影響を減らす.<br>
+     */
+    static class FrequencySketch {
+
+        private static final long[] seeds = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long resetMask = 0x7777777777777777L;
+
+        private long[] table = null;
+
+        private int tableMask = 0;
+
+        private int sampleSize = 0;
+
+        private int additions = 0;
+
+
+        FrequencySketch(int expectedSize) {
+            int tableSize = 16;
+            while (tableSize < expectedSize) {
+                tableSize = tableSize * 2;
+            }
+
+            this.table = new long[tableSize];
+            this.tableMask = tableSize - 1;
+            this.sampleSize = tableSize * 10;
+        }
+
+
+        void increment(int hash) {
+            int start = (hash & 3) << 2;
+            boolean added = false;
+
+            for (int i = 0; i < 4; i++) {
+                int index = this.indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xfL << offset;
+
+                long now = this.table[index];
+                if ((now & mask) != mask) {
+                    this.table[index] = now + (1L << offset);
+                    added = true;
+                }
+            }
+
+            if (added && (++this.additions) >= this.sampleSize) this.reset();
+        }
+
+
+        int frequency(int hash) {
+            int start = (hash & 3) << 2;
+            int ret = Integer.MAX_VALUE;
+
+            for (int i = 0; i < 4; i++) {
+                int index = this.indexOf(hash, i);
+                int offset = (start + i) << 2;
+                int count = (int)((this.table[index] >>> offset) & 0xfL);
+                if (count < ret) ret = count;
+            }
+            return ret;
+        }
+
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + seeds[i]) * seeds[i];
+            h = h + (h >>> 32);
+            return ((int)h) & this.tableMask;
+        }
+
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] = (this.table[i] >>> 1) & resetMask;
+            }
+            this.additions = this.additions / 2;
+        }
+    }
+}
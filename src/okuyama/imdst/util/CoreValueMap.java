@@ -14,6 +14,9 @@ import com.sun.mail.util.BASE64DecoderStream;
 import com.sun.mail.util.BASE64EncoderStream;
 
 import okuyama.imdst.util.serializemap.*;
+import okuyama.imdst.util.offheapmap.*;
+import okuyama.imdst.util.packedmap.*;
+import okuyama.imdst.util.checkpoint.*;
 /**
  * データ格納Map.<br>
  *
@@ -42,12 +45,39 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
     private String[] virtualStoreDirs = null;
     private Object syncObj = new Object();
 
+    // 前回のチェックポイント以降に変更されたバケット
+    private transient DirtyBucketTracker dirtyBucketTracker = new DirtyBucketTracker(ImdstDefine.checkpointBucketCount);
+
     // コンストラクタ
     public CoreValueMap(int size, int upper, int multi, boolean memoryMode, String[] virtualStoreDirs, boolean renewFlg, File bkupObjectDataFile) {
         System.out.println("Core Storage initialize start - " + new Date().toString());
         if (memoryMode) {
 
-            if (!ImdstDefine.useSerializeMap) {
+            if (ImdstDefine.useOffHeapSlabMap) {
+
+                // KeyとValueをHeap外に格納
+                System.out.println(" OffHeapSlabMap Use");
+                if (renewFlg) {
+                    mainMap = new OffHeapSlabMap(size, ImdstDefine.offHeapSlabMapSegmentCount, ImdstDefine.offHeapSlabMapChunkSize);
+                } else {
+                    File file = bkupObjectDataFile;
+                    if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
+                        try {
+                            FileInputStream fis = new FileInputStream(file);
+                            ObjectInputStream ois = new ObjectInputStream(fis);
+                            CoreStorageContainer container = (CoreStorageContainer)ois.readObject();
+                            this.useStorageObjectTime = container.storeTime;
+                            mainMap = (OffHeapSlabMap)container.storeObject;
+                            this.dataSizeMap = container.dataSizeMap;
+                        } catch(Exception e) {
+                            e.printStackTrace();
+                            mainMap = new OffHeapSlabMap(size, ImdstDefine.offHeapSlabMapSegmentCount, ImdstDefine.offHeapSlabMapChunkSize);
+                        }
+                    } else {
+                        mainMap = new OffHeapSlabMap(size, ImdstDefine.offHeapSlabMapSegmentCount, ImdstDefine.offHeapSlabMapChunkSize);
+                    }
+                }
+            } else if (!ImdstDefine.useSerializeMap) {
 
                 if (ImdstDefine.saveValueCompress == true) {
 
@@ -60,7 +90,7 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                         mainMap = new PartialConcurrentHashMap(size, upper, multi, virtualStoreDirs);
                     } else {
                         File file = bkupObjectDataFile;
-                        if (file != null && file.exists()) {
+                        if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
                             try {
                                 FileInputStream fis = new FileInputStream(file);
                                 ObjectInputStream ois = new ObjectInputStream(fis);
@@ -84,7 +114,7 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                         mainMap = new NativeConcurrentHashMap(size, upper, multi);
                     } else {
                         File file = bkupObjectDataFile;
-                        if (file != null && file.exists()) {
+                        if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
                             try {
                                 FileInputStream fis = new FileInputStream(file);
                                 ObjectInputStream ois = new ObjectInputStream(fis);
@@ -119,7 +149,7 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                     mainMap = new PartialSerializeMap(size, upper, new Long(bucketSize).intValue(), virtualStoreDirs);
                 } else {
                     File file = bkupObjectDataFile;
-                    if (file != null && file.exists()) {
+                    if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
                         try {
                             FileInputStream fis = new FileInputStream(file);
                             ObjectInputStream ois = new ObjectInputStream(fis);
@@ -140,7 +170,32 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
             this.allDataMemory = true;
         } else {
 
-            if (!ImdstDefine.useSerializeMap) {
+            if (ImdstDefine.usePackedKeyIndexMap) {
+
+                // Keyを詰めて格納し、Valueの位置をlongで保持
+                System.out.println(" PackedKeyIndexMap Use");
+                if (renewFlg) {
+                    mainMap = new PackedKeyIndexMap(size, ImdstDefine.packedKeyIndexMapSegmentCount, ImdstDefine.packedKeyIndexMapArenaSize);
+                } else {
+                    File file = bkupObjectDataFile;
+                    if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
+                        try {
+                            FileInputStream fis = new FileInputStream(file);
+                            ObjectInputStream ois = new ObjectInputStream(fis);
+                            CoreStorageContainer container = (CoreStorageContainer)ois.readObject();
+                            this.useStorageObjectTime = container.storeTime;
+                            mainMap = (PackedKeyIndexMap)container.storeObject;
+                            this.dataSizeMap = container.dataSizeMap;
+                        } catch(Exception e) {
+                            e.printStackTrace();
+                            mainMap = new PackedKeyIndexMap(size, ImdstDefine.packedKeyIndexMapSegmentCount, ImdstDefine.packedKeyIndexMapArenaSize);
+                        }
+                    } else {
+                        mainMap = new PackedKeyIndexMap(size, ImdstDefine.packedKeyIndexMapSegmentCount, ImdstDefine.packedKeyIndexMapArenaSize);
+                    }
+                }
+                converter = new PackedFileModeCoreValueCnv();
+            } else if (!ImdstDefine.useSerializeMap) {
 
                 System.out.println(" ConcurrentHashMap Use");
                 
@@ -148,7 +203,7 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                     mainMap = new NativeConcurrentHashMap(size, upper, multi);
                 } else {
                     File file = bkupObjectDataFile;
-                    if (file != null && file.exists()) {
+                    if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
                         try {
                             FileInputStream fis = new FileInputStream(file);
                             ObjectInputStream ois = new ObjectInputStream(fis);
@@ -175,7 +230,7 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                     mainMap = new SerializeMap(size, upper, new Long(bucketSize).intValue(), ImdstDefine.serializerClassName);
                 } else {
                     File file = bkupObjectDataFile;
-                    if (file != null && file.exists()) {
+                    if (file != null && file.exists() && !CheckpointReader.isCheckpointFile(file)) {
                         try {
                             FileInputStream fis = new FileInputStream(file);
                             ObjectInputStream ois = new ObjectInputStream(fis);
@@ -192,10 +247,18 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
                 }
             }
 
-            converter = new PartialFileModeCoreValueCnv();
+            if (converter == null) converter = new PartialFileModeCoreValueCnv();
         }
 
         this.virtualStoreDirs = virtualStoreDirs;
+
+        // Fileモード時はバックアップより新しいKeyのIndexイメージが存在する場合はイメージから復元
+        // それ以外はチェックポイント形式のバックアップから復元
+        if (!renewFlg && !memoryMode && ImdstDefine.keyIndexImage && this.restoreKeyIndexImage(bkupObjectDataFile)) {
+        } else if (!renewFlg && CheckpointReader.isCheckpointFile(bkupObjectDataFile)) {
+            this.restoreCheckpoint(bkupObjectDataFile);
+        }
+
         if (useStorageObjectTime != 0L) {
             System.out.println(" ->Storage data is restored from backup");
             System.out.println(" ->Backup data create time = " + new Date(useStorageObjectTime).toString());
@@ -219,23 +282,28 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
      * @param value
      */
     public Object put(Object key, Object value) {
+        Object ret = null;
 
         // メモリファイル共有Mapモードが起動しているかを確認
         if (!this.isUrgentSaveMode()) {
-            return mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
+            ret = mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
         } else {
             // メモリファイル共有Mapモードへ移行している
             if (mainMap.containsKey(converter.convertEncodeKey(key))) {
 
                 // 既存ストレージ
-                return mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
+                ret = mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
             } else {
 
                 // メモリファイル共有Map
                 //System.out.println("Virtual[ " + ((String)value).length());
-                return urgentSaveMap.put(urgentSaveMapConverter.convertEncodeKey(key), urgentSaveMapConverter.convertEncodeValue(value));
+                ret = urgentSaveMap.put(urgentSaveMapConverter.convertEncodeKey(key), urgentSaveMapConverter.convertEncodeValue(value));
             }
         }
+
+        // 反映後に変更ありとする
+        this.dirtyBucketTracker.mark(key);
+        return ret;
     }
 
 
@@ -273,21 +341,27 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
      * @return Object
      */
     public Object remove(Object key) {
+        Object ret = null;
+
         // メモリファイル共有Mapモードが起動しているかを確認
         if (!this.isUrgentSaveMode()) {
-            return converter.convertDecodeValue(mainMap.remove(converter.convertEncodeKey(key)));
+            ret = converter.convertDecodeValue(mainMap.remove(converter.convertEncodeKey(key)));
         } else {
             // メモリファイル共有Mapモードへ移行している
             if (mainMap.containsKey(converter.convertEncodeKey(key))) {
 
                 // 既存ストレージ
-                return converter.convertDecodeValue(mainMap.remove(converter.convertEncodeKey(key)));
+                ret = converter.convertDecodeValue(mainMap.remove(converter.convertEncodeKey(key)));
             } else {
 
                 // メモリファイル共有Map
-                return urgentSaveMapConverter.convertDecodeValue(urgentSaveMap.remove(urgentSaveMapConverter.convertEncodeKey(key)));
+                ret = urgentSaveMapConverter.convertDecodeValue(urgentSaveMap.remove(urgentSaveMapConverter.convertEncodeKey(key)));
             }
         }
+
+        // 反映後に変更ありとする
+        this.dirtyBucketTracker.mark(key);
+        return ret;
     }
 
 
@@ -325,6 +399,8 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
         // メモリファイル共有Mapモードが起動しているかを確認
         if (this.isUrgentSaveMode()) 
             urgentSaveMap.clear();
+
+        this.dirtyBucketTracker.markAll();
     }
 
 
@@ -396,6 +472,18 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
     }
 
 
+    /**
+     * KeyのIndexにPackedKeyIndexMapを利用している場合は状態の参照対象として登録する.<br>
+     *
+     * @param name 登録名
+     */
+    public void registerKeyIndexStatus(String name) {
+        if (this.mainMap instanceof PackedKeyIndexMap) {
+            StatusUtil.setKeyIndex(name, (PackedKeyIndexMap)this.mainMap);
+        }
+    }
+
+
     public void fileStoreMapObject(File file, Map dataSizeMap) throws Exception {
         try {
             String fileName = file.getAbsolutePath();
@@ -426,4 +514,173 @@ public class CoreValueMap extends AbstractMap implements Cloneable, Serializable
             throw e;
         }
     }
+
+
+    /**
+     * 前回のチェックポイント以降に変更のあったバケットのデータのみを差分として書き出す.<br>
+     * ベースイメージが存在しない場合、変更のあったバケットが半数を超える場合は全てのデータをベースイメージとして書き出す.<br>
+     * 差分の数がImdstDefine.checkpointMergeDeltaCountに達した場合は差分をベースイメージに統合する.<br>
+     * standaloneの場合は指定のファイルに全てのデータを書き出し、変更の記録は更新しない.<br>
+     *
+     * @param file ベースイメージのファイル
+     * @param dataSizeMap 保存データサイズ
+     * @param standalone true:単独のバックアップファイルとして書き出す
+     * @return long チェックポイント時間(この時間より後のトランザクションログは復元時に再実行される)
+     * @throw Exception
+     */
+    public long storeCheckpoint(File file, Map dataSizeMap, boolean standalone) throws Exception {
+        long checkpointTime = System.currentTimeMillis() - CheckpointStore.checkpointOverlapTime;
+
+        // 走査前に変更状態を取得する
+        int[] versions = this.dirtyBucketTracker.snapshot();
+        BitSet dirtyBuckets = this.dirtyBucketTracker.getDirtyBuckets(versions);
+        int bucketCount = this.dirtyBucketTracker.getBucketCount();
+
+        CheckpointStore store = new CheckpointStore(file);
+        boolean base = (standalone || store.getBaseBucketCount() != bucketCount || dirtyBuckets.cardinality() > (bucketCount / 2));
+        if (base) dirtyBuckets.set(0, bucketCount);
+
+        CheckpointWriter writer = store.createWriter(base, checkpointTime, bucketCount, dirtyBuckets, dataSizeMap);
+        try {
+            this.writeCheckpointEntries(writer, this.mainMap, this.converter, dirtyBuckets);
+            if (this.urgentSaveMap != null) this.writeCheckpointEntries(writer, this.urgentSaveMap, this.urgentSaveMapConverter, dirtyBuckets);
+            writer.commit();
+        } catch (Exception e) {
+            writer.abort();
+            throw e;
+        }
+
+        if (standalone) return checkpointTime;
+
+        if (base) store.deleteDeltas();
+        this.dirtyBucketTracker.commit(versions);
+
+        if (!base && store.getDeltaCount() >= ImdstDefine.checkpointMergeDeltaCount) store.merge();
+        return checkpointTime;
+    }
+
+
+    // 対象バケットのデータを書き出す
+    private void writeCheckpointEntries(CheckpointWriter writer, AbstractMap map, ICoreValueConverter cnv, BitSet buckets) throws Exception {
+        int bucketCount = this.dirtyBucketTracker.getBucketCount();
+
+        for (Iterator ite = map.entrySet().iterator(); ite.hasNext();) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            if (entry == null) continue;
+
+            Object rawKey = entry.getKey();
+            Object key = cnv.convertDecodeKey(rawKey);
+            int bucket = DirtyBucketTracker.bucket(key, bucketCount);
+            if (!buckets.get(bucket)) continue;
+
+            // 走査中に削除された場合
+            Object value = cnv.convertDecodeValue(map.get(rawKey));
+            if (value == null) continue;
+
+            writer.write(bucket, key.toString(), value.toString());
+        }
+    }
+
+
+    // チェックポイントからの復元
+    // 継承先のputは初期化前のため、直接mainMapに格納する
+    private void restoreCheckpoint(File file) {
+        CheckpointStore store = new CheckpointStore(file);
+        try {
+            store.restore(new ICheckpointApplier() {
+                public void applyEntry(String key, String value) {
+                    mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
+                }
+            });
+            this.useStorageObjectTime = store.getCheckpointTime();
+            this.dataSizeMap = store.getDataSizeMap();
+            System.out.println(" ->Checkpoint restored count = " + store.getRestoreCount());
+        } catch(Exception e) {
+            e.printStackTrace();
+            mainMap.clear();
+            this.useStorageObjectTime = 0L;
+        }
+    }
+
+
+    /**
+     * Fileモード時のKeyのIndexイメージを書き出す.<br>
+     * 書き出したイメージはチェックポイント時間以降のトランザクションログと合わせて復元に使用される.<br>
+     *
+     * @param bkupFile バックアップファイル
+     * @param dataSizeMap 保存データサイズ
+     * @param checkpointTime 直前に作成したチェックポイントのチェックポイント時間
+     * @throw Exception
+     */
+    public void storeKeyIndexImage(File bkupFile, Map dataSizeMap, long checkpointTime) throws Exception {
+        KeyIndexImageWriter writer = new KeyIndexImageWriter(KeyIndexImageReader.getImageFile(bkupFile), checkpointTime, dataSizeMap);
+        try {
+            this.writeKeyIndexImageEntries(writer, this.mainMap, this.converter);
+            if (this.urgentSaveMap != null) this.writeKeyIndexImageEntries(writer, this.urgentSaveMap, this.urgentSaveMapConverter);
+            writer.commit();
+        } catch (Exception e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+
+    private void writeKeyIndexImageEntries(KeyIndexImageWriter writer, AbstractMap map, ICoreValueConverter cnv) throws Exception {
+        for (Iterator ite = map.entrySet().iterator(); ite.hasNext();) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            if (entry == null) continue;
+
+            Object rawKey = entry.getKey();
+
+            // 走査中に削除された場合
+            Object value = cnv.convertDecodeValue(map.get(rawKey));
+            if (value == null) continue;
+
+            writer.write(cnv.convertDecodeKey(rawKey).toString(), value.toString());
+        }
+    }
+
+
+    // KeyのIndexイメージからの復元
+    // イメージがバックアップより古い場合、読み込みに失敗した場合はfalseを返し、バックアップからの復元に切り替える
+    private boolean restoreKeyIndexImage(File bkupFile) {
+        if (bkupFile == null) return false;
+
+        File imageFile = KeyIndexImageReader.getImageFile(bkupFile);
+        if (!KeyIndexImageReader.isKeyIndexImage(imageFile)) return false;
+
+        try {
+            KeyIndexImageReader reader = new KeyIndexImageReader(imageFile);
+
+            // バックアップの時間(Object形式の場合は読み込み済み)
+            long bkupTime = this.useStorageObjectTime;
+            if (CheckpointReader.isCheckpointFile(bkupFile)) bkupTime = new CheckpointStore(bkupFile).getLatestCheckpointTime();
+            if (reader.getCheckpointTime() < bkupTime) {
+                System.out.println(" ->Key index image is older than backup. Image=" + new Date(reader.getCheckpointTime()).toString());
+                return false;
+            }
+
+            long start = System.currentTimeMillis();
+            mainMap.clear();
+            reader.load(new ICheckpointApplier() {
+                public void applyEntry(String key, String value) {
+                    mainMap.put(converter.convertEncodeKey(key), converter.convertEncodeValue(value));
+                }
+            }, ImdstDefine.keyIndexImageLoadThreads);
+
+            // チェックポイントより新しいイメージの場合、その間の変更はチェックポイントの差分に含まれないため
+            // 次回のチェックポイントは全てのデータを書き出す
+            if (reader.getCheckpointTime() > bkupTime) this.dirtyBucketTracker.markAll();
+
+            this.useStorageObjectTime = reader.getCheckpointTime();
+            this.dataSizeMap = reader.getDataSizeMap();
+            System.out.println(" ->Key index image restored count = " + reader.getEntryCount() + " Sections = " + reader.getSectionCount() + " Time = " + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch(Exception e) {
+            e.printStackTrace();
+            mainMap.clear();
+            this.useStorageObjectTime = 0L;
+            return false;
+        }
+    }
 }
@@ -1,9 +1,12 @@
 package okuyama.imdst.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.locks.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -39,8 +42,10 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
     // Using a single cache 25 KB per
     private int innerCacheSizeTotal = 1024;
 
-    // Sync Object
-    private transient Object syncObj = null;
+    // Key単位の排他用Lock
+    // Key値のHash値からLockを選択し、異なるLockに属するKeyへのアクセスは並列に実行される
+    // 同一Lock内でもgetとcontainsKeyは並列に実行される
+    private transient ReentrantReadWriteLock[] stripeLocks = null;
 
     private int iteratorIndex = 0;
 
@@ -169,7 +174,10 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
         this.regularSizeLimit = regularSizeLimit;
         this.dirs = baseDirs;
         this.numberOfCoreMap = baseDirs.length;
-        this.syncObj = new Object();
+        this.stripeLocks = new ReentrantReadWriteLock[ImdstDefine.fileBaseDataMapLockStripeSize];
+        for (int i = 0; i < this.stripeLocks.length; i++) {
+            this.stripeLocks[i] = new ReentrantReadWriteLock();
+        }
 
         // 最大メモリから指定値をキャッシュに割り当てる
         long maxMem = JavaSystemApi.getRuntimeMaxMem("K");
@@ -274,7 +282,9 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
 
         int hashCode = createHashCode((String)key);
 
-        synchronized (this.syncObj) { 
+        Lock lock = this.getStripeLock(hashCode).writeLock();
+        lock.lock();
+        try {
 
             if (coreMapType != 0) {
                 String valueStr = (String)value;
@@ -318,6 +328,8 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
 
                 this.coreFileBaseKeyMaps[hashCode % this.numberOfCoreMap].put((String)key, (String)value, hashCode);
             }
+        } finally {
+            lock.unlock();
         }
         return null;
     }
@@ -333,7 +345,9 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
         Object ret = null;
         int hashCode = createHashCode((String)key);
 
-        synchronized (this.syncObj) { 
+        Lock lock = this.getStripeLock(hashCode).readLock();
+        lock.lock();
+        try {
             ret = this.coreFileBaseKeyMaps[hashCode % this.numberOfCoreMap].get((String)key, hashCode);
             if (coreMapType != 0) {
                 if (ret != null && ret.equals("*")) {
@@ -342,6 +356,8 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
                     ret = this.coreFileBaseKeyMap4MiddleData.get((String)key, hashCode);
                 }
             }
+        } finally {
+            lock.unlock();
         }
         return ret;
     }
@@ -356,13 +372,17 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
         Object ret = null;
         int hashCode = createHashCode((String)key);
 
-        synchronized (this.syncObj) { 
+        Lock lock = this.getStripeLock(hashCode).writeLock();
+        lock.lock();
+        try {
             ret = this.coreFileBaseKeyMaps[hashCode % this.numberOfCoreMap].remove((String)key, hashCode);
             if (coreMapType != 0 && ret != null && ret.equals("*")) {
                 ret = this.coreFileBaseKeyMap4BigData.remove((String)key, hashCode);
             } else if (coreMapType != 0 && ret != null && ret.equals("**")) {
                 ret = this.coreFileBaseKeyMap4MiddleData.remove((String)key, hashCode);
             }
+        } finally {
+            lock.unlock();
         }
         return ret;
     }
@@ -377,10 +397,14 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
         boolean ret = true;
         int hashCode = createHashCode((String)key);
 
-        synchronized (this.syncObj) { 
+        Lock lock = this.getStripeLock(hashCode).readLock();
+        lock.lock();
+        try {
             if (this.coreFileBaseKeyMaps[hashCode % this.numberOfCoreMap].get((String)key, hashCode) == null) {
                 ret = false;
             }
+        } finally {
+            lock.unlock();
         }
         return ret;
     }
@@ -414,7 +438,8 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
     public void clear() {
         for (int i = 0; i < this.coreFileBaseKeyMaps.length; i++) {
 
-            synchronized (this.syncObj) { 
+            this.lockAll();
+            try {
                 this.coreFileBaseKeyMaps[i].clear();
                 this.coreFileBaseKeyMaps[i].init(true);
                 if (coreMapType > 0) {
@@ -426,6 +451,8 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
                     this.coreFileBaseKeyMap4MiddleData.clear();
                     this.coreFileBaseKeyMap4MiddleData.init(true);
                 } 
+            } finally {
+                this.unlockAll();
             }
         }
     }
@@ -441,7 +468,8 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
     public void finishClear() {
         for (int i = 0; i < this.coreFileBaseKeyMaps.length; i++) {
 
-            synchronized (this.syncObj) { 
+            this.lockAll();
+            try {
                 this.coreFileBaseKeyMaps[i].clear();
                 if (coreMapType > 0) {
                     this.coreFileBaseKeyMap4BigData.clear();
@@ -449,11 +477,34 @@ public class FileBaseDataMap extends AbstractMap implements Cloneable, Serializa
                 if (coreMapType > 1) {
                     this.coreFileBaseKeyMap4MiddleData.clear();
                 }
+            } finally {
+                this.unlockAll();
             }
         }
     }
 
 
+    // Key値のHash値から該当のLockを返す
+    private ReentrantReadWriteLock getStripeLock(int hashCode) {
+        return this.stripeLocks[((hashCode << 1) >>> 1) % this.stripeLocks.length];
+    }
+
+
+    // 全てのLockを取得する(clear用)
+    private void lockAll() {
+        for (int i = 0; i < this.stripeLocks.length; i++) {
+            this.stripeLocks[i].writeLock().lock();
+        }
+    }
+
+
+    private void unlockAll() {
+        for (int i = this.stripeLocks.length - 1; i >= 0; i--) {
+            this.stripeLocks[i].writeLock().unlock();
+        }
+    }
+
+
     /**
      * entrySet.<br>
      *
@@ -695,6 +746,9 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
     // Fileオブジェクト格納用
     private File[] dataFileList = null;
 
+    // データファイル単位のLock
+    private ReentrantReadWriteLock[] dataFileLocks = null;
+
     // アクセススピード向上の為に、Openしたファイルストリームを一定数キャッシュする
     private SoftRefCacheMap innerCache = null;
 
@@ -722,11 +776,11 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
     // 遅延書き込み前のデータを補完するMap
     private ConcurrentHashMap delayWriteDifferenceMap = new ConcurrentHashMap(delayWriteQueueSize, delayWriteQueueSize - 100, 32);
 
-    // 遅延書き込みを依頼した回数
-    private long delayWriteRequestCount = 0L;
+    // 遅延書き込みを依頼した回数(ストライプ毎のロックで更新されるためAtomicLong)
+    private AtomicLong delayWriteRequestCount = new AtomicLong(0L);
 
     // 遅延書き込みを実行した回数
-    private long delayWriteExecCount = 0L;
+    private AtomicLong delayWriteExecCount = new AtomicLong(0L);
 
 
 
@@ -818,6 +872,10 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
 
 
         this.dataFileList = new File[numberOfDataFiles];
+        this.dataFileLocks = new ReentrantReadWriteLock[numberOfDataFiles];
+        for (int i = 0; i < numberOfDataFiles; i++) {
+            this.dataFileLocks[i] = new ReentrantReadWriteLock();
+        }
 
         try {
             this.fileDirs = new String[this.baseFileDirs.length * this.dataDirsFactor];
@@ -875,8 +933,10 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
                 byte[] compressData = null;
                 StringBuilder decompressDataStr =null;
                 byte[] decompressData = null;
-           
-                synchronized (this.dataFileList[hashCode % numberOfDataFiles]) {
+
+                Lock fileLock = this.dataFileLocks[hashCode % numberOfDataFiles].writeLock();
+                fileLock.lock();
+                try {
 
                     compressFile = this.dataFileList[hashCode % numberOfDataFiles];
                     compressData = null;
@@ -947,6 +1007,8 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
                     compressBos.write(compressData);
                     compressBos.flush();
                     compressBos.close();
+                } finally {
+                    fileLock.unlock();
                 }
 
 
@@ -962,7 +1024,7 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
 
                     if (removeChcek != null && removeChcek.equals(value)) {
                         this.delayWriteDifferenceMap.remove(key);
-                        this.delayWriteExecCount++;
+                        this.delayWriteExecCount.incrementAndGet();
                     }
                 }
             } catch (Exception e2) {
@@ -970,7 +1032,7 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
                 System.err.println("DelayWrite - Error Key=[" + key + "]");
                 if (key == null) {
                     this.delayWriteDifferenceMap.remove(key);
-                    this.delayWriteExecCount++;
+                    this.delayWriteExecCount.incrementAndGet();
                 }
             }
         }
@@ -1023,7 +1085,7 @@ class DelayWriteCoreFileBaseKeyMap extends Thread implements CoreFileBaseKeyMap,
                 this.delayWriteDifferenceMap.put(key, value);
             }
             this.delayWriteQueue.put(instructionObj);
-            this.delayWriteRequestCount++;
+            this.delayWriteRequestCount.incrementAndGet();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1144,8 +1206,10 @@ start1 = System.nanoTime();
 //start2 = System.nanoTime();
             CacheContainer accessor = null;
 
-            synchronized (this.dataFileList[hashCode % numberOfDataFiles]) {
-            
+            Lock fileLock = this.dataFileLocks[hashCode % numberOfDataFiles].readLock();
+            fileLock.lock();
+            try {
+
                 File compressFile = this.dataFileList[hashCode % numberOfDataFiles];
                 byte[] compressData = null;
                 byte[] decompressData = null;
@@ -1199,6 +1263,8 @@ start1 = System.nanoTime();
                         break;
                     }
                 }
+            } finally {
+                fileLock.unlock();
             }
 
             // 取得データを文字列化
@@ -1282,8 +1348,8 @@ start1 = System.nanoTime();
         this.nowIterationFileIndex =  0;
         this.nowIterationFpPosition =  0L;
 
-        long nowDelayRequestCount = this.delayWriteRequestCount;
-        while(nowDelayRequestCount > this.delayWriteExecCount) {
+        long nowDelayRequestCount = this.delayWriteRequestCount.get();
+        while(nowDelayRequestCount > this.delayWriteExecCount.get()) {
             try {
                 Thread.sleep(20);
             } catch(Exception e) {
@@ -1325,12 +1391,19 @@ start1 = System.nanoTime();
                 File compressFile = this.dataFileList[this.nowIterationFileIndex];
                 byte[] compressData = null;
                 byte[] decompressData = null;
-                if (compressFile.exists()) {
-                    BufferedInputStream bis = new BufferedInputStream(new FileInputStream(compressFile));
-                    compressData = new byte[new Long(compressFile.length()).intValue()];
-                    bis.read(compressData);
-                    bis.close();
-                    decompressData = SystemUtil.dataDecompress(compressData);
+
+                Lock fileLock = this.dataFileLocks[this.nowIterationFileIndex].readLock();
+                fileLock.lock();
+                try {
+                    if (compressFile.exists()) {
+                        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(compressFile));
+                        compressData = new byte[new Long(compressFile.length()).intValue()];
+                        bis.read(compressData);
+                        bis.close();
+                        decompressData = SystemUtil.dataDecompress(compressData);
+                    }
+                } finally {
+                    fileLock.unlock();
                 }
 
                 
@@ -1423,6 +1496,31 @@ class FixWriteCoreFileBaseKeyMap implements CoreFileBaseKeyMap, Cloneable, Seria
     // Fileオブジェクト格納用
     private File[] dataFileList = null;
 
+    // データファイル単位のLock
+    private ReentrantReadWriteLock[] dataFileLocks = null;
+
+    // Keyの格納位置を特定するためのインデックスファイル
+    // [マジック(int)][スロット数(int)][レコード数(int)]のヘッダーに続き、
+    // [KeyのHash値(int)][データファイル上の行番号+1(int)]のスロットがオープンアドレス方式で並ぶ
+    private File[] indexFileList = null;
+
+    // インデックスファイル単位のスロット数とデータファイルのレコード数
+    // データファイル単位のLock内で参照、更新する
+    private int[] indexSlotCounts = null;
+    private int[] indexLineCounts = null;
+
+    // インデックスファイルのスロット数の初期値(2のべき乗)
+    private int initIndexSlotCount = 1024;
+
+    private static final int indexMagic = 0x46424D49;
+
+    private static final int indexHeaderSize = 12;
+
+    private static final int indexSlotSize = 8;
+
+    // 1回のReadで読み込むスロット数
+    private static final int indexReadSlotCount = 8;
+
     // アクセススピード向上の為に、Openしたファイルストリームを一定数キャッシュする
     private InnerCache innerCache = null;
 
@@ -1535,6 +1633,19 @@ class FixWriteCoreFileBaseKeyMap implements CoreFileBaseKeyMap, Cloneable, Seria
         this.innerCache = new InnerCache(this.innerCacheSize);
         this.totalSize = new AtomicInteger(0);
         this.dataFileList = new File[numberOfDataFiles];
+        this.dataFileLocks = new ReentrantReadWriteLock[numberOfDataFiles];
+        for (int i = 0; i < numberOfDataFiles; i++) {
+            this.dataFileLocks[i] = new ReentrantReadWriteLock();
+        }
+        this.indexFileList = new File[numberOfDataFiles];
+        this.indexSlotCounts = new int[numberOfDataFiles];
+        this.indexLineCounts = new int[numberOfDataFiles];
+
+        // 1ファイルのキー数の目安に対して使用率が50%程度となるスロット数
+        this.initIndexSlotCount = 1024;
+        while (this.initIndexSlotCount < (this.numberOfOneFileKey * 2)) {
+            this.initIndexSlotCount = this.initIndexSlotCount * 2;
+        }
 
         try {
             this.fileDirs = new String[this.baseFileDirs.length * this.dataDirsFactor];
@@ -1588,6 +1699,11 @@ class FixWriteCoreFileBaseKeyMap implements CoreFileBaseKeyMap, Cloneable, Seria
                     }
                 }
                 dataFileList[i] = file;
+
+                File indexFile = new File(this.fileDirs[i % this.fileDirs.length] + i + ".idx");
+                if (renewData && indexFile.exists()) indexFile.delete();
+                indexFileList[i] = indexFile;
+                this.loadIndex(i);
             }
 
         } catch (Exception e) {
@@ -1616,22 +1732,13 @@ class FixWriteCoreFileBaseKeyMap implements CoreFileBaseKeyMap, Cloneable, Seria
      * @param hashCode This is a key value hash code
      */
     public void put(String key, String value, int hashCode) {
-/*
-long start1 = 0L;
-long start2 = 0L;
-long start3 = 0L;
-long start4 = 0L;
 
-long end1 = 0L;
-long end2 = 0L;
-long end3 = 0L;
-long end4 = 0L;
-*/
-        try {
+        int fileIdx = hashCode % numberOfDataFiles;
+        Lock fileLock = this.dataFileLocks[fileIdx].writeLock();
+        fileLock.lock();
 
-//start1 = System.nanoTime();
-//start2 = System.nanoTime();
-            File file = dataFileList[hashCode % numberOfDataFiles];
+        CacheContainer accessor = null;
+        try {
 
             StringBuilder buf = new StringBuilder(this.keyDataLength);
 
@@ -1643,38 +1750,23 @@ long end4 = 0L;
             //buf.append(this.fillCharacter(value, oneDataLength));
 
 
-            CacheContainer accessor = (CacheContainer)innerCache.get(file.getAbsolutePath());
-            RandomAccessFile raf = null;
-            BufferedWriter wr = null;
-
-            if (accessor == null || accessor.isClosed == true) {
-
-                raf = new RandomAccessFile(file, "rwd");
+            accessor = this.getAccessor(fileIdx, null);
+            RandomAccessFile raf = accessor.raf;
+            BufferedWriter wr = accessor.wr;
 
-                wr = new BufferedWriter(new FileWriter(file, true));
-                accessor = new CacheContainer();
-                accessor.raf = raf;
-                accessor.wr = wr;
-                accessor.file = file;
-                innerCache.put(file.getAbsolutePath(), accessor);
-            } else {
-
-                raf = accessor.raf;
-                wr = accessor.wr;
-            }
-//end2 = System.nanoTime();
-//start3 = System.nanoTime();
             // KeyData Write File
             for (int tryIdx = 0; tryIdx < 2; tryIdx++) {
                 try {
 
                     // Key値の場所を特定する
 
-                    long[] dataLineNoRet = this.getLinePoint(key, raf);
-//end3 = System.nanoTime();
-//start4 = System.nanoTime();
+                    long[] dataLineNoRet = this.getLinePoint(key, fileIdx, accessor);
+
                     if (dataLineNoRet[0] == -1) {
 
+                        // 追記するレコードの行番号
+                        long newLine = raf.length() / lineDataSize;
+
                         wr.write(buf.toString());
                         SystemUtil.diskAccessSync(wr);
                         wr.write(value);
@@ -1705,6 +1797,9 @@ long end4 = 0L;
                         wr.write(new String(fillBytes));
                         SystemUtil.diskAccessSync(wr);
 
+                        byte[] keyBytes = key.getBytes();
+                        this.addIndex(fileIdx, this.indexHash(keyBytes, 0, keyBytes.length), newLine, accessor);
+
                         // The size of an increment
                         if (callMapSizeCalc)
                             this.getAndIncrement();
@@ -1747,246 +1842,346 @@ long end4 = 0L;
                             if (increMentFlg) this.getAndIncrement();
                         }
                     }
-//end4 = System.nanoTime();
                     break;
                 } catch (IOException ie) {
 
                     // IOExceptionの場合は1回のみファイルを再度開く
                     if (tryIdx == 1) throw ie;
-                    try {
 
-                        if (raf != null) raf.close();
-                        if (wr != null) wr.close();
-
-                        raf = new RandomAccessFile(file, "rwd");
-                        wr = new BufferedWriter(new FileWriter(file, true));
-                        accessor = new CacheContainer();
-                        accessor.raf = raf;
-                        accessor.wr = wr;
-                        accessor.file = file;
-                        innerCache.put(file.getAbsolutePath(), accessor);
-                    } catch (Exception e) {
-                        throw e;
-                    }
+                    this.releaseAccessor(accessor);
+                    accessor = null;
+                    accessor = this.getAccessor(fileIdx, raf);
+                    raf = accessor.raf;
+                    wr = accessor.wr;
                 }
             }
         } catch (Exception e2) {
             e2.printStackTrace();
+        } finally {
+            this.releaseAccessor(accessor);
+            fileLock.unlock();
         }
-//end1 = System.nanoTime();
-//if (ImdstDefine.fileBaseMapTimeDebug) {
-//  System.out.println("1="+(end1 - start1) + " 2="+(end2 - start2) + " 3="+(end3 - start3) + " 4="+(end4 - start4));
-//}
-
     }
 
 
     // 指定のキー値が指定のファイル内でどこにあるかを調べる
-    private long[] getLinePoint(String key, RandomAccessFile raf) throws Exception {
+    // 戻り値は[行番号(存在しない場合は-1), 削除済みの場合は-1]
+    private long[] getLinePoint(String key, int fileIdx, CacheContainer accessor) throws IOException {
         long[] ret = {-1, 0};
-        long line = -1;
-        long lineCount = 0L;
 
         byte[] keyBytes = key.getBytes();
-        byte[] equalKeyBytes = new byte[keyBytes.length + 1];
-        byte[] lineBufs = new byte[this.getDataSize];
-        boolean matchFlg = true;
+        byte[] lineBuf = new byte[lineDataSize];
 
-        // マッチング用配列作成
-        for (int idx = 0; idx < keyBytes.length; idx++) {
-            equalKeyBytes[idx] = keyBytes[idx];
-        }
+        ret[0] = this.findLine(keyBytes, this.indexHash(keyBytes, 0, keyBytes.length), fileIdx, accessor, lineBuf);
 
-        equalKeyBytes[equalKeyBytes.length - 1] = new Integer(FileBaseDataMap.paddingSymbol).byteValue();
+        // 削除データか確かめる
+        if (ret[0] != -1 && lineBuf[keyDataLength] == FileBaseDataMap.paddingSymbol) ret[1] = -1;
+        return ret;
+    }
 
-        try {
 
-            raf.seek(0);
-            int readLen = -1;
-            while((readLen = SystemUtil.diskAccessSync(raf, lineBufs)) != -1) {
+    // インデックスファイルからKeyの行番号を特定し、該当行をlineBufに読み込む
+    // インデックスのスロットと該当行をそれぞれ位置指定で読み込むため、ファイル全体を走査しない
+    // 存在しない場合は-1を返す
+    private long findLine(byte[] keyBytes, int keyHash, int fileIdx, CacheContainer accessor, byte[] lineBuf) throws IOException {
+        int slotCount = this.indexSlotCounts[fileIdx];
+        int mask = slotCount - 1;
+        int slot = keyHash & mask;
+        byte[] slotBuf = new byte[indexSlotSize * indexReadSlotCount];
 
-                matchFlg = true;
+        int probeCount = 0;
+        while (probeCount < slotCount) {
 
-                int loop = readLen / lineDataSize;
+            int readSlots = indexReadSlotCount;
+            if (readSlots > (slotCount - slot)) readSlots = slotCount - slot;
+            int readLen = this.readFully(accessor.idxRaf, slotBuf, readSlots * indexSlotSize, indexHeaderSize + ((long)slot * indexSlotSize));
 
-                for (int loopIdx = 0; loopIdx < loop; loopIdx++) {
+            // インデックスファイルの終端以降は空きスロット
+            if (readLen == -1) return -1;
+            if (readLen < (readSlots * indexSlotSize)) Arrays.fill(slotBuf, readLen, readSlots * indexSlotSize, (byte)0);
 
-                    int assist = (lineDataSize * loopIdx);
+            for (int i = 0; i < readSlots; i++) {
 
-                    matchFlg = true;
-                    if (equalKeyBytes[equalKeyBytes.length - 1] == lineBufs[assist + (equalKeyBytes.length - 1)]) {
-                        for (int i = 0; i < equalKeyBytes.length; i++) {
-                            if (equalKeyBytes[i] != lineBufs[assist + i]) {
-                                matchFlg = false;
-                                break;
-                            }
-                        }
-                    } else {
-                        matchFlg = false;
-                    }
+                int slotLine = getInt(slotBuf, (i * indexSlotSize) + 4);
+                if (slotLine == 0) return -1;
 
-                    // マッチした場合のみ返す
-                    if (matchFlg) {
+                if (getInt(slotBuf, i * indexSlotSize) == keyHash) {
 
-                        line = lineCount;
-                        // 削除データか確かめる
-                        if (lineBufs[assist + keyDataLength] == FileBaseDataMap.paddingSymbol) ret[1] = -1;
-                        break;
+                    long line = slotLine - 1;
+                    if (this.readFully(accessor.raf, lineBuf, lineBuf.length, line * lineDataSize) == lineBuf.length) {
+                        if (this.matchKey(keyBytes, lineBuf)) return line;
                     }
-
-                    lineCount++;
                 }
-                if (matchFlg) break;
+                probeCount++;
             }
+            slot = (slot + readSlots) & mask;
+        }
+        return -1;
+    }
 
-        } catch (IOException ie) {
-            throw ie;
-        } catch (Exception e) {
-            throw e;
+
+    // 新規に追記したレコードをインデックスに登録する
+    // スロットの使用率が75%を超える場合、もしくはレコード数が一致しない場合はデータファイルから作り直す
+    private void addIndex(int fileIdx, int keyHash, long line, CacheContainer accessor) throws IOException {
+        int slotCount = this.indexSlotCounts[fileIdx];
+
+        if (line != this.indexLineCounts[fileIdx] || ((line + 1) * 4) > ((long)slotCount * 3)) {
+            this.rebuildIndex(fileIdx, slotCount);
+            return;
+        }
+
+        int mask = slotCount - 1;
+        int slot = keyHash & mask;
+        byte[] slotBuf = new byte[indexSlotSize * indexReadSlotCount];
+
+        while (true) {
+
+            int readSlots = indexReadSlotCount;
+            if (readSlots > (slotCount - slot)) readSlots = slotCount - slot;
+            int readLen = this.readFully(accessor.idxRaf, slotBuf, readSlots * indexSlotSize, indexHeaderSize + ((long)slot * indexSlotSize));
+            if (readLen == -1) readLen = 0;
+            if (readLen < (readSlots * indexSlotSize)) Arrays.fill(slotBuf, readLen, readSlots * indexSlotSize, (byte)0);
+
+            for (int i = 0; i < readSlots; i++) {
+
+                if (getInt(slotBuf, (i * indexSlotSize) + 4) == 0) {
+
+                    byte[] slotData = new byte[indexSlotSize];
+                    putInt(slotData, 0, keyHash);
+                    putInt(slotData, 4, new Long(line + 1).intValue());
+                    accessor.idxRaf.seek(indexHeaderSize + ((long)(slot + i) * indexSlotSize));
+                    accessor.idxRaf.write(slotData);
+
+                    this.indexLineCounts[fileIdx]++;
+                    this.writeIndexHeader(accessor.idxRaf, slotCount, this.indexLineCounts[fileIdx]);
+                    return;
+                }
+            }
+            slot = (slot + readSlots) & mask;
         }
-        ret[0] = line;
-        return ret;
     }
 
 
+    // インデックスファイルの読み込み
+    // インデックスファイルが存在しない、もしくはデータファイルと一致しない場合はデータファイルから作り直す
+    // インデックス導入前に作成されたデータファイルもここでインデックスが作成される
+    private void loadIndex(int fileIdx) throws IOException {
+        File dataFile = this.dataFileList[fileIdx];
+        File indexFile = this.indexFileList[fileIdx];
+        int lineCount = new Long(dataFile.length() / lineDataSize).intValue();
 
-    /**
-     * 指定のキー値でvalueを取得する.<br>
-     *
-     * @param key 
-     * @param hashCode This is a key value hash code
-     * @return 
-     * @throws
-     */
-    public String get(String key, int hashCode) {
-        byte[] tmpBytes = null;
+        // データが存在しない場合はインデックスファイルは初回の登録時に作成される
+        if (lineCount == 0) {
+            if (indexFile.exists()) indexFile.delete();
+            this.indexSlotCounts[fileIdx] = this.initIndexSlotCount;
+            this.indexLineCounts[fileIdx] = 0;
+            return;
+        }
 
-        String ret = null;
-        byte[] keyBytes = key.getBytes();
-        byte[] equalKeyBytes = new byte[keyBytes.length + 1];
-        byte[] lineBufs = new byte[this.getDataSize];
-        boolean matchFlg = true;
+        if (indexFile.exists() && indexFile.length() >= indexHeaderSize) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                int magic = dis.readInt();
+                int slotCount = dis.readInt();
+                int indexLineCount = dis.readInt();
 
-        // マッチング用配列作成
-        for (int idx = 0; idx < keyBytes.length; idx++) {
-            equalKeyBytes[idx] = keyBytes[idx];
+                if (magic == indexMagic && slotCount > 0 && (slotCount & (slotCount - 1)) == 0 &&
+                        indexLineCount == lineCount && indexFile.length() <= (indexHeaderSize + ((long)slotCount * indexSlotSize))) {
+
+                    this.indexSlotCounts[fileIdx] = slotCount;
+                    this.indexLineCounts[fileIdx] = lineCount;
+                    return;
+                }
+            } finally {
+                dis.close();
+            }
         }
 
-        equalKeyBytes[equalKeyBytes.length - 1] = new Integer(FileBaseDataMap.paddingSymbol).byteValue();
+        System.out.println(indexFile.getAbsolutePath() + " = This index file does not exist or has broken, it rebuilds.");
+        this.rebuildIndex(fileIdx, this.initIndexSlotCount);
+    }
 
-        try {
 
-            File file = dataFileList[hashCode % numberOfDataFiles];
+    // データファイルを先頭から走査してインデックスファイルを作り直す
+    private void rebuildIndex(int fileIdx, int minSlotCount) throws IOException {
+        File dataFile = this.dataFileList[fileIdx];
+        int lineCount = new Long(dataFile.length() / lineDataSize).intValue();
 
+        int slotCount = minSlotCount;
+        while (((long)lineCount * 4) > ((long)slotCount * 3)) {
+            slotCount = slotCount * 2;
+        }
 
-            CacheContainer accessor = (CacheContainer)innerCache.get(file.getAbsolutePath());
-            RandomAccessFile raf = null;
-            BufferedWriter wr = null;
+        int mask = slotCount - 1;
+        byte[] indexData = new byte[indexHeaderSize + (slotCount * indexSlotSize)];
 
-            if (accessor == null || accessor.isClosed) {
+        if (lineCount > 0) {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+            try {
+                byte[] lineBufs = new byte[this.getDataSize];
+                long readPoint = 0L;
+                int readLen = -1;
+                int line = 0;
 
-                raf = new RandomAccessFile(file, "rwd");
-                wr = new BufferedWriter(new FileWriter(file, true));
-                accessor = new CacheContainer();
-                accessor.raf = raf;
-                accessor.wr = wr;
-                accessor.file = file;
-                innerCache.put(file.getAbsolutePath(), accessor);
-            } else {
+                while (line < lineCount && (readLen = this.readFully(raf, lineBufs, lineBufs.length, readPoint)) != -1) {
+
+                    readPoint = readPoint + readLen;
+                    int loop = readLen / lineDataSize;
 
-                raf = accessor.raf;
+                    for (int loopIdx = 0; loopIdx < loop && line < lineCount; loopIdx++) {
+
+                        int assist = (lineDataSize * loopIdx);
+                        int keyLen = 0;
+                        while (keyLen < keyDataLength && lineBufs[assist + keyLen] != FileBaseDataMap.paddingSymbol) {
+                            keyLen++;
+                        }
+
+                        int keyHash = this.indexHash(lineBufs, assist, keyLen);
+                        int slot = keyHash & mask;
+                        while (getInt(indexData, indexHeaderSize + (slot * indexSlotSize) + 4) != 0) {
+                            slot = (slot + 1) & mask;
+                        }
+
+                        putInt(indexData, indexHeaderSize + (slot * indexSlotSize), keyHash);
+                        putInt(indexData, indexHeaderSize + (slot * indexSlotSize) + 4, line + 1);
+                        line++;
+                    }
+                }
+            } finally {
+                raf.close();
             }
+        }
 
+        putInt(indexData, 0, indexMagic);
+        putInt(indexData, 4, slotCount);
+        putInt(indexData, 8, lineCount);
 
-            for (int tryIdx = 0; tryIdx < 2; tryIdx++) {
+        FileOutputStream fos = new FileOutputStream(this.indexFileList[fileIdx]);
+        try {
+            fos.write(indexData);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
 
-                try {
-                    raf.seek(0);
-                    int readLen = -1;
-                    while((readLen = SystemUtil.diskAccessSync(raf, lineBufs)) != -1) {
+        this.indexSlotCounts[fileIdx] = slotCount;
+        this.indexLineCounts[fileIdx] = lineCount;
+    }
+
+
+    private void writeIndexHeader(RandomAccessFile idxRaf, int slotCount, int lineCount) throws IOException {
+        byte[] header = new byte[indexHeaderSize];
+        putInt(header, 0, indexMagic);
+        putInt(header, 4, slotCount);
+        putInt(header, 8, lineCount);
+        idxRaf.seek(0);
+        idxRaf.write(header);
+    }
 
-                        matchFlg = true;
 
-                        int loop = readLen / lineDataSize;
+    // インデックスで利用するKeyのHash値
+    // ファイルの振り分けに利用するHash値とは異なる値を利用する
+    private int indexHash(byte[] datas, int start, int len) {
+        int ret = 1;
+        for (int i = start; i < (start + len); i++) {
+            ret = 31 * ret + datas[i];
+        }
+        return ret ^ (ret >>> 16);
+    }
 
-                        for (int loopIdx = 0; loopIdx < loop; loopIdx++) {
 
-                            int assist = (lineDataSize * loopIdx);
+    // 読み込んだ行のKeyが指定のKeyと一致するか確かめる
+    private boolean matchKey(byte[] keyBytes, byte[] lineBuf) {
+        if (keyBytes.length >= keyDataLength) return false;
+        if (lineBuf[keyBytes.length] != FileBaseDataMap.paddingSymbol) return false;
 
-                            matchFlg = true;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (keyBytes[i] != lineBuf[i]) return false;
+        }
+        return true;
+    }
 
-                            if (equalKeyBytes[equalKeyBytes.length - 1] == lineBufs[assist + (equalKeyBytes.length - 1)]) {
 
-                                for (int i = 0; i < equalKeyBytes.length; i++) {
+    private static int getInt(byte[] buf, int start) {
+        return ((buf[start] & 0xff) << 24) | ((buf[start + 1] & 0xff) << 16) | ((buf[start + 2] & 0xff) << 8) | (buf[start + 3] & 0xff);
+    }
 
-                                    if (equalKeyBytes[i] != lineBufs[assist + i]) {
-                                        matchFlg = false;
-                                        break;
-                                    }
-                                }
-                            } else {
 
-                                matchFlg = false;
-                            }
+    private static void putInt(byte[] buf, int start, int value) {
+        buf[start] = (byte)(value >>> 24);
+        buf[start + 1] = (byte)(value >>> 16);
+        buf[start + 2] = (byte)(value >>> 8);
+        buf[start + 3] = (byte)value;
+    }
 
-                            // マッチした場合のみ配列化
-                            if (matchFlg) {
 
-                                tmpBytes = new byte[lineDataSize];
 
-                                for (int i = 0; i < lineDataSize; i++) {
+    /**
+     * 指定のキー値でvalueを取得する.<br>
+     * 同一ファイルへの読み込みは並列に実行される.<br>
+     *
+     * @param key 
+     * @param hashCode This is a key value hash code
+     * @return 
+     * @throws
+     */
+    public String get(String key, int hashCode) {
 
-                                    tmpBytes[i] = lineBufs[assist + i];
-                                }
-                                break;
-                            }
-                        }
-                        if (matchFlg) break;
-                    }
+        String ret = null;
+        byte[] keyBytes = key.getBytes();
+        byte[] lineBuf = new byte[lineDataSize];
+
+        int fileIdx = hashCode % numberOfDataFiles;
+        Lock fileLock = this.dataFileLocks[fileIdx].readLock();
+        fileLock.lock();
+
+        CacheContainer accessor = null;
+        try {
+
+            accessor = this.getAccessor(fileIdx, null);
+
+            long line = -1;
+            for (int tryIdx = 0; tryIdx < 2; tryIdx++) {
+
+                try {
+                    line = this.findLine(keyBytes, this.indexHash(keyBytes, 0, keyBytes.length), fileIdx, accessor, lineBuf);
                     break;
                 } catch (IOException ie) {
 
                     // IOExceptionの場合は1回のみファイルをサイド開く
                     if (tryIdx == 1) throw ie;
 
-                    try {
-                        if (raf != null) raf.close();
-                        if (wr != null) wr.close();
-
-                        raf = new RandomAccessFile(file, "rwd");
-                        wr = new BufferedWriter(new FileWriter(file, true));
-                        accessor = new CacheContainer();
-                        accessor.raf = raf;
-                        accessor.wr = wr;
-                        accessor.file = file;
-                        innerCache.put(file.getAbsolutePath(), accessor);
-                    } catch (Exception e) {
-                        throw e;
-                    }
+                    RandomAccessFile raf = accessor.raf;
+                    this.releaseAccessor(accessor);
+                    accessor = null;
+                    accessor = this.getAccessor(fileIdx, raf);
                 }
             }
 
 
             // 取得データを文字列化
-            if (tmpBytes != null) {
+            if (line != -1) {
 
-                if (tmpBytes[keyDataLength] != FileBaseDataMap.paddingSymbol) {
+                if (lineBuf[keyDataLength] != FileBaseDataMap.paddingSymbol) {
 
                     int i = keyDataLength;
                     int counter = 0;
 
-                    for (; i < tmpBytes.length; i++) {
+                    for (; i < lineBuf.length; i++) {
 
-                        if (tmpBytes[i] == FileBaseDataMap.paddingSymbol) break;
+                        if (lineBuf[i] == FileBaseDataMap.paddingSymbol) break;
                         counter++;
                     }
 
-                    ret = new String(tmpBytes, keyDataLength, counter, "UTF-8");
+                    ret = new String(lineBuf, keyDataLength, counter, "UTF-8");
                 }
             }
         } catch (Exception e) {
 
             e.printStackTrace();
+        } finally {
+            this.releaseAccessor(accessor);
+            fileLock.unlock();
         }
 
         return ret;
@@ -2002,18 +2197,85 @@ long end4 = 0L;
     public String remove(String key, int hashCode) {
         String ret = null;
 
-        ret = this.get(key, hashCode);
-        if(ret != null) {
+        // 確認から削除までを同一ファイルのLock内で行う
+        Lock fileLock = this.dataFileLocks[hashCode % numberOfDataFiles].writeLock();
+        fileLock.lock();
+        try {
+            ret = this.get(key, hashCode);
+            if(ret != null) {
 
-            this.put(key, "&&&&&&&&&&&", hashCode);
+                this.put(key, "&&&&&&&&&&&", hashCode);
 
-            // The size of an decrement
-            this.getAndDecrement();
+                // The size of an decrement
+                this.getAndDecrement();
+            }
+        } finally {
+            fileLock.unlock();
         }
         return ret;
     }
 
 
+    // 指定位置からバッファが埋まるまで読み込む
+    // RandomAccessFileのファイルポインタを使わないため、同一ファイルに対して並列に呼び出せる
+    private int readFully(RandomAccessFile raf, byte[] buf, int len, long position) throws IOException {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer readBuf = ByteBuffer.wrap(buf, 0, len);
+
+        while (readBuf.hasRemaining()) {
+            int readLen = channel.read(readBuf, position + readBuf.position());
+            if (readLen == -1) break;
+        }
+
+        if (readBuf.position() == 0) return -1;
+        return readBuf.position();
+    }
+
+
+    // ファイルアクセッサーをキャッシュから取得する
+    // キャッシュに存在しない、閉じられている、もしくはbrokenRafで利用出来なかった場合は開き直す
+    // 利用後は必ずreleaseAccessorを呼び出すこと
+    private CacheContainer getAccessor(int fileIdx, RandomAccessFile brokenRaf) throws IOException {
+        File file = this.dataFileList[fileIdx];
+
+        synchronized (this.innerCache.syncObj) {
+
+            CacheContainer accessor = (CacheContainer)innerCache.get(file.getAbsolutePath());
+
+            if (accessor == null || accessor.isClosed || (brokenRaf != null && accessor.raf == brokenRaf)) {
+
+                if (accessor != null && !accessor.isClosed) {
+                    if (accessor.useCount > 0) {
+                        accessor.isClosed = true;
+                        accessor.closeWaiting = true;
+                    } else {
+                        accessor.close();
+                    }
+                }
+
+                accessor = new CacheContainer();
+                accessor.raf = new RandomAccessFile(file, "rwd");
+                accessor.wr = new BufferedWriter(new FileWriter(file, true));
+                accessor.idxRaf = new RandomAccessFile(this.indexFileList[fileIdx], "rwd");
+                accessor.file = file;
+                innerCache.put(file.getAbsolutePath(), accessor);
+            }
+            accessor.useCount++;
+            return accessor;
+        }
+    }
+
+
+    private void releaseAccessor(CacheContainer accessor) {
+        if (accessor == null) return;
+
+        synchronized (this.innerCache.syncObj) {
+            accessor.useCount--;
+            if (accessor.useCount == 0 && accessor.closeWaiting) accessor.close();
+        }
+    }
+
+
 
     /**
      *
@@ -2021,13 +2283,28 @@ long end4 = 0L;
      */
     private void getAndIncrement() {
 
-        int sizeInt = this.totalSize.getAndIncrement();
-        this.put(FileBaseDataMap.sizeSaveKey, new Integer(sizeInt).toString(), FileBaseDataMap.createHashCode(FileBaseDataMap.sizeSaveKey));
+        int sizeHashCode = FileBaseDataMap.createHashCode(FileBaseDataMap.sizeSaveKey);
+        Lock fileLock = this.dataFileLocks[sizeHashCode % numberOfDataFiles].writeLock();
+        fileLock.lock();
+        try {
+            int sizeInt = this.totalSize.getAndIncrement();
+            this.put(FileBaseDataMap.sizeSaveKey, new Integer(sizeInt).toString(), sizeHashCode);
+        } finally {
+            fileLock.unlock();
+        }
     }
 
     private void getAndDecrement() {
-        int sizeInt = this.totalSize.getAndDecrement();
-        this.put(FileBaseDataMap.sizeSaveKey, new Integer(sizeInt).toString(), FileBaseDataMap.createHashCode(FileBaseDataMap.sizeSaveKey));
+
+        int sizeHashCode = FileBaseDataMap.createHashCode(FileBaseDataMap.sizeSaveKey);
+        Lock fileLock = this.dataFileLocks[sizeHashCode % numberOfDataFiles].writeLock();
+        fileLock.lock();
+        try {
+            int sizeInt = this.totalSize.getAndDecrement();
+            this.put(FileBaseDataMap.sizeSaveKey, new Integer(sizeInt).toString(), sizeHashCode);
+        } finally {
+            fileLock.unlock();
+        }
     }
 
     /**
@@ -2106,39 +2383,45 @@ long end4 = 0L;
                     raf = new RandomAccessFile(this.dataFileList[this.nowIterationFileIndex], "rwd");
                     raf.seek(0);
 
-                    for (int readLoopIdx = 0; readLoopIdx < readLoop; readLoopIdx++) {
-                        datas = new byte[new Long(readSize).intValue()];
+                    Lock fileLock = this.dataFileLocks[this.nowIterationFileIndex].readLock();
+                    fileLock.lock();
+                    try {
+                        for (int readLoopIdx = 0; readLoopIdx < readLoop; readLoopIdx++) {
+                            datas = new byte[new Long(readSize).intValue()];
 
-                        int readLen = -1;
-                        readLen = SystemUtil.diskAccessSync(raf, datas);
+                            int readLen = -1;
+                            readLen = SystemUtil.diskAccessSync(raf, datas);
 
-                        if (readLen > 0) {
+                            if (readLen > 0) {
 
-                            int loop = readLen / lineDataSize;
+                                int loop = readLen / lineDataSize;
 
-                            for (int loopIdx = 0; loopIdx < loop; loopIdx++) {
+                                for (int loopIdx = 0; loopIdx < loop; loopIdx++) {
 
-                                int assist = (lineDataSize * loopIdx);
-                                keysBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
+                                    int assist = (lineDataSize * loopIdx);
+                                    keysBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
 
-                                int idx = 0;
+                                    int idx = 0;
 
-                                while (true) {
+                                    while (true) {
 
-                                    if (datas[assist + idx] != FileBaseDataMap.paddingSymbol) {
-                                        keysBuf.append(new String(datas, assist + idx, 1));
-                                    } else {
-                                        break;
+                                        if (datas[assist + idx] != FileBaseDataMap.paddingSymbol) {
+                                            keysBuf.append(new String(datas, assist + idx, 1));
+                                        } else {
+                                            break;
+                                        }
+                                        idx++;
                                     }
-                                    idx++;
-                                }
-                                String keyStr = keysBuf.toString();
-                                if (!keyStr.equals(FileBaseDataMap.sizeSaveKey)) {
-                                    keys.add(keyStr);
+                                    String keyStr = keysBuf.toString();
+                                    if (!keyStr.equals(FileBaseDataMap.sizeSaveKey)) {
+                                        keys.add(keyStr);
+                                    }
+                                    keysBuf = null;
                                 }
-                                keysBuf = null;
                             }
                         }
+                    } finally {
+                        fileLock.unlock();
                     }
                 }
                 this.nowIterationFileIndex++;
@@ -2173,8 +2456,37 @@ long end4 = 0L;
 class CacheContainer implements Cloneable, Serializable {
     public transient RandomAccessFile raf = null;
     public transient BufferedWriter wr = null;
+    public transient RandomAccessFile idxRaf = null;
     public transient File file = null;
     public boolean isClosed = false;
+
+    // 利用中のスレッド数と、利用終了後にCloseするかの指定
+    // InnerCache.syncObjでSyncして操作する
+    public int useCount = 0;
+    public boolean closeWaiting = false;
+
+    public void close() {
+        try {
+            if (this.raf != null) {
+                this.raf.close();
+                this.raf = null;
+            }
+
+            if (this.wr != null) {
+                this.wr.close();
+                this.wr = null;
+            }
+
+            if (this.idxRaf != null) {
+                this.idxRaf.close();
+                this.idxRaf = null;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.isClosed = true;
+        this.closeWaiting = false;
+    }
 }
 
 
@@ -2433,6 +2745,11 @@ class InnerCache extends LinkedHashMap implements Cloneable, Serializable {
                             accessor.wr.close();
                             accessor.wr = null;
                         }
+
+                        if (accessor.idxRaf != null) {
+                            accessor.idxRaf.close();
+                            accessor.idxRaf = null;
+                        }
                         accessor.isClosed = true;
                         obj.setValue(accessor);
                     }
@@ -2457,16 +2774,15 @@ class InnerCache extends LinkedHashMap implements Cloneable, Serializable {
             try {
                 if (accessor != null) {
 
-                    if (accessor.raf != null) {
-                        accessor.raf.close();
-                        accessor.raf = null;
-                    }
+                    if (accessor.useCount > 0) {
+
+                        // 他スレッドが利用中の場合は利用終了時にCloseする
+                        accessor.isClosed = true;
+                        accessor.closeWaiting = true;
+                    } else {
 
-                    if (accessor.wr != null) {
-                        accessor.wr.close();
-                        accessor.wr = null;
+                        accessor.close();
                     }
-                    accessor.isClosed = true;
                     eldest.setValue(accessor);
                 }
             } catch (Exception e) {
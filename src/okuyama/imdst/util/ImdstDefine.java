@@ -220,6 +220,19 @@ public class ImdstDefine {
     // クラインが接続を切断する際に通知する文字列
     public static final String imdstConnectExitRequest = "(&imdst9999&)";
 
+    // MasterNodeとDataNode間の多重化された要求、応答の接頭辞(接頭辞 + 要求番号 + 区切り文字 + 通常の要求、応答)
+    public static final String keyNodeMultiplexPrefix = "#";
+
+    // MasterNodeが多重化する接続の確立時に送信するネゴシエーションの要求と、対応しているDataNodeの応答
+    // 多重化に対応していない従来のDataNodeは応答を返さないため、MasterNodeは接続タイムアウト時間の経過で未対応と判定する
+    public static final String keyNodeMultiplexNegotiationRequest = "9102" + keyHelperClientParamSep + "1";
+    public static final String keyNodeMultiplexNegotiationResponse = "9102" + keyHelperClientParamSep + "true" + keyHelperClientParamSep + "1";
+
+    // ネゴシエーションの処理番号の範囲(9101:バイナリ形式、9102:多重化)
+    // DataNodeは範囲内の未対応の処理番号に"処理番号,false"を応答し、MasterNodeがタイムアウトを待たずに未対応と判定出来るようにする
+    public static final int keyNodeNegotiationMethodNoMin = 9100;
+    public static final int keyNodeNegotiationMethodNoMax = 9199;
+
     // 全てのKeyMapObjectファイルをKey=Valueの形式で接続した場合のデータ区切り文字
     public static final String imdstConnectAllDataSendDataSep = ";";
 
@@ -234,6 +247,37 @@ public class ImdstDefine {
 
     public volatile static boolean bigDataTransfer = false;
 
+    // クライアントの接続をSelectorで管理するかの指定(true:Selector, false:ConnectHelper、AcceptHelperで管理)
+    // Selector時は1リクエスト分のデータを受信した接続のみ処理スレッドに渡し、無操作の接続はスレッドを消費しない
+    public volatile static boolean selectorFrontEnd = false;
+
+    // Selector時のSelectorのスレッド数
+    public volatile static int selectorFrontEndThreads = 1;
+
+    // Selector時の無操作の接続をクローズするまでの時間(単位:秒) -1は切断なし
+    public volatile static int selectorFrontEndIdleTimeout = 1800;
+
+    // 処理スレッド(Helper)を仮想スレッドで実行するか
+    public volatile static boolean useVirtualThread = false;
+
+    // 仮想スレッド時の処理スレッド(Helper)の最小数
+    // Selectorを使用しない場合は接続毎に専用のHelperを起動するため、DataNodeのバイナリ形式、多重化された要求を処理するスレッド数として使用する
+    public volatile static int virtualThreadWorkerSize = 2048;
+
+    // MasterNodeからDataNodeへのset、get、removeの要求を少数の接続で多重化して送信するか
+    // ネゴシエーションが成立しなかったDataNodeには要求毎に接続を使用する
+    public volatile static boolean multiplexDataNodeConnection = false;
+
+    // 多重化時のDataNode1台あたりの接続数
+    public volatile static int multiplexDataNodeConnectionSockets = 2;
+
+    // 多重化時にDataNodeとの接続毎にバイナリ形式をネゴシエーションし、対応している場合はバイナリ形式で送受信するか
+    public volatile static boolean binaryDataNodeProtocol = false;
+
+    // DataNodeで要求を受信バッファ上で分解するReader(KeyNodeRequestReader)を使用するか
+    // set、getは1行の文字列を作成せずにKey、Valueを直接取り出す
+    public volatile static boolean dataNodeRequestDecoder = false;
+
 
     // --  設定ファイルの固定文字列系定数  ---------------------------------------------
 
@@ -279,14 +323,19 @@ public class ImdstDefine {
     public static final String Prop_VirtualStoreDirs = ".virtualStoreDirs";
     public static final String Prop_KeyStoreDirs = ".keyStoreDirs";
     public static final String Prop_DiskCacheFilePath = ".cacheFilePath";
+    public static final String Prop_DataFileAccessType = ".dataFileAccessType";
+    public static final String Prop_DataFileAccessTypeMapped = "mapped";
     public static final String Prop_DataSaveTransactionFileEveryCommit = "DataSaveTransactionFileEveryCommit";
     public static final String Prop_ShareDataFileWriteDelayFlg = "ShareDataFileWriteDelayFlg";
     public static final String Prop_ShareDataFileMaxDelayCount = "ShareDataFileMaxDelayCount";
     public static final String Prop_SaveDataCompress = "SaveDataCompress";
     public static final String Prop_SaveDataCompressType = "SaveDataCompressType";
+    public static final String Prop_SaveDataCompressTypeLz = "lz";
     public static final String Prop_SaveDataMemoryStoreLimitSize = "SaveDataMemoryStoreLimitSize";
     public static final String Prop_DataSaveMapType = "DataSaveMapType";
     public static final String Prop_DataSaveMapTypeSerialize = "serialize";
+    public static final String Prop_DataSaveMapTypeOffHeap = "offheap";
+    public static final String Prop_DataSaveMapTypePacked = "packed";
     public static final String Prop_SerializerClassName = "SerializerClassName";
 
     public static final String Prop_PacketBalancerParallelExecution = "PacketBalancerParallelExecution";
@@ -363,6 +412,24 @@ public class ImdstDefine {
     public volatile static boolean useSerializeMap = false;
     public volatile static String serializerClassName = null;
 
+    // メモリ保存にOffHeapSlabMap(KeyとValueをHeap外のDirectBufferに格納)を利用するかの指定
+    public volatile static boolean useOffHeapSlabMap = false;
+
+    // OffHeapSlabMapのロック単位となるセグメント数
+    public volatile static int offHeapSlabMapSegmentCount = 256;
+
+    // OffHeapSlabMapが1回に確保するDirectBufferのサイズ
+    public volatile static int offHeapSlabMapChunkSize = 1024 * 1024 * 4;
+
+    // Keyのみメモリに保存する場合にPackedKeyIndexMap(Keyを大きなbyte配列に詰めて格納)を利用するかの指定
+    public volatile static boolean usePackedKeyIndexMap = false;
+
+    // PackedKeyIndexMapのロック単位となるセグメント数
+    public volatile static int packedKeyIndexMapSegmentCount = 256;
+
+    // PackedKeyIndexMapが1回に確保するKey格納領域の最大サイズ
+    public volatile static int packedKeyIndexMapArenaSize = 1024 * 1024;
+
     // 保存出来る、Key、Tag、Valueの最大長
     // Valueの最大長(base64エンコード前)
     public volatile static int saveDataMaxSize = 1572864;
@@ -384,6 +451,10 @@ public class ImdstDefine {
     // 起動引数の"-fbmnk"で調整可能
     public volatile static int fileBaseMapNumberOfOneFileKey = 7000;
 
+    // FileBaseDataMapでKey単位の排他に利用するLockの数
+    // 異なるLockに属するKeyへのアクセスは並列に実行される
+    public volatile static int fileBaseDataMapLockStripeSize = 256;
+
     // TagのValueの1つ当たりの長さ(Keyの連結結果長)
     public volatile static int tagValueAppendMaxSize = 8192 * 3;
 
@@ -451,6 +522,16 @@ public class ImdstDefine {
    // Recoverのコネクションタイムアウト時間(ミリ秒)
     public static final int recoverConnectionTimeout = 60000 * 360;
 
+    // Recover時に差分データの転送が中断した場合に、転送済みの連番の次から再開を試みる回数
+    public static final int recoverDiffDataResumeCount = 3;
+
+    // 差分モード中に記録する差分データの最大サイズ(メガバイト) 超えた場合は差分モードをOffにする
+    public volatile static long diffDataModeMaxSize = 4096L;
+
+    // 差分モード中にリカバリーのデータ転送が行われない状態がこの時間(ミリ秒)続いた場合は差分モードをOffにする
+    // 差分モードをOnにしたMasterNodeがリカバリーを中断したままの場合に、差分データが増え続けることを防ぐ
+    public volatile static long diffDataModeTimeout = 60000L * 30L;
+
 
     // MasterNodeとの無操作コネクションタイムアウト時間(ミリ秒)
     public volatile static int masterNodeMaxConnectTime = 60000 * 60 * 12;
@@ -470,8 +551,9 @@ public class ImdstDefine {
 
     // FileでValueを保持する際のValueキャッシの利用指定
     public volatile static boolean useValueCache = true;
-    // FileでValueを保持する際のValueキャッシュサイズ(キャッシュデータ数)
-    public volatile static int valueCacheMaxSize = 128;
+    // FileでValueを保持する際のValueキャッシュサイズ(バイト)
+    // 起動引数の"-vcms"で調整可能(メガバイト単位)
+    public volatile static long valueCacheMaxByteSize = 1024L * 1024L * 32L;
 
 
     // Valueをメモリに保存する際に圧縮を行う指定
@@ -488,11 +570,46 @@ public class ImdstDefine {
     public volatile static int valueCompresserLevel = Deflater.BEST_SPEED;
     //public volatile static int valueCompresserLevel = Deflater.FILTERED;
     //public volatile static int valueCompresserLevel = Deflater.DEFAULT_COMPRESSION;
+
+    // Valueをメモリに保存する際にBase64部分をデコードしたバイナリで格納するかの指定
+    public volatile static boolean valueBinaryPack = true;
+
+    // Valueをメモリに保存する際に圧縮に利用するコーデックのクラス名
+    // okuyama.imdst.util.compress.IValueCodecの実装クラスを指定する
+    public volatile static String valueCompressCodec = "okuyama.imdst.util.compress.DeflateValueCodec";
     
 
     // データ永続化WALログへの書き込みタイミング(true:都度, false:一定間隔)
     public volatile static boolean dataTransactionFileFlushTiming = true;
 
+    // データ永続化WALログを都度書き込みにした場合にグループコミットを行うかの指定(true:行う, false:1件毎に書き込みとSyncを行う)
+    public volatile static boolean transactionLogGroupCommit = true;
+
+    // グループコミット時に最初のログの登録から後続のログを待つ最大時間(ミリ秒)
+    // 0の場合は待たずに、前回の書き込み中に登録されたログをまとめる
+    public volatile static long transactionLogGroupCommitMaxDelay = 0;
+
+    // グループコミット時に1回の書き込みとSyncでまとめる最大件数
+    public volatile static int transactionLogGroupCommitMaxBatchSize = 512;
+
+    // 起動時にWALログを復元する際のレコードの反映を行うスレッド数(1の場合は読み込みスレッドで反映する)
+    public volatile static int transactionLogReplayThreads = Runtime.getRuntime().availableProcessors();
+
+    // 都度書き込み時にWALログを分割するパーティション数(1の場合は分割しない)
+    // Keyのロックと同じハッシュで書き込み先のパーティションを決定し、パーティション毎に書き込みとSyncを並列に行う
+    // パーティション0は従来のWALログのファイル、1以降は"WALログのファイル名.p番号"でDataNodeのKeyファイルのディレクトリに分散して作成する
+    public volatile static int transactionLogPartitions = 1;
+
+    // チェックポイントで不要となったWALログを削除せずに保存するアーカイブのディレクトリ(nullの場合は削除する)
+    // メモリモード時はチェックポイントも保存し、保存期間内の任意の時間のデータをUtilClientのpitrestoreで復元できる
+    public volatile static String transactionLogArchiveDir = null;
+
+    // アーカイブのWALログとチェックポイントの保存期間(単位:時間)
+    public volatile static int transactionLogArchiveRetentionHours = 168;
+
+    // アーカイブにチェックポイントを保存する間隔(単位:分)
+    public volatile static int transactionLogArchiveCheckpointInterval = 360;
+
     // 共有データファイルへの書き込み遅延の指定。遅延にした場合新規データは常に共有データファイルに書き込まれるが、既存の値の書き直しや
     // 過去の削除データ領域の再利用時などは一旦メモリに書き込んで順次共有データファイルに反映されていく。
     public volatile static boolean dataFileWriteDelayFlg = false;
@@ -542,6 +659,44 @@ public class ImdstDefine {
     // Vacuumを行わない場合はfasle
     public static boolean vacuumExec = false;
 
+    // 共有データファイルを追記型のセグメントで管理するかの設定
+    // trueの場合は更新時も元の位置を上書きせずに新たな位置に書き込み、不要領域はセグメント単位で順次圧縮して回収する
+    // その場合Vacuumは実行されない
+    // 既にセグメントで管理しているデータファイル(".seg"ファイルが存在する)は設定に関わらずセグメントで管理する
+    // 起動引数の"-dfsm"で調整可能
+    public volatile static boolean dataFileSegmentMode = false;
+
+    // 従来の固定長のデータファイルをセグメント管理に変換するかの設定
+    // 変換はデータファイルの格納位置を書き換えるため元に戻せない(変換後のデータファイルは従来のバージョンでは読み込めない)
+    // falseの場合はdataFileSegmentModeがtrueでも既存の固定長のデータファイルは従来通り管理する
+    // 起動引数の"-dfsmm"で調整可能
+    public volatile static boolean dataFileSegmentMigration = false;
+
+    // 共有データファイルの1セグメントのサイズ(最大サイズクラスのデータ数)
+    public volatile static int dataFileSegmentLineCount = 4096;
+
+    // 共有データファイルのサイズクラス毎の1データのサイズ(バイト、改行を含む)
+    // Valueは格納可能な最小のサイズクラスのセグメントに書き込まれる
+    // dataFileWriteMaxSizeを超えるValueは従来通り超過分をサイズオーバー領域に格納する
+    // 最小のサイズクラスが小さいほど格納可能なデータファイルの最大サイズは小さくなる(256バイトの場合は約540GB)
+    // 起動引数の"-dfsss"で調整可能(カンマ区切り)
+    public volatile static int[] dataFileSlabSlotSizes = {256, 1024, 4096};
+
+    // 有効データの割合(%)がこの値を下回ったセグメントが圧縮対象となる
+    // 起動引数の"-dfclr"で調整可能
+    public volatile static int dataFileCompactionLiveRatio = 50;
+
+    // セグメント圧縮時のデータ移動量の上限(バイト/秒)
+    // 起動引数の"-dfcms"で調整可能(キロバイト単位)
+    public volatile static long dataFileCompactionMaxBytesPerSecond = 1024 * 1024 * 8;
+
+    // 1回のセグメント圧縮処理で圧縮するセグメント数の上限
+    public volatile static int dataFileCompactionSegmentsPerCycle = 4;
+
+    // 圧縮が完了したセグメントを再利用するまでの待機時間(ミリ秒)
+    // 圧縮前の位置を参照中の処理が存在する可能性があるため、削除済みデータの位置の再利用と同様に一定時間経過後に再利用する
+    public volatile static long dataFileSegmentReuseWaitTime = 1000 * 60 * 35;
+
     // WALログをローテーションする際のサイズ(1.8GB)
     public static final long workFileChangeNewFileSize = 1610612736;
 
@@ -591,11 +746,20 @@ public class ImdstDefine {
     // 有効期限切れのデータを実際に物理削除するまでの経過時間(ミリ秒)
     public static final long invalidDataDeleteTime = 6000;
 
+    // 有効期限が設定されたKeyを登録時に有効期限毎のIndexで管理するかの有無
+    // trueの場合は有効期限切れデータの削除時に全てのKeyを走査せず、取得時にも削除対象のデータを削除する
+    public volatile static boolean expiryIndex = true;
+
     // データファイルをOSのPageCacheにのせる要否
     public volatile static boolean pageCacheMappendFlg = false;
     // データファイルをOSのPageCacheにのせる件数
     public volatile static int pageCacheMappendSize = 100000;
 
+    // データファイルをMappedByteBufferでマッピングする場合の1セグメントのサイズ(バイト)
+    public volatile static int mappedDataFileSegmentSize = 1024 * 1024 * 128;
+    // データファイルが指定サイズ(バイト)以上伸長した場合にマッピングを拡張する
+    public volatile static int mappedDataFileRemapSize = 1024 * 1024 * 4;
+
     // 高速なDiskを読み出しキャッシュに利用する場合の最大キャッシュ数(ここでの定義数 × dataFileWriteMaxSize=ディスク上に作成される最大サイズ(バイト/単位))
     public volatile static int maxDiskCacheSize = 10000;
 
@@ -606,6 +770,23 @@ public class ImdstDefine {
     // バックアップ用のSnapShotObjectを出力するかの有無
     public volatile static boolean executeFileStoreMapObject = true;
 
+    // バックアップ用のSnapShotObjectを前回からの変更部分のみの差分(チェックポイント)で出力するかの有無
+    // trueの場合はチェックポイントで復元可能となったトランザクションログ(ローテーション済み)を削除する
+    public volatile static boolean incrementalCheckpoint = true;
+
+    // チェックポイントで変更を管理するKeyのハッシュバケット数
+    public volatile static int checkpointBucketCount = 65536;
+
+    // チェックポイントの差分をベースイメージに統合する差分数
+    public volatile static int checkpointMergeDeltaCount = 8;
+
+    // Fileモード時にKeyのIndexイメージをチェックポイント作成時と停止時に書き出し、起動時にイメージから復元するかの有無
+    // イメージから復元した場合はイメージ作成以降のトランザクションログのみ再実行する
+    public volatile static boolean keyIndexImage = true;
+
+    // 起動時にKeyのIndexイメージを反映するスレッド数
+    public volatile static int keyIndexImageLoadThreads = Runtime.getRuntime().availableProcessors();
+
     // DataNodeがLowSpecのサーバで稼働しているもしくはディスクが遅い、リカバリorノード追加時の負荷を下げたい場合にtrueとする
     public volatile static boolean lowSpecDataNode = false;
 
@@ -6,13 +6,18 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,6 +29,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import okuyama.imdst.util.io.AbstractDataRandomAccess;
 import okuyama.imdst.util.io.CustomRandomAccess;
 import okuyama.imdst.util.io.HighSpeedDiskCacheRandomAccess;
+import okuyama.imdst.util.io.MappedDataRandomAccess;
 
 
 /**
@@ -33,6 +39,8 @@ import okuyama.imdst.util.io.HighSpeedDiskCacheRandomAccess;
  * ファイルモード:Keyは親クラスのMapに、Valueはファイルに記録する<br>
  *                KeyとValueが格納させている行数を記録している.<br>
  *                行数から、ファイル内からValueを取り出す.<br>
+ *                セグメントモードではValueのサイズに応じたサイズクラスのセグメントに格納し、<br>
+ *                セグメント内の格納位置を記録している.<br>
  *
  * @author T.Okuyama
  * @license GPL(Lv3)
@@ -76,6 +84,53 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
 
     private String diskCacheFile = null;
 
+    private String dataFileAccessType = null;
+
+    // ファイルから読み込んだValueのキャッシュ
+    private transient ConcurrentValueCache valueCache = null;
+
+    // データファイルを追記型のセグメントで管理する場合true
+    private transient boolean segmentMode = false;
+
+    // 1セグメントのサイズ(バイト)
+    private transient long segmentByteSize = 0L;
+
+    // 1セグメントに格納可能な最大データ数(格納位置の計算に使用)
+    private transient int maxSlotsPerSegment = 0;
+
+    // サイズクラス毎の1データのサイズ(改行を含む)
+    private transient int[] slabSlotSizes = null;
+
+    // サイズクラス毎の1セグメントに格納可能なデータ数
+    private transient int[] slabSlotsPerSegment = null;
+
+    // 書き込みに使用するサイズクラスの数
+    // 設定変更前のサイズクラスのセグメントは読み込みのみ行う
+    private transient int writableSlabClassCount = 0;
+
+    // サイズクラス毎の書き込み中のセグメント
+    private transient int[] activeSegments = null;
+
+    private transient int segmentCount = 0;
+
+    // セグメント毎のサイズクラス
+    private transient int[] segmentClass = null;
+
+    // セグメント毎の書き込み済みデータ数
+    private transient int[] segmentUsedSlots = null;
+
+    // セグメント毎の有効データサイズ(バイト)
+    private transient long[] segmentLiveBytes = null;
+
+    // 圧縮済みで再利用待ちのセグメントはtrue
+    private transient boolean[] segmentFree = null;
+
+    // 再利用待ちのセグメント(long[]{セグメント番号, 再利用可能時間})
+    private transient LinkedList freeSegmentList = null;
+
+    // セグメントのサイズクラス記録ファイル
+    private transient RandomAccessFile segmentClassRaf = null;
+
 
     // コンストラクタ
     public KeyManagerValueMap(int size, boolean memoryMode, String[] virtualStoreDirs, boolean renewFlg, File bkupObjFile, String diskCacheFile) {
@@ -98,6 +153,18 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
     }
 
 
+    /**
+     * 共有データファイルの読み込み方式を指定する.<br>
+     * initNoMemoryModeSettingより前に呼び出す.<br>
+     * "mapped"を指定した場合はデータファイルをメモリにマッピングして読み込む.<br>
+     *
+     * @param dataFileAccessType
+     */
+    public void setDataFileAccessType(String dataFileAccessType) {
+        this.dataFileAccessType = dataFileAccessType;
+    }
+
+
     /**
      * 本メソッドは使用前に必ず呼び出す<br>
      * Objectに書き出した後でも必須
@@ -145,8 +212,20 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
 
 
             File valueFile = new File(lineFile);
+            File segmentClassFile = new File(lineFile + ".seg");
             if (!valueFile.exists() || valueFile.length() < 1) {
                 super.clear();
+                if (segmentClassFile.exists()) segmentClassFile.delete();
+            }
+
+            // セグメントのサイズクラス記録ファイルが存在しないデータファイルは全て固定長で書き込まれている
+            // 既にセグメントで管理しているデータファイルは設定に関わらずセグメントで管理する
+            // 既存の固定長のデータファイルは変換の指定がある場合のみセグメント管理に変換する(変換は元に戻せない)
+            this.segmentMode = (ImdstDefine.dataFileSegmentMode || segmentClassFile.exists());
+            boolean fixedLengthDataFile = (valueFile.exists() && valueFile.length() > 0 && !segmentClassFile.exists());
+            if (this.segmentMode && fixedLengthDataFile && !ImdstDefine.dataFileSegmentMigration) {
+                System.out.println(" Data file segment mode is not applied to the fixed-length data file [" + valueFile.getAbsolutePath() + "] (use -dfsmm true to convert)");
+                this.segmentMode = false;
             }
             // データ操作記録ファイル用のBufferedWriter
             this.bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(valueFile, true), ImdstDefine.keyWorkFileEncoding), 1024*256);
@@ -156,6 +235,9 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
             if (ImdstDefine.dataFileWriteDelayFlg) {
                 // 遅延あり
                 this.raf = new CustomRandomAccess(new File(lineFile) , "rw");
+            } else if (this.dataFileAccessType != null && this.dataFileAccessType.trim().equals(ImdstDefine.Prop_DataFileAccessTypeMapped)) {
+                // 遅延なし、データファイルをメモリにマッピングして読み込む
+                this.raf = new MappedDataRandomAccess(new File(lineFile), "rw");
             } else {
                 // 遅延なし
                 //this.raf = new RandomAccessFile(new File(lineFile) , "rw");
@@ -164,18 +246,29 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
             }
             // 自身のインスタンスをファイルアクセッサに渡す
             this.raf.setDataPointMap(this);
+
+            // Valueキャッシュ構築
+            // Vacuum後の再初期化ではValueは変わらないため作り直さない
+            if (ImdstDefine.useValueCache && this.valueCache == null) {
+                this.valueCache = new ConcurrentValueCache(ImdstDefine.valueCacheMaxByteSize, new Long(ImdstDefine.valueCacheMaxByteSize / 1024).intValue());
+                StatusUtil.setValueCache(lineFile, this.valueCache);
+            }
+
+            // KeyのIndexの状態参照用に登録
+            super.registerKeyIndexStatus(lineFile);
             
             // 削除済みデータ位置保持領域構築
             this.deletedDataPointList = new ArrayBlockingQueue(ImdstDefine.numberOfDeletedDataPoint);
 
-            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(lineFile)) , ImdstDefine.keyWorkFileEncoding));
             this.lineFile = lineFile;
             int counter = 0;
 
             // 現在のファイルの終端を探す
             // 終端を探すまでに壊れてしまっているデータは無効データ(ブランクデータ)に置き換える
+            // セグメントで管理しているデータファイルは行長が一定でないため行わない
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(lineFile)) , ImdstDefine.keyWorkFileEncoding));
             String readDataLine = null;
-            while((readDataLine = br.readLine()) != null){
+            while((!this.segmentMode || fixedLengthDataFile) && (readDataLine = br.readLine()) != null){
 
                 counter++;
                 boolean zeroDataFlg = false;
@@ -213,6 +306,9 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
             this.lineCount = counter;
             br.close();
 
+            // セグメント管理情報構築
+            if (this.segmentMode) this.initDataSegment(segmentClassFile, fixedLengthDataFile);
+
             // 現在のサイズ格納
             this.nowKeySize = super.size();
         } catch(Exception e) {
@@ -287,6 +383,8 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
                 // Vacuum中はsyncを呼び出す
                 if (vacuumExecFlg) {
                     ret = syncGet(key);
+                } else if (this.segmentMode) {
+                    ret = this.getSegmentData(key);
                 } else {
 
                     int i = 0;
@@ -300,6 +398,9 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
                         return null;
                     }
 
+                    // キャッシュに存在する場合はファイルを読み込まない
+                    if (this.valueCache != null && (ret = this.valueCache.get(key)) != null) return ret;
+
                     synchronized (sync) {
                         readRet = this.readDataFile(buf, seekPoint, this.oneDataLength, key);
                         if (readRet == -1) {
@@ -338,6 +439,9 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
                             ret = new String(buf, 0, i, ImdstDefine.keyWorkFileEncoding);
                         }
                         buf = null;
+
+                        // 更新、削除時のキャッシュの破棄と順序を保つためsync内で登録する
+                        if (this.valueCache != null && ret != null) this.valueCache.put(key, ret, this.calcCacheWeight(key, (String)ret));
                     }
                 }
             } catch (Exception e) {
@@ -449,12 +553,18 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
             ret = super.put(key, value);
         } else {
 
-            StringBuilder writeBuf = new StringBuilder(this.oneDataLength + 2);
+            StringBuilder writeBuf = null;
             int valueSize = (value.toString()).length();
             int realValueSize = valueSize;
             try {
 
-                if (readObjectFlg == true) {
+                if (readObjectFlg == true && this.segmentMode) {
+
+                    // サイズクラス毎のセグメントに追記する
+                    this.writeSegmentData(key, (String)value, realValueSize);
+                } else if (readObjectFlg == true) {
+
+                    writeBuf = new StringBuilder(this.oneDataLength + 2);
 
                     long seekPoint = 0L;
                     boolean overSizeFlg = false;
@@ -581,11 +691,20 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
                 // 致命的
                 StatusUtil.setStatusAndMessage(1, "KeyManagerValueMap - put - Error [" + e.getMessage() + "]");
             }
+
+            // ファイルへの書き込み後にキャッシュを破棄
+            if (this.valueCache != null) this.valueCache.remove(key);
         }
         return ret;
     }
 
 
+    // キャッシュに登録するValueのおおよそのメモリ使用量
+    private long calcCacheWeight(Object key, String value) {
+        return ((key.toString().length() + value.length()) * 2) + 64;
+    }
+
+
 
     /**
      * removeをオーバーライド.<br>
@@ -600,6 +719,7 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
         synchronized (sync) {
             this.totalDataSizeCalc(key, null);
             ret = super.remove(key);
+            if (this.valueCache != null) this.valueCache.remove(key);
             if(this.overSizeDataStore != null && this.overSizeDataStore.containsKey(key)) {
                 this.overSizeDataStore.remove(key);
             } 
@@ -607,8 +727,11 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
             this.nowKeySize = super.size();
 
             // 再利用可能なデータの場所を保持(ValueをFileに保存している場合のみ)
+            // セグメントモードの場合はセグメントの有効データサイズから減算し、セグメント単位で再利用する
             if(ret != null) {
-                if (!this.memoryMode) {
+                if (!this.memoryMode && this.segmentMode) {
+                    this.removeSegmentLiveData(this.convertPointerToLine(ret));
+                } else if (!this.memoryMode) {
                     String deleteLinePointStr = new Long((System.currentTimeMillis() + (1000 * 60 * 35))).toString() + "." + ret;
                     this.deletedDataPointList.offer(deleteLinePointStr);
                 }
@@ -625,6 +748,16 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
         return ret;
     }
 
+    /**
+     * clearをオーバーライド.<br>
+     * Valueキャッシュも破棄する.<br>
+     */
+    public void clear() {
+        super.clear();
+        if (this.valueCache != null) this.valueCache.clear();
+    }
+
+
     /**
      * containsKeyをオーバーライド.<br>
      * MemoryモードとFileモード両方で同じ動きをする.<br>
@@ -920,6 +1053,578 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
     }
 
 
+    /**
+     * データファイルのセグメント管理情報を初期化する.<br>
+     * データファイルは先頭から一定サイズのセグメントに区切り、セグメント毎に1つのサイズクラスを割り当てる.<br>
+     * Valueは格納可能な最小のサイズクラスのセグメントに書き込むため、小さなValueは密に格納される.<br>
+     * Mapには"セグメント番号 × maxSlotsPerSegment + セグメント内の位置 + 1"を格納する.<br>
+     * セグメントのサイズクラスは記録ファイル(データファイル名 + ".seg")に保存し、起動時に読み込む.<br>
+     * 記録ファイルのない既存のデータファイルは全てを最大サイズクラスのセグメントとし、Mapの行数を変換する.<br>
+     * 最後に現在のKeyの格納位置からセグメント毎の有効データサイズを再計算する.<br>
+     * どのKeyからも参照されていないデータは無効データとなり、圧縮時に回収される.<br>
+     *
+     * @param segmentClassFile サイズクラス記録ファイル
+     * @param fixedLengthDataFile 既存の固定長のデータファイルの場合true
+     */
+    private void initDataSegment(File segmentClassFile, boolean fixedLengthDataFile) throws Exception {
+        if (this.segmentClassRaf != null) this.segmentClassRaf.close();
+        this.segmentClassRaf = new RandomAccessFile(segmentClassFile, "rw");
+
+        // 書き込みに使用するサイズクラス
+        // 最大サイズクラスは従来の1データのサイズ
+        int[] configSlotSizes = ImdstDefine.dataFileSlabSlotSizes;
+        List slotSizeList = new ArrayList();
+        for (int i = 0; i < configSlotSizes.length; i++) {
+            if (configSlotSizes[i] > 1 && configSlotSizes[i] < this.seekOneDataLength && !slotSizeList.contains(new Integer(configSlotSizes[i]))) {
+                slotSizeList.add(new Integer(configSlotSizes[i]));
+            }
+        }
+        Collections.sort(slotSizeList);
+        slotSizeList.add(new Integer(this.seekOneDataLength));
+
+        if (this.segmentClassRaf.length() >= segmentClassFileHeaderSize) {
+
+            // 作成時のセグメントサイズと格納位置の計算方法を引き継ぐ
+            this.segmentClassRaf.seek(0);
+            if (this.segmentClassRaf.readInt() != segmentClassFileMagic) throw new Exception("Segment class file is broken [" + segmentClassFile.getAbsolutePath() + "]");
+            this.segmentByteSize = this.segmentClassRaf.readLong();
+            this.maxSlotsPerSegment = this.segmentClassRaf.readInt();
+        } else {
+
+            this.segmentByteSize = (long)ImdstDefine.dataFileSegmentLineCount * this.seekOneDataLength;
+            this.maxSlotsPerSegment = (int)(this.segmentByteSize / ((Integer)slotSizeList.get(0)).intValue());
+            this.segmentClassRaf.setLength(0);
+            this.segmentClassRaf.writeInt(segmentClassFileMagic);
+            this.segmentClassRaf.writeLong(this.segmentByteSize);
+            this.segmentClassRaf.writeInt(this.maxSlotsPerSegment);
+        }
+
+        // 格納位置の計算方法で表現できないサイズクラスは使用しない
+        for (int i = slotSizeList.size() - 2; i >= 0; i--) {
+            if ((this.segmentByteSize / ((Integer)slotSizeList.get(i)).intValue()) > this.maxSlotsPerSegment) {
+                System.out.println(" Data file slab slot size [" + slotSizeList.get(i) + "] is not available for " + segmentClassFile.getAbsolutePath());
+                slotSizeList.remove(i);
+            }
+        }
+        this.writableSlabClassCount = slotSizeList.size();
+
+        // 既存のセグメントのサイズクラスを読み込む
+        // 設定が変更され現在は使用しないサイズクラスは読み込み専用のサイズクラスとして追加する
+        this.segmentCount = 0;
+        this.segmentClass = new int[64];
+        this.segmentUsedSlots = new int[64];
+        this.segmentLiveBytes = new long[64];
+        this.segmentFree = new boolean[64];
+        this.freeSegmentList = new LinkedList();
+
+        if (fixedLengthDataFile) {
+
+            // 既存の固定長のデータファイルは全て最大サイズクラス
+            int segmentLines = (int)(this.segmentByteSize / this.seekOneDataLength);
+            int fixedSegmentCount = (this.lineCount + segmentLines - 1) / segmentLines;
+            for (int i = 0; i < fixedSegmentCount; i++) {
+                this.ensureSegmentCapacity(i);
+                this.segmentClass[i] = slotSizeList.size() - 1;
+                this.segmentClassRaf.seek(segmentClassFileHeaderSize + ((long)i * 4));
+                this.segmentClassRaf.writeInt(this.seekOneDataLength);
+            }
+            this.segmentCount = fixedSegmentCount;
+        } else {
+
+            int savedSegmentCount = (int)((this.segmentClassRaf.length() - segmentClassFileHeaderSize) / 4);
+            this.segmentClassRaf.seek(segmentClassFileHeaderSize);
+            for (int i = 0; i < savedSegmentCount; i++) {
+                Integer slotSize = new Integer(this.segmentClassRaf.readInt());
+                if (!slotSizeList.contains(slotSize)) slotSizeList.add(slotSize);
+
+                this.ensureSegmentCapacity(i);
+                this.segmentClass[i] = slotSizeList.indexOf(slotSize);
+            }
+            this.segmentCount = savedSegmentCount;
+        }
+
+        this.slabSlotSizes = new int[slotSizeList.size()];
+        this.slabSlotsPerSegment = new int[slotSizeList.size()];
+        for (int i = 0; i < this.slabSlotSizes.length; i++) {
+            this.slabSlotSizes[i] = ((Integer)slotSizeList.get(i)).intValue();
+            this.slabSlotsPerSegment[i] = (int)(this.segmentByteSize / this.slabSlotSizes[i]);
+        }
+
+        // 起動時点のセグメントは全て書き込み済みとして扱う
+        for (int i = 0; i < this.segmentCount; i++) {
+            this.segmentUsedSlots[i] = this.slabSlotsPerSegment[this.segmentClass[i]];
+        }
+
+        this.activeSegments = new int[this.writableSlabClassCount];
+        Arrays.fill(this.activeSegments, -1);
+
+        Iterator entryIte = super.entrySet().iterator();
+        while(entryIte.hasNext()) {
+
+            Map.Entry obj = (Map.Entry)entryIte.next();
+            if (obj == null || obj.getKey() == null) continue;
+
+            Object key = obj.getKey();
+            Object pointerObj = super.get(key);
+            int pointer = this.convertPointerToLine(pointerObj);
+            if (pointer < 1) continue;
+
+            if (fixedLengthDataFile) {
+
+                // 行数を格納位置に変換
+                int segmentLines = (int)(this.segmentByteSize / this.seekOneDataLength);
+                pointer = (((pointer - 1) / segmentLines) * this.maxSlotsPerSegment) + ((pointer - 1) % segmentLines) + 1;
+                if (mapValueInSize) {
+                    String pointerStr = (String)pointerObj;
+                    super.put(key, new Integer(pointer) + pointerStr.substring(pointerStr.indexOf(":")));
+                } else {
+                    super.put(key, new Integer(pointer));
+                }
+            }
+
+            if (this.pointerToSegment(pointer) < this.segmentCount) this.addSegmentLiveData(pointer);
+        }
+
+        // 変換後の格納位置はチェックポイントで永続化されるため、サイズクラスはそれより前にディスクに反映する
+        this.syncSegmentClassFile();
+    }
+
+
+    // サイズクラス記録ファイルをディスクに反映する
+    // 記録ファイルが指すデータファイルの位置はチェックポイントで永続化されるため、チェックポイント作成前と終了時に呼び出す
+    private void syncSegmentClassFile() throws IOException {
+        if (this.segmentClassRaf != null) this.segmentClassRaf.getFD().sync();
+    }
+
+
+    // サイズクラス記録ファイルの識別子とヘッダーサイズ
+    private static final int segmentClassFileMagic = 0x4B4D5347;
+    private static final int segmentClassFileHeaderSize = 16;
+
+
+    /**
+     * サイズクラス毎のセグメントからValueを読み込む.<br>
+     */
+    private Object getSegmentData(Object key) throws Exception {
+        Object ret = null;
+
+        // キャッシュに存在する場合はファイルを読み込まない
+        if (this.valueCache != null && (ret = this.valueCache.get(key)) != null) return ret;
+
+        synchronized (sync) {
+
+            int pointer = this.convertPointerToLine(super.get(key));
+            if (pointer < 1) return null;
+
+            int dataLength = this.slabSlotSizes[this.segmentClass[this.pointerToSegment(pointer)]] - 1;
+            byte[] buf = new byte[dataLength];
+            if (this.readDataFile(buf, this.convertPointerToSeekPoint(pointer), dataLength, key) == -1) return null;
+
+            if (dataLength == this.oneDataLength && buf[dataLength - 1] != 38 && this.overSizeDataStore.containsKey(key)) {
+
+                // データ長が共有データファイルの1データ上限を超えている
+                ret = this.readOverSizeData(key, buf);
+            } else {
+
+                int i = 0;
+                for (; i < dataLength; i++) {
+                    if (buf[i] == 38) break;
+                }
+                ret = new String(buf, 0, i, ImdstDefine.keyWorkFileEncoding);
+            }
+
+            // 更新、削除時のキャッシュの破棄と順序を保つためsync内で登録する
+            if (this.valueCache != null) this.valueCache.put(key, ret, this.calcCacheWeight(key, (String)ret));
+        }
+        return ret;
+    }
+
+
+    /**
+     * サイズクラス毎のセグメントにデータを書き込む.<br>
+     * 更新の場合も元の位置は上書きせずに新たな位置に書き込み、元の位置は無効データとする.<br>
+     * 最大サイズクラスを超えるValueは従来通り超過分をサイズオーバー領域に格納する.<br>
+     */
+    private void writeSegmentData(Object key, String value, int realValueSize) throws Exception {
+        boolean overSizeFlg = false;
+        String writeValue = value;
+
+        if (value.length() > this.oneDataLength) {
+            writeValue = value.substring(0, this.oneDataLength);
+            overSizeFlg = true;
+        }
+
+        byte[] valueBytes = writeValue.getBytes(ImdstDefine.keyWorkFileEncoding);
+        int dataSize = valueBytes.length;
+        if (dataSize > this.oneDataLength) dataSize = this.oneDataLength;
+
+        synchronized (sync) {
+
+            int beforePointer = this.convertPointerToLine(super.get(key));
+            int pointer = this.allocateSlot(this.selectSlabClass(dataSize));
+            this.writeSlot(pointer, valueBytes, dataSize);
+
+            if (mapValueInSize) {
+                super.put(key, new Integer(pointer) + ":" + realValueSize);
+            } else {
+                super.put(key, new Integer(pointer));
+            }
+
+            this.addSegmentLiveData(pointer);
+            if (beforePointer > 0) this.removeSegmentLiveData(beforePointer);
+
+            this.nowKeySize = super.size();
+            // サイズオーバーの場合
+            if (overSizeFlg) {
+
+                // データ長が共有データファイルの1データ上限を超えている
+                this.writeOverSizeData(key, value);
+            }
+        }
+    }
+
+
+    // 指定サイズのデータを格納可能な最小のサイズクラスを返す
+    private int selectSlabClass(int dataSize) {
+        for (int i = 0; i < this.writableSlabClassCount; i++) {
+            if (dataSize < this.slabSlotSizes[i]) return i;
+        }
+        return this.writableSlabClassCount - 1;
+    }
+
+
+    /**
+     * 指定サイズクラスの書き込み位置を決定する.<br>
+     * 書き込み中のセグメントが一杯の場合は、再利用可能なセグメントもしくはファイル終端に新たなセグメントを割り当てる.<br>
+     * 呼び出し元でsyncを取得していること.<br>
+     *
+     * @param slabClass サイズクラス
+     * @return int 格納位置
+     */
+    private int allocateSlot(int slabClass) throws Exception {
+        int segment = this.activeSegments[slabClass];
+
+        if (segment == -1 || this.segmentUsedSlots[segment] >= this.slabSlotsPerSegment[slabClass]) {
+
+            segment = -1;
+            // 再利用待ち時間を経過したセグメントがあれば再利用する
+            long[] freeSegment = (long[])this.freeSegmentList.peek();
+            if (freeSegment != null && freeSegment[1] <= System.currentTimeMillis()) {
+
+                this.freeSegmentList.poll();
+                segment = (int)freeSegment[0];
+                this.segmentFree[segment] = false;
+            } else {
+
+                segment = this.segmentCount;
+                this.ensureSegmentCapacity(segment);
+                this.segmentCount++;
+            }
+
+            // データを書き込む前にサイズクラスを記録
+            this.segmentClassRaf.seek(segmentClassFileHeaderSize + ((long)segment * 4));
+            this.segmentClassRaf.writeInt(this.slabSlotSizes[slabClass]);
+
+            this.segmentClass[segment] = slabClass;
+            this.segmentUsedSlots[segment] = 0;
+            this.segmentLiveBytes[segment] = 0L;
+            this.activeSegments[slabClass] = segment;
+        }
+
+        int slot = this.segmentUsedSlots[segment];
+        this.segmentUsedSlots[segment]++;
+        return (segment * this.maxSlotsPerSegment) + slot + 1;
+    }
+
+
+    // 1データを書き込む
+    // 足りない部分は固定の"&"で補い、終端は改行とする
+    private void writeSlot(int pointer, byte[] data, int dataSize) throws Exception {
+        byte[] slotData = new byte[this.slabSlotSizes[this.segmentClass[this.pointerToSegment(pointer)]]];
+
+        System.arraycopy(data, 0, slotData, 0, dataSize);
+        Arrays.fill(slotData, dataSize, slotData.length - 1, (byte)38);
+        slotData[slotData.length - 1] = 10;
+
+        raf.seek(this.convertPointerToSeekPoint(pointer));
+        raf.write(slotData, 0, slotData.length);
+    }
+
+
+    private int pointerToSegment(int pointer) {
+        return (pointer - 1) / this.maxSlotsPerSegment;
+    }
+
+
+    /**
+     * 格納位置を渡すことでseek位置の値を計算して返す.<br>
+     *
+     * @param pointer 格納位置
+     * @return long seek値
+     */
+    private long convertPointerToSeekPoint(int pointer) {
+        int segment = this.pointerToSegment(pointer);
+        int slot = (pointer - 1) % this.maxSlotsPerSegment;
+        return (segment * this.segmentByteSize) + ((long)slot * this.slabSlotSizes[this.segmentClass[segment]]);
+    }
+
+
+    private void addSegmentLiveData(int pointer) {
+        int segment = this.pointerToSegment(pointer);
+        this.segmentLiveBytes[segment] = this.segmentLiveBytes[segment] + this.slabSlotSizes[this.segmentClass[segment]];
+    }
+
+
+    private void removeSegmentLiveData(int pointer) {
+        if (pointer < 1) return;
+
+        int segment = this.pointerToSegment(pointer);
+        if (segment >= this.segmentCount) return;
+
+        this.segmentLiveBytes[segment] = this.segmentLiveBytes[segment] - this.slabSlotSizes[this.segmentClass[segment]];
+        if (this.segmentLiveBytes[segment] < 0) this.segmentLiveBytes[segment] = 0;
+    }
+
+
+    private void ensureSegmentCapacity(int segment) {
+        if (segment < this.segmentLiveBytes.length) return;
+
+        int newLength = this.segmentLiveBytes.length * 2;
+        if (newLength <= segment) newLength = segment + 1;
+
+        int[] newClass = new int[newLength];
+        int[] newUsedSlots = new int[newLength];
+        long[] newLiveBytes = new long[newLength];
+        boolean[] newFree = new boolean[newLength];
+        System.arraycopy(this.segmentClass, 0, newClass, 0, this.segmentClass.length);
+        System.arraycopy(this.segmentUsedSlots, 0, newUsedSlots, 0, this.segmentUsedSlots.length);
+        System.arraycopy(this.segmentLiveBytes, 0, newLiveBytes, 0, this.segmentLiveBytes.length);
+        System.arraycopy(this.segmentFree, 0, newFree, 0, this.segmentFree.length);
+        this.segmentClass = newClass;
+        this.segmentUsedSlots = newUsedSlots;
+        this.segmentLiveBytes = newLiveBytes;
+        this.segmentFree = newFree;
+    }
+
+
+    /**
+     * データファイルのセグメントを有効データの割合が低いものから順に圧縮する.<br>
+     * 対象セグメント内の有効データを1件ずつ同じサイズクラスの書き込み中のセグメントに移動し、移動が完了したセグメントは<br>
+     * ImdstDefine.dataFileSegmentReuseWaitTime経過後に任意のサイズクラスのセグメントとして再利用される.<br>
+     * syncは1件の移動毎に開放するため、圧縮中もget、put、removeは並行して処理される.<br>
+     * 移動するデータ量はImdstDefine.dataFileCompactionMaxBytesPerSecond(バイト/秒)を上限とする.<br>
+     *
+     * @param maxSegments 1回の実行で圧縮するセグメント数の上限
+     * @return int 圧縮したセグメント数
+     */
+    public int compactDataSegment(int maxSegments) {
+        int ret = 0;
+        if (this.memoryMode || !this.segmentMode) return ret;
+
+        try {
+            int[] targets = null;
+            synchronized (sync) {
+                targets = this.selectCompactionSegment(maxSegments);
+            }
+            if (targets.length == 0) return ret;
+
+            // 対象セグメントに格納されているKeyを収集
+            List[] targetKeys = new List[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                targetKeys[i] = new ArrayList();
+            }
+
+            Iterator entryIte = super.entrySet().iterator();
+            while(entryIte.hasNext()) {
+
+                Map.Entry obj = (Map.Entry)entryIte.next();
+                if (obj == null || obj.getKey() == null) continue;
+
+                int pointer = this.convertPointerToLine(super.get(obj.getKey()));
+                if (pointer < 1) continue;
+
+                int segment = this.pointerToSegment(pointer);
+                for (int i = 0; i < targets.length; i++) {
+                    if (targets[i] == segment) {
+                        targetKeys[i].add(obj.getKey());
+                        break;
+                    }
+                }
+            }
+
+            long moveBytes = 0L;
+            long startTime = System.currentTimeMillis();
+
+            // 1セグメントずつ移動
+            for (int i = 0; i < targets.length; i++) {
+
+                int slotSize = this.slabSlotSizes[this.segmentClass[targets[i]]];
+                for (int keyIdx = 0; keyIdx < targetKeys[i].size(); keyIdx++) {
+
+                    if (StatusUtil.getStatus() != 0) return ret;
+
+                    if (this.moveSegmentData(targetKeys[i].get(keyIdx), targets[i])) {
+
+                        // 移動量が上限を超えないように待機
+                        moveBytes = moveBytes + slotSize;
+                        long waitTime = ((moveBytes * 1000) / ImdstDefine.dataFileCompactionMaxBytesPerSecond) - (System.currentTimeMillis() - startTime);
+                        if (waitTime > 0) Thread.sleep(waitTime);
+                    }
+                }
+
+                synchronized (sync) {
+
+                    // 有効データが残っていない場合のみ再利用待ちとする
+                    if (this.segmentLiveBytes[targets[i]] == 0) {
+
+                        long[] freeSegment = {targets[i], System.currentTimeMillis() + ImdstDefine.dataFileSegmentReuseWaitTime};
+                        this.segmentFree[targets[i]] = true;
+                        this.freeSegmentList.add(freeSegment);
+                        ret++;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 致命的
+            StatusUtil.setStatusAndMessage(1, "KeyManagerValueMap - compactDataSegment - Error [" + e.getMessage() + "]");
+        }
+        return ret;
+    }
+
+
+    // 圧縮対象のセグメントを有効データサイズの小さい順に選択する
+    // 書き込み中のセグメント、再利用待ちのセグメントは対象外
+    private int[] selectCompactionSegment(int maxSegments) {
+        List candidateList = new ArrayList();
+
+        for (int segment = 0; segment < this.segmentCount; segment++) {
+
+            int slabClass = this.segmentClass[segment];
+            if (this.segmentFree[segment]) continue;
+            if (slabClass < this.writableSlabClassCount && this.activeSegments[slabClass] == segment) continue;
+
+            long limitBytes = ((long)this.slabSlotsPerSegment[slabClass] * this.slabSlotSizes[slabClass] * ImdstDefine.dataFileCompactionLiveRatio) / 100;
+
+            // 読み込み専用のサイズクラスのセグメントは全て移動する
+            if (this.segmentLiveBytes[segment] < limitBytes || slabClass >= this.writableSlabClassCount) candidateList.add(new Integer(segment));
+        }
+
+        final long[] liveBytes = this.segmentLiveBytes;
+        Collections.sort(candidateList, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long live1 = liveBytes[((Integer)o1).intValue()];
+                long live2 = liveBytes[((Integer)o2).intValue()];
+                if (live1 == live2) return 0;
+                return live1 < live2 ? -1 : 1;
+            }
+        });
+
+        int targetSize = candidateList.size();
+        if (targetSize > maxSegments) targetSize = maxSegments;
+
+        int[] ret = new int[targetSize];
+        for (int i = 0; i < targetSize; i++) {
+            ret[i] = ((Integer)candidateList.get(i)).intValue();
+        }
+        return ret;
+    }
+
+
+    // 圧縮対象セグメント内の1データを同じサイズクラスの書き込み中のセグメントに移動する
+    // 読み込み専用のサイズクラスのデータは格納可能な最小のサイズクラスに移動する
+    // 収集後に更新、削除されたデータは既に対象セグメント外にあるため移動しない
+    private boolean moveSegmentData(Object key, int segment) throws Exception {
+
+        synchronized (sync) {
+
+            Object pointerObj = super.get(key);
+            int pointer = this.convertPointerToLine(pointerObj);
+            if (pointer < 1 || this.pointerToSegment(pointer) != segment) return false;
+
+            int slabClass = this.segmentClass[segment];
+            int dataLength = this.slabSlotSizes[slabClass] - 1;
+            byte[] buf = new byte[dataLength];
+            if (this.readDataFile(buf, this.convertPointerToSeekPoint(pointer), dataLength, key) == -1) return false;
+
+            int dataSize = dataLength;
+            if (slabClass >= this.writableSlabClassCount) {
+                for (dataSize = 0; dataSize < dataLength; dataSize++) {
+                    if (buf[dataSize] == 38) break;
+                }
+                slabClass = this.selectSlabClass(dataSize);
+            }
+
+            int newPointer = this.allocateSlot(slabClass);
+            this.writeSlot(newPointer, buf, dataSize);
+
+            if (mapValueInSize) {
+                String pointerStr = (String)pointerObj;
+                super.put(key, new Integer(newPointer) + pointerStr.substring(pointerStr.indexOf(":")));
+            } else {
+                super.put(key, new Integer(newPointer));
+            }
+
+            this.addSegmentLiveData(newPointer);
+            this.removeSegmentLiveData(pointer);
+        }
+        return true;
+    }
+
+
+    /**
+     * 共有データファイルをセグメントで管理しているかを返す.<br>
+     *
+     * @return boolean true:セグメントで管理している
+     */
+    public boolean isDataSegmentMode() {
+        return this.segmentMode;
+    }
+
+
+    /**
+     * データファイルのセグメントの状態を文字列で返す.<br>
+     * サイズクラス毎にセグメント数と有効データサイズを出力する.<br>
+     *
+     * @return String
+     */
+    public String getDataSegmentStatus() {
+        if (!this.segmentMode) return "";
+
+        synchronized (sync) {
+            int freeCount = 0;
+            int[] classSegments = new int[this.slabSlotSizes.length];
+            long[] classLiveBytes = new long[this.slabSlotSizes.length];
+
+            for (int i = 0; i < this.segmentCount; i++) {
+                if (this.segmentFree[i]) {
+                    freeCount++;
+                } else {
+                    classSegments[this.segmentClass[i]]++;
+                    classLiveBytes[this.segmentClass[i]] = classLiveBytes[this.segmentClass[i]] + this.segmentLiveBytes[i];
+                }
+            }
+
+            StringBuilder buf = new StringBuilder(256);
+            buf.append("Segments=");
+            buf.append(this.segmentCount);
+            buf.append(", FreeSegments=");
+            buf.append(freeCount);
+            for (int i = 0; i < this.slabSlotSizes.length; i++) {
+                buf.append(", Slot");
+                buf.append(this.slabSlotSizes[i]);
+                buf.append("=");
+                buf.append(classSegments[i]);
+                buf.append("/");
+                buf.append(classLiveBytes[i]);
+            }
+            buf.append(", FileBytes=");
+            buf.append(this.segmentCount * this.segmentByteSize);
+            return buf.toString();
+        }
+    }
+
+
     private void checkDataFileWriterLimit(int nowCount) {
         if (nowCount > ImdstDefine.maxDataFileBufferUseCount) {
             synchronized (sync) {
@@ -951,18 +1656,59 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
 
                 if(this.raf != null) this.raf.close();
                 if(this.bw != null) this.bw.close();
-
-
+                if(this.segmentClassRaf != null) {
+                    this.syncSegmentClassFile();
+                    this.segmentClassRaf.close();
+                }
             }
         } catch(Exception e3) {
         }
     }
 
 
-    public void fileStoreMapObject(File file) throws Exception {
+    /**
+     * Mapの情報をバックアップファイルに書き出す.<br>
+     * ImdstDefine.incrementalCheckpointがtrueの場合は変更のあった部分のみを差分として書き出す.<br>
+     *
+     * @param file 書き出し先
+     * @param standalone true:全てのデータを単独のバックアップファイルとして書き出す
+     * @return long 差分として書き出した場合はチェックポイント時間 それ以外は0
+     * @throw Exception
+     */
+    public long fileStoreMapObject(File file, boolean standalone) throws Exception {
         if (ImdstDefine.executeFileStoreMapObject) {
-            super.fileStoreMapObject(file, this.dataSizeMap);
+            if (this.segmentMode) {
+                synchronized (sync) {
+                    this.syncSegmentClassFile();
+                }
+            }
+
+            if (ImdstDefine.incrementalCheckpoint) {
+                long checkpointTime = super.storeCheckpoint(file, this.dataSizeMap, standalone);
+                if (!standalone) return checkpointTime;
+            } else {
+                super.fileStoreMapObject(file, this.dataSizeMap);
+            }
+        }
+        return 0L;
+    }
+
+
+    /**
+     * Fileモード時にKeyのIndexイメージを書き出す.<br>
+     * イメージが指すデータファイル上の位置が読み込めるように、書き出し前にデータファイルのバッファをフラッシュする.<br>
+     *
+     * @param file バックアップファイル
+     * @param checkpointTime 直前に作成したチェックポイントのチェックポイント時間
+     * @throw Exception
+     */
+    public void storeKeyIndexImage(File file, long checkpointTime) throws Exception {
+        if (this.memoryMode || !ImdstDefine.keyIndexImage) return;
+
+        synchronized (sync) {
+            if (this.bw != null) this.bw.flush();
         }
+        super.storeKeyIndexImage(file, this.dataSizeMap, checkpointTime);
     }
 
     /**
@@ -991,6 +1737,17 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
                     dataFile.delete();
                 }
 
+                if(this.segmentClassRaf != null) {
+                    this.segmentClassRaf.close();
+                    this.segmentClassRaf = null;
+                }
+
+                File segmentClassFile = new File(this.lineFile + ".seg");
+                if(segmentClassFile.exists()) {
+                    segmentClassFile.delete();
+                }
+
+                if (this.valueCache != null) this.valueCache.clear();
             }
         } catch(Exception e3) {
             e3.printStackTrace();
@@ -1017,10 +1774,10 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
         if (raf != null) {
 
             if (!ImdstDefine.dataFileWriteDelayFlg) {
-                ((AbstractDataRandomAccess)this.raf).seekAndRead(seekPoint, buf, 0, this.oneDataLength, key);
+                ((AbstractDataRandomAccess)this.raf).seekAndRead(seekPoint, buf, 0, readLength, key);
             } else {
                 raf.seek(seekPoint);
-                SystemUtil.diskAccessSync(raf, buf, 0, this.oneDataLength);
+                SystemUtil.diskAccessSync(raf, buf, 0, readLength);
             }
         } else {
             return -1;
@@ -1100,6 +1857,12 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
      */
     private long calcSeekDataPoint(Object key, boolean requestSeekPoint) {
 
+        if (this.segmentMode) {
+            int pointer = this.convertPointerToLine(super.get(key));
+            if (pointer < 1) return -1;
+            return this.convertPointerToSeekPoint(pointer);
+        }
+
         Integer lineInteger = null;
         if (mapValueInSize) {
             Object lineIntegerObj = (Object)super.get(key);
@@ -1121,6 +1884,23 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
     }
 
 
+    /**
+     * Mapに格納しているValueの位置(行数もしくは"行数:サイズ")から行数を返す.<br>
+     *
+     * @param pointer Mapに格納している値
+     * @return int 行数 存在しない場合は-1
+     */
+    private int convertPointerToLine(Object pointer) {
+        if (pointer == null) return -1;
+        if (pointer instanceof Integer) return ((Integer)pointer).intValue();
+
+        String pointerStr = pointer.toString();
+        int sepIdx = pointerStr.indexOf(":");
+        if (sepIdx != -1) pointerStr = pointerStr.substring(0, sepIdx);
+        return Integer.parseInt(pointerStr);
+    }
+
+
     /**
      * 共有データファイルの行数を渡すことでseek位置の値を計算して返す.<br>
      *
@@ -1161,6 +1941,15 @@ public class KeyManagerValueMap extends CoreValueMap implements Cloneable, Seria
      * @throws
      */
     public int getAllDataCount() {
+        if (this.segmentMode) {
+            synchronized (sync) {
+                int ret = 0;
+                for (int i = 0; i < this.segmentCount; i++) {
+                    ret = ret + this.segmentUsedSlots[i];
+                }
+                return ret;
+            }
+        }
         return this.lineCount;
     }
 
@@ -1,34 +1,46 @@
 package okuyama.imdst.util;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import okuyama.base.lang.BatchException;
 import okuyama.base.util.ILogger;
 import okuyama.base.util.LoggerFactory;
-import okuyama.imdst.util.io.CustomBufferedWriter;
+import okuyama.imdst.util.io.CustomBufferedOutputStream;
+import okuyama.imdst.util.expire.ExpiryIndex;
+import okuyama.imdst.util.translog.TransactionLogFormat;
+import okuyama.imdst.util.translog.ITransactionLogApplier;
+import okuyama.imdst.util.translog.TransactionLogReplayer;
+import okuyama.imdst.util.translog.TransactionLogArchive;
+import okuyama.imdst.util.translog.DiffChangeLog;
 
 import com.sun.mail.util.BASE64DecoderStream;
 import com.sun.mail.util.BASE64EncoderStream;
@@ -60,17 +72,20 @@ public class KeyMapManager extends Thread {
     public boolean outputDataStopSignal = false;
 
     // Key系の書き込み、取得
-    private Object poolKeyLock = new Object();
-    private Object setKeyLock = new Object();
-    private Object lockKeyLock = new Object();
+    // 復旧時のデータ転送等でロック中にソケットやファイルの読み書きを行うため、ReentrantLockを使用する
+    private ReentrantLock poolKeyLock = new ReentrantLock();
+    private ReentrantLock setKeyLock = new ReentrantLock();
+    private ReentrantLock lockKeyLock = new ReentrantLock();
 
-    // set,remove系のシンクロオブジェクト
+    // set,remove系のロック
+    // ロック中にトランザクションログの書き込み待ちが発生するため、仮想スレッド実行時にキャリアスレッドを占有しないReentrantLockを使用する
     private static final int parallelSize = 5000;
-    private Integer[] parallelSyncObjs = new Integer[KeyMapManager.parallelSize];
+    private ReentrantLock[] parallelLocks = new ReentrantLock[KeyMapManager.parallelSize];
 
-    // tagsetのシンクロオブジェクト
+    // tagsetのロック
+    // set同様にロック中にトランザクションログの書き込み待ちが発生するため、ReentrantLockを使用する
     private static final int tagSetParallelSize = 300;
-    private Integer[] tagSetParallelSyncObjs = new Integer[KeyMapManager.tagSetParallelSize];
+    private ReentrantLock[] tagSetParallelLocks = new ReentrantLock[KeyMapManager.tagSetParallelSize];
 
 
     // Tag系の書き込み、取得
@@ -84,7 +99,7 @@ public class KeyMapManager extends Thread {
     private String[] keyFileDirs = null;
 
     // トランザクションログ書き出し用ストリーム
-    private BufferedWriter bw = null;
+    private CustomBufferedOutputStream bw = null;
     private AtomicInteger tLogWriteCount = null;
     protected static int accessorTypeBw = 2;
 
@@ -117,12 +132,19 @@ public class KeyMapManager extends Thread {
     private boolean workFileMemory = false;
 
     // トランザクションログを書き出す際に使用するロック
-    private Object lockWorkFileSync = new Object();
+    // ロック中にファイルの書き込みとSyncを行うため、ReentrantLockを使用する
+    private ReentrantLock lockWorkFileSync = new ReentrantLock();
 
     // トランザクションログflushタイミング(true:都度, false:一定間隔)
     private boolean workFileFlushTiming = ImdstDefine.dataTransactionFileFlushTiming;
     // トランザクションログ書き込みデーモン
     private DataTransactionFileFlushDaemon dataTransactionFileFlushDaemon = null;
+    // トランザクションログのグループコミットデーモン(都度書き込み時のみ)
+    private TransactionLogGroupCommitDaemon transactionLogGroupCommitDaemon = null;
+    // トランザクションログのパーティション1以降(パーティション0はbw)(都度書き込みでパーティション数が2以上の場合のみ)
+    private TransactionLogPartition[] transactionLogPartitions = null;
+    // 現在のパーティション数では使用しない、起動時に存在したパーティションのトランザクションログのファイル名
+    private List obsoleteTransactionLogPartitionPaths = new ArrayList();
 
     // トランザクションログをローテーションする際のサイズ
     private static final long workFileChangeNewFileSize = ImdstDefine.workFileChangeNewFileSize;
@@ -187,8 +209,12 @@ public class KeyMapManager extends Thread {
 
     // ノード復旧中のデータを一時的に蓄積する設定
     private boolean diffDataPoolingFlg = false;
-    private Object diffSync = new Object();
-    private List diffDataPoolingListForFileBase = null;
+    // 差分データの記録(ファイルへの追記)と差分モードの切り替えを排他するロック
+    private ReentrantLock diffSync = new ReentrantLock();
+    // 復旧中の更新内容を連番付きで記録するログ
+    private DiffChangeLog diffChangeLog = null;
+    // 差分モードOn、またはリカバリーのデータ転送を最後に行った時間
+    private volatile long diffDataModeAccessTime = 0L;
 
     // 現在のKeyMapManagerの状態を"通常(1)" or "復旧中(2)" or "復旧データ取得元(3)" or "強制リカバリが必要(4)"の3種類で管理する
     public int myOperationStatus = 1;
@@ -214,10 +240,27 @@ public class KeyMapManager extends Thread {
 
     private Object keyObjectExportSync = new Object();
 
+    // 他ノードへ全データを書き出し中の数
+    // 書き出し中はMapを再構築するVacuumを行わない
+    private AtomicInteger snapshotOutputCount = new AtomicInteger(0);
+
+    // 有効期限が設定されたKeyのIndex
+    // 有効期限切れデータの削除を行わない設定の場合はnull
+    private ExpiryIndex expiryIndex = null;
+
+    // 起動時に既存の全てのKeyをexpiryIndexに登録済みか
+    private volatile boolean expiryIndexReady = false;
+
+    // チェックポイントで不要となったトランザクションログの保存先
+    // アーカイブしない設定の場合はnull
+    private TransactionLogArchive transactionLogArchive = null;
+
     private int keyObjectStoreTiming = 25; // 25分に一度バックアップが作成される
 
     private String diskCacheFile = null;
 
+    private String dataFileAccessType = null;
+
 
     // 初期化メソッド
     // Transactionを管理する場合に呼び出す
@@ -247,13 +290,14 @@ public class KeyMapManager extends Thread {
 
     // 初期化メソッド
     // Key値はメモリを使用する場合に使用
-    public KeyMapManager(String keyMapFilePath, String workKeyMapFilePath, boolean workFileMemory, int keySize, boolean dataMemory, int memoryLimitSize, String[] virtualStorageDirs, String diskCacheFile) throws BatchException {
+    public KeyMapManager(String keyMapFilePath, String workKeyMapFilePath, boolean workFileMemory, int keySize, boolean dataMemory, int memoryLimitSize, String[] virtualStorageDirs, String diskCacheFile, String dataFileAccessType) throws BatchException {
         if (ImdstDefine.recoverRequired == true) {
             myOperationStatus = 4;
         }
 
         this.keyObjBkupMode = true;
         this.diskCacheFile = diskCacheFile;
+        this.dataFileAccessType = dataFileAccessType;
         this.bkupObjCheck(keyMapFilePath);
         this.memoryLimitSize = memoryLimitSize;
         this.virtualStorageDirs = virtualStorageDirs;
@@ -263,13 +307,14 @@ public class KeyMapManager extends Thread {
 
     // 初期化メソッド
     // Keyもファイルの場合
-    public KeyMapManager(String keyMapFilePath, String workKeyMapFilePath, boolean workFileMemory, int keySize, boolean dataMemory, String[] dirs, String diskCacheFile) throws BatchException {
+    public KeyMapManager(String keyMapFilePath, String workKeyMapFilePath, boolean workFileMemory, int keySize, boolean dataMemory, String[] dirs, String diskCacheFile, String dataFileAccessType) throws BatchException {
         if (ImdstDefine.recoverRequired == true) {
             myOperationStatus = 4;
         }
 
         boolean renewFlg = false;
         this.diskCacheFile = diskCacheFile;
+        this.dataFileAccessType = dataFileAccessType;
         for (int idx = 0; idx < dirs.length; idx++) {
             File path = new File(dirs[idx]);
             if (!path.exists()) {
@@ -312,14 +357,6 @@ public class KeyMapManager extends Thread {
                     ImdstDefine.tagValueAppendMaxSize = ImdstDefine.memoryStoreLimitSize  - ImdstDefine.saveKeyMaxSize;
             }
 
-            FileInputStream workKeyFilefis = null;
-            InputStreamReader isr = null;
-
-            FileReader fr = null;
-            BufferedReader br = null;
-            String line = null;
-            String[] workSplitStrs = null;
-
             if (dirs != null) {
                 this.dataMemory = false;
                 this.allDataForFile = true;
@@ -331,18 +368,28 @@ public class KeyMapManager extends Thread {
                 this.diskModeRestoreFile = keyMapFilePath + ".data";
             }
 
-            // set,remove系のシンクロオブジェクト初期化
+            // 有効期限切れデータの削除を行う場合は有効期限のIndexを作成
+            if (ImdstDefine.expiryIndex && ImdstDefine.vacuumInvalidDataFlg && (this.dataMemory || ImdstDefine.vacuumInvalidDataCompulsion)) {
+                this.expiryIndex = new ExpiryIndex();
+            }
+
+            if (ImdstDefine.transactionLogArchiveDir != null && !this.workFileMemory) {
+                this.transactionLogArchive = new TransactionLogArchive(new File(ImdstDefine.transactionLogArchiveDir));
+            }
+
+            // set,remove系のロック初期化
             for (int i = 0; i < KeyMapManager.parallelSize; i++) {
-                this.parallelSyncObjs[i] = new Integer(i);
+                this.parallelLocks[i] = new ReentrantLock();
             }
 
-            // tagsetのシンクロオブジェクト初期化
+            // tagsetのロック初期化
             for (int i = 0; i < KeyMapManager.tagSetParallelSize; i++) {
-                this.tagSetParallelSyncObjs[i] = new Integer(i+KeyMapManager.tagSetParallelSize);
+                this.tagSetParallelLocks[i] = new ReentrantLock();
             }
 
 
-            synchronized(this.poolKeyLock) {
+            this.poolKeyLock.lock();
+            try {
                 try {
 
                     // Mapファイルを読み込む必要の有無
@@ -364,6 +411,7 @@ public class KeyMapManager extends Thread {
                         if (this.initDataFile == true) {
                             if (beforeDtaFile.exists()) beforeDtaFile.delete();
                         }
+                        this.keyMapObj.setDataFileAccessType(this.dataFileAccessType);
                         this.keyMapObj.initNoMemoryModeSetting(this.diskModeRestoreFile, this.initDataFile);
                     }
 
@@ -371,99 +419,39 @@ public class KeyMapManager extends Thread {
                     if (this.workFileStartingReadFlg == true) {
                         System.out.println(" Data log file read start - " + new Date().toString());
                         // WorkKeyMapファイルが存在する場合は読み込み
-                        // トランザクションファイルはサイズでローテーションされているので、0からのインデックス番号順に読み込む
-                        for (int i = 0; true; i++) {
-
-                            boolean endFlg = false;
-                            File workKeyFile = new File(this.workKeyFilePath + i);
-
-                            if (!workKeyFile.exists()) {
-
-                                workKeyFile = new File(this.workKeyFilePath);
-                                endFlg = true;
-                            }
-
-                            if (workKeyFile.exists()) {
-                                logger.info("workKeyMapFile - Read - start");
-                                workKeyFilefis = new FileInputStream(workKeyFile);
-                                isr = new InputStreamReader(workKeyFilefis , KeyMapManager.workMapFileEnc);
-                                br = new BufferedReader(isr);
-                                int counter = 1;
-
-                                while((line=br.readLine())!=null){
-                                    if ((counter % 100) == 0) {
-                                        logger.info("workKeyMapFile - Read - Count =[" + counter + "]");
-                                    }
-
-                                    if (!line.equals("")) {
-                                        workSplitStrs = line.split(KeyMapManager.workFileSeq);
-
-
-                                        // データは必ず5つか6つに分解できる
-                                        // 復元の際はCoreStorageをバックアップイメージから復元している場合があるので、
-                                        // CoreStorageのバックアップデータ作成時間より新しいログデータのみ復元対象とする。
-                                        // CoreStorageがバックアップデータから復元していない場合は、作成時間が0なので確実にログから復元される
-                                        if (workSplitStrs.length == 5) {
-
-                                            if (workSplitStrs[0].equals("+")) {
-                                                // 登録データ
-                                                // トランザクションファイルからデータ登録操作を復元する。その際に登録実行時間もファイルから復元
-                                                // 復元時間もチェック
-                                                if (keyMapObj.useStorageObjectTime <  Long.parseLong(workSplitStrs[3])) 
-                                                    keyMapObjPutSetTime(workSplitStrs[1], workSplitStrs[2], new Long(workSplitStrs[3]).longValue());
-                                            } else if (workSplitStrs[0].equals("-")) {
-
-                                                // 削除データ
-                                                // トランザクションファイルからデータ削除操作を復元する。その際に削除実行時間もファイルから復元
-                                                // 復元時間もチェック
-                                                if (keyMapObj.useStorageObjectTime <  Long.parseLong(workSplitStrs[3]))
-                                                    keyMapObjRemoveSetTime(workSplitStrs[1], new Long(workSplitStrs[3]).longValue());
-                                            }
-                                        } else if (workSplitStrs.length == 6) {
-
-                                            if (workSplitStrs[0].equals("+")) {
-
-                                                // 登録データ
-                                                // トランザクションファイルからデータ登録操作を復元する。その際に登録実行時間もファイルから復元
-                                                // 復元時間もチェック
-                                                if (keyMapObj.useStorageObjectTime <  Long.parseLong(workSplitStrs[4]))
-                                                    keyMapObjPutSetTime(workSplitStrs[1], workSplitStrs[2] + KeyMapManager.workFileSeq + workSplitStrs[3], new Long(workSplitStrs[4]).longValue());
-                                            } else if (workSplitStrs[0].equals("-")) {
-
-                                                // 削除データ
-                                                // トランザクションファイルからデータ削除操作を復元する。その際に削除実行時間もファイルから復元
-                                                // 復元時間もチェック
-                                                if (keyMapObj.useStorageObjectTime <  Long.parseLong(workSplitStrs[3]))
-                                                    keyMapObjRemoveSetTime(workSplitStrs[1], new Long(workSplitStrs[3]).longValue());
-                                            }
-                                        } else {
+                        // トランザクションファイルはサイズでローテーションされているので、0からのインデックス番号順に読み込み、最後に現在のファイルを読み込む
+                        // チェックポイント作成時に古いファイルから削除されるため、インデックス番号は0から始まるとは限らない
+                        // パーティションに分割されている場合はパーティション毎のファイルをマージして読み込む
+                        List partitionLogFileList = new ArrayList();
+                        partitionLogFileList.add(getTransactionLogFiles(this.workKeyFilePath, this.workKeyFilePath));
+                        for (Iterator ite = this.findTransactionLogPartitionPaths().values().iterator(); ite.hasNext();) {
+                            String partitionPath = (String)ite.next();
+                            partitionLogFileList.add(getTransactionLogFiles(partitionPath, partitionPath + "."));
+                        }
 
-                                            // 不正データ
-                                            logger.error("workKeyMapFile - Read - Error " + counter + "Line Data = [" + workSplitStrs + "]");
-                                        }
-                                    } else {
-                                        logger.info("workKeyMapFile - Read - Info " + counter + "Line Blank");
-                                    }
-                                    counter++;
-                                }
+                        // 復元の際はCoreStorageをバックアップイメージから復元している場合があるので、
+                        // CoreStorageのバックアップデータ作成時間より新しいログデータのみ復元対象とする。
+                        // CoreStorageがバックアップデータから復元していない場合は、作成時間が0なので確実にログから復元される
+                        TransactionLogReplayer replayer = new TransactionLogReplayer(new KeyMapTransactionLogApplier(), keyMapObj.useStorageObjectTime, ImdstDefine.transactionLogReplayThreads);
+                        StatusUtil.setReplayStatus(this.workKeyFilePath, replayer);
+                        replayer.replay((File[][])partitionLogFileList.toArray(new File[0][]));
 
-                                br.close();
-                                isr.close();
-                                workKeyFilefis.close();
-                                logger.info("workKeyMapFile - Read - end");
+                        if (replayer.getLastRecordTime() > 0L) this.keyMapObj.setKLastDataChangeTime(replayer.getLastRecordTime());
+                        this.lastAccess = JavaSystemApi.currentTimeMillis;
+                        System.out.println(" Data log file read end - " + new Date().toString() + " " + replayer.getStatus());
+                    }
 
-                            }
-                            if (endFlg) break;
-                        }
-                        System.out.println(" Data log file read end - " + new Date().toString());
+                    // テキストフォーマットのトランザクションログにはバイナリで追記できないため、ローテーションする
+                    File nowWorkFile = new File(this.workKeyFilePath);
+                    if (nowWorkFile.exists() && nowWorkFile.length() > 0 && !TransactionLogFormat.isBinaryLog(nowWorkFile)) {
+                        int nextWorkFileName = this.getNextRotatedTransactionLogIndex();
+                        if (!nowWorkFile.renameTo(new File(this.workKeyFilePath + nextWorkFileName))) throw new Exception("Work File Name Change Error");
+                        logger.info("workKeyMapFile - Text format log file renamed to [" + this.workKeyFilePath + nextWorkFileName + "]");
                     }
 
                     // トランザクションログ用のストリーム構築
                     this.tLogWriteCount = new AtomicInteger(0);
-                    
-                    FileOutputStream newFos = new FileOutputStream(new File(this.workKeyFilePath), true);
-                    this.bw = new CustomBufferedWriter(new OutputStreamWriter(newFos , KeyMapManager.workMapFileEnc), 8192 * 24, newFos);
-                    this.bw.newLine();
+                    this.bw = this.openTransactionLogStream(true);
                     SystemUtil.diskAccessSync(this.bw);
 
                     if (this.workFileMemory == false && this.workFileFlushTiming == false) {
@@ -473,6 +461,19 @@ public class KeyMapManager extends Thread {
                         this.dataTransactionFileFlushDaemon.start();
                     }
 
+                    if (this.workFileMemory == false && this.workFileFlushTiming == true && ImdstDefine.transactionLogGroupCommit) {
+                        this.transactionLogGroupCommitDaemon = new TransactionLogGroupCommitDaemon(this);
+                        this.transactionLogGroupCommitDaemon.start();
+                    }
+
+                    // トランザクションログのパーティションを構築
+                    this.initTransactionLogPartitions();
+
+                    // Fileモード時は停止時にチェックポイントとKeyのIndexイメージを作成し、再起動時のログの再実行を最小にする
+                    if (!this.dataMemory && this.keyObjBkupMode && ImdstDefine.keyIndexImage) {
+                        Runtime.getRuntime().addShutdownHook(new KeyIndexImageShutdownHook());
+                    }
+
                 } catch (Exception e) {
 
                     logger.error("KeyMapManager - init - Error" + e);
@@ -480,6 +481,8 @@ public class KeyMapManager extends Thread {
                     StatusUtil.setStatusAndMessage(1, "KeyMapManager - init - Error [" + e.getMessage() + "]");
                     throw new BatchException(e);
                 }
+            } finally {
+                this.poolKeyLock.unlock();
             }
         }
         logger.debug("init - end");
@@ -496,6 +499,9 @@ public class KeyMapManager extends Thread {
         int vacuumInvalidDataCount = 0;
         int keyMapObjectStoreCheckCount = 0;
 
+        // 復元したデータの有効期限をIndexに登録
+        if (this.expiryIndex != null) this.buildExpiryIndex();
+
         while(true) {
 
             if (StatusUtil.getStatus() != 0) {
@@ -533,8 +539,10 @@ public class KeyMapManager extends Thread {
                     // 死亡している場合は、依頼された書き込みQueueからデータを引き抜いて、再度生成したDaemonに渡して実行
                     if ((count % 4) == 0 && this.workFileMemory == false && this.workFileFlushTiming == false && this.dataTransactionFileFlushDaemon.getExecuteEnd() == true) {
                         try {
-                            synchronized(this.poolKeyLock) {
-                                synchronized(this.lockWorkFileSync) {
+                            this.poolKeyLock.lock();
+                            try {
+                                this.lockWorkFileSync.lock();
+                                try {
                                     if (this.dataTransactionFileFlushDaemon != null && this.dataTransactionFileFlushDaemon.getExecuteEnd() == true) {
 
                                         DataTransactionFileFlushDaemon dataTransactionFileFlushDaemonRe = new DataTransactionFileFlushDaemon();
@@ -544,7 +552,11 @@ public class KeyMapManager extends Thread {
                                         dataTransactionFileFlushDaemonRe.start();
                                         this.dataTransactionFileFlushDaemon = dataTransactionFileFlushDaemonRe;
                                     }
+                                } finally {
+                                    this.lockWorkFileSync.unlock();
                                 }
+                            } finally {
+                                this.poolKeyLock.unlock();
                             }
                         } catch(Exception reE) {
                             reE.printStackTrace();
@@ -570,8 +582,10 @@ public class KeyMapManager extends Thread {
                         if (nowWorkFile.length() > KeyMapManager.workFileChangeNewFileSize) {
 
                             // 規定サイズを超えている
-                            synchronized(this.poolKeyLock) {
-                                synchronized(this.lockWorkFileSync) {
+                            this.poolKeyLock.lock();
+                            try {
+                                this.lockWorkFileSync.lock();
+                                try {
 
                                     logger.debug("Transaction Log File Change - Start");
                                     if (this.workFileFlushTiming == false) {
@@ -587,13 +601,8 @@ public class KeyMapManager extends Thread {
                                     }
 
 
-                                    int nextWorkFileName = 0;
-                                    File checkWorkKeyFile = null;
-                                    for (nextWorkFileName = 0; true; nextWorkFileName++) {
-
-                                        checkWorkKeyFile = new File(this.workKeyFilePath + nextWorkFileName);
-                                        if (!checkWorkKeyFile.exists()) break;
-                                    }
+                                    int nextWorkFileName = this.getNextRotatedTransactionLogIndex();
+                                    File checkWorkKeyFile = new File(this.workKeyFilePath + nextWorkFileName);
 
                                     if (!nowWorkFile.renameTo(checkWorkKeyFile)) throw new Exception("Work File Name Change Error");
 
@@ -601,9 +610,7 @@ public class KeyMapManager extends Thread {
                                     checkWorkKeyFile = null;
 
                                     this.tLogWriteCount = new AtomicInteger(0);
-                                    FileOutputStream newFos = new FileOutputStream(new File(this.workKeyFilePath), true);
-                                    this.bw = new CustomBufferedWriter(new OutputStreamWriter(newFos , KeyMapManager.workMapFileEnc), 8192 * 24, newFos);
-                                    this.bw.newLine();
+                                    this.bw = this.openTransactionLogStream(true);
                                     SystemUtil.diskAccessSync(this.bw);
 
                                     // 遅延書き込み時
@@ -613,6 +620,22 @@ public class KeyMapManager extends Thread {
                                     }
 
                                     logger.debug("Transaction Log File Change - End");
+                                } finally {
+                                    this.lockWorkFileSync.unlock();
+                                }
+                            } finally {
+                                this.poolKeyLock.unlock();
+                            }
+                        }
+
+                        // パーティション毎にローテーション
+                        for (int i = 0; this.transactionLogPartitions != null && i < this.transactionLogPartitions.length; i++) {
+                            if (new File(this.transactionLogPartitions[i].getFilePath()).length() > KeyMapManager.workFileChangeNewFileSize) {
+                                this.poolKeyLock.lock();
+                                try {
+                                    this.transactionLogPartitions[i].rotate(getNextRotatedTransactionLogIndex(this.transactionLogPartitions[i].getRotatedPrefix()));
+                                } finally {
+                                    this.poolKeyLock.unlock();
                                 }
                             }
                         }
@@ -627,11 +650,14 @@ public class KeyMapManager extends Thread {
                 logger.info("VacuumCheck - Start");
 
                 // データがメモリーではなくかつ、vacuum実行指定がtrueの場合
-                if (!dataMemory && vacuumExec == true && diffDataPoolingFlg == false) {
+                // 共有データファイルをセグメントで管理している場合はVacuumではなくセグメント単位の圧縮で回収する
+                if (!dataMemory && !this.keyMapObj.isDataSegmentMode() && vacuumExec == true && diffDataPoolingFlg == false) {
                     logger.debug("vacuumCheck - Start - 1");
-                    synchronized(this.poolKeyLock) {
+                    this.poolKeyLock.lock();
+                    try {
                         logger.debug("VacuumCheck - DifferenceCount = [" + (this.keyMapObj.getAllDataCount() - this.keyMapObj.getKeySize()) + "]");
-                        if ((this.keyMapObj.getAllDataCount() - this.keyMapObj.getKeySize()) > this.vacuumStartLimit) {
+                        // 他ノードへ全データを書き出し中はMapを再構築しない
+                        if (this.snapshotOutputCount.get() == 0 && (this.keyMapObj.getAllDataCount() - this.keyMapObj.getKeySize()) > this.vacuumStartLimit) {
                             logger.debug("VacuumCheck - Start - 2");
 
                             // 規定時間アクセスがない
@@ -648,63 +674,95 @@ public class KeyMapManager extends Thread {
                                 logger.info("Vacuum - End - VacuumTime [" + (vacuumEnd - vacuumStart) +"] Milli Second");
                             }
                         }
+                    } finally {
+                        this.poolKeyLock.unlock();
                     }
                 }
                 logger.info("VacuumCheck - End");
 
 
+                // 共有データファイルのセグメント圧縮
+                // 有効データの割合が低いセグメントから1セグメントずつ、移動量を制限しながら圧縮する
+                // poolKeyLockは取得しないため、圧縮中も登録、取得、削除は並行して処理される
+                if (!dataMemory && this.keyMapObj.isDataSegmentMode()) {
+                    long compactionStart = JavaSystemApi.currentTimeMillis;
+                    int compactionCount = this.keyMapObj.compactDataSegment(ImdstDefine.dataFileCompactionSegmentsPerCycle);
+
+                    if (compactionCount > 0) {
+                        // 圧縮で変更されたデータの位置をストアする
+                        this.keyObjectExport(null);
+
+                        long compactionEnd = JavaSystemApi.currentTimeMillis;
+                        logger.info("DataFileCompaction - End - Segments=[" + compactionCount + "] CompactionTime [" + (compactionEnd - compactionStart) + "] Milli Second " + this.keyMapObj.getDataSegmentStatus());
+                    }
+                }
+
+
                 // 有効期限切れデータの削除
                 // 実行指定(ImdstDefine.vacuumInvalidDataFlg)がtrueの場合に実行される
                 // このif文に到達するのが1分に1回なので、それを規定回数繰り返すと削除処理を実行する
+                // 有効期限のIndexを利用する場合は有効期限切れのKeyのみが対象となるため毎回実行する
                 // 差分データ取集中は行わない
-                if ((dataMemory == true || ImdstDefine.vacuumInvalidDataCompulsion == true) && ImdstDefine.vacuumInvalidDataFlg == true && vacuumInvalidDataCount > ImdstDefine.startVaccumInvalidCount && diffDataPoolingFlg == false) {
+                if ((dataMemory == true || ImdstDefine.vacuumInvalidDataCompulsion == true) && ImdstDefine.vacuumInvalidDataFlg == true && (vacuumInvalidDataCount > ImdstDefine.startVaccumInvalidCount || this.expiryIndexReady) && diffDataPoolingFlg == false) {
                     logger.info("VacuumInvalidData - Start - 1");
 
-                    synchronized(this.poolKeyLock) {
-                        Set entrySet = this.keyMapObj.entrySet();
-                        Iterator entryIte = entrySet.iterator(); 
-                        long removeTagetData =0L;
+                    if (this.expiryIndex != null && this.expiryIndexReady) {
 
-                        long counter = 0;
-                        while(entryIte.hasNext()) {
+                        // 有効期限のIndexから有効期限切れのKeyのみ取り出して削除
+                        long removeTagetData = this.removeExpiredData();
+                        logger.info("RemoveInvalidData - Count [" + removeTagetData + "] ExpiryIndexSize [" + this.expiryIndex.size() + "]");
+                    } else {
 
-                            counter++;
-                            if ((counter % 2500) == 0) {
-                                logger.info("VacuumInvalidData - Exec Count[" + counter + "]");
-                                Thread.sleep(100);
-                            }
+                        // 全てのKeyを走査して有効期限切れのデータを削除
+                        this.poolKeyLock.lock();
+                        try {
+                            Set entrySet = this.keyMapObj.entrySet();
+                            Iterator entryIte = entrySet.iterator(); 
+                            long removeTagetData =0L;
+
+                            long counter = 0;
+                            while(entryIte.hasNext()) {
+
+                                counter++;
+                                if ((counter % 2500) == 0) {
+                                    logger.info("VacuumInvalidData - Exec Count[" + counter + "]");
+                                    Thread.sleep(100);
+                                }
 
-                            Map.Entry obj = (Map.Entry)entryIte.next();
-                            if (obj == null) continue;
+                                Map.Entry obj = (Map.Entry)entryIte.next();
+                                if (obj == null) continue;
 
-                            Object key = null;
+                                Object key = null;
 
-                            key = obj.getKey();
+                                key = obj.getKey();
 
-                            String valStr = (String)this.getKeyPair((String)key);
-                            // 削除データの可能性があるので確認(FileBaseのMapを使っている場合)
-                            if (valStr == null) continue;
+                                String valStr = (String)this.getKeyPair((String)key);
+                                // 削除データの可能性があるので確認(FileBaseのMapを使っている場合)
+                                if (valStr == null) continue;
 
-                            String[] valStrSplit = valStr.split(ImdstDefine.setTimeParamSep);
-                            valStr = valStrSplit[0];
+                                String[] valStrSplit = valStr.split(ImdstDefine.setTimeParamSep);
+                                valStr = valStrSplit[0];
 
 
-                            // 有効期限チェックを行う(有効期限を1分過ぎているデータが対象)
-                            String[] checkValueSplit = valStr.split(ImdstDefine.keyHelperClientParamSep);
+                                // 有効期限チェックを行う(有効期限を1分過ぎているデータが対象)
+                                String[] checkValueSplit = valStr.split(ImdstDefine.keyHelperClientParamSep);
 
-                            if (checkValueSplit.length > 1) {
+                                if (checkValueSplit.length > 1) {
 
-                                String[] metaColumns = checkValueSplit[1].split(ImdstDefine.valueMetaColumnSep);
-                                if (!SystemUtil.expireCheck(metaColumns[1], ImdstDefine.invalidDataDeleteTime)) {
+                                    String[] metaColumns = checkValueSplit[1].split(ImdstDefine.valueMetaColumnSep);
+                                    if (!SystemUtil.expireCheck(metaColumns[1], ImdstDefine.invalidDataDeleteTime)) {
 
-                                    // 無効データは削除
-                                    this.removeKeyPair((String)key, "0");
-                                    removeTagetData++;
+                                        // 無効データは削除
+                                        this.removeKeyPair((String)key, "0");
+                                        removeTagetData++;
+                                    }
                                 }
                             }
-                        }
 
-                        logger.info("RemoveInvalidData - Count [" + removeTagetData + "]");
+                            logger.info("RemoveInvalidData - Count [" + removeTagetData + "]");
+                        } finally {
+                            this.poolKeyLock.unlock();
+                        }
                     }
                     logger.info("VacuumInvalidData - End - 1");
                     vacuumInvalidDataCount = 0;
@@ -747,7 +805,8 @@ public class KeyMapManager extends Thread {
             String tagUniqueKey = tagStartStr + uniqueKey;
 
             logger.info("truncateData - Start");
-            synchronized(this.poolKeyLock) {
+            this.poolKeyLock.lock();
+            try {
                 Set entrySet = this.keyMapObj.entrySet();
                 Iterator entryIte = entrySet.iterator(); 
 
@@ -775,6 +834,8 @@ public class KeyMapManager extends Thread {
                 }
                 logger.info("TruncateData - TotalTargetCount [" + counter + "]");
                 logger.info("TruncateData - TotalRemoveCount [" + truncateTagetData + "]");
+            } finally {
+                this.poolKeyLock.unlock();
             }
             logger.info("truncateData - End");
         } catch (BatchException be) {
@@ -801,7 +862,9 @@ public class KeyMapManager extends Thread {
             try {
                 //logger.debug("setKeyPair - synchronized - start");
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
 
                     if (this.moveAdjustmentDataMap != null) {
                         synchronized (this.moveAdjustmentSync) {
@@ -834,45 +897,7 @@ public class KeyMapManager extends Thread {
 
                     //long start2 = System.nanoTime();
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-
-                        synchronized(this.lockWorkFileSync) {
-
-                            if (this.workFileFlushTiming) {
-
-                                if (data.length() < 200) { 
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).
-                                                                    append("+").
-                                                                    append(KeyMapManager.workFileSeq).
-                                                                    append(key).
-                                                                    append(KeyMapManager.workFileSeq).
-                                                                    append(data).
-                                                                    append(KeyMapManager.workFileSeq).
-                                                                    append(JavaSystemApi.currentTimeMillis).
-                                                                    append(KeyMapManager.workFileSeq).
-                                                                    append(KeyMapManager.workFileEndPoint).
-                                                                    append("\n").toString());
-                                } else {
-                                    this.bw.write("+");
-                                    this.bw.write(KeyMapManager.workFileSeq);
-                                    this.bw.write(key);
-                                    this.bw.write(KeyMapManager.workFileSeq);
-                                    this.bw.write(data);
-                                    this.bw.write(KeyMapManager.workFileSeq);
-                                    this.bw.write(new Long(JavaSystemApi.currentTimeMillis).toString());
-                                    this.bw.write(KeyMapManager.workFileSeq);
-                                    this.bw.write(KeyMapManager.workFileEndPoint);
-                                    this.bw.write("\n");
-                                }
-                                SystemUtil.diskAccessSync(this.bw);
-
-                                // 現在の利用回数をチェック
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeSet, key, data);
                     //long end2 = System.nanoTime();
                     //if (((end2 - start2) + (end1 - start1)) > 1 * 1000 * 1000 * 100) {
                     //    System.out.println("1=" + (end1 - start1) + " 2=" + (end2 - start2));
@@ -880,14 +905,19 @@ public class KeyMapManager extends Thread {
                     // Diffモードでかつsync後は再度モードを確認後、addする
                     if (this.diffDataPoolingFlg) {
 
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
 
                             if (this.diffDataPoolingFlg) {
 
-                                this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
+                                this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -935,7 +965,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
 
                     //logger.debug("setKeyPairOnlyOnce - synchronized - start");
 
@@ -969,28 +1001,21 @@ public class KeyMapManager extends Thread {
                     ret = true;
 
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-                        synchronized(this.lockWorkFileSync) {
-                            if (this.workFileFlushTiming) {
-
-                                this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                SystemUtil.diskAccessSync(this.bw);
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeSet, key, data);
 
                     if (this.diffDataPoolingFlg) {
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
                             if (this.diffDataPoolingFlg) {
 
-                                this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
+                                this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -1023,7 +1048,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
 
                     //logger.debug("setKeyPairVersionCheck - synchronized - start");
 
@@ -1052,28 +1079,21 @@ public class KeyMapManager extends Thread {
                     ret = true;
 
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-                        synchronized(this.lockWorkFileSync) {
-                            if (this.workFileFlushTiming) {
-
-                                this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                SystemUtil.diskAccessSync(this.bw);
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeSet, key, data);
 
                     if (this.diffDataPoolingFlg) {
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
                             if (this.diffDataPoolingFlg) {
 
-                                this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
+                                this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -1107,6 +1127,30 @@ public class KeyMapManager extends Thread {
     }
 
 
+    /**
+     * キーを指定することでノードを返す.<br>
+     * 有効期限のIndexで削除対象(有効期限からImdstDefine.invalidDataDeleteTime経過)となっているデータは、<br>
+     * 定期的な削除を待たずにその場で削除してnullを返す.<br>
+     * 他のKeyのロックを保持した状態で呼び出してはならない.<br>
+     *
+     * @param key キー値
+     * @return String
+     */
+    public String getKeyPairRemoveExpired(String key) {
+        if (this.expiryIndex != null && !blocking) {
+            long expireTime = this.expiryIndex.getExpireTime(key);
+            if (expireTime != ExpiryIndex.noExpireTime && (expireTime + ImdstDefine.invalidDataDeleteTime) <= JavaSystemApi.currentTimeMillis) {
+                try {
+                    if (this.removeExpiredKeyPair(key)) return null;
+                } catch (BatchException be) {
+                    return null;
+                }
+            }
+        }
+        return this.getKeyPair(key);
+    }
+
+
     /**
      * List構造を作成する.<br>
      * 既に作成済みの場合は失敗となる<br>
@@ -1122,7 +1166,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                 
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
@@ -1160,25 +1206,16 @@ public class KeyMapManager extends Thread {
                         keyMapObjPut(keyList[i], data);
     
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-                                if (this.workFileFlushTiming) {
-    
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(keyList[i]).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-    
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(keyList[i]).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, keyList[i], data);
     
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + keyList[i] + KeyMapManager.workFileSeq +  data);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + keyList[i] + KeyMapManager.workFileSeq +  data);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                     }
@@ -1189,25 +1226,16 @@ public class KeyMapManager extends Thread {
                     keyMapObjPut(pointerKey, data);
 
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-                        synchronized(this.lockWorkFileSync) {
-                            if (this.workFileFlushTiming) {
-
-                                this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(pointerKey).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                SystemUtil.diskAccessSync(this.bw);
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(pointerKey).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeSet, pointerKey, data);
 
                     if (this.diffDataPoolingFlg) {
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
                             if (this.diffDataPoolingFlg) {
-                                this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + pointerKey + KeyMapManager.workFileSeq +  data);
+                                this.appendDiffData("+" + KeyMapManager.workFileSeq + pointerKey + KeyMapManager.workFileSeq +  data);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
 
@@ -1218,29 +1246,22 @@ public class KeyMapManager extends Thread {
                     keyMapObjPut(sizeKey, data);
 
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-                        synchronized(this.lockWorkFileSync) {
-                            if (this.workFileFlushTiming) {
-
-                                this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(sizeKey).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                SystemUtil.diskAccessSync(this.bw);
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(sizeKey).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeSet, sizeKey, data);
 
                     if (this.diffDataPoolingFlg) {
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
                             if (this.diffDataPoolingFlg) {
-                                this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + sizeKey + KeyMapManager.workFileSeq +  data);
+                                this.appendDiffData("+" + KeyMapManager.workFileSeq + sizeKey + KeyMapManager.workFileSeq +  data);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
 
                     ret = 0;
+                } finally {
+                    parallelLock.unlock();
                 }
                 // データの書き込みを指示
                 this.writeMapFileFlg = true;
@@ -1274,7 +1295,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
 
@@ -1425,30 +1448,23 @@ public class KeyMapManager extends Thread {
                         }
     
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-                                if (this.workFileFlushTiming) {
-    
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-    
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, saveData[0], saveData[1]);
     
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
     
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                     }
                     ret = 0;
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -1483,7 +1499,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
                     String key = listStructStartPrefix + listName;
@@ -1632,30 +1650,23 @@ public class KeyMapManager extends Thread {
                         }
     
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-                                if (this.workFileFlushTiming) {
-    
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-    
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, saveData[0], saveData[1]);
     
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
     
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                     }
                     ret = 0;
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -1762,7 +1773,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
                     String key = listStructStartPrefix + listName;
@@ -1855,23 +1868,16 @@ public class KeyMapManager extends Thread {
                         }
     
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-                                if (this.workFileFlushTiming) {
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, saveData[0], saveData[1]);
     
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                     }
@@ -1880,6 +1886,8 @@ public class KeyMapManager extends Thread {
                     this.removeKeyPair(nowStartDataKey, transactionCode);
                     this.removeKeyPair(nowStartDataRightPointerKey, transactionCode);
                     this.removeKeyPair(nowStartDataKey + "_L", transactionCode);
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -1913,7 +1921,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
                     String[] keyList = new String[3];
@@ -2008,23 +2018,16 @@ public class KeyMapManager extends Thread {
                         }
     
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-                                if (this.workFileFlushTiming) {
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(saveData[0]).append(KeyMapManager.workFileSeq).append(saveData[1]).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, saveData[0], saveData[1]);
     
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + saveData[0] + KeyMapManager.workFileSeq +  saveData[1]);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                     }
@@ -2033,6 +2036,8 @@ public class KeyMapManager extends Thread {
                     this.removeKeyPair(nowEndDataKey, transactionCode);
                     this.removeKeyPair(nowEndDataLeftPointerKey, transactionCode);
                     this.removeKeyPair(nowEndDataKey + "_R", transactionCode);
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -2065,7 +2070,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((listName.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     String pointerKey = listStructPointerPrefix + listName;
                     String sizeKey = listStructSizePrefix + listName;
 
@@ -2081,6 +2088,8 @@ public class KeyMapManager extends Thread {
                     if (nowSizeRet == null) throw new BatchException("List size not found error");
                     String[] nowSizeRetSplit = nowSizeRet.split(ImdstDefine.setTimeParamSep); 
                     ret = nowSizeRetSplit[0];
+                } finally {
+                    parallelLock.unlock();
                 }
             } catch (BatchException be) {
                 throw be;
@@ -2104,7 +2113,9 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
 
                     ret =  (String)keyMapObjGet(key);
 
@@ -2124,28 +2135,20 @@ public class KeyMapManager extends Thread {
 
 
                     // データ操作履歴ファイルに追記
-                    if (this.workFileMemory == false) {
-                        synchronized(this.lockWorkFileSync) {
-                            // データ操作履歴ファイル再保存(登録と合わせるために4つに分割できるようにする)
-                            if (this.workFileFlushTiming) {
-
-                                this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("-").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                SystemUtil.diskAccessSync(this.bw);
-                                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                            } else {
-
-                                this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("-").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            }
-                        }
-                    }
+                    this.writeTransactionLog(TransactionLogFormat.typeRemove, key, null);
                     if (this.diffDataPoolingFlg) {
-                        synchronized (diffSync) {
+                        this.diffSync.lock();
+                        try {
                             if (this.diffDataPoolingFlg) {
 
-                                this.diffDataPoolingListForFileBase.add("-" + KeyMapManager.workFileSeq + key);
+                                this.appendDiffData("-" + KeyMapManager.workFileSeq + key);
                             }
+                        } finally {
+                            this.diffSync.unlock();
                         }
                     }
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 // データの書き込みを指示
@@ -2186,7 +2189,9 @@ public class KeyMapManager extends Thread {
                 dataPutCounter = counter;
 
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.tagSetParallelSyncObjs[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize]) {
+                ReentrantLock tagSetLock = this.tagSetParallelLocks[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize];
+                tagSetLock.lock();
+                try {
 
                     while (true) {
 
@@ -2294,6 +2299,8 @@ public class KeyMapManager extends Thread {
                             }
                         }
                     }
+                } finally {
+                    tagSetLock.unlock();
                 }
             } catch (BatchException be) {
                 logger.error("setTagPair - InnerError", be);
@@ -2330,7 +2337,9 @@ public class KeyMapManager extends Thread {
 
 
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.tagSetParallelSyncObjs[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize]) {
+                ReentrantLock tagSetLock = this.tagSetParallelLocks[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize];
+                tagSetLock.lock();
+                try {
 
                     while (true) {
 
@@ -2390,6 +2399,8 @@ public class KeyMapManager extends Thread {
 
                         counter++;
                     }
+                } finally {
+                    tagSetLock.unlock();
                 }
             /*} catch (BatchException be) {
                 logger.error("removeTargetTagInKey - InnerError", be);
@@ -2669,7 +2680,9 @@ public class KeyMapManager extends Thread {
 
                 // Tagを消し込む
                 // 返却値として関係するKey値群を返す
-                synchronized(this.tagSetParallelSyncObjs[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize]) {
+                ReentrantLock tagSetLock = this.tagSetParallelLocks[((tag.hashCode() << 1) >>> 1) % KeyMapManager.tagSetParallelSize];
+                tagSetLock.lock();
+                try {
                     for (int idx = 0; idx < ImdstDefine.tagRegisterParallelBucket; idx=idx+ImdstDefine.tagBucketMaxLink) {
                         keyStrs = "";
                         setTimeSplitWork = null;
@@ -2729,6 +2742,8 @@ public class KeyMapManager extends Thread {
                             counterSep = KeyMapManager.tagKeySep;
                         }
                     }
+                } finally {
+                    tagSetLock.unlock();
                 }
             }
             
@@ -2763,7 +2778,9 @@ public class KeyMapManager extends Thread {
 
                 //logger.debug("calcValue - synchronized - start");
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     boolean containsKeyRet = containsKeyPair(key);
                     // 初期化指定がされていて現在値が存在しない場合は0で初期化をまず行う
 
@@ -2825,28 +2842,18 @@ public class KeyMapManager extends Thread {
                         keyMapObjPut(key, data);
 
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-
-                                if (this.workFileFlushTiming) {
-
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, key, data);
                         
                         // Diffモードでかつsync後は再度モードを確認後、addする
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
     
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
                         // データの書き込みを指示
@@ -2854,6 +2861,8 @@ public class KeyMapManager extends Thread {
                         ret = ((String[])data.split(ImdstDefine.setTimeParamSep))[0];
                     }
                     
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 //logger.debug("setKeyPair - synchronized - end");
@@ -2892,7 +2901,9 @@ public class KeyMapManager extends Thread {
 
                 //logger.debug("appendValue - synchronized - start");
                 // このsynchroの方法は正しくないきがするが。。。
-                synchronized(this.parallelSyncObjs[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize]) {
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
                     boolean containsKeyRet = containsKeyPair(key);
                     if (containsKeyRet) {
 
@@ -2947,28 +2958,18 @@ public class KeyMapManager extends Thread {
                         keyMapObjPut(key, data);
 
                         // データ操作履歴ファイルに追記
-                        if (this.workFileMemory == false) {
-                            synchronized(this.lockWorkFileSync) {
-
-                                if (this.workFileFlushTiming) {
-
-                                    this.bw.write(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    SystemUtil.diskAccessSync(this.bw);
-                                    this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                } else {
-
-                                    this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder(ImdstDefine.stringBufferSmall_2Size).append("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(data).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                }
-                            }
-                        }
+                        this.writeTransactionLog(TransactionLogFormat.typeSet, key, data);
                         
                         // Diffモードでかつsync後は再度モードを確認後、addする
                         if (this.diffDataPoolingFlg) {
-                            synchronized (diffSync) {
+                            this.diffSync.lock();
+                            try {
                                 if (this.diffDataPoolingFlg) {
     
-                                    this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
+                                    this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  data);
                                 }
+                            } finally {
+                                this.diffSync.unlock();
                             }
                         }
 
@@ -2976,6 +2977,8 @@ public class KeyMapManager extends Thread {
                         this.writeMapFileFlg = true;
                         ret = 0;
                     }
+                } finally {
+                    parallelLock.unlock();
                 }
 
                 //logger.debug("appendValue - synchronized - end");
@@ -3033,7 +3036,8 @@ public class KeyMapManager extends Thread {
         if (!blocking) {
             try {
                 String saveTransactionStr =  null;
-                synchronized(this.lockKeyLock) {
+                this.lockKeyLock.lock();
+                try {
 
                     if (this.containsKeyPair(key)) return null;
                     if (lockingTime == 0) {
@@ -3042,30 +3046,22 @@ public class KeyMapManager extends Thread {
                         saveTransactionStr = transactionCode + this.lockKeyTimeSep + new Long(JavaSystemApi.currentTimeMillis + (lockingTime * 1000)).toString();
                     }
                     keyMapObjPut(key, saveTransactionStr);
+                } finally {
+                    this.lockKeyLock.unlock();
                 }
                 this.writeMapFileFlg = true;
 
-                if (workFileMemory == false) {
-                    synchronized(this.lockWorkFileSync) {
-                        // データ格納場所記述ファイル再保存
-                        if (this.workFileFlushTiming) {
-
-                            this.bw.write(new StringBuilder("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(saveTransactionStr).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            SystemUtil.diskAccessSync(this.bw);
-                            this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                        } else {
-
-                            this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder("+").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(saveTransactionStr).append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                        }
-                    }
-                }
+                this.writeTransactionLog(TransactionLogFormat.typeSet, key, saveTransactionStr);
 
                 if (this.diffDataPoolingFlg) {
-                    synchronized (diffSync) {
+                    this.diffSync.lock();
+                    try {
                         if (this.diffDataPoolingFlg) {
 
-                            this.diffDataPoolingListForFileBase.add("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  saveTransactionStr);
+                            this.appendDiffData("+" + KeyMapManager.workFileSeq + key + KeyMapManager.workFileSeq +  saveTransactionStr);
                         }
+                    } finally {
+                        this.diffSync.unlock();
                     }
                 }
 
@@ -3094,39 +3090,32 @@ public class KeyMapManager extends Thread {
         String ret = null;
         if (!blocking) {
             try {
-                synchronized(this.lockKeyLock) {
+                this.lockKeyLock.lock();
+                try {
                     if (!this.containsKeyPair(key)) return transactionCode;
                     if (!(((String[])((String)this.keyMapObjGet(key)).split(this.lockKeyTimeSep))[0]).equals(transactionCode)) return null;
                     ret = ((String[])((String)this.keyMapObj.remove(key)).split(this.lockKeyTimeSep))[0];
                     this.keyMapObj.setKLastDataChangeTime(JavaSystemApi.currentTimeMillis);
 
                     this.lastAccess = JavaSystemApi.currentTimeMillis;
+                } finally {
+                    this.lockKeyLock.unlock();
                 }
 
                 // データの書き込みを指示
                 this.writeMapFileFlg = true;
 
-                if (workFileMemory == false) {
-                    synchronized(this.lockWorkFileSync) {
-                        // データ格納場所記述ファイル再保存(登録と合わせるために4つに分割できるようにする)
-                        if (this.workFileFlushTiming) {
-
-                            this.bw.write(new StringBuilder("-").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                            SystemUtil.diskAccessSync(this.bw);
-                            this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                        } else {
-
-                            this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder("-").append(KeyMapManager.workFileSeq).append(key).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                        }
-                    }
-                }
+                this.writeTransactionLog(TransactionLogFormat.typeRemove, key, null);
 
                 if (this.diffDataPoolingFlg) {
-                    synchronized (diffSync) {
+                    this.diffSync.lock();
+                    try {
                         if (this.diffDataPoolingFlg) {
 
-                            this.diffDataPoolingListForFileBase.add("-" + KeyMapManager.workFileSeq + key);
+                            this.appendDiffData("-" + KeyMapManager.workFileSeq + key);
                         }
+                    } finally {
+                        this.diffSync.unlock();
                     }
                 }
 
@@ -3160,13 +3149,16 @@ public class KeyMapManager extends Thread {
      * @return String TransactionCode
      */
     public String getLockedTransactionCode (String key) {
-        synchronized(this.lockKeyLock) {
+        this.lockKeyLock.lock();
+        try {
             try {
                 if (!this.containsKeyPair(key)) return null;
                 return ((String[])((String)this.keyMapObjGet(key)).split(this.lockKeyTimeSep))[0];
             } catch (Exception e) {
                 return null;
             }
+        } finally {
+            this.lockKeyLock.unlock();
         }
     }
 
@@ -3178,8 +3170,10 @@ public class KeyMapManager extends Thread {
      * @param time 現在ミリ秒
      */
     public void autoLockRelease(long time) throws BatchException {
-        synchronized(this.setKeyLock) {
-            synchronized(this.lockKeyLock) {
+        this.setKeyLock.lock();
+        try {
+            this.lockKeyLock.lock();
+            try {
                 try {
                     Object key = null;
 
@@ -3201,27 +3195,17 @@ public class KeyMapManager extends Thread {
                             // データの書き込みを指示
                             this.writeMapFileFlg = true;
 
-                            if (workFileMemory == false) {
-                                synchronized(this.lockWorkFileSync) {
-                                    // データ格納場所記述ファイル再保存(登録と合わせるために4つに分割できるようにする)
-                                    if (this.workFileFlushTiming) {
-
-                                        this.bw.write(new StringBuilder("-").append(KeyMapManager.workFileSeq).append(keyList[idx]).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                        SystemUtil.diskAccessSync(this.bw);
-                                        this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
-                                    } else {
-
-                                        this.dataTransactionFileFlushDaemon.addDataTransaction(new StringBuilder("-").append(KeyMapManager.workFileSeq).append(keyList[idx]).append(KeyMapManager.workFileSeq).append(" ").append(KeyMapManager.workFileSeq).append(JavaSystemApi.currentTimeMillis).append(KeyMapManager.workFileSeq).append(KeyMapManager.workFileEndPoint).append("\n").toString());
-                                    }
-                                }
-                            }
+                            this.writeTransactionLog(TransactionLogFormat.typeRemove, keyList[idx], null);
 
                             if (this.diffDataPoolingFlg) {
-                                synchronized (diffSync) {
+                                this.diffSync.lock();
+                                try {
                                     if (this.diffDataPoolingFlg) {
 
-                                        this.diffDataPoolingListForFileBase.add("-" + KeyMapManager.workFileSeq + keyList[idx]);
+                                        this.appendDiffData("-" + KeyMapManager.workFileSeq + keyList[idx]);
                                     }
+                                } finally {
+                                    this.diffSync.unlock();
                                 }
                             }
                         }
@@ -3233,7 +3217,11 @@ public class KeyMapManager extends Thread {
                     throw new BatchException(e);
                 }
 
+            } finally {
+                this.lockKeyLock.unlock();
             }
+        } finally {
+            this.setKeyLock.unlock();
         }
     }
 
@@ -3248,6 +3236,7 @@ public class KeyMapManager extends Thread {
                 if (key != null && val != null) {
                     this.keyMapObj.put(key, val);
                     this.keyMapObj.setKLastDataChangeTime(JavaSystemApi.currentTimeMillis);
+                    if (this.expiryIndex != null) this.expiryIndex.register(key, ExpiryIndex.parseExpireTime(val));
                 }
             }
             this.lastAccess = JavaSystemApi.currentTimeMillis;
@@ -3268,26 +3257,12 @@ public class KeyMapManager extends Thread {
         if (val.length() < putValueMaxSize) {
             if (key != null && val != null) {
                 this.keyMapObj.put(key, val);
+                if (this.expiryIndex != null) this.expiryIndex.register(key, ExpiryIndex.parseExpireTime(val));
             }
         }
         this.lastAccess = JavaSystemApi.currentTimeMillis;
     }
-
-    /**
-     * keyMapObjに対するアクセスメソッド.<br>
-     * 任意の更新時間をセットする.<br>
-     * 登録のValueのサイズが最大サイズを超えている場合は無条件で登録しない.<br>
-     */
-    private void keyMapObjPutSetTime(String key, String val, long execTime) {
-        if (val.length() < putValueMaxSize) {
-            if (key != null && val != null) {
-                this.keyMapObj.put(key, val);
-                this.keyMapObj.setKLastDataChangeTime(execTime);
-            }
-        }
-        this.lastAccess = JavaSystemApi.currentTimeMillis;
-    }
-
+
 
     /**
      * keyMapObjに対するアクセスメソッド.<br>
@@ -3337,6 +3312,7 @@ public class KeyMapManager extends Thread {
                 this.keyMapObj.remove(key);
                 this.keyMapObj.setKLastDataChangeTime(JavaSystemApi.currentTimeMillis);
                 this.lastAccess = JavaSystemApi.currentTimeMillis;
+                if (this.expiryIndex != null) this.expiryIndex.unregister(key);
             }
         } catch (Exception e) {
             throw new BatchException(e);
@@ -3351,76 +3327,90 @@ public class KeyMapManager extends Thread {
         if (key != null) {
             this.keyMapObj.remove(key);
             this.lastAccess = JavaSystemApi.currentTimeMillis;
+            if (this.expiryIndex != null) this.expiryIndex.unregister(key);
         }
     }
 
 
-    /**
-     * keyMapObjに対するアクセスメソッド.<br>
-     *  任意の更新時間をセットする.<br>
-     */
-    private void keyMapObjRemoveSetTime(String key, long execTime) {
-        if (key != null) {
-            this.keyMapObj.remove(key);
-            this.keyMapObj.setKLastDataChangeTime(execTime);
-            this.lastAccess = JavaSystemApi.currentTimeMillis;
-        }
-    }
-
 
     public void diffDataMode(boolean flg, PrintWriter pw) {
-        synchronized (diffSync) {
-
-            if (flg) {
-                this.myDiffModeOperationStatus = 2;
-                this.diffDataPoolingListForFileBase = new FileBaseDataList(this.nodeKeyMapFilePath + ".difftmplist");
-            } else {
+        this.diffSync.lock();
+        try {
 
-                if (this.diffDataPoolingListForFileBase != null) {
-                    this.diffDataPoolingListForFileBase.clear();
-                    this.diffDataPoolingListForFileBase = null;
-                }
-                this.myDiffModeOperationStatus = 1;
-            }
-            this.diffDataPoolingFlg = flg;
+            this.diffDataMode(flg);
             try {
                 pw.println("1");
                 pw.flush();
             } catch (Exception e) {
             }
+        } finally {
+            this.diffSync.unlock();
         }
     }
 
 
     public void diffDataMode(boolean flg) {
-        synchronized (diffSync) {
+        this.diffSync.lock();
+        try {
 
             if (flg) {
                 this.myDiffModeOperationStatus = 2;
-                this.diffDataPoolingListForFileBase = new FileBaseDataList(this.nodeKeyMapFilePath + ".difftmplist");
+                if (this.diffChangeLog != null) this.diffChangeLog.close();
+                this.diffChangeLog = new DiffChangeLog(this.nodeKeyMapFilePath + ".difflog");
+                this.diffDataModeAccessTime = JavaSystemApi.currentTimeMillis;
             } else {
 
-                if (this.diffDataPoolingListForFileBase != null) {
-                    this.diffDataPoolingListForFileBase.clear();
-                    this.diffDataPoolingListForFileBase = null;
+                if (this.diffChangeLog != null) {
+                    this.diffChangeLog.close();
+                    this.diffChangeLog = null;
                 }
                 this.myDiffModeOperationStatus = 1;
             }
             this.diffDataPoolingFlg = flg;
+        } finally {
+            this.diffSync.unlock();
+        }
+    }
+
+
+    /**
+     * 差分データを記録する.<br>
+     * diffSyncを取得した状態で呼び出す.<br>
+     * 記録に失敗した場合、記録したサイズがImdstDefine.diffDataModeMaxSizeを超えた場合、<br>
+     * リカバリーのデータ転送が行われない状態がImdstDefine.diffDataModeTimeoutを超えて続いた場合は差分モードをOffにする.<br>
+     * Off後の差分データの転送(処理番号24)はエラーとなるため、リカバリーは最初からやり直しとなる.<br>
+     *
+     * @param record
+     */
+    private void appendDiffData(String record) {
+        DiffChangeLog changeLog = this.diffChangeLog;
+
+        if (changeLog.append(record) == -1L) {
+            logger.error("appendDiffData - Diff data append error. Diff data mode off");
+            this.diffDataModeOff();
+        } else if (changeLog.getDataSize() > (ImdstDefine.diffDataModeMaxSize * 1024L * 1024L)) {
+            logger.error("appendDiffData - Diff data size over [" + changeLog.getDataSize() + "]. Diff data mode off");
+            this.diffDataModeOff();
+        } else if (this.myOperationStatus != 3 && (JavaSystemApi.currentTimeMillis - this.diffDataModeAccessTime) > ImdstDefine.diffDataModeTimeout) {
+            logger.error("appendDiffData - Recover data transfer timeout. Diff data mode off");
+            this.diffDataModeOff();
         }
     }
 
 
     // 強制的に差分モードをOffにする
     public void diffDataModeOff() {
-        synchronized (diffSync) {
-            if (this.diffDataPoolingListForFileBase != null) {
-                this.diffDataPoolingListForFileBase.clear();
-                this.diffDataPoolingListForFileBase = null;
+        this.diffSync.lock();
+        try {
+            if (this.diffChangeLog != null) {
+                this.diffChangeLog.close();
+                this.diffChangeLog = null;
             }
             this.myDiffModeOperationStatus = 1;
 
             this.diffDataPoolingFlg = false;
+        } finally {
+            this.diffSync.unlock();
         }
     }
 
@@ -3428,188 +3418,158 @@ public class KeyMapManager extends Thread {
     // 引数で渡されてストリームに対し全Keyを書き出す
     public void outputKeyData2Stream(PrintWriter pw) throws BatchException {
         if (!blocking) {
+            this.beginSnapshotOutput();
             try {
 
-                synchronized(poolKeyLock) {
-
-                    Set entrySet = this.keyMapObj.entrySet();
-
-                    Iterator entryIte = entrySet.iterator(); 
+                Set entrySet = this.keyMapObj.entrySet();
 
-                    long counter = 0;
-                    int sendCounter = 0;
+                Iterator entryIte = entrySet.iterator(); 
 
-                    while(entryIte.hasNext()) {
-                        Map.Entry obj = (Map.Entry)entryIte.next();
-                        if (obj == null) continue;
-                        String key = null;
-                        key = (String)obj.getKey();
-                        try {
-                            String decodeKey = new String(BASE64DecoderStream.decode(key.getBytes()));
-                            if (decodeKey.indexOf("{imdst_") != 0) { // TagとListは除外
-                                pw.println(key);
-                                pw.flush();
-                            }
-                        } catch(Exception ee){}
-                    }
+                long counter = 0;
+                int sendCounter = 0;
 
-                    pw.println("-1");
-                    pw.flush();
+                while(entryIte.hasNext()) {
+                    Map.Entry obj = (Map.Entry)entryIte.next();
+                    if (obj == null) continue;
+                    String key = null;
+                    key = (String)obj.getKey();
+                    try {
+                        String decodeKey = new String(BASE64DecoderStream.decode(key.getBytes()));
+                        if (decodeKey.indexOf("{imdst_") != 0) { // TagとListは除外
+                            pw.println(key);
+                            pw.flush();
+                        }
+                    } catch(Exception ee){}
                 }
 
+                pw.println("-1");
+                pw.flush();
+
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                this.endSnapshotOutput();
             }
         }
     }
     // 引数で渡されてストリームに対しkeyMapObjを書き出す
     public void outputKeyMapObj2Stream(PrintWriter pw) throws BatchException {
         if (!blocking) {
+            // 差分取得モード(MasterNodeが転送前に開始する)で記録される更新と合わせて整合性を保つため、Mapはロックせずに走査する
+            // 走査中の更新は差分データとして後から送られ、転送先は差分の反映時点の状態となる
+            this.beginSnapshotOutput();
             try {
+                this.myOperationStatus = 3;
+                logger.info("outputKeyMapObj2Stream - start");
+                String allDataSep = "";
+                StringBuilder allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
 
-                synchronized(poolKeyLock) {
-                    this.myOperationStatus = 3;
-                    logger.info("outputKeyMapObj2Stream - synchronized - start");
-                    String allDataSep = "";
-                    StringBuilder allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-
-                    // keyMapObjの全内容を1行文字列として書き出し
-                    Set entrySet = this.keyMapObj.entrySet();
+                // keyMapObjの全内容を1行文字列として書き出し
+                Set entrySet = this.keyMapObj.entrySet();
 
-                    int printLineCount = 0;
-                    // 一度に送信するデータ量を算出。空きメモリの30%を使用する
-                    int maxLineCount = new Double((JavaSystemApi.getRuntimeFreeMem("") * 0.3) / (ImdstDefine.saveDataMaxSize / 50)).intValue();
-                    // 最大でも10万件以上を一度に送信はしない
-                    if (maxLineCount > 100000) maxLineCount = 100000;
+                int printLineCount = 0;
+                // 一度に送信するデータ量を算出。空きメモリの30%を使用する
+                int maxLineCount = new Double((JavaSystemApi.getRuntimeFreeMem("") * 0.3) / (ImdstDefine.saveDataMaxSize / 50)).intValue();
+                // 最大でも10万件以上を一度に送信はしない
+                if (maxLineCount > 100000) maxLineCount = 100000;
 
-                    if (ImdstDefine.lowSpecDataNode) {
-                        if (maxLineCount > ImdstDefine.lowSpecDataNodeSendDataCount) maxLineCount = ImdstDefine.lowSpecDataNodeSendDataCount;
-                    }
+                if (ImdstDefine.lowSpecDataNode) {
+                    if (maxLineCount > ImdstDefine.lowSpecDataNodeSendDataCount) maxLineCount = ImdstDefine.lowSpecDataNodeSendDataCount;
+                }
 
-                    if (entrySet.size() > 0) {
-                        if(maxLineCount == 0) maxLineCount = 1;
-                        printLineCount = new Double(entrySet.size() / maxLineCount).intValue();
-                        if (entrySet.size() % maxLineCount > 0) {
-                            printLineCount = printLineCount + 1;
-                        }
+                if (entrySet.size() > 0) {
+                    if(maxLineCount == 0) maxLineCount = 1;
+                    printLineCount = new Double(entrySet.size() / maxLineCount).intValue();
+                    if (entrySet.size() % maxLineCount > 0) {
+                        printLineCount = printLineCount + 1;
                     }
+                }
 
-                    // 送信データ行数を送信
-                    pw.println(printLineCount);
-                    pw.flush();
-
-                    Iterator entryIte = entrySet.iterator(); 
+                // 送信データ行数を送信
+                pw.println(printLineCount);
+                pw.flush();
 
-                    long counter = 0;
-                    int sendCounter = 0;
-                    if (this.keyMapObj.memoryMode) {
-                        while(entryIte.hasNext()) {
+                Iterator entryIte = entrySet.iterator(); 
 
-                            if (this.outputDataStopSignal == true) {
-                                logger.info("outputKeyMapObj2Stream - Stop Signal");
-                                break;
-                            }
-                            if ((counter % 1000) == 0) logger.info("outputKeyMapObj2Stream - output count[" + counter + "]");
+                long counter = 0;
+                int sendCounter = 0;
+                if (this.keyMapObj.memoryMode) {
+                    while(entryIte.hasNext()) {
 
-                            Map.Entry obj = (Map.Entry)entryIte.next();
-                            if (obj == null) continue;
-                            String key = null;
+                        if (this.outputDataStopSignal == true) {
+                            logger.info("outputKeyMapObj2Stream - Stop Signal");
+                            break;
+                        }
+                        if ((counter % 1000) == 0) logger.info("outputKeyMapObj2Stream - output count[" + counter + "]");
 
-                            key = (String)obj.getKey();
+                        Map.Entry obj = (Map.Entry)entryIte.next();
+                        if (obj == null) continue;
+                        String key = null;
 
+                        key = (String)obj.getKey();
 
-                            // 全てのデータを送る
-                            allDataBuf.append(allDataSep);
-                            allDataBuf.append(key);
+                        // 走査中に削除されたデータは送らない(削除は差分データで送られる)
+                        String data = this.keyMapObjGet(key);
+                        if (data == null) continue;
 
-                            allDataBuf.append(KeyMapManager.workFileSeq);
-                            allDataBuf.append(this.keyMapObjGet(key));
-                            allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
+                        // 全てのデータを送る
+                        allDataBuf.append(allDataSep);
+                        allDataBuf.append(key);
 
-                            counter++;
-                            if (counter > (maxLineCount - 1)) {
-                                sendCounter++;
-                                pw.println(allDataBuf.toString());
-                                pw.flush();
-                                allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-                                if (ImdstDefine.lowSpecDataNode) Thread.sleep(50);
-                                counter = 0;
-                                if ((sendCounter % 10) == 0) Thread.sleep(3000);
-                            }
-                        }
+                        allDataBuf.append(KeyMapManager.workFileSeq);
+                        allDataBuf.append(data);
+                        allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
 
-                        String lastSendStr = allDataBuf.toString();
-                        if (!lastSendStr.equals("")) {
-                            pw.println(lastSendStr);
+                        counter++;
+                        if (counter > (maxLineCount - 1)) {
+                            sendCounter++;
+                            pw.println(allDataBuf.toString());
                             pw.flush();
+                            allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
+                            if (ImdstDefine.lowSpecDataNode) Thread.sleep(50);
+                            counter = 0;
+                            if (ImdstDefine.lowSpecDataNode && (sendCounter % 10) == 0) Thread.sleep(3000);
                         }
-                        allDataBuf = null;
+                    }
 
-                        pw.println("-1");
+                    String lastSendStr = allDataBuf.toString();
+                    if (!lastSendStr.equals("")) {
+                        pw.println(lastSendStr);
                         pw.flush();
-                    } else {
-                        // Key-Valueどちらかがメモリではない
-                        List keyList = new ArrayList();
-                        Map pointToKeyMap = new HashMap();
-                        while(entryIte.hasNext()) {
-
-                            if (this.outputDataStopSignal == true) {
-                                logger.info("outputKeyMapObj2Stream - Stop Signal");
-                                break;
-                            }
-                            if ((counter % 1000) == 0) logger.info("outputKeyMapObj2Stream - output count[" + counter + "]");
+                    }
+                    allDataBuf = null;
 
-                            Map.Entry obj = (Map.Entry)entryIte.next();
-                            if (obj == null) continue;
-                            String key = null;
+                    pw.println("-1");
+                    pw.flush();
+                } else {
+                    // Key-Valueどちらかがメモリではない
+                    List keyList = new ArrayList();
+                    Map pointToKeyMap = new HashMap();
+                    while(entryIte.hasNext()) {
 
-                            
-                            key = (String)obj.getKey();
-                            long point = this.keyMapObjDataPointGet(key);
-                            if (point != -1) {
-                                pointToKeyMap.put(new Long(point), key);
-                                keyList.add(point);
-                            }
-                            counter++;
-                            if (counter > (maxLineCount - 1)) {
+                        if (this.outputDataStopSignal == true) {
+                            logger.info("outputKeyMapObj2Stream - Stop Signal");
+                            break;
+                        }
+                        if ((counter % 1000) == 0) logger.info("outputKeyMapObj2Stream - output count[" + counter + "]");
 
-                                int keyListSize = keyList.size();
-                                long[] keyListInt = new long[keyListSize];
-                                for (int idx = 0; idx < keyListSize; idx++) {
-                                    keyListInt[idx] = ((Long)keyList.get(idx)).longValue();
-                                }
-                                Arrays.sort(keyListInt);
-                                keyList = null;
-                                keyList = new ArrayList();
-                                for (int idx = 0; idx < keyListInt.length; idx++) {
+                        Map.Entry obj = (Map.Entry)entryIte.next();
+                        if (obj == null) continue;
+                        String key = null;
 
-                                    // 全てのデータを送る
-                                    String sendKey = (String)pointToKeyMap.get(new Long(keyListInt[idx]));
-                                    allDataBuf.append(allDataSep);
-                                    allDataBuf.append(sendKey);
-                                    
-                                    allDataBuf.append(KeyMapManager.workFileSeq);
-                                    allDataBuf.append(this.keyMapObjGet(sendKey));
-                                    allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
-                                }
-                            
-                                sendCounter++;
-                                pw.println(allDataBuf.toString());
-                                pw.flush();
-                                if (ImdstDefine.lowSpecDataNode) Thread.sleep(50);
-                                allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-                                counter = 0;
-                                if ((sendCounter % 10) == 0) Thread.sleep(3000);
-
-                                pointToKeyMap = new HashMap();
-                            }
+                        
+                        key = (String)obj.getKey();
+                        long point = this.keyMapObjDataPointGet(key);
+                        if (point != -1) {
+                            pointToKeyMap.put(new Long(point), key);
+                            keyList.add(point);
                         }
-
-                        if (keyList.size() > 0) {
+                        counter++;
+                        if (counter > (maxLineCount - 1)) {
 
                             int keyListSize = keyList.size();
                             long[] keyListInt = new long[keyListSize];
-                            for (int idx = 0; idx < keyListInt.length; idx++) {
+                            for (int idx = 0; idx < keyListSize; idx++) {
                                 keyListInt[idx] = ((Long)keyList.get(idx)).longValue();
                             }
                             Arrays.sort(keyListInt);
@@ -3619,31 +3579,72 @@ public class KeyMapManager extends Thread {
 
                                 // 全てのデータを送る
                                 String sendKey = (String)pointToKeyMap.get(new Long(keyListInt[idx]));
+                                String sendData = this.keyMapObjGet(sendKey);
+                                if (sendData == null) continue;
+
                                 allDataBuf.append(allDataSep);
                                 allDataBuf.append(sendKey);
                                 
                                 allDataBuf.append(KeyMapManager.workFileSeq);
-                                allDataBuf.append(this.keyMapObjGet(sendKey));
-                                allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep ;
-                            }
-                            String lastSendStr = allDataBuf.toString();
-                            if (!lastSendStr.equals("")) {
-                                pw.println(lastSendStr);
-                                pw.flush();
+                                allDataBuf.append(sendData);
+                                allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
                             }
+                        
+                            sendCounter++;
+                            pw.println(allDataBuf.toString());
+                            pw.flush();
+                            if (ImdstDefine.lowSpecDataNode) Thread.sleep(50);
+                            allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
+                            counter = 0;
+                            if (ImdstDefine.lowSpecDataNode && (sendCounter % 10) == 0) Thread.sleep(3000);
+
+                            pointToKeyMap = new HashMap();
                         }
-                        allDataBuf = null;
+                    }
 
-                        pw.println("-1");
-                        pw.flush();
+                    if (keyList.size() > 0) {
+
+                        int keyListSize = keyList.size();
+                        long[] keyListInt = new long[keyListSize];
+                        for (int idx = 0; idx < keyListInt.length; idx++) {
+                            keyListInt[idx] = ((Long)keyList.get(idx)).longValue();
+                        }
+                        Arrays.sort(keyListInt);
+                        keyList = null;
+                        keyList = new ArrayList();
+                        for (int idx = 0; idx < keyListInt.length; idx++) {
+
+                            // 全てのデータを送る
+                            String sendKey = (String)pointToKeyMap.get(new Long(keyListInt[idx]));
+                            String sendData = this.keyMapObjGet(sendKey);
+                            if (sendData == null) continue;
+
+                            allDataBuf.append(allDataSep);
+                            allDataBuf.append(sendKey);
+                            
+                            allDataBuf.append(KeyMapManager.workFileSeq);
+                            allDataBuf.append(sendData);
+                            allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep ;
+                        }
+                        String lastSendStr = allDataBuf.toString();
+                        if (!lastSendStr.equals("")) {
+                            pw.println(lastSendStr);
+                            pw.flush();
+                        }
                     }
+                    allDataBuf = null;
+
+                    pw.println("-1");
+                    pw.flush();
                 }
 
             } catch (Exception e) {
                 e.printStackTrace();
                 logger.error("outputKeyMapObj2Stream - Error =[" + e.getMessage() + "]");
             } finally {
+                this.diffDataModeAccessTime = JavaSystemApi.currentTimeMillis;
                 this.myOperationStatus = 1;
+                this.endSnapshotOutput();
             }
         }
     }
@@ -3652,93 +3653,55 @@ public class KeyMapManager extends Thread {
     // 引数で渡されてストリームに対し復旧中の差分データを書き出す
     // 
     public void outputDiffKeyMapObj2Stream(PrintWriter pw, BufferedReader br) throws BatchException {
-        if (!blocking) {
-            try {
-
-                synchronized(poolKeyLock) {
-                    String nextWrite = null;
-                    this.myOperationStatus = 3;
-                    logger.info("outputDiffKeyMapObj2Stream - synchronized - start");
-                    String allDataSep = "";
-                    StringBuilder allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-
-                    // 差分データの全内容を1行文字列として書き出し
-                    int i = 0;
-                    ((FileBaseDataList)this.diffDataPoolingListForFileBase).waitTime = 300;
-                    for (; i < this.diffDataPoolingListForFileBase.size() - 10; i++) {
+        this.outputDiffKeyMapObj2Stream(pw, br, 0L, false);
+    }
 
-                        allDataBuf.append(allDataSep);
-                        allDataBuf.append(this.diffDataPoolingListForFileBase.get(i));
-                        allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
 
-                        if (i > 0 && (i % 30) == 0) {
-                            logger.info("outputDiffKeyMapObj2Stream - Diff Data Normal Send Count[" + i + "]");
-                            pw.println(allDataBuf.toString());
-                            pw.flush();
-                            allDataBuf = null;
-                            allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-                            allDataSep = "";
+    /**
+     * 引数で渡されてストリームに対し復旧中の差分データを指定の連番から書き出す.<br>
+     * 最新の10件手前までは更新を止めずに書き出し、残りは更新を止めて書き出す.<br>
+     * 各行は"行の最後の差分データの連番,差分データ"の形式で書き出すため、受信側は取り込み済みの連番を把握できる.<br>
+     * 書き出し中にエラーとなった場合も差分データは保持されるため、受信側が取り込み済みの次の連番を指定して再開できる.<br>
+     * 差分データを書き出せない場合(差分モードOff後など)は"-2"を書き出す.<br>
+     * 差分データの破棄は差分モードのOFF(処理番号23)で行う.<br>
+     *
+     * @param pw
+     * @param br
+     * @param fromSeq 書き出しを開始する差分データの連番(0の場合は最初から)
+     * @throw BatchException
+     */
+    public void outputDiffKeyMapObj2Stream(PrintWriter pw, BufferedReader br, long fromSeq) throws BatchException {
+        this.outputDiffKeyMapObj2Stream(pw, br, fromSeq, true);
+    }
 
-                            // 送信後結果を待つ
-                            nextWrite = br.readLine();
-                            if (nextWrite == null || (!nextWrite.equals("-1") && !nextWrite.equals("2"))) throw new Exception("NextWriteMessage= [" + nextWrite + "]");
-                            nextWrite = null;
-                        }
-                    }
 
-                    String lastSendData = allDataBuf.toString();
-                    if (!lastSendData.equals("")) {
-                        logger.info("outputDiffKeyMapObj2Stream - Diff Data Normal Send2 Count[" + i + "]");
-                        pw.println(lastSendData);
-                        pw.flush();
-                        // 送信後結果を待つ
-                        nextWrite = br.readLine();
-                        if (nextWrite == null || (!nextWrite.equals("-1") && !nextWrite.equals("2"))) throw new Exception("NextWriteMessage= [" + nextWrite + "]");
-                        nextWrite = null;
-                    }
+    // sendSeqがtrueの場合は各行の先頭に連番を付加する
+    private void outputDiffKeyMapObj2Stream(PrintWriter pw, BufferedReader br, long fromSeq, boolean sendSeq) throws BatchException {
+        if (!blocking) {
+            DiffChangeLog.Cursor cursor = null;
+            try {
 
+                this.poolKeyLock.lock();
+                try {
+                    this.myOperationStatus = 3;
+                    logger.info("outputDiffKeyMapObj2Stream - synchronized - start FromSeq[" + fromSeq + "]");
 
-                    synchronized(diffSync) {
-                        allDataBuf = null;
-                        allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-                        allDataSep = "";
+                    DiffChangeLog changeLog = this.diffChangeLog;
+                    if (changeLog == null) throw new Exception("Diff data mode is not started");
+                    cursor = changeLog.openCursor(fromSeq);
 
-                        for (; i < this.diffDataPoolingListForFileBase.size(); i++) {
+                    // 差分データの内容を1行に30件ずつまとめて書き出し
+                    this.sendDiffData(pw, br, changeLog, cursor, 10, 30, sendSeq);
 
-                            allDataBuf.append(allDataSep);
-                            allDataBuf.append(this.diffDataPoolingListForFileBase.get(i));
-                            allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
-
-                            if (i > 0 && (i % 20) == 0) {
-                                logger.info("outputDiffKeyMapObj2Stream - Diff Data Last Send Count[" + i + "]");
-                                pw.println(allDataBuf.toString());
-                                pw.flush();
-                                allDataBuf = null;
-                                allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
-                                allDataSep = "";
-
-                                // 送信後結果を待つ
-                                nextWrite = br.readLine();
-                                if (nextWrite == null || (!nextWrite.equals("-1") && !nextWrite.equals("2"))) throw new Exception("Erro Target Read End Message= [" + nextWrite + "]");
-                                nextWrite = null;
-                            }
-                        }
+                    this.diffSync.lock();
+                    try {
 
-                        lastSendData = allDataBuf.toString();
-                        if (!lastSendData.equals("")) {
-                            pw.println(lastSendData);
-                            pw.flush();
-                            // 送信後結果を待つ
-                            nextWrite = br.readLine();
-                            if (nextWrite == null || (!nextWrite.equals("-1") && !nextWrite.equals("2"))) throw new Exception("Erro Target Read End Message= [" + nextWrite + "]");
-                            nextWrite = null;
-                        }
+                        // 残りの差分データを1行に20件ずつまとめて書き出し
+                        this.sendDiffData(pw, br, changeLog, cursor, 0, 20, sendSeq);
 
                         pw.println("-1");
                         pw.flush();
 
-
-                        allDataBuf = null;
                         // 取り込み完了をまつ
                         String outputRet = br.readLine();
 
@@ -3750,22 +3713,83 @@ public class KeyMapManager extends Thread {
                         pw.println("1");
                         pw.flush();
                         this.diffDataMode(false);
+                    } finally {
+                        this.diffSync.unlock();
                     }
+                } finally {
+                    this.poolKeyLock.unlock();
                 }
                 logger.info("outputDiffKeyMapObj2Stream - synchronized - end");
             } catch (Exception e) {
-                logger.error("outputDiffKeyMapObj2Stream - Error [" + e.getMessage() + "]", e);
-                this.diffDataMode(false);
-                //blocking = true;
-                //StatusUtil.setStatusAndMessage(1, "outputDiffKeyMapObj2Stream - Error [" + e.getMessage() + "]");
-                //throw new BatchException(e);
+                logger.error("outputDiffKeyMapObj2Stream - Error [" + e.getMessage() + "] NextSeq[" + (cursor != null ? cursor.getNextSeq() : fromSeq) + "]", e);
+                if (sendSeq) {
+                    // 転送を継続できないことを通知
+                    pw.println("-2");
+                    pw.flush();
+                }
             } finally {
+                if (cursor != null) cursor.close();
+                this.diffDataModeAccessTime = JavaSystemApi.currentTimeMillis;
                 this.myOperationStatus = 1;
             }
         }
     }
 
 
+    /**
+     * 差分データを最新の連番から指定件数手前まで読み込み、1行に指定件数ずつまとめて書き出す.<br>
+     * 1行書き出す毎に受信側の取り込み完了を待つ.<br>
+     *
+     * @param pw
+     * @param br
+     * @param changeLog
+     * @param cursor
+     * @param margin 書き出さずに残す最新の件数
+     * @param lineDataCount 1行にまとめる件数
+     * @param sendSeq 行の先頭に連番を付加するか
+     * @throw Exception
+     */
+    private void sendDiffData(PrintWriter pw, BufferedReader br, DiffChangeLog changeLog, DiffChangeLog.Cursor cursor, long margin, int lineDataCount, boolean sendSeq) throws Exception {
+        String allDataSep = "";
+        StringBuilder allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
+        int count = 0;
+
+        while (cursor.getNextSeq() <= (changeLog.getLastSeq() - margin)) {
+            String diffData = cursor.next();
+            if (diffData == null) break;
+
+            allDataBuf.append(allDataSep);
+            allDataBuf.append(diffData);
+            allDataSep = ImdstDefine.imdstConnectAllDataSendDataSep;
+            count++;
+
+            if (count == lineDataCount) {
+                this.sendDiffDataLine(pw, br, allDataBuf.toString(), cursor, sendSeq);
+                allDataBuf = new StringBuilder(ImdstDefine.stringBufferLarge_3Size);
+                allDataSep = "";
+                count = 0;
+            }
+        }
+
+        if (count > 0) this.sendDiffDataLine(pw, br, allDataBuf.toString(), cursor, sendSeq);
+    }
+
+
+    // 1行書き出し、送信後結果を待つ
+    private void sendDiffDataLine(PrintWriter pw, BufferedReader br, String line, DiffChangeLog.Cursor cursor, boolean sendSeq) throws Exception {
+        logger.info("outputDiffKeyMapObj2Stream - Diff Data Send Seq[" + (cursor.getNextSeq() - 1) + "]");
+        if (sendSeq) {
+            pw.println(DiffChangeLog.createTransferLine(cursor.getNextSeq() - 1, line));
+        } else {
+            pw.println(line);
+        }
+        pw.flush();
+
+        String nextWrite = br.readLine();
+        if (nextWrite == null || (!nextWrite.equals("-1") && !nextWrite.equals("2"))) throw new Exception("NextWriteMessage= [" + nextWrite + "]");
+    }
+
+
     // 引数で渡されてストリームからの値でデータを作成する
     public void inputKeyMapObj2Stream(BufferedReader br, PrintWriter pw, int dataLineCount) throws BatchException {
         if (!blocking) {
@@ -3776,8 +3800,10 @@ public class KeyMapManager extends Thread {
                 boolean setDataExec = false;
                 logger.info("inputKeyMapObj2Stream - synchronized - start");
 
-                synchronized(this.poolKeyLock) {
-                    synchronized(this.lockWorkFileSync) {
+                this.poolKeyLock.lock();
+                try {
+                    this.lockWorkFileSync.lock();
+                    try {
                         // 事前に不要なファイルを削除
 
                         // WorkKeyMapファイルを消しこみ
@@ -3813,15 +3839,20 @@ public class KeyMapManager extends Thread {
                         } else {
                             this.keyMapObj = new KeyManagerValueMap(this.keyFileDirs, this.mapSize, true, this.diskCacheFile);
                         }
+                        if (this.expiryIndex != null) this.expiryIndex.clear();
 
-                        if (!dataMemory) 
+                        if (!dataMemory) {
+                            this.keyMapObj.setDataFileAccessType(this.dataFileAccessType);
                             this.keyMapObj.initNoMemoryModeSetting(this.diskModeRestoreFile);
+                        }
 
 
                         // WorkKeyMapファイル用のストリームを作成
-                        FileOutputStream newFos = new FileOutputStream(new File(this.workKeyFilePath));
-                        this.bw = new CustomBufferedWriter(new OutputStreamWriter(newFos , KeyMapManager.workMapFileEnc), 8192 * 24, newFos);
+                        this.bw = this.openTransactionLogStream(false);
                         this.tLogWriteCount = new AtomicInteger(0);
+                        for (int idx = 0; this.transactionLogPartitions != null && idx < this.transactionLogPartitions.length; idx++) {
+                            this.transactionLogPartitions[idx].reset();
+                        }
 
                         if (this.workFileMemory == false && this.workFileFlushTiming == false) {
                             this.dataTransactionFileFlushDaemon.close();
@@ -3861,7 +3892,7 @@ public class KeyMapManager extends Thread {
 
                                         if (this.workFileMemory == false) {
 
-                                            this.bw.write("+" + KeyMapManager.workFileSeq + oneDatas[0] + KeyMapManager.workFileSeq + oneDatas[1] + KeyMapManager.workFileSeq + inputStartTime + KeyMapManager.workFileSeq + KeyMapManager.workFileEndPoint + "\n");
+                                            this.bw.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, oneDatas[0], oneDatas[1], inputStartTime));
                                             this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
                                         }
                                     } else if (oneDatas.length == 3) {
@@ -3870,7 +3901,7 @@ public class KeyMapManager extends Thread {
                                         this.keyMapObjPutNoChange(oneDatas[0], oneDatas[1] + KeyMapManager.workFileSeq + oneDatas[2]);
 
                                         if (this.workFileMemory == false) {
-                                            this.bw.write("+" + KeyMapManager.workFileSeq + oneDatas[0] + KeyMapManager.workFileSeq + oneDatas[1] + KeyMapManager.workFileSeq + oneDatas[2] + KeyMapManager.workFileSeq + inputStartTime + KeyMapManager.workFileSeq + KeyMapManager.workFileEndPoint + "\n");
+                                            this.bw.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, oneDatas[0], oneDatas[1] + KeyMapManager.workFileSeq + oneDatas[2], inputStartTime));
                                             this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
                                         }
                                     } else {
@@ -3887,7 +3918,11 @@ public class KeyMapManager extends Thread {
                         if (setDataExec == true) this.setLastDataChangeTime();
                         pw.println("1");
                         pw.flush();
+                    } finally {
+                        this.lockWorkFileSync.unlock();
                     }
+                } finally {
+                    this.poolKeyLock.unlock();
                 }
                 logger.info("inputKeyMapObj2Stream - synchronized - end");
 
@@ -3914,8 +3949,10 @@ public class KeyMapManager extends Thread {
                 int i = 0;
                 String[] oneDatas = null;
                 logger.info("inputDiffKeyMapObj2Stream - synchronized - start");
-                synchronized(this.poolKeyLock) {
-                    synchronized(this.lockWorkFileSync) {
+                this.poolKeyLock.lock();
+                try {
+                    this.lockWorkFileSync.lock();
+                    try {
                         long writeCurrentTime = this.lastAccess;
                         int counter = 0;
 
@@ -3967,12 +4004,12 @@ public class KeyMapManager extends Thread {
                                         if (this.workFileMemory == false) {
 
                                             counter++;
-                                            String writeValueStr = " ";
-                                            String dataType = "+";
+                                            String writeValueStr = null;
+                                            byte dataType = TransactionLogFormat.typeSet;
 
                                             if (oneDatas[0].equals("-")) {
 
-                                                dataType = "-";
+                                                dataType = TransactionLogFormat.typeRemove;
                                             } else {
 
                                                 if (oneDatas.length == 3) {
@@ -3982,18 +4019,7 @@ public class KeyMapManager extends Thread {
                                                 }
                                             }
 
-                                            this.bw.write(new StringBuilder(ImdstDefine.stringBufferMiddleSize).
-                                                append(dataType).
-                                                append(KeyMapManager.workFileSeq).
-                                                append(oneDatas[1]).
-                                                append(KeyMapManager.workFileSeq).
-                                                append(writeValueStr).
-                                                append(KeyMapManager.workFileSeq).
-                                                append(writeCurrentTime).
-                                                append(KeyMapManager.workFileSeq).
-                                                append(KeyMapManager.workFileEndPoint).
-                                                append("\n").
-                                                toString());
+                                            this.bw.write(TransactionLogFormat.createRecord(dataType, oneDatas[1], writeValueStr, writeCurrentTime));
 
                                             if((counter % 100) == 0) {
                                                 SystemUtil.diskAccessSync(this.bw);
@@ -4021,7 +4047,11 @@ public class KeyMapManager extends Thread {
                         // 取り込み終了を送信
                         pw.println("1");
                         pw.flush();
+                    } finally {
+                        this.lockWorkFileSync.unlock();
                     }
+                } finally {
+                    this.poolKeyLock.unlock();
                 }
                 logger.info("inputDiffKeyMapObj2Stream - synchronized - end");
                 this.myOperationStatus = 1;
@@ -4044,6 +4074,7 @@ public class KeyMapManager extends Thread {
     // 終了時は-1が返る
     public void outputNoMatchKeyMapKey2Stream(PrintWriter pw, int matchNo, String rulesStr) throws BatchException {
         if (!blocking) {
+            this.beginSnapshotOutput();
             try {
                 String[] rules = null;
                 int[] rulesInt = null;
@@ -4183,6 +4214,8 @@ public class KeyMapManager extends Thread {
             } catch (Exception e) {
                 e.printStackTrace();
                 logger.error("outputNoMatchKeyMapKey2Stream - Error =[" + e.getMessage() + "]");
+            } finally {
+                this.endSnapshotOutput();
             }
         }
     }
@@ -4193,6 +4226,7 @@ public class KeyMapManager extends Thread {
     // 終了時は-1が返る
     public void outputConsistentHashMoveData2Stream(PrintWriter pw, String targetRangStr) throws BatchException {
         if (!blocking) {
+            this.beginSnapshotOutput();
             try {
 
                 String allDataSep = "";
@@ -4331,6 +4365,8 @@ public class KeyMapManager extends Thread {
                 pw.flush();
             } catch (Exception e) {
                 logger.error("outputConsistentHashMoveData2Stream - Error =[" + e.getMessage() + "]");
+            } finally {
+                this.endSnapshotOutput();
             }
         }
     }
@@ -4364,7 +4400,8 @@ public class KeyMapManager extends Thread {
 
                 while(true) {
                     logger.info("inputConsistentHashMoveData2Stream - synchronized - start");
-                    synchronized(this.poolKeyLock) {
+                    this.poolKeyLock.lock();
+                    try {
 
                         dataStr = br.readLine();
                         if (dataStr == null || dataStr.equals("-1")) break;
@@ -4406,6 +4443,8 @@ public class KeyMapManager extends Thread {
                         }
                         pw.println("next");
                         pw.flush();
+                    } finally {
+                        this.poolKeyLock.unlock();
                     }
                     logger.info("inputConsistentHashMoveData2Stream - synchronized - end");
                 }
@@ -4565,23 +4604,266 @@ public class KeyMapManager extends Thread {
     }
 
 
-    private void checkTransactionLogWriterLimit(int nowCount) {
-        if (nowCount > ImdstDefine.maxTransactionLogBufferUseCount) {
-            try {
-                this.bw.flush();
-                this.bw.close();
-                this.bw = null;
-            } catch (Exception e) {
-                this.bw = null;
-            } finally {
-                try {
+    /**
+     * 起動時にトランザクションログから復元したレコードを反映する.<br>
+     * 最終更新時間は全ての反映後にまとめて設定する.<br>
+     */
+    class KeyMapTransactionLogApplier implements ITransactionLogApplier {
 
-                    FileOutputStream newFos = new FileOutputStream(new File(this.workKeyFilePath), true);
-                    this.bw = new CustomBufferedWriter(new OutputStreamWriter(newFos , KeyMapManager.workMapFileEnc), 8192 * 24, newFos);
-                    this.tLogWriteCount = new AtomicInteger(0);
-                } catch (Exception e) {
-                    this.bw = null;
-                }
+        public void applySet(String key, String data, long time) {
+            keyMapObjPutNoChange(key, data);
+        }
+
+        public void applyRemove(String key, long time) {
+            keyMapObjRemoveNoChange(key);
+        }
+    }
+
+
+    /**
+     * 停止時(JVM終了時)にチェックポイントとKeyのIndexイメージを作成する.<br>
+     * エラーで停止する場合は作成しない.<br>
+     */
+    class KeyIndexImageShutdownHook extends Thread {
+
+        public void run() {
+            if (StatusUtil.getStatus() == 1) return;
+
+            long start = System.currentTimeMillis();
+            int ret = keyObjectExport(null);
+            System.out.println("Key index image store on shutdown - Result=" + ret + " Time=" + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+
+    /**
+     * トランザクションログに1件追記する.<br>
+     * 都度書き込み時はグループコミットまたは書き込み毎にSyncし、一定間隔の場合は書き込みデーモンに登録する.<br>
+     *
+     * @param type 種別(TransactionLogFormat.typeSet or TransactionLogFormat.typeRemove)
+     * @param key Key
+     * @param data Value(削除時はnull)
+     * @throw Exception
+     */
+    private void writeTransactionLog(byte type, String key, String data) throws Exception {
+        if (this.workFileMemory) return;
+
+        byte[] record = TransactionLogFormat.createRecord(type, key, data, JavaSystemApi.currentTimeMillis);
+
+        if (this.transactionLogPartitions != null) {
+
+            // Keyのロックと同じハッシュでパーティションを決定するため、同一のKeyは常に同一のパーティションに記録される
+            int partition = (((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize) % (this.transactionLogPartitions.length + 1);
+            if (partition > 0) {
+                this.transactionLogPartitions[partition - 1].write(record);
+                return;
+            }
+        }
+
+        if (this.transactionLogGroupCommitDaemon != null) {
+
+            // グループコミット(書き込みとSyncが完了するまで待つ)
+            this.transactionLogGroupCommitDaemon.commit(record);
+            return;
+        }
+
+        this.lockWorkFileSync.lock();
+        try {
+            if (this.workFileFlushTiming) {
+
+                this.bw.write(record);
+                SystemUtil.diskAccessSync(this.bw);
+
+                // 現在の利用回数をチェック
+                this.checkTransactionLogWriterLimit(this.tLogWriteCount.incrementAndGet());
+            } else {
+
+                this.dataTransactionFileFlushDaemon.addDataTransaction(record);
+            }
+        } finally {
+            this.lockWorkFileSync.unlock();
+        }
+    }
+
+
+    /**
+     * トランザクションログ書き出し用のストリームを作成する.<br>
+     * 新規のファイルの場合はファイルヘッダーを書き込む.<br>
+     *
+     * @param append true:追記 false:新規
+     * @return CustomBufferedOutputStream
+     * @throw Exception
+     */
+    private CustomBufferedOutputStream openTransactionLogStream(boolean append) throws Exception {
+        return openTransactionLogStream(this.workKeyFilePath, append);
+    }
+
+
+    /**
+     * 指定のファイルにトランザクションログ書き出し用のストリームを作成する.<br>
+     *
+     * @param filePath トランザクションログのファイル名
+     * @param append true:追記 false:新規
+     * @return CustomBufferedOutputStream
+     * @throw Exception
+     */
+    static CustomBufferedOutputStream openTransactionLogStream(String filePath, boolean append) throws Exception {
+        File logFile = new File(filePath);
+        boolean newFile = (append == false || !logFile.exists() || logFile.length() == 0);
+
+        CustomBufferedOutputStream ret = new CustomBufferedOutputStream(new FileOutputStream(logFile, append), 8192 * 24);
+        if (newFile) ret.write(TransactionLogFormat.fileHeader);
+        return ret;
+    }
+
+
+    /**
+     * グループコミットでまとめたトランザクションログを書き込み、Syncする.<br>
+     * ローテーション時のストリームの差し替えと排他するため、lockWorkFileSyncで同期する.<br>
+     *
+     * @param logs まとめたトランザクションログ
+     * @param count ログの件数
+     * @throw Exception
+     */
+    protected void writeGroupCommitTransactionLog(ByteArrayOutputStream logs, int count) throws Exception {
+        this.lockWorkFileSync.lock();
+        try {
+            logs.writeTo(this.bw);
+            SystemUtil.diskAccessSync(this.bw);
+            this.checkTransactionLogWriterLimit(this.tLogWriteCount.addAndGet(count));
+        } finally {
+            this.lockWorkFileSync.unlock();
+        }
+    }
+
+
+    /**
+     * トランザクションログのパーティション1以降を作成する.<br>
+     * 都度書き込みでImdstDefine.transactionLogPartitionsが2以上の場合のみ作成する.<br>
+     * 現在のパーティション数を超える、既存のパーティションの現在のファイルはローテーションし、チェックポイント作成後に削除されるようにする.<br>
+     *
+     * @throw Exception
+     */
+    private void initTransactionLogPartitions() throws Exception {
+        if (this.workFileMemory) return;
+
+        int partitions = (this.workFileFlushTiming == true) ? ImdstDefine.transactionLogPartitions : 1;
+        if (partitions > 1) {
+            this.transactionLogPartitions = new TransactionLogPartition[partitions - 1];
+            for (int i = 0; i < this.transactionLogPartitions.length; i++) {
+                this.transactionLogPartitions[i] = new TransactionLogPartition(this.getTransactionLogPartitionPath(i + 1));
+                if (ImdstDefine.transactionLogGroupCommit) this.transactionLogPartitions[i].startGroupCommit();
+            }
+        }
+
+        Map partitionPaths = this.findTransactionLogPartitionPaths();
+        for (Iterator ite = partitionPaths.entrySet().iterator(); ite.hasNext();) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            int partition = ((Integer)entry.getKey()).intValue();
+            String partitionPath = (String)entry.getValue();
+            if (partition < partitions && partitionPath.equals(this.getTransactionLogPartitionPath(partition))) continue;
+
+            File nowFile = new File(partitionPath);
+            if (nowFile.exists() && nowFile.length() > 0) {
+                File rotatedFile = new File(partitionPath + "." + getNextRotatedTransactionLogIndex(partitionPath + "."));
+                if (!nowFile.renameTo(rotatedFile)) throw new Exception("Work File Name Change Error");
+            } else {
+                nowFile.delete();
+            }
+            this.obsoleteTransactionLogPartitionPaths.add(partitionPath);
+            logger.info("workKeyMapFile - Obsolete partition [" + partitionPath + "]");
+        }
+    }
+
+
+    /**
+     * トランザクションログのパーティションのファイル名を返す.<br>
+     * Keyをファイル保存にした場合はKeyファイルのディレクトリに分散し、それ以外はトランザクションログと同じディレクトリ.<br>
+     *
+     * @param partition パーティション番号(1以降)
+     * @return String
+     */
+    private String getTransactionLogPartitionPath(int partition) {
+        File logFile = new File(this.workKeyFilePath).getAbsoluteFile();
+        String partitionFileName = logFile.getName() + ".p" + partition;
+
+        if (this.keyFileDirs != null && this.keyFileDirs.length > 0) {
+            return new File(this.keyFileDirs[(partition - 1) % this.keyFileDirs.length], partitionFileName).getAbsolutePath();
+        }
+        return new File(logFile.getParentFile(), partitionFileName).getAbsolutePath();
+    }
+
+
+    /**
+     * 存在するトランザクションログのパーティション(パーティション番号 -> ファイル名)を返す.<br>
+     * パーティション数やディレクトリの変更前に作成されたパーティションも含む.<br>
+     *
+     * @return Map パーティション番号順
+     */
+    private Map findTransactionLogPartitionPaths() {
+        File logFile = new File(this.workKeyFilePath).getAbsoluteFile();
+        String prefix = logFile.getName() + ".p";
+
+        List dirList = new ArrayList();
+        dirList.add(logFile.getParentFile());
+        for (int i = 0; this.keyFileDirs != null && i < this.keyFileDirs.length; i++) {
+            File dir = new File(this.keyFileDirs[i]).getAbsoluteFile();
+            if (!dirList.contains(dir)) dirList.add(dir);
+        }
+
+        Map ret = new TreeMap();
+        for (int i = 0; i < dirList.size(); i++) {
+            String[] names = ((File)dirList.get(i)).list();
+            for (int idx = 0; names != null && idx < names.length; idx++) {
+                if (!names[idx].startsWith(prefix)) continue;
+
+                // "ファイル名.p番号" または "ファイル名.p番号.インデックス番号"
+                String[] parts = names[idx].substring(prefix.length()).split("\\.");
+                if (parts.length > 2) continue;
+                try {
+                    Integer partition = new Integer(parts[0]);
+                    if (parts.length == 2) Integer.parseInt(parts[1]);
+                    if (partition.intValue() > 0 && !ret.containsKey(partition)) {
+                        ret.put(partition, new File((File)dirList.get(i), prefix + parts[0]).getAbsolutePath());
+                    }
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    // ローテーション済みのログ(インデックス番号順)と現在のログを返す
+    private static File[] getTransactionLogFiles(String filePath, String rotatedPrefix) {
+        List ret = new ArrayList();
+        int[] indexes = getRotatedTransactionLogIndexes(rotatedPrefix);
+        for (int i = 0; i < indexes.length; i++) {
+            ret.add(new File(rotatedPrefix + indexes[i]));
+        }
+
+        File nowFile = new File(filePath);
+        if (nowFile.exists()) ret.add(nowFile);
+        return (File[])ret.toArray(new File[0]);
+    }
+
+
+    private void checkTransactionLogWriterLimit(int nowCount) {
+        if (nowCount > ImdstDefine.maxTransactionLogBufferUseCount) {
+            try {
+                this.bw.flush();
+                this.bw.close();
+                this.bw = null;
+            } catch (Exception e) {
+                this.bw = null;
+            } finally {
+                try {
+
+                    this.bw = this.openTransactionLogStream(true);
+                    this.tLogWriteCount = new AtomicInteger(0);
+                } catch (Exception e) {
+                    this.bw = null;
+                }
             }
         }
     }
@@ -4724,7 +5006,28 @@ public class KeyMapManager extends Thread {
                     } else {
                         storeFile = new File(keyObjBkupFilePath);
                     }
-                    this.keyMapObj.fileStoreMapObject(storeFile);
+
+                    // チェックポイント作成前にローテーション済みのトランザクションログを記録する
+                    // Mapへの反映はトランザクションログへの追記より前に完了しているため、記録したログの内容は全てチェックポイントに含まれる
+                    int[] lastRotatedIndexes = null;
+                    if (filePath == null) lastRotatedIndexes = this.getLastRotatedTransactionLogIndexes();
+
+                    long checkpointTime = this.keyMapObj.fileStoreMapObject(storeFile, filePath != null);
+
+                    // チェックポイントで復元可能となったトランザクションログを削除
+                    if (checkpointTime > 0L) this.truncateTransactionLog(lastRotatedIndexes);
+
+                    // アーカイブする設定の場合はチェックポイントを保存し、保存期間を過ぎたものを削除
+                    if (checkpointTime > 0L && this.transactionLogArchive != null) this.archiveCheckpoint(storeFile, checkpointTime);
+
+                    // Fileモード時はチェックポイントと同じ時間でKeyのIndexイメージを作成
+                    if (checkpointTime > 0L && !this.dataMemory) {
+                        try {
+                            this.keyMapObj.storeKeyIndexImage(storeFile, checkpointTime);
+                        } catch (Exception ie) {
+                            logger.error("keyObjectExport - Key index image store error", ie);
+                        }
+                    }
                     return 1;
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -4736,6 +5039,300 @@ public class KeyMapManager extends Thread {
         }
     }
 
+    /**
+     * 他ノードへの全データの書き出しを開始する.<br>
+     * 書き出しはMapをロックせずに走査するため、終了までMapを再構築するVacuumを停止する.<br>
+     * 実行中のVacuumがある場合は終了を待つ.<br>
+     */
+    private void beginSnapshotOutput() {
+        this.poolKeyLock.lock();
+        try {
+            this.snapshotOutputCount.incrementAndGet();
+        } finally {
+            this.poolKeyLock.unlock();
+        }
+    }
+
+
+    /**
+     * 他ノードへの全データの書き出しを終了する.<br>
+     */
+    private void endSnapshotOutput() {
+        this.snapshotOutputCount.decrementAndGet();
+    }
+
+
+    /**
+     * 現在の全てのKeyの有効期限をexpiryIndexに登録する.<br>
+     * 起動時にバックアップから復元したデータは登録されていないため、起動後に1度だけ実行する.<br>
+     * poolKeyLockは取得せず、Key毎のロックで登録するため、実行中も登録、取得、削除は並行して処理される.<br>
+     */
+    private void buildExpiryIndex() {
+        logger.info("BuildExpiryIndex - Start");
+        long start = JavaSystemApi.currentTimeMillis;
+
+        try {
+            Iterator entryIte = this.keyMapObj.entrySet().iterator();
+            while(entryIte.hasNext()) {
+                if (StatusUtil.getStatus() != 0) return;
+
+                Map.Entry obj = (Map.Entry)entryIte.next();
+                if (obj == null) continue;
+
+                String key = (String)obj.getKey();
+                ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+                parallelLock.lock();
+                try {
+                    String valStr = this.keyMapObjGet(key);
+                    if (valStr != null) this.expiryIndex.register(key, ExpiryIndex.parseExpireTime(valStr));
+                } finally {
+                    parallelLock.unlock();
+                }
+            }
+            this.expiryIndexReady = true;
+        } catch (Exception e) {
+            // 登録できなかった場合は全てのKeyを走査する削除を継続する
+            logger.error("BuildExpiryIndex - Error", e);
+        }
+        logger.info("BuildExpiryIndex - End - Size [" + this.expiryIndex.size() + "] Time [" + (JavaSystemApi.currentTimeMillis - start) + "] Milli Second");
+    }
+
+
+    /**
+     * expiryIndexから有効期限を過ぎてImdstDefine.invalidDataDeleteTime経過したKeyを取り出して削除する.<br>
+     *
+     * @return long 削除件数
+     * @throw BatchException
+     */
+    private long removeExpiredData() throws BatchException {
+        long ret = 0L;
+
+        List expiredKeys = this.expiryIndex.pollExpiredKeys(JavaSystemApi.currentTimeMillis - ImdstDefine.invalidDataDeleteTime);
+        for (int i = 0; i < expiredKeys.size(); i++) {
+            if (this.removeExpiredKeyPair((String)expiredKeys.get(i))) ret++;
+        }
+        return ret;
+    }
+
+
+    /**
+     * 有効期限切れのデータを削除する.<br>
+     * Indexの登録後に更新されている可能性があるため、現在の値で有効期限を確認し、<br>
+     * 削除対象でない場合はIndexに再登録する.<br>
+     *
+     * @param key
+     * @return boolean true:削除した
+     * @throw BatchException
+     */
+    private boolean removeExpiredKeyPair(String key) throws BatchException {
+        ReentrantLock parallelLock = this.parallelLocks[((key.hashCode() << 1) >>> 1) % KeyMapManager.parallelSize];
+        parallelLock.lock();
+        try {
+            String valStr = this.keyMapObjGet(key);
+            if (valStr == null) {
+                this.expiryIndex.unregister(key);
+                return false;
+            }
+
+            long expireTime = ExpiryIndex.parseExpireTime(valStr);
+            if (expireTime == ExpiryIndex.noExpireTime || (expireTime + ImdstDefine.invalidDataDeleteTime) > JavaSystemApi.currentTimeMillis) {
+                this.expiryIndex.register(key, expireTime);
+                return false;
+            }
+
+            this.removeKeyPair(key, "0");
+            return true;
+        } finally {
+            parallelLock.unlock();
+        }
+    }
+
+
+    /**
+     * ローテーション済みのトランザクションログの最新のインデックス番号を返す.<br>
+     * 並びはトランザクションログ、パーティション、使用しないパーティションの順.<br>
+     * ローテーション済みのファイルが存在しない場合は-1.<br>
+     * チェックポイント作成前に呼び出し、作成後にここで記録したファイルまでを削除する.<br>
+     * ファイルの更新時間ではなくローテーションの順序で判断するため、時計の変更や書き込みの遅延の影響を受けない.<br>
+     *
+     * @return int[]
+     */
+    private int[] getLastRotatedTransactionLogIndexes() {
+        int partitionCount = (this.transactionLogPartitions == null ? 0 : this.transactionLogPartitions.length);
+        int[] ret = new int[1 + partitionCount + this.obsoleteTransactionLogPartitionPaths.size()];
+
+        ret[0] = getNextRotatedTransactionLogIndex(this.workKeyFilePath) - 1;
+        for (int i = 0; i < partitionCount; i++) {
+            ret[1 + i] = getNextRotatedTransactionLogIndex(this.transactionLogPartitions[i].getRotatedPrefix()) - 1;
+        }
+        for (int i = 0; i < this.obsoleteTransactionLogPartitionPaths.size(); i++) {
+            ret[1 + partitionCount + i] = getNextRotatedTransactionLogIndex((String)this.obsoleteTransactionLogPartitionPaths.get(i) + ".") - 1;
+        }
+        return ret;
+    }
+
+
+    /**
+     * チェックポイント作成前にローテーション済みだったトランザクションログを削除する.<br>
+     * ローテーション済みのファイルの全てのレコードはMapへの反映後に追記されているため、<br>
+     * 作成前にローテーション済みだったファイルの内容はチェックポイントに含まれ、削除したファイルは不要となる.<br>
+     * 起動時にバックアップファイルから復元しない設定の場合は削除しない.<br>
+     * アーカイブする設定の場合は削除せずにアーカイブに移動する.<br>
+     *
+     * @param lastRotatedIndexes チェックポイント作成前のローテーション済みのトランザクションログの最新のインデックス番号
+     */
+    private void truncateTransactionLog(int[] lastRotatedIndexes) {
+        if (this.workFileMemory || !ImdstDefine.recycleExsistData || !this.workFileStartingReadFlg) return;
+        if (lastRotatedIndexes == null) return;
+
+        this.lockWorkFileSync.lock();
+        try {
+            this.truncateTransactionLog(this.workKeyFilePath, 0, lastRotatedIndexes[0]);
+        } finally {
+            this.lockWorkFileSync.unlock();
+        }
+
+        int partitionCount = (this.transactionLogPartitions == null ? 0 : this.transactionLogPartitions.length);
+        for (int i = 0; i < partitionCount && (1 + i) < lastRotatedIndexes.length; i++) {
+            this.transactionLogPartitions[i].getLock().lock();
+            try {
+                this.truncateTransactionLog(this.transactionLogPartitions[i].getRotatedPrefix(), i + 1, lastRotatedIndexes[1 + i]);
+            } finally {
+                this.transactionLogPartitions[i].getLock().unlock();
+            }
+        }
+
+        // 使用しないパーティションは追記されないため同期不要
+        for (int i = 0; i < this.obsoleteTransactionLogPartitionPaths.size() && (1 + partitionCount + i) < lastRotatedIndexes.length; i++) {
+            String partitionPath = (String)this.obsoleteTransactionLogPartitionPaths.get(i);
+            this.truncateTransactionLog(partitionPath + ".", this.getPartitionNumber(partitionPath), lastRotatedIndexes[1 + partitionCount + i]);
+        }
+    }
+
+
+    /**
+     * 1パーティションのローテーション済みのトランザクションログを削除する.<br>
+     * アーカイブのインデックス番号はパーティション毎に重複しないように"パーティション番号 * TransactionLogArchive.partitionIndexRange + インデックス番号"とする.<br>
+     *
+     * @param rotatedPrefix ローテーション済みのファイル名のインデックス番号より前
+     * @param partition パーティション番号
+     * @param lastRotatedIndex チェックポイント作成前のローテーション済みのファイルの最新のインデックス番号
+     */
+    private void truncateTransactionLog(String rotatedPrefix, int partition, int lastRotatedIndex) {
+        int[] workKeyFileIndexes = getRotatedTransactionLogIndexes(rotatedPrefix);
+
+        // 古いファイルから順に削除し、チェックポイント作成中にローテーションされたファイルで止める
+        for (int i = 0; i < workKeyFileIndexes.length; i++) {
+            if (workKeyFileIndexes[i] > lastRotatedIndex) break;
+            File workKeyFile = new File(rotatedPrefix + workKeyFileIndexes[i]);
+
+            if (this.transactionLogArchive != null) {
+                try {
+                    this.transactionLogArchive.archiveLog(workKeyFile, (long)partition * TransactionLogArchive.partitionIndexRange + workKeyFileIndexes[i]);
+                } catch (IOException ie) {
+                    logger.error("truncateTransactionLog - Archive Error [" + workKeyFile.getAbsolutePath() + "]", ie);
+                    break;
+                }
+                logger.info("truncateTransactionLog - Archived [" + workKeyFile.getAbsolutePath() + "]");
+                continue;
+            }
+
+            if (!workKeyFile.delete()) {
+                logger.error("truncateTransactionLog - Delete Error [" + workKeyFile.getAbsolutePath() + "]");
+                break;
+            }
+            logger.info("truncateTransactionLog - Deleted [" + workKeyFile.getAbsolutePath() + "]");
+        }
+    }
+
+
+    // パーティションのファイル名("ファイル名.p番号")のパーティション番号
+    private int getPartitionNumber(String partitionPath) {
+        return Integer.parseInt(partitionPath.substring(partitionPath.lastIndexOf(".p") + 2));
+    }
+
+
+    /**
+     * メモリモード時は前回から指定の間隔が経過している場合にチェックポイントをアーカイブに保存する.<br>
+     * Fileモード時のチェックポイントはデータファイル上の位置のみのため保存しない.<br>
+     * 保存後に保存期間を過ぎたチェックポイントとトランザクションログを削除する.<br>
+     *
+     * @param storeFile チェックポイントのベースイメージ
+     * @param checkpointTime チェックポイント時間
+     */
+    private void archiveCheckpoint(File storeFile, long checkpointTime) {
+        try {
+            long interval = (long)ImdstDefine.transactionLogArchiveCheckpointInterval * 60L * 1000L;
+            if (this.dataMemory && (System.currentTimeMillis() - this.transactionLogArchive.getLastCheckpointCompleteTime()) >= interval) {
+                this.transactionLogArchive.archiveCheckpoint(storeFile, checkpointTime);
+                logger.info("archiveCheckpoint - Archived CheckpointTime [" + checkpointTime + "]");
+            }
+
+            this.transactionLogArchive.prune((long)ImdstDefine.transactionLogArchiveRetentionHours * 60L * 60L * 1000L);
+        } catch (Exception e) {
+            logger.error("archiveCheckpoint - Error", e);
+        }
+    }
+
+
+    /**
+     * ローテーション済みのトランザクションログ(トランザクションログのファイル名 + インデックス番号)のインデックス番号を古い順に返す.<br>
+     *
+     * @return int[]
+     */
+    private int[] getRotatedTransactionLogIndexes() {
+        return getRotatedTransactionLogIndexes(this.workKeyFilePath);
+    }
+
+
+    /**
+     * ローテーション済みのトランザクションログ(指定のファイル名 + インデックス番号)のインデックス番号を古い順に返す.<br>
+     *
+     * @param rotatedPrefix ローテーション済みのファイル名のインデックス番号より前
+     * @return int[]
+     */
+    static int[] getRotatedTransactionLogIndexes(String rotatedPrefix) {
+        File logFile = new File(rotatedPrefix).getAbsoluteFile();
+        String logFileName = logFile.getName();
+        String[] names = logFile.getParentFile().list();
+        if (names == null) return new int[0];
+
+        List indexList = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].startsWith(logFileName)) continue;
+
+            String indexStr = names[i].substring(logFileName.length());
+            if (indexStr.length() == 0 || indexStr.length() > 9) continue;
+
+            boolean number = true;
+            for (int idx = 0; idx < indexStr.length(); idx++) {
+                if (!Character.isDigit(indexStr.charAt(idx))) number = false;
+            }
+            if (number) indexList.add(new Integer(indexStr));
+        }
+        Collections.sort(indexList);
+
+        int[] ret = new int[indexList.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = ((Integer)indexList.get(i)).intValue();
+        }
+        return ret;
+    }
+
+
+    // 次にローテーションするトランザクションログのインデックス番号
+    private int getNextRotatedTransactionLogIndex() {
+        return getNextRotatedTransactionLogIndex(this.workKeyFilePath);
+    }
+
+
+    static int getNextRotatedTransactionLogIndex(String rotatedPrefix) {
+        int[] workKeyFileIndexes = getRotatedTransactionLogIndexes(rotatedPrefix);
+        if (workKeyFileIndexes.length == 0) return 0;
+        return workKeyFileIndexes[workKeyFileIndexes.length - 1] + 1;
+    }
+
+
     /**
      * データバックアップ用
      */
@@ -4849,7 +5446,7 @@ class DataTransactionFileFlushDaemon extends Thread {
 
     public volatile String tFilePath = null;
     
-    public volatile BufferedWriter tBw= null;
+    public volatile CustomBufferedOutputStream tBw= null;
 
     public Object daemonSyncObj = new Object();
 
@@ -4857,29 +5454,28 @@ class DataTransactionFileFlushDaemon extends Thread {
 
     public void run() {
         int writeCount = 0;
-        String writeStr = null;
+        ByteArrayOutputStream writeBuf = null;
         int bufferUseCount = 0;
         int maxBufferUseCount = 1000000;
 
         while (this.execFlg) {
 
             try {
-                if (writeStr == null) {
-                    StringBuilder strBuf = new StringBuilder();
+                if (writeBuf == null) {
+                    writeBuf = new ByteArrayOutputStream(ImdstDefine.stringBufferLarge_3Size);
                     for (int i = 0; i < 10; i++) {
-                        String tmp = (String)this.delayWriteQueue.poll(200L, TimeUnit.MILLISECONDS);
-                        if (tmp != null) strBuf.append(tmp);
+                        byte[] tmp = (byte[])this.delayWriteQueue.poll(200L, TimeUnit.MILLISECONDS);
+                        if (tmp != null) writeBuf.write(tmp, 0, tmp.length);
                     }
-                    
-                    writeStr = strBuf.toString();
-                    if (writeStr == null || writeStr.equals("")) writeStr = null;
+
+                    if (writeBuf.size() == 0) writeBuf = null;
                 }
 
                 synchronized (daemonSyncObj) {
-                    if (this.tBw != null && writeStr != null) {
-                        this.tBw.write(writeStr);
+                    if (this.tBw != null && writeBuf != null) {
+                        writeBuf.writeTo(this.tBw);
                         SystemUtil.diskAccessSync(this.tBw);
-                        writeStr = null;
+                        writeBuf = null;
                         /*bufferUseCount++;
                         if (bufferUseCount > maxBufferUseCount) {
                             this.tBw.flush();
@@ -4910,10 +5506,10 @@ class DataTransactionFileFlushDaemon extends Thread {
         return this.executeEnd;
     }
 
-    public void addDataTransaction(String str) {
+    public void addDataTransaction(byte[] record) {
         while (true) {
             try {
-                this.delayWriteQueue.put(str);
+                this.delayWriteQueue.put(record);
                 break;
             } catch (Throwable te) {
             }
@@ -4941,3 +5537,348 @@ class DataTransactionFileFlushDaemon extends Thread {
         }
     }
 }
+
+
+/**
+ * トランザクションログのグループコミットを行うデーモン.<br>
+ * 都度書き込み時に各スレッドは書き込むログを登録し、書き込みとSyncの完了を待つ.<br>
+ * 本デーモンは登録済みのログをまとめて1回の書き込みと1回のSyncで反映し、待っているスレッドに完了を通知する.<br>
+ * まとめる単位は最初のログの登録から最大ImdstDefine.transactionLogGroupCommitMaxDelayミリ秒、<br>
+ * 最大ImdstDefine.transactionLogGroupCommitMaxBatchSize件まで.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+class TransactionLogGroupCommitDaemon extends Thread {
+
+    private KeyMapManager keyMapManager = null;
+
+    // 登録中のログのまとまり
+    private GroupCommitBatch nowBatch = new GroupCommitBatch();
+
+    // 仮想スレッドで実行されるHelperが待機するため、モニターではなくReentrantLockとConditionで同期する
+    private ReentrantLock batchLock = new ReentrantLock();
+
+    // ログの登録、書き込み開始の通知
+    private Condition batchCondition = this.batchLock.newCondition();
+
+    public volatile boolean execFlg = true;
+
+    public volatile boolean executeEnd = false;
+
+
+    // パーティションのログを書き込む場合のパーティション
+    private TransactionLogPartition partition = null;
+
+
+    public TransactionLogGroupCommitDaemon(KeyMapManager keyMapManager) {
+        this.keyMapManager = keyMapManager;
+    }
+
+
+    public TransactionLogGroupCommitDaemon(TransactionLogPartition partition) {
+        this.partition = partition;
+    }
+
+
+    public void run() {
+
+        while (true) {
+
+            GroupCommitBatch batch = null;
+            try {
+                this.batchLock.lock();
+                try {
+
+                    while (this.nowBatch.count == 0 && this.execFlg) {
+                        this.batchCondition.await(200L, TimeUnit.MILLISECONDS);
+                    }
+                    if (this.nowBatch.count == 0) break;
+
+                    // 最大待ち時間まで後続のログを待つ
+                    long endTime = System.nanoTime() + (ImdstDefine.transactionLogGroupCommitMaxDelay * 1000L * 1000L);
+                    while (this.nowBatch.count < ImdstDefine.transactionLogGroupCommitMaxBatchSize && this.execFlg) {
+                        long remaining = endTime - System.nanoTime();
+                        if (remaining <= 0L) break;
+                        this.batchCondition.awaitNanos(remaining);
+                    }
+
+                    batch = this.nowBatch;
+                    this.nowBatch = new GroupCommitBatch();
+                    this.batchCondition.signalAll();
+                } finally {
+                    this.batchLock.unlock();
+                }
+
+                try {
+                    this.writeLogs(batch.logs, batch.count);
+                    batch.commitEnd(null);
+                } catch (Exception e) {
+                    batch.commitEnd(e);
+                }
+            } catch (Throwable te) {
+                te.printStackTrace();
+                if (batch != null) batch.commitEnd(new Exception(te));
+            }
+        }
+        this.executeEnd = true;
+    }
+
+
+    /**
+     * トランザクションログを登録し、書き込みとSyncが完了するまで待つ.<br>
+     *
+     * @param log 1件分のトランザクションログのレコード
+     * @throw Exception 書き込みに失敗した場合
+     */
+    public void commit(byte[] log) throws Exception {
+        GroupCommitBatch batch = null;
+
+        this.batchLock.lock();
+        try {
+            if (this.execFlg == false) throw new Exception("TransactionLogGroupCommitDaemon - Closed");
+
+            // 最大件数に達している場合は書き込み開始を待つ
+            while (this.nowBatch.count >= ImdstDefine.transactionLogGroupCommitMaxBatchSize) {
+                this.batchCondition.await();
+            }
+
+            batch = this.nowBatch;
+            batch.logs.write(log, 0, log.length);
+            batch.count++;
+
+            // 最初のログと最大件数に達した時点でデーモンに通知
+            if (batch.count == 1 || batch.count >= ImdstDefine.transactionLogGroupCommitMaxBatchSize) this.batchCondition.signalAll();
+        } finally {
+            this.batchLock.unlock();
+        }
+
+        batch.await();
+    }
+
+
+    /**
+     * 登録済みのログを全て書き込んだ後に停止する.<br>
+     */
+    public void close() {
+        this.batchLock.lock();
+        try {
+            this.execFlg = false;
+            this.batchCondition.signalAll();
+        } finally {
+            this.batchLock.unlock();
+        }
+
+        try {
+            this.join();
+        } catch (InterruptedException ie) {
+        }
+    }
+
+
+    public boolean getExecuteEnd() {
+        return this.executeEnd;
+    }
+
+
+    protected void writeLogs(ByteArrayOutputStream logs, int count) throws Exception {
+        if (this.partition != null) {
+            this.partition.writeGroupCommit(logs, count);
+        } else {
+            this.keyMapManager.writeGroupCommitTransactionLog(logs, count);
+        }
+    }
+
+
+    /**
+     * 1回の書き込みでまとめるログ.<br>
+     */
+    static class GroupCommitBatch {
+
+        ByteArrayOutputStream logs = new ByteArrayOutputStream(ImdstDefine.stringBufferLarge_3Size);
+
+        int count = 0;
+
+        private boolean end = false;
+
+        private Exception error = null;
+
+        private ReentrantLock endLock = new ReentrantLock();
+
+        private Condition endCondition = this.endLock.newCondition();
+
+
+        void await() throws Exception {
+            this.endLock.lock();
+            try {
+                while (!this.end) {
+                    this.endCondition.await();
+                }
+                if (this.error != null) throw this.error;
+            } finally {
+                this.endLock.unlock();
+            }
+        }
+
+
+        void commitEnd(Exception error) {
+            this.endLock.lock();
+            try {
+                this.error = error;
+                this.end = true;
+                this.endCondition.signalAll();
+            } finally {
+                this.endLock.unlock();
+            }
+        }
+    }
+}
+
+
+/**
+ * パーティションに分割したトランザクションログの1パーティション.<br>
+ * パーティション毎にファイル、ストリーム、ロックを持ち、他のパーティションと並列に書き込みとSyncを行う.<br>
+ * ローテーション済みのファイルは"ファイル名.インデックス番号"とする.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+class TransactionLogPartition {
+
+    private String filePath = null;
+
+    private CustomBufferedOutputStream bw = null;
+
+    private int writeCount = 0;
+
+    // ロック中にファイルの書き込みとSyncを行うため、ReentrantLockを使用する
+    private ReentrantLock lock = new ReentrantLock();
+
+    // グループコミットデーモン(グループコミットしない場合はnull)
+    private TransactionLogGroupCommitDaemon groupCommitDaemon = null;
+
+
+    public TransactionLogPartition(String filePath) throws Exception {
+        this.filePath = filePath;
+        this.bw = KeyMapManager.openTransactionLogStream(this.filePath, true);
+        SystemUtil.diskAccessSync(this.bw);
+    }
+
+
+    public void startGroupCommit() {
+        this.groupCommitDaemon = new TransactionLogGroupCommitDaemon(this);
+        this.groupCommitDaemon.start();
+    }
+
+
+    public String getFilePath() {
+        return this.filePath;
+    }
+
+
+    public String getRotatedPrefix() {
+        return this.filePath + ".";
+    }
+
+
+    public ReentrantLock getLock() {
+        return this.lock;
+    }
+
+
+    /**
+     * 1件書き込み、Syncが完了するまで待つ.<br>
+     *
+     * @param record 1件分のトランザクションログのレコード
+     * @throw Exception
+     */
+    public void write(byte[] record) throws Exception {
+        if (this.groupCommitDaemon != null) {
+            this.groupCommitDaemon.commit(record);
+            return;
+        }
+
+        this.lock.lock();
+        try {
+            this.bw.write(record);
+            SystemUtil.diskAccessSync(this.bw);
+            this.checkWriterLimit(1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * グループコミットでまとめたトランザクションログを書き込み、Syncする.<br>
+     *
+     * @param logs まとめたトランザクションログ
+     * @param count ログの件数
+     * @throw Exception
+     */
+    public void writeGroupCommit(ByteArrayOutputStream logs, int count) throws Exception {
+        this.lock.lock();
+        try {
+            logs.writeTo(this.bw);
+            SystemUtil.diskAccessSync(this.bw);
+            this.checkWriterLimit(count);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 現在のファイルをローテーションし、新しいファイルへの書き込みを開始する.<br>
+     *
+     * @param nextIndex ローテーション後のインデックス番号
+     * @throw Exception
+     */
+    public void rotate(int nextIndex) throws Exception {
+        this.lock.lock();
+        try {
+            SystemUtil.diskAccessSync(this.bw);
+            this.bw.close();
+            this.bw = null;
+
+            if (!new File(this.filePath).renameTo(new File(this.getRotatedPrefix() + nextIndex))) throw new Exception("Work File Name Change Error");
+
+            this.writeCount = 0;
+            this.bw = KeyMapManager.openTransactionLogStream(this.filePath, true);
+            SystemUtil.diskAccessSync(this.bw);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 現在のファイルを空にして書き込みを開始する.<br>
+     *
+     * @throw Exception
+     */
+    public void reset() throws Exception {
+        this.lock.lock();
+        try {
+            if (this.bw != null) this.bw.close();
+
+            this.writeCount = 0;
+            this.bw = KeyMapManager.openTransactionLogStream(this.filePath, false);
+            SystemUtil.diskAccessSync(this.bw);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 規定回数書き込んだストリームは作り直す
+    private void checkWriterLimit(int count) throws Exception {
+        this.writeCount = this.writeCount + count;
+        if (this.writeCount > ImdstDefine.maxTransactionLogBufferUseCount) {
+            this.bw.flush();
+            this.bw.close();
+            this.bw = KeyMapManager.openTransactionLogStream(this.filePath, true);
+            this.writeCount = 0;
+        }
+    }
+}
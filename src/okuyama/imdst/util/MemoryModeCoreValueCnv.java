@@ -8,7 +8,7 @@ import com.sun.mail.util.BASE64EncoderStream;
 /**
  * 最終保存媒体がMemory時のConverter.<br>
  * Encode仕様:Key=BASE64でデコード後、バイト配列で返す
- *            Value=バイト配列で返す
+ *            Value=バイト配列で返す(先頭のBase64部分はデコードしたバイナリで格納する)
  *
  * Decode仕様:Key=BASE64でエンコード後、Stringで返す
  *            Value=Stringで返す
@@ -21,6 +21,12 @@ public class MemoryModeCoreValueCnv implements ICoreValueConverter {
 
     public volatile static int compressUnderLimitSize = 128;
 
+    // Base64部分をバイナリに変換して格納したデータの先頭の1byte(非圧縮)
+    public static final byte packedMarker = (byte)0xB0;
+
+    // Base64部分をバイナリに変換して格納したデータの先頭の1byte(圧縮)
+    public static final byte packedCompressMarker = (byte)0xB1;
+
     /**
      * 引数のObjectはBase64でエンコード後のString
      * 返却値はCoreMapKey
@@ -44,6 +50,26 @@ public class MemoryModeCoreValueCnv implements ICoreValueConverter {
 
         byte[] valueBytes = ((String)value).getBytes();
 
+        // Base64部分をバイナリに変換して格納
+        if (ImdstDefine.valueBinaryPack) {
+            byte[] packBytes = Base64ValuePacker.pack(valueBytes, 1);
+            if (packBytes != null) {
+
+                if (valueBytes.length < MemoryModeCoreValueCnv.compressUnderLimitSize || !ImdstDefine.saveValueCompress) {
+                    packBytes[0] = packedMarker;
+                    return packBytes;
+                }
+
+                // 先頭の1byteを除いて圧縮
+                packBytes[0] = packedCompressMarker;
+                byte[] compressBytes = SystemUtil.valueCompress(Base64ValuePacker.subArray(packBytes, 1));
+                byte[] returnBytes = new byte[compressBytes.length + 1];
+                returnBytes[0] = packedCompressMarker;
+                System.arraycopy(compressBytes, 0, returnBytes, 1, compressBytes.length);
+                return returnBytes;
+            }
+        }
+
         // 圧縮対象以下の場合は非圧縮
         if (valueBytes.length < MemoryModeCoreValueCnv.compressUnderLimitSize) {
             int size = valueBytes.length+1;
@@ -93,8 +119,17 @@ public class MemoryModeCoreValueCnv implements ICoreValueConverter {
         byte[] valueBytes = (byte[])value;
         String returnStr = null;
 
-        // 先頭が33"!"であるか確認
-        if (valueBytes[0] == 33) {
+        // Base64部分をバイナリに変換して格納しているか確認
+        if (valueBytes.length > 0 && valueBytes[0] == packedMarker) {
+
+            // 非圧縮
+            returnStr = new String(Base64ValuePacker.unpack(valueBytes, 1));
+        } else if (valueBytes.length > 0 && valueBytes[0] == packedCompressMarker) {
+
+            // 圧縮
+            byte[] decompressBytes = SystemUtil.valueDecompress(Base64ValuePacker.subArray(valueBytes, 1));
+            returnStr = new String(Base64ValuePacker.unpack(decompressBytes, 0));
+        } else if (valueBytes[0] == 33) {
 
             // 非圧縮
             returnStr = new String(valueBytes, 1, (valueBytes.length - 1));
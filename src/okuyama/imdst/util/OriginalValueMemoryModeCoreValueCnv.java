@@ -8,7 +8,7 @@ import com.sun.mail.util.BASE64EncoderStream;
 /**
  * 最終保存媒体がMemory時のConverter.<br>
  * Encode仕様:Key=String
- *            Value=String
+ *            Value=バイト配列(先頭のBase64部分はデコードしたバイナリで格納する)
  *
  * Decode仕様:Key=String
  *            Value=String
@@ -39,8 +39,17 @@ public class OriginalValueMemoryModeCoreValueCnv implements ICoreValueConverter
      */
     public Object convertEncodeValue(Object value) {
         if (value == null) return null;
-        
-        return ((String)value).getBytes();
+
+        byte[] valueBytes = ((String)value).getBytes();
+        if (!ImdstDefine.valueBinaryPack) return valueBytes;
+
+        // Base64部分をバイナリに変換して格納
+        // Valueは全てASCII文字のため、先頭の1byteで変換の有無を判断出来る
+        byte[] packBytes = Base64ValuePacker.pack(valueBytes, 1);
+        if (packBytes == null) return valueBytes;
+
+        packBytes[0] = MemoryModeCoreValueCnv.packedMarker;
+        return packBytes;
     }
     
 
@@ -63,7 +72,11 @@ public class OriginalValueMemoryModeCoreValueCnv implements ICoreValueConverter
      */
     public Object convertDecodeValue(Object value) {
         if (value == null) return null;
-        
-        return new String((byte[])value);
+
+        byte[] valueBytes = (byte[])value;
+        if (valueBytes.length > 0 && valueBytes[0] == MemoryModeCoreValueCnv.packedMarker) {
+            return new String(Base64ValuePacker.unpack(valueBytes, 1));
+        }
+        return new String(valueBytes);
     }
 }
@@ -0,0 +1,98 @@
+package okuyama.imdst.util;
+
+/**
+ * 最終保存媒体がFile時でKeyの格納にPackedKeyIndexMapを利用する場合のConverter.<br>
+ * PackedKeyIndexMapはValueをlongで保持するため、データファイル上の位置をlongに詰めて格納する.<br>
+ * Encode仕様:Key=CoreMapKeyに格納して返す
+ *            Value="位置:サイズ"形式の文字列は上位2bitを01とし、位置とサイズを31bitずつ格納したLongで返す
+ *                  数値のみの文字列は上位2bitを10とし、数値を格納したLongで返す
+ *                  Integerはそのまま数値を格納したLongで返す
+ *                  位置、サイズ、数値はいずれも31bitで格納するため、負数の場合はIllegalArgumentExceptionとする
+ *
+ * Decode仕様:Key=Stringで返す
+ *            Value=Encode前の型と値に戻して返す
+ *
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class PackedFileModeCoreValueCnv implements ICoreValueConverter {
+
+    private static final long typeMask = 3L << 62;
+
+    private static final long pointAndSizeType = 1L << 62;
+
+    private static final long numberStringType = 2L << 62;
+
+    private static final long intMask = 0x7FFFFFFFL;
+
+
+    /**
+     * 引数のObjectはBase64でエンコード後のString
+     * 返却値はCoreMapKeyに格納して返す
+     *
+     */
+    public Object convertEncodeKey(Object key) {
+        if (key == null) return null;
+        return new CoreMapKey(((String)key).getBytes());
+    }
+
+
+    /**
+     * 引数はInteger、もしくは"位置:サイズ"形式、数値のみの文字列
+     * 返却値はLong
+     *
+     */
+    public Object convertEncodeValue(Object value) {
+        if (value == null) return null;
+        if (value instanceof Integer) return new Long(checkNotNegative(((Integer)value).intValue(), value));
+
+        String valueStr = value.toString();
+        int sepIdx = valueStr.indexOf(":");
+        if (sepIdx == -1) {
+            return new Long(numberStringType | checkNotNegative(Integer.parseInt(valueStr), value));
+        }
+
+        long point = checkNotNegative(Integer.parseInt(valueStr.substring(0, sepIdx)), value);
+        long size = checkNotNegative(Integer.parseInt(valueStr.substring(sepIdx + 1)), value);
+        return new Long(pointAndSizeType | (point << 31) | size);
+    }
+
+
+    // 31bitで格納出来ない負数は元の値に戻せないため受け付けない
+    private static long checkNotNegative(int number, Object value) {
+        if (number < 0) throw new IllegalArgumentException("PackedFileModeCoreValueCnv - negative value can not be encoded [" + value + "]");
+        return number;
+    }
+
+
+
+    /**
+     * 引数のObjectはCoreMapKey
+     * 返却値はString
+     */
+    public Object convertDecodeKey(Object key) {
+        if (key == null) return null;
+        return new String(((CoreMapKey)key).getDatas());
+    }
+
+
+    /**
+     * 引数のLong型の値
+     * 返却値はEncode前の型と値
+     *
+     */
+    public Object convertDecodeValue(Object value) {
+        if (value == null) return null;
+
+        long longValue = ((Long)value).longValue();
+        long type = longValue & typeMask;
+
+        if (type == pointAndSizeType) {
+            return ((longValue >>> 31) & intMask) + ":" + (longValue & intMask);
+        } else if (type == numberStringType) {
+            return String.valueOf(longValue & intMask);
+        }
+        return new Integer((int)longValue);
+    }
+}
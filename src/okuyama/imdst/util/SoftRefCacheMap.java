@@ -15,7 +15,7 @@ import java.util.*;
  */
 public class SoftRefCacheMap extends Thread {
 
-    private ValueCacheMap innerCacheMap = null;
+    private ConcurrentValueCache innerCacheMap = null;
 
     private volatile boolean cleanerExec = true;
 
@@ -27,7 +27,8 @@ public class SoftRefCacheMap extends Thread {
 
     // コンストラクタ
     public SoftRefCacheMap(int maxCacheCapacity) {
-        this.innerCacheMap =  new ValueCacheMap(maxCacheCapacity);
+        // 1データの重みを1としてデータ数で上限を設ける
+        this.innerCacheMap =  new ConcurrentValueCache(maxCacheCapacity, maxCacheCapacity);
         //this.start();
     }
 
@@ -39,7 +40,7 @@ public class SoftRefCacheMap extends Thread {
      * @param value
      */
     public Object put(Object key, Object value) {
-        SoftReference oldRef = (SoftReference)this.innerCacheMap.put(key, new SoftReference(value));
+        SoftReference oldRef = (SoftReference)this.innerCacheMap.put(key, new SoftReference(value), 1);
         if (oldRef != null) oldRef.clear();
         return null;
     }
@@ -119,7 +120,7 @@ public class SoftRefCacheMap extends Thread {
                     while(keyIte.hasNext()) {
                         Object key = keyIte.next();  
                         SoftReference refValue = (SoftReference)innerCacheMap.get(key);
-                        if (refValue.get()== null)this.innerCacheMap.remove(key);
+                        if (refValue != null && refValue.get()== null)this.innerCacheMap.remove(key);
 
                         if (cleanerExec == false) {
                             exec = false;
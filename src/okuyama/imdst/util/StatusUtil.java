@@ -1,14 +1,19 @@
 package okuyama.imdst.util;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.sun.mail.util.BASE64EncoderStream;
 
+import okuyama.imdst.util.packedmap.PackedKeyIndexMap;
+import okuyama.imdst.util.translog.TransactionLogReplayer;
+
 
 /**
  * システム全般の稼動ステータス管理モジュール.<br>
@@ -40,6 +45,13 @@ public class StatusUtil {
     // ノードの最新の保存データサイズを管理(Nodeの番号がKeyとなる) 0=0番目のDataNodeのすべてのIsolation単位のデータサイズリスト{"X7HY6=12343","all=98768"}
     private static ConcurrentHashMap nodeDataSizeDtMap = new ConcurrentHashMap(50, 40, 300);
 
+    // Valueキャッシュ(名前とConcurrentValueCache)
+    private static ConcurrentHashMap valueCacheMap = new ConcurrentHashMap(16, 0.75f, 4);
+
+    private static ConcurrentHashMap keyIndexMap = new ConcurrentHashMap(16, 0.75f, 4);
+
+    private static ConcurrentHashMap replayStatusMap = new ConcurrentHashMap(16, 0.75f, 4);
+
 
     private static String nowMemoryStatus = null;
 
@@ -361,6 +373,81 @@ public class StatusUtil {
         StatusUtil.nodeDataSizeDtMap.put(nodeNo, sizeList);
     }
     
+    /**
+     * 状態の参照対象となるValueキャッシュを登録する
+     *
+     * @param name キャッシュ名
+     * @param cache キャッシュ
+     */
+    public static void setValueCache(String name, ConcurrentValueCache cache) {
+        StatusUtil.valueCacheMap.put(name, cache);
+    }
+
+    /**
+     * 登録されているValueキャッシュの状態を返す
+     *
+     * @return キャッシュ名と状態文字列のMap
+     */
+    public static Map getValueCacheStatus() {
+        Map ret = new TreeMap();
+        Iterator ite = StatusUtil.valueCacheMap.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            ret.put(entry.getKey(), ((ConcurrentValueCache)entry.getValue()).getStatus());
+        }
+        return ret;
+    }
+
+    /**
+     * 状態の参照対象となるKeyのIndexを登録する
+     *
+     * @param name Index名
+     * @param index Index
+     */
+    public static void setKeyIndex(String name, PackedKeyIndexMap index) {
+        StatusUtil.keyIndexMap.put(name, index);
+    }
+
+    /**
+     * 登録されているKeyのIndexの状態を返す
+     *
+     * @return Index名と状態文字列のMap
+     */
+    public static Map getKeyIndexStatus() {
+        Map ret = new TreeMap();
+        Iterator ite = StatusUtil.keyIndexMap.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            ret.put(entry.getKey(), ((PackedKeyIndexMap)entry.getValue()).getStatus());
+        }
+        return ret;
+    }
+
+    /**
+     * 起動時のトランザクションログの復元状況を登録する
+     *
+     * @param name トランザクションログのファイル名
+     * @param replayer
+     */
+    public static void setReplayStatus(String name, TransactionLogReplayer replayer) {
+        StatusUtil.replayStatusMap.put(name, replayer);
+    }
+
+    /**
+     * 起動時のトランザクションログの復元状況を返す
+     *
+     * @return ファイル名と状態文字列のMap
+     */
+    public static Map getReplayStatus() {
+        Map ret = new TreeMap();
+        Iterator ite = StatusUtil.replayStatusMap.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            ret.put(entry.getKey(), ((TransactionLogReplayer)entry.getValue()).getStatus());
+        }
+        return ret;
+    }
+
     /**
      * DataNodeの格納しているデータサイズを全て削除する
      */
@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.*;
 
 import okuyama.imdst.util.io.*;
+import okuyama.imdst.util.compress.*;
 import okuyama.base.util.ILogger;
 import okuyama.base.util.LoggerFactory;
 
@@ -28,6 +29,22 @@ public class SystemUtil {
     private static ConcurrentLinkedQueue valueCompresserPool = null;
     private static ConcurrentLinkedQueue valueDecompresserPool = null;
 
+    // Value圧縮用のコーデック
+    private static volatile IValueCodec valueCodec = null;
+    private static volatile String valueCodecName = "okuyama.imdst.util.compress.DeflateValueCodec";
+
+    // タグ毎のValue圧縮解除用のコーデック
+    private static IValueCodec[] tagValueCodecs = new IValueCodec[256];
+
+    // 保存データの先頭として既に使用されているためタグに出来ない値
+    // 0x78:Deflate(zlibヘッダー)、'!':メモリ保存時の非圧縮データ、0xB0、0xB1:Base64部分をバイナリに変換したデータ
+    private static final int[] reservedValueCodecTags = {0x78, '!', MemoryModeCoreValueCnv.packedMarker & 0xFF, MemoryModeCoreValueCnv.packedCompressMarker & 0xFF};
+
+    static {
+        IValueCodec lzCodec = new LzValueCodec();
+        tagValueCodecs[lzCodec.getTag()] = lzCodec;
+    }
+
     private static Object[] diskAccessSync = null;
     private static int[] diskAccessSyncCount = null;
 
@@ -376,7 +393,7 @@ public class SystemUtil {
      * Diskへの書き込みをSyncする.<br>
      * 
      * @param fileAccessor FileアクセスStream
-     * @param type Streamの種類 1=BufferedWriter 2=CustomBufferedWriter
+     * @param type Streamの種類 1=BufferedWriter 2=CustomBufferedWriter 3=CustomBufferedOutputStream
      * @throw Exception
      */
     public static int diskAccessSync(Object fileAccessor, boolean auto) throws Exception {
@@ -394,6 +411,11 @@ public class SystemUtil {
                 checkEnd = true;
             }
 
+            if (fileAccessor instanceof CustomBufferedOutputStream) {
+                type = 3;
+                checkEnd = true;
+            }
+
             if (checkEnd == false && fileAccessor instanceof BufferedWriter) {
                 type = 1;
                 checkEnd = true;
@@ -410,10 +432,13 @@ public class SystemUtil {
                 }
             }
 
-            if (type == 2) {
+            if (type == 2 || type == 3) {
                 synchronized (diskAccessSync[syncIdx]) {
-                    CustomBufferedWriter customBufferedWriter = (CustomBufferedWriter)fileAccessor;
-                    customBufferedWriter.flush();
+                    if (type == 2) {
+                        ((CustomBufferedWriter)fileAccessor).flush();
+                    } else {
+                        ((CustomBufferedOutputStream)fileAccessor).flush();
+                    }
                     if (ImdstDefine.transactionLogFsyncType > 0) {
                         diskAccessSyncCount[syncIdx]++;
                         FileDescriptor fd = null;
@@ -421,13 +446,13 @@ public class SystemUtil {
                         switch (ImdstDefine.transactionLogFsyncType) {
                             case 4 :
 
-                                fd = ((CustomBufferedWriter)fileAccessor).getFD();
+                                fd = getFileDescriptor(fileAccessor, type);
                                 fd.sync();
                                 break;
 
                             case 3 :
                                 if (diskAccessSyncCount[syncIdx] > 5) {
-                                    fd = ((CustomBufferedWriter)fileAccessor).getFD();
+                                    fd = getFileDescriptor(fileAccessor, type);
                                     fd.sync();
                                     diskAccessSyncCount[syncIdx] = 0;
                                 }
@@ -436,7 +461,7 @@ public class SystemUtil {
                             case 2 :
                                 if (diskAccessSyncCount[syncIdx] > 25) {
 
-                                    fd = ((CustomBufferedWriter)fileAccessor).getFD();
+                                    fd = getFileDescriptor(fileAccessor, type);
                                     fd.sync();
                                     diskAccessSyncCount[syncIdx] = 0;
                                 }
@@ -445,7 +470,7 @@ public class SystemUtil {
                             case 1 :
                                 if (diskAccessSyncCount[syncIdx] > 50) {
 
-                                    fd = ((CustomBufferedWriter)fileAccessor).getFD();
+                                    fd = getFileDescriptor(fileAccessor, type);
                                     fd.sync();
                                     diskAccessSyncCount[syncIdx] = 0;
                                 }
@@ -461,6 +486,11 @@ public class SystemUtil {
         return 0;
     }
 
+    private static FileDescriptor getFileDescriptor(Object fileAccessor, int type) throws Exception {
+        if (type == 2) return ((CustomBufferedWriter)fileAccessor).getFD();
+        return ((CustomBufferedOutputStream)fileAccessor).getFD();
+    }
+
     /**
      * 指定された値を時間に置き換えた場合に現在時間を過ぎているかをチェックする.<br>
      *
@@ -542,16 +572,90 @@ public class SystemUtil {
 
     /**
      * Value用圧縮処理.<br>
+     * 指定されたコーデックで圧縮出来ない場合はDeflateで圧縮する.<br>
      *
      * @param src
      * @return byte[]
      */
     public static byte[] valueCompress(byte[] src) {
         if (!ImdstDefine.saveValueCompress) return src;
+
+        IValueCodec codec = getValueCodec();
+        if (codec == null) return dataCompress(src);
+
+        try {
+            return codec.compress(src);
+        } catch (Exception e) {
+            // Deflateで圧縮したValueはタグを持たないため、コーデックに関わらず圧縮解除出来る
+            e.printStackTrace();
+        }
         return dataCompress(src);
     }
 
 
+    /**
+     * ImdstDefine.valueCompressCodecで指定されたコーデックを生成し、圧縮解除用に登録する.<br>
+     * 起動時に呼び出すことで、再起動前に同じコーデックで圧縮されたValueを<br>
+     * 新たに圧縮が行われる前でも圧縮解除出来るようにする.<br>
+     *
+     * @throws Exception コーデックが生成出来ない、もしくはタグが利用出来ない値の場合
+     */
+    public static void initValueCodec() throws Exception {
+        synchronized (compressSync) {
+            String codecName = ImdstDefine.valueCompressCodec;
+            valueCodec = createValueCodec(codecName);
+            valueCodecName = codecName;
+        }
+    }
+
+
+    // ImdstDefine.valueCompressCodecで指定されたコーデックを返す
+    // Deflateの場合はnull
+    private static IValueCodec getValueCodec() {
+        String codecName = ImdstDefine.valueCompressCodec;
+        if (codecName == valueCodecName) return valueCodec;
+
+        synchronized (compressSync) {
+            if (codecName == valueCodecName) return valueCodec;
+
+            IValueCodec codec = null;
+            try {
+                codec = createValueCodec(codecName);
+            } catch (Exception e) {
+                // 生成出来ない場合はDeflateを利用する
+                e.printStackTrace();
+                codec = null;
+            }
+            valueCodec = codec;
+            valueCodecName = codecName;
+            return codec;
+        }
+    }
+
+
+    // コーデックを生成し、タグを圧縮解除用に登録する
+    // Deflateの場合はnull
+    private static IValueCodec createValueCodec(String codecName) throws Exception {
+        if (codecName == null || codecName.equals(DeflateValueCodec.class.getName())) return null;
+
+        IValueCodec codec = (IValueCodec)Class.forName(codecName).getDeclaredConstructor().newInstance();
+        int tag = codec.getTag();
+        if (tag < 0 || tag >= tagValueCodecs.length) 
+            throw new IllegalArgumentException("Value codec tag out of range " + codecName + " tag=" + tag);
+
+        for (int i = 0; i < reservedValueCodecTags.length; i++) {
+            if (tag == reservedValueCodecTags[i]) 
+                throw new IllegalArgumentException("Value codec tag is reserved " + codecName + " tag=" + tag);
+        }
+
+        if (tagValueCodecs[tag] != null && !tagValueCodecs[tag].getClass().equals(codec.getClass())) 
+            throw new IllegalArgumentException("Value codec tag is already used by " + tagValueCodecs[tag].getClass().getName() + " " + codecName + " tag=" + tag);
+
+        tagValueCodecs[tag] = codec;
+        return codec;
+    }
+
+
     /**
      * 圧縮処理.<br>
      *
@@ -596,7 +700,18 @@ public class SystemUtil {
      */
     public static byte[] valueDecompress(byte[] src) {
         if (!ImdstDefine.saveValueCompress) return src;
-        return dataDecompress(src);
+
+        // 先頭のタグでコーデックを選択する。タグが無い場合はDeflate
+        IValueCodec codec = null;
+        if (src.length > 0) codec = tagValueCodecs[src[0] & 0xFF];
+        if (codec == null) return dataDecompress(src);
+
+        try {
+            return codec.decompress(src);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
     }
 
 
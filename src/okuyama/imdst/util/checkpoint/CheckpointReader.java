@@ -0,0 +1,218 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * チェックポイントファイルを先頭から順に読み込む.<br>
+ * チェックポイントファイルには全てのバケットを持つベースイメージと、変更のあったバケットのみを持つ差分がある.<br>
+ * レイアウトは以下.数値は全てビッグエンディアン.<br>
+ * [ヘッダー(マジック"OKCP" + バージョン)][種別(1byte)][チェックポイント時間(8byte)][バケット数(4byte)]<br>
+ * [保存データサイズ数(4byte)][(ユニークキー(UTF) + サイズ(8byte)) * 保存データサイズ数]<br>
+ * [対象バケットのビットマップ(8byte * ((バケット数 + 63) / 64))]<br>
+ * [(バケット番号(4byte) + Keyのレングス(4byte) + Key + Valueのレングス(4byte) + Value) * データ数]<br>
+ * [終端(-1)(4byte)][終端までのCRC32C(4byte)]<br>
+ * ビットマップに含まれるバケットは、このファイルのデータがそのバケットの全データとなる.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class CheckpointReader {
+
+    // フォーマットのバージョン
+    public static final int formatVersion = 1;
+
+    // ファイルヘッダー
+    public static final byte[] fileHeader = {'O', 'K', 'C', 'P', 0, 0, 0, (byte)formatVersion};
+
+    // 種別:ベースイメージ
+    public static final byte kindBase = 0;
+
+    // 種別:差分
+    public static final byte kindDelta = 1;
+
+    public static final Charset charset = Charset.forName(ImdstDefine.keyWorkFileEncoding);
+
+    private File file = null;
+
+    private CheckedInputStream cis = null;
+
+    private DataInputStream dis = null;
+
+    private byte kind = 0;
+
+    private long checkpointTime = 0L;
+
+    private int bucketCount = 0;
+
+    private Map dataSizeMap = null;
+
+    private BitSet buckets = null;
+
+    private int bucket = -1;
+
+    private byte[] key = null;
+
+    private byte[] value = null;
+
+
+    /**
+     * コンストラクタ.<br>
+     * ヘッダーが不正な場合はIOException.<br>
+     *
+     * @param file
+     * @throw IOException
+     */
+    public CheckpointReader(File file) throws IOException {
+        this.file = file;
+        this.cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 8192 * 24), new CRC32C());
+        this.dis = new DataInputStream(this.cis);
+
+        try {
+            byte[] header = new byte[fileHeader.length];
+            this.dis.readFully(header);
+            if (!checkHeader(header)) throw new IOException("Not checkpoint file " + file.getAbsolutePath());
+
+            this.kind = this.dis.readByte();
+            this.checkpointTime = this.dis.readLong();
+            this.bucketCount = this.dis.readInt();
+            if (this.bucketCount < 1) throw new IOException("Illegal bucket count " + this.bucketCount + " " + file.getAbsolutePath());
+
+            this.dataSizeMap = new ConcurrentHashMap(20, 16, 16);
+            int sizeCount = this.dis.readInt();
+            for (int i = 0; i < sizeCount; i++) {
+                String unique = this.dis.readUTF();
+                this.dataSizeMap.put(unique, new AtomicLong(this.dis.readLong()));
+            }
+
+            long[] bucketWords = new long[(this.bucketCount + 63) / 64];
+            for (int i = 0; i < bucketWords.length; i++) {
+                bucketWords[i] = this.dis.readLong();
+            }
+            this.buckets = BitSet.valueOf(bucketWords);
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * 指定のファイルがチェックポイントファイルかを返す.<br>
+     * ファイルが存在しない場合、従来のObject形式の場合はfalse.<br>
+     *
+     * @param file
+     * @return boolean
+     */
+    public static boolean isCheckpointFile(File file) {
+        if (file == null || !file.exists() || file.length() < fileHeader.length) return false;
+
+        try {
+            byte[] header = new byte[fileHeader.length];
+            DataInputStream dis = new DataInputStream(new FileInputStream(file));
+            try {
+                dis.readFully(header);
+            } finally {
+                dis.close();
+            }
+            return checkHeader(header);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    private static boolean checkHeader(byte[] header) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            if (header[i] != fileHeader[i]) return false;
+        }
+
+        int version = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+        if (version > formatVersion) throw new IOException("Unsupported checkpoint version " + version);
+        return true;
+    }
+
+
+    /**
+     * 次のデータを読み込む.<br>
+     * 終端に達した場合はCRC32Cを検証してfalseを返す.不一致の場合はIOException.<br>
+     *
+     * @return boolean
+     * @throw IOException
+     */
+    public boolean next() throws IOException {
+        this.bucket = this.dis.readInt();
+        if (this.bucket < 0) {
+            int crc = (int)this.cis.getChecksum().getValue();
+            if (this.dis.readInt() != crc) throw new IOException("Checkpoint checksum error " + this.file.getAbsolutePath());
+            return false;
+        }
+        if (this.bucket >= this.bucketCount) throw new IOException("Illegal bucket " + this.bucket + " " + this.file.getAbsolutePath());
+
+        this.key = new byte[this.dis.readInt()];
+        this.dis.readFully(this.key);
+        this.value = new byte[this.dis.readInt()];
+        this.dis.readFully(this.value);
+        return true;
+    }
+
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public byte getKind() {
+        return this.kind;
+    }
+
+    public long getCheckpointTime() {
+        return this.checkpointTime;
+    }
+
+    public int getBucketCount() {
+        return this.bucketCount;
+    }
+
+    public Map getDataSizeMap() {
+        return this.dataSizeMap;
+    }
+
+    public BitSet getBuckets() {
+        return this.buckets;
+    }
+
+    public int getBucket() {
+        return this.bucket;
+    }
+
+    public byte[] getKeyBytes() {
+        return this.key;
+    }
+
+    public byte[] getValueBytes() {
+        return this.value;
+    }
+
+    public String getKey() {
+        return new String(this.key, charset);
+    }
+
+    public String getValue() {
+        return new String(this.value, charset);
+    }
+
+
+    public void close() {
+        try {
+            if (this.dis != null) this.dis.close();
+        } catch (Exception e) {
+        }
+    }
+}
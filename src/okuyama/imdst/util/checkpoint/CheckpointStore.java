@@ -0,0 +1,288 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ベースイメージと差分からなるチェックポイントを管理する.<br>
+ * ベースイメージは指定のファイル名、差分は"ファイル名.delta" + 連番で作成する.<br>
+ * 復元時は新しい差分から順に読み込み、あるバケットを最初に含んでいたファイルのデータをそのバケットのデータとする.<br>
+ * ベースイメージより古い(チェックポイント時間が同じか前の)差分は既にベースイメージに含まれているため無視する.<br>
+ * 差分の統合(merge)も同様の規則で、Mapを経由せずにファイル同士で行う.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class CheckpointStore {
+
+    // チェックポイント時間を作成開始時間からずらす時間(ミリ秒)
+    // 作成中の更新と、トランザクションログの時間の取得間隔の誤差はこの時間分のログの再実行で補う
+    public static final long checkpointOverlapTime = 10000L;
+
+    private static final String deltaSuffix = ".delta";
+
+    private File baseFile = null;
+
+    private long checkpointTime = 0L;
+
+    private Map dataSizeMap = null;
+
+    private long restoreCount = 0L;
+
+
+    public CheckpointStore(File baseFile) {
+        this.baseFile = baseFile;
+    }
+
+
+    /**
+     * ベースイメージのバケット数を返す.<br>
+     * ベースイメージが存在しない、または従来のObject形式の場合は-1.<br>
+     *
+     * @return int
+     */
+    public int getBaseBucketCount() {
+        if (!CheckpointReader.isCheckpointFile(this.baseFile)) return -1;
+
+        CheckpointReader reader = null;
+        try {
+            reader = new CheckpointReader(this.baseFile);
+            return reader.getBucketCount();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (reader != null) reader.close();
+        }
+    }
+
+
+    /**
+     * 現在の差分ファイルを返す.<br>
+     *
+     * @return File[]
+     */
+    public File[] getDeltaFiles() {
+        File dir = this.baseFile.getAbsoluteFile().getParentFile();
+        String prefix = this.baseFile.getName() + deltaSuffix;
+
+        List ret = new ArrayList();
+        String[] names = dir.list();
+        if (names == null) return new File[0];
+
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].startsWith(prefix) && isNumber(names[i].substring(prefix.length()))) {
+                ret.add(new File(dir, names[i]));
+            }
+        }
+        return (File[])ret.toArray(new File[0]);
+    }
+
+
+    public int getDeltaCount() {
+        return this.getDeltaFiles().length;
+    }
+
+
+    /**
+     * 復元した場合のチェックポイント時間(ベースイメージと有効な差分のうち最も新しい時間)を返す.<br>
+     * ベースイメージが存在しない、または読み込めない場合は0.<br>
+     *
+     * @return long
+     */
+    public long getLatestCheckpointTime() {
+        if (!CheckpointReader.isCheckpointFile(this.baseFile)) return 0L;
+
+        try {
+            List readers = this.openReaders();
+            long ret = ((CheckpointReader)readers.get(0)).getCheckpointTime();
+            this.closeReaders(readers);
+            return ret;
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+
+    /**
+     * チェックポイントの書き出し用のWriterを作成する.<br>
+     * ベースイメージの場合は全てのバケットが対象となる.<br>
+     *
+     * @param base true:ベースイメージ false:差分
+     * @param checkpointTime
+     * @param bucketCount
+     * @param buckets 差分の対象バケット
+     * @param dataSizeMap
+     * @return CheckpointWriter
+     * @throw IOException
+     */
+    public CheckpointWriter createWriter(boolean base, long checkpointTime, int bucketCount, BitSet buckets, Map dataSizeMap) throws IOException {
+        if (base) {
+            BitSet allBuckets = new BitSet(bucketCount);
+            allBuckets.set(0, bucketCount);
+            return new CheckpointWriter(this.baseFile, CheckpointReader.kindBase, checkpointTime, bucketCount, allBuckets, dataSizeMap);
+        }
+
+        int nextIndex = 0;
+        File[] deltaFiles = this.getDeltaFiles();
+        String prefix = this.baseFile.getName() + deltaSuffix;
+        for (int i = 0; i < deltaFiles.length; i++) {
+            int index = Integer.parseInt(deltaFiles[i].getName().substring(prefix.length()));
+            if (index >= nextIndex) nextIndex = index + 1;
+        }
+        File deltaFile = new File(this.baseFile.getAbsolutePath() + deltaSuffix + nextIndex);
+        return new CheckpointWriter(deltaFile, CheckpointReader.kindDelta, checkpointTime, bucketCount, buckets, dataSizeMap);
+    }
+
+
+    /**
+     * ベースイメージと差分からデータを復元する.<br>
+     * 復元後のチェックポイント時間と保存データサイズはgetCheckpointTime、getDataSizeMapで取得する.<br>
+     *
+     * @param applier 復元したデータの反映先
+     * @throw IOException
+     */
+    public void restore(final ICheckpointApplier applier) throws IOException {
+        this.restoreCount = 0L;
+        this.readNewestFirst(new EntryHandler() {
+            public void handle(CheckpointReader reader) throws IOException {
+                applier.applyEntry(reader.getKey(), reader.getValue());
+                restoreCount++;
+            }
+        });
+    }
+
+
+    /**
+     * 差分をベースイメージに統合し、差分を削除する.<br>
+     *
+     * @throw IOException
+     */
+    public void merge() throws IOException {
+        CheckpointReader base = new CheckpointReader(this.baseFile);
+        int bucketCount = base.getBucketCount();
+        base.close();
+
+        List readers = this.openReaders();
+        long mergeTime = ((CheckpointReader)readers.get(0)).getCheckpointTime();
+        Map mergeDataSizeMap = ((CheckpointReader)readers.get(0)).getDataSizeMap();
+        this.closeReaders(readers);
+
+        // 一時ファイルに書き出し、読み込み完了後にベースイメージを置き換える
+        final CheckpointWriter writer = this.createWriter(true, mergeTime, bucketCount, null, mergeDataSizeMap);
+        try {
+            this.readNewestFirst(new EntryHandler() {
+                public void handle(CheckpointReader reader) throws IOException {
+                    writer.write(reader.getBucket(), reader.getKeyBytes(), reader.getValueBytes());
+                }
+            });
+            writer.commit();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+
+        this.deleteDeltas();
+    }
+
+
+    /**
+     * 差分を全て削除する.<br>
+     */
+    public void deleteDeltas() {
+        File[] deltaFiles = this.getDeltaFiles();
+        for (int i = 0; i < deltaFiles.length; i++) {
+            deltaFiles[i].delete();
+        }
+    }
+
+
+    public long getCheckpointTime() {
+        return this.checkpointTime;
+    }
+
+    public Map getDataSizeMap() {
+        return this.dataSizeMap;
+    }
+
+    public long getRestoreCount() {
+        return this.restoreCount;
+    }
+
+
+    // 新しいファイルから順に読み込み、まだ読み込んでいないバケットのデータのみhandlerに渡す
+    private void readNewestFirst(EntryHandler handler) throws IOException {
+        List readers = this.openReaders();
+        try {
+            CheckpointReader newest = (CheckpointReader)readers.get(0);
+            this.checkpointTime = newest.getCheckpointTime();
+            this.dataSizeMap = newest.getDataSizeMap();
+
+            BitSet resolved = new BitSet(newest.getBucketCount());
+            for (int i = 0; i < readers.size(); i++) {
+                CheckpointReader reader = (CheckpointReader)readers.get(i);
+                BitSet target = (BitSet)reader.getBuckets().clone();
+                target.andNot(resolved);
+
+                while (reader.next()) {
+                    if (target.get(reader.getBucket())) handler.handle(reader);
+                }
+                resolved.or(target);
+            }
+        } finally {
+            this.closeReaders(readers);
+        }
+    }
+
+
+    // ベースイメージと、ベースイメージより新しい差分を新しい順に開く
+    private List openReaders() throws IOException {
+        List ret = new ArrayList();
+        CheckpointReader base = new CheckpointReader(this.baseFile);
+        try {
+            File[] deltaFiles = this.getDeltaFiles();
+            for (int i = 0; i < deltaFiles.length; i++) {
+                CheckpointReader delta = new CheckpointReader(deltaFiles[i]);
+                if (delta.getCheckpointTime() > base.getCheckpointTime() && delta.getBucketCount() == base.getBucketCount()) {
+                    ret.add(delta);
+                } else {
+                    delta.close();
+                }
+            }
+        } catch (IOException e) {
+            base.close();
+            this.closeReaders(ret);
+            throw e;
+        }
+
+        Collections.sort(ret, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long time1 = ((CheckpointReader)o1).getCheckpointTime();
+                long time2 = ((CheckpointReader)o2).getCheckpointTime();
+                return time1 > time2 ? -1 : (time1 == time2 ? 0 : 1);
+            }
+        });
+        ret.add(base);
+        return ret;
+    }
+
+
+    private void closeReaders(List readers) {
+        for (int i = 0; i < readers.size(); i++) {
+            ((CheckpointReader)readers.get(i)).close();
+        }
+    }
+
+
+    private static boolean isNumber(String str) {
+        if (str.length() == 0 || str.length() > 9) return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (!Character.isDigit(str.charAt(i))) return false;
+        }
+        return true;
+    }
+
+
+    private interface EntryHandler {
+        public void handle(CheckpointReader reader) throws IOException;
+    }
+}
@@ -0,0 +1,136 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * チェックポイントファイルを書き出す.<br>
+ * 一時ファイルに書き出し、commitで同期後に本来のファイル名に変更する.<br>
+ * フォーマットはCheckpointReaderを参照.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class CheckpointWriter {
+
+    private File file = null;
+
+    private File tmpFile = null;
+
+    private FileOutputStream fos = null;
+
+    private CheckedOutputStream cos = null;
+
+    private DataOutputStream dos = null;
+
+    private long entryCount = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param file 書き出し先
+     * @param kind CheckpointReader.kindBase or CheckpointReader.kindDelta
+     * @param checkpointTime このチェックポイントで復元されるトランザクションログの時間
+     * @param bucketCount バケット数
+     * @param buckets 書き出し対象のバケット
+     * @param dataSizeMap 保存データサイズ
+     * @throw IOException
+     */
+    public CheckpointWriter(File file, byte kind, long checkpointTime, int bucketCount, BitSet buckets, Map dataSizeMap) throws IOException {
+        this.file = file;
+        this.tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        this.fos = new FileOutputStream(this.tmpFile, false);
+        this.cos = new CheckedOutputStream(new BufferedOutputStream(this.fos, 8192 * 24), new CRC32C());
+        this.dos = new DataOutputStream(this.cos);
+
+        this.dos.write(CheckpointReader.fileHeader);
+        this.dos.writeByte(kind);
+        this.dos.writeLong(checkpointTime);
+        this.dos.writeInt(bucketCount);
+
+        // 保存データサイズ
+        List sizeList = new ArrayList();
+        if (dataSizeMap != null) {
+            for (Iterator ite = dataSizeMap.entrySet().iterator(); ite.hasNext();) {
+                Map.Entry entry = (Map.Entry)ite.next();
+                if (entry.getValue() instanceof AtomicLong) sizeList.add(entry);
+            }
+        }
+        this.dos.writeInt(sizeList.size());
+        for (int i = 0; i < sizeList.size(); i++) {
+            Map.Entry entry = (Map.Entry)sizeList.get(i);
+            this.dos.writeUTF((String)entry.getKey());
+            this.dos.writeLong(((AtomicLong)entry.getValue()).get());
+        }
+
+        // 対象バケット
+        long[] bucketWords = buckets.toLongArray();
+        int wordCount = (bucketCount + 63) / 64;
+        for (int i = 0; i < wordCount; i++) {
+            this.dos.writeLong(i < bucketWords.length ? bucketWords[i] : 0L);
+        }
+    }
+
+
+    /**
+     * 1件分のデータを書き出す.<br>
+     *
+     * @param bucket
+     * @param key
+     * @param value
+     * @throw IOException
+     */
+    public void write(int bucket, String key, String value) throws IOException {
+        this.write(bucket, key.getBytes(CheckpointReader.charset), value.getBytes(CheckpointReader.charset));
+    }
+
+
+    public void write(int bucket, byte[] key, byte[] value) throws IOException {
+        this.dos.writeInt(bucket);
+        this.dos.writeInt(key.length);
+        this.dos.write(key);
+        this.dos.writeInt(value.length);
+        this.dos.write(value);
+        this.entryCount++;
+    }
+
+
+    public long getEntryCount() {
+        return this.entryCount;
+    }
+
+
+    /**
+     * 終端とCRC32Cを書き込み、同期後にファイル名を変更する.<br>
+     *
+     * @throw IOException
+     */
+    public void commit() throws IOException {
+        this.dos.writeInt(-1);
+        this.dos.flush();
+
+        int crc = (int)this.cos.getChecksum().getValue();
+        this.dos.writeInt(crc);
+        this.dos.flush();
+        this.fos.getFD().sync();
+        this.dos.close();
+
+        if (!this.tmpFile.renameTo(this.file)) throw new IOException("Checkpoint file rename error " + this.file.getAbsolutePath());
+    }
+
+
+    /**
+     * 書き出しを中止し、一時ファイルを削除する.<br>
+     */
+    public void abort() {
+        try {
+            this.dos.close();
+        } catch (Exception e) {
+        }
+        this.tmpFile.delete();
+    }
+}
@@ -0,0 +1,113 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 前回のチェックポイント以降に変更されたKeyのハッシュバケットを管理する.<br>
+ * バケット毎に変更の度に加算されるバージョンを持ち、チェックポイント作成時に取得したバージョンと<br>
+ * 異なるバケットを変更ありとする.<br>
+ * チェックポイントの作成中に変更されたバケットはバージョンが変わるため、次回のチェックポイントで再度対象となる.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class DirtyBucketTracker {
+
+    private int bucketCount = 0;
+
+    // バケット毎の変更バージョン
+    private AtomicIntegerArray versions = null;
+
+    // 最後にチェックポイントを作成した時点のバージョン
+    private int[] checkpointVersions = null;
+
+
+    public DirtyBucketTracker(int bucketCount) {
+        this.bucketCount = bucketCount;
+        this.versions = new AtomicIntegerArray(bucketCount);
+        this.checkpointVersions = new int[bucketCount];
+    }
+
+
+    public int getBucketCount() {
+        return this.bucketCount;
+    }
+
+
+    /**
+     * Keyのバケット番号を返す.<br>
+     *
+     * @param key
+     * @return int
+     */
+    public int bucket(Object key) {
+        return bucket(key, this.bucketCount);
+    }
+
+
+    public static int bucket(Object key, int bucketCount) {
+        return (key.hashCode() & 0x7FFFFFFF) % bucketCount;
+    }
+
+
+    /**
+     * Keyのバケットを変更ありとする.<br>
+     * Mapへの反映後に呼び出す.<br>
+     *
+     * @param key
+     */
+    public void mark(Object key) {
+        this.versions.incrementAndGet(this.bucket(key));
+    }
+
+
+    /**
+     * 全てのバケットを変更ありとする.<br>
+     */
+    public void markAll() {
+        for (int i = 0; i < this.bucketCount; i++) {
+            this.versions.incrementAndGet(i);
+        }
+    }
+
+
+    /**
+     * 現在のバージョンを取得する.<br>
+     * チェックポイント作成時はMapの走査前に取得する.<br>
+     *
+     * @return int[]
+     */
+    public int[] snapshot() {
+        int[] ret = new int[this.bucketCount];
+        for (int i = 0; i < this.bucketCount; i++) {
+            ret[i] = this.versions.get(i);
+        }
+        return ret;
+    }
+
+
+    /**
+     * 指定のバージョンで前回のチェックポイントから変更のあるバケットを返す.<br>
+     *
+     * @param snapshot snapshotで取得したバージョン
+     * @return BitSet
+     */
+    public BitSet getDirtyBuckets(int[] snapshot) {
+        BitSet ret = new BitSet(this.bucketCount);
+        for (int i = 0; i < this.bucketCount; i++) {
+            if (snapshot[i] != this.checkpointVersions[i]) ret.set(i);
+        }
+        return ret;
+    }
+
+
+    /**
+     * チェックポイントの書き出し完了後に呼び出し、書き出したバージョンを記録する.<br>
+     *
+     * @param snapshot snapshotで取得したバージョン
+     */
+    public void commit(int[] snapshot) {
+        this.checkpointVersions = snapshot;
+    }
+}
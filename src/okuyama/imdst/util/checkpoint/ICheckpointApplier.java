@@ -0,0 +1,19 @@
+package okuyama.imdst.util.checkpoint;
+
+/**
+ * チェックポイントから復元したデータを反映するインターフェース.<br>
+ * 同一のKeyが複数回呼び出されることはない.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public interface ICheckpointApplier {
+
+    /**
+     * 1件分のデータを反映する.<br>
+     *
+     * @param key
+     * @param value
+     */
+    public void applyEntry(String key, String value);
+}
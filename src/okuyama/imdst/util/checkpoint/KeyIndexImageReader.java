@@ -0,0 +1,285 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Fileモード時のKeyのIndex(Keyとデータファイル上の位置)のイメージファイルを読み込む.<br>
+ * イメージファイルは停止時とチェックポイント作成時に全てのKeyを書き出したもので、<br>
+ * 差分の解決や1件毎のストリーム読み込みを行わずに、セクション単位でメモリマップして複数スレッドで並列に反映する.<br>
+ * レイアウトは以下.数値は全てビッグエンディアン.<br>
+ * [ヘッダー(マジック"OKIX" + バージョン)]<br>
+ * [セクション(Keyのレングス(4byte) + Key + Valueのレングス(4byte) + Value) * データ数] * セクション数<br>
+ * [管理情報:チェックポイント時間(8byte)][保存データサイズ数(4byte)][(ユニークキー(UTF) + サイズ(8byte)) * 保存データサイズ数]<br>
+ * [セクション数(4byte)][(開始位置(8byte) + レングス(8byte) + データ数(4byte) + セクションのCRC32C(4byte)) * セクション数]<br>
+ * [管理情報の開始位置(8byte)][管理情報のCRC32C(4byte)][終端マジック"OKIX"]<br>
+ * 同一のKeyは1つのイメージファイルに1度しか含まれない.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class KeyIndexImageReader {
+
+    // フォーマットのバージョン
+    public static final int formatVersion = 1;
+
+    // ファイルヘッダー
+    public static final byte[] fileHeader = {'O', 'K', 'I', 'X', 0, 0, 0, (byte)formatVersion};
+
+    // 終端の固定長部分のサイズ
+    static final int trailerSize = 8 + 4 + 4;
+
+    // バックアップファイル名に付加するイメージファイルの接尾辞
+    private static final String imageSuffix = ".image";
+
+    private File file = null;
+
+    private long checkpointTime = 0L;
+
+    private Map dataSizeMap = null;
+
+    private long[] sectionOffsets = null;
+
+    private long[] sectionLengths = null;
+
+    private int[] sectionCounts = null;
+
+    private int[] sectionCrcs = null;
+
+    private long entryCount = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     * ヘッダー、終端、管理情報のCRC32Cを検証する.不正な場合はIOException.<br>
+     *
+     * @param file
+     * @throw IOException
+     */
+    public KeyIndexImageReader(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = raf.length();
+            if (fileLength < fileHeader.length + trailerSize) throw new IOException("Not key index image " + file.getAbsolutePath());
+
+            byte[] header = new byte[fileHeader.length];
+            raf.readFully(header);
+            if (!Arrays.equals(header, fileHeader)) throw new IOException("Not key index image " + file.getAbsolutePath());
+
+            raf.seek(fileLength - trailerSize);
+            long infoOffset = raf.readLong();
+            int infoCrc = raf.readInt();
+            byte[] endMagic = new byte[4];
+            raf.readFully(endMagic);
+            if (endMagic[0] != 'O' || endMagic[1] != 'K' || endMagic[2] != 'I' || endMagic[3] != 'X') throw new IOException("Key index image end error " + file.getAbsolutePath());
+            if (infoOffset < fileHeader.length || infoOffset > fileLength - trailerSize) throw new IOException("Key index image offset error " + file.getAbsolutePath());
+
+            byte[] info = new byte[(int)(fileLength - trailerSize - infoOffset)];
+            raf.seek(infoOffset);
+            raf.readFully(info);
+
+            CRC32C crc = new CRC32C();
+            crc.update(info, 0, info.length);
+            if ((int)crc.getValue() != infoCrc) throw new IOException("Key index image checksum error " + file.getAbsolutePath());
+
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(info));
+            this.checkpointTime = dis.readLong();
+
+            this.dataSizeMap = new ConcurrentHashMap(20, 16, 16);
+            int sizeCount = dis.readInt();
+            for (int i = 0; i < sizeCount; i++) {
+                String unique = dis.readUTF();
+                this.dataSizeMap.put(unique, new AtomicLong(dis.readLong()));
+            }
+
+            int sectionCount = dis.readInt();
+            this.sectionOffsets = new long[sectionCount];
+            this.sectionLengths = new long[sectionCount];
+            this.sectionCounts = new int[sectionCount];
+            this.sectionCrcs = new int[sectionCount];
+            for (int i = 0; i < sectionCount; i++) {
+                this.sectionOffsets[i] = dis.readLong();
+                this.sectionLengths[i] = dis.readLong();
+                this.sectionCounts[i] = dis.readInt();
+                this.sectionCrcs[i] = dis.readInt();
+                if (this.sectionOffsets[i] < fileHeader.length || this.sectionOffsets[i] + this.sectionLengths[i] > infoOffset) {
+                    throw new IOException("Key index image section error " + file.getAbsolutePath());
+                }
+                this.entryCount = this.entryCount + this.sectionCounts[i];
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * バックアップファイルに対応するイメージファイルを返す.<br>
+     *
+     * @param bkupFile バックアップファイル
+     * @return File
+     */
+    public static File getImageFile(File bkupFile) {
+        return new File(bkupFile.getAbsolutePath() + imageSuffix);
+    }
+
+
+    /**
+     * 指定のファイルがイメージファイルかを返す.<br>
+     *
+     * @param file
+     * @return boolean
+     */
+    public static boolean isKeyIndexImage(File file) {
+        if (file == null || !file.exists() || file.length() < fileHeader.length + trailerSize) return false;
+
+        try {
+            byte[] header = new byte[fileHeader.length];
+            DataInputStream dis = new DataInputStream(new FileInputStream(file));
+            try {
+                dis.readFully(header);
+            } finally {
+                dis.close();
+            }
+            return Arrays.equals(header, fileHeader);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * 全てのデータを反映する.<br>
+     * セクション毎にメモリマップしてCRC32Cを検証後、反映する.<br>
+     * 複数スレッドで反映する場合、applierはスレッドセーフである必要がある.<br>
+     * 検証に失敗した場合はIOException.その場合も他のセクションのデータは反映されている可能性がある.<br>
+     *
+     * @param applier 反映先
+     * @param threadCount 反映を行うスレッド数
+     * @return long 反映件数
+     * @throw IOException
+     */
+    public long load(ICheckpointApplier applier, int threadCount) throws IOException {
+        FileChannel channel = new FileInputStream(this.file).getChannel();
+        try {
+            if (threadCount < 2 || this.sectionOffsets.length < 2) {
+                for (int i = 0; i < this.sectionOffsets.length; i++) {
+                    this.loadSection(channel, i, applier);
+                }
+                return this.entryCount;
+            }
+
+            AtomicInteger nextSection = new AtomicInteger(0);
+            int workerCount = Math.min(threadCount, this.sectionOffsets.length);
+            LoadWorker[] workers = new LoadWorker[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new LoadWorker(channel, nextSection, applier);
+                workers[i].start();
+            }
+
+            IOException error = null;
+            for (int i = 0; i < workerCount; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException ie) {
+                    error = new IOException("Key index image load interrupted");
+                }
+                if (workers[i].error != null) error = workers[i].error;
+            }
+            if (error != null) throw error;
+            return this.entryCount;
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    // 1セクション分を反映
+    private void loadSection(FileChannel channel, int section, ICheckpointApplier applier) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, this.sectionOffsets[section], this.sectionLengths[section]);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate());
+        if ((int)crc.getValue() != this.sectionCrcs[section]) throw new IOException("Key index image section checksum error " + section + " " + this.file.getAbsolutePath());
+
+        for (int i = 0; i < this.sectionCounts[section]; i++) {
+            String key = readString(buf);
+            String value = readString(buf);
+            applier.applyEntry(key, value);
+        }
+    }
+
+
+    private String readString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) throw new IOException("Key index image data error " + this.file.getAbsolutePath());
+
+        byte[] data = new byte[length];
+        buf.get(data);
+        return new String(data, CheckpointReader.charset);
+    }
+
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public long getCheckpointTime() {
+        return this.checkpointTime;
+    }
+
+    public Map getDataSizeMap() {
+        return this.dataSizeMap;
+    }
+
+    public int getSectionCount() {
+        return this.sectionOffsets.length;
+    }
+
+    public long getEntryCount() {
+        return this.entryCount;
+    }
+
+
+    /**
+     * 未処理のセクションを順に取り出して反映するスレッド.<br>
+     */
+    class LoadWorker extends Thread {
+
+        FileChannel channel = null;
+
+        AtomicInteger nextSection = null;
+
+        ICheckpointApplier applier = null;
+
+        IOException error = null;
+
+        LoadWorker(FileChannel channel, AtomicInteger nextSection, ICheckpointApplier applier) {
+            this.channel = channel;
+            this.nextSection = nextSection;
+            this.applier = applier;
+        }
+
+        public void run() {
+            try {
+                int section = -1;
+                while ((section = this.nextSection.getAndIncrement()) < sectionOffsets.length) {
+                    loadSection(this.channel, section, this.applier);
+                }
+            } catch (IOException e) {
+                this.error = e;
+            } catch (RuntimeException re) {
+                this.error = new IOException(re.toString());
+            }
+        }
+    }
+}
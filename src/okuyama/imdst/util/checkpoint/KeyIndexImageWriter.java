@@ -0,0 +1,184 @@
+package okuyama.imdst.util.checkpoint;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Fileモード時のKeyのIndexのイメージファイルを書き出す.<br>
+ * データは規定のサイズ毎にセクションに区切り、読み込み時にセクション単位で並列に反映できるようにする.<br>
+ * 一時ファイルに書き出し、commitで同期後に本来のファイル名に変更する.<br>
+ * フォーマットはKeyIndexImageReaderを参照.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class KeyIndexImageWriter {
+
+    // 1セクションのおおよその最大サイズ(バイト)
+    private static final long sectionMaxSize = 4L * 1024L * 1024L;
+
+    private File file = null;
+
+    private File tmpFile = null;
+
+    private FileOutputStream fos = null;
+
+    private DataOutputStream dos = null;
+
+    private long checkpointTime = 0L;
+
+    private Map dataSizeMap = null;
+
+    private long position = 0L;
+
+    private CRC32C sectionCrc = new CRC32C();
+
+    private long sectionStart = 0L;
+
+    private int sectionCount = 0;
+
+    // 完了したセクションの情報([開始位置, レングス, データ数, CRC32C])
+    private List sectionList = new ArrayList();
+
+    private long entryCount = 0L;
+
+    private byte[] intBuf = new byte[4];
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param file 書き出し先
+     * @param checkpointTime このイメージで復元されるトランザクションログの時間
+     * @param dataSizeMap 保存データサイズ
+     * @throw IOException
+     */
+    public KeyIndexImageWriter(File file, long checkpointTime, Map dataSizeMap) throws IOException {
+        this.file = file;
+        this.tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        this.checkpointTime = checkpointTime;
+        this.dataSizeMap = dataSizeMap;
+        this.fos = new FileOutputStream(this.tmpFile, false);
+        this.dos = new DataOutputStream(new BufferedOutputStream(this.fos, 8192 * 24));
+
+        this.dos.write(KeyIndexImageReader.fileHeader);
+        this.position = KeyIndexImageReader.fileHeader.length;
+        this.sectionStart = this.position;
+    }
+
+
+    /**
+     * 1件分のデータを書き出す.<br>
+     *
+     * @param key
+     * @param value
+     * @throw IOException
+     */
+    public void write(String key, String value) throws IOException {
+        this.writeBytes(key.getBytes(CheckpointReader.charset));
+        this.writeBytes(value.getBytes(CheckpointReader.charset));
+        this.sectionCount++;
+        this.entryCount++;
+
+        if ((this.position - this.sectionStart) >= sectionMaxSize) this.endSection();
+    }
+
+
+    private void writeBytes(byte[] data) throws IOException {
+        this.intBuf[0] = (byte)(data.length >>> 24);
+        this.intBuf[1] = (byte)(data.length >>> 16);
+        this.intBuf[2] = (byte)(data.length >>> 8);
+        this.intBuf[3] = (byte)data.length;
+
+        this.dos.write(this.intBuf);
+        this.dos.write(data);
+        this.sectionCrc.update(this.intBuf, 0, 4);
+        this.sectionCrc.update(data, 0, data.length);
+        this.position = this.position + 4 + data.length;
+    }
+
+
+    // 書き込み中のセクションを完了する
+    private void endSection() {
+        if (this.sectionCount == 0) return;
+
+        long[] section = {this.sectionStart, this.position - this.sectionStart, this.sectionCount, (int)this.sectionCrc.getValue()};
+        this.sectionList.add(section);
+
+        this.sectionStart = this.position;
+        this.sectionCount = 0;
+        this.sectionCrc.reset();
+    }
+
+
+    public long getEntryCount() {
+        return this.entryCount;
+    }
+
+
+    /**
+     * 管理情報と終端を書き込み、同期後にファイル名を変更する.<br>
+     *
+     * @throw IOException
+     */
+    public void commit() throws IOException {
+        this.endSection();
+
+        ByteArrayOutputStream infoBytes = new ByteArrayOutputStream(1024 + this.sectionList.size() * 24);
+        DataOutputStream info = new DataOutputStream(infoBytes);
+        info.writeLong(this.checkpointTime);
+
+        // 保存データサイズ
+        List sizeList = new ArrayList();
+        if (this.dataSizeMap != null) {
+            for (Iterator ite = this.dataSizeMap.entrySet().iterator(); ite.hasNext();) {
+                Map.Entry entry = (Map.Entry)ite.next();
+                if (entry.getValue() instanceof AtomicLong) sizeList.add(entry);
+            }
+        }
+        info.writeInt(sizeList.size());
+        for (int i = 0; i < sizeList.size(); i++) {
+            Map.Entry entry = (Map.Entry)sizeList.get(i);
+            info.writeUTF((String)entry.getKey());
+            info.writeLong(((AtomicLong)entry.getValue()).get());
+        }
+
+        info.writeInt(this.sectionList.size());
+        for (int i = 0; i < this.sectionList.size(); i++) {
+            long[] section = (long[])this.sectionList.get(i);
+            info.writeLong(section[0]);
+            info.writeLong(section[1]);
+            info.writeInt((int)section[2]);
+            info.writeInt((int)section[3]);
+        }
+        info.flush();
+
+        byte[] infoData = infoBytes.toByteArray();
+        CRC32C infoCrc = new CRC32C();
+        infoCrc.update(infoData, 0, infoData.length);
+
+        this.dos.write(infoData);
+        this.dos.writeLong(this.position);
+        this.dos.writeInt((int)infoCrc.getValue());
+        this.dos.write(KeyIndexImageReader.fileHeader, 0, 4);
+        this.dos.flush();
+        this.fos.getFD().sync();
+        this.dos.close();
+
+        if (!this.tmpFile.renameTo(this.file)) throw new IOException("Key index image rename error " + this.file.getAbsolutePath());
+    }
+
+
+    /**
+     * 書き出しを中止し、一時ファイルを削除する.<br>
+     */
+    public void abort() {
+        try {
+            this.dos.close();
+        } catch (Exception e) {
+        }
+        this.tmpFile.delete();
+    }
+}
@@ -0,0 +1,29 @@
+package okuyama.imdst.util.compress;
+
+import okuyama.imdst.util.SystemUtil;
+
+/**
+ * Deflateによるコーデック.<br>
+ * SystemUtilがプールしているDeflater、Inflaterを利用する.<br>
+ * 既存データとの互換性のためタグは付加しない(先頭はzlibヘッダー).<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class DeflateValueCodec implements IValueCodec {
+
+
+    public int getTag() {
+        return -1;
+    }
+
+
+    public byte[] compress(byte[] src) throws Exception {
+        return SystemUtil.dataCompress(src);
+    }
+
+
+    public byte[] decompress(byte[] src) throws Exception {
+        return SystemUtil.dataDecompress(src);
+    }
+}
@@ -0,0 +1,45 @@
+package okuyama.imdst.util.compress;
+
+/**
+ * Value圧縮用のコーデックのインターフェース.<br>
+ * 本インターフェースをインプリしたクラスはokuyama.imdst.util.SystemUtil内で一度だけインスタンス化されて<br>
+ * 以降、マルチスレッド環境で並列利用される。そのため、スレッドセーフに実装する必要がある.<br>
+ * 圧縮後のデータの先頭1byteはコーデックを表すタグとし、圧縮解除時はタグからコーデックを選択する.<br>
+ * 既存のDeflateで圧縮されたデータ(先頭はzlibヘッダーの0x78)とメモリ保存時の非圧縮データ(先頭は"!")、<br>
+ * Base64部分をバイナリに変換したデータ(先頭は0xB0、0xB1)と重複しない0～255の値をタグとすること.<br>
+ * 重複するタグのコーデックはDataNodeの起動時にエラーとなる.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public interface IValueCodec {
+
+
+    /**
+     * 圧縮後のデータの先頭に付加するタグを返す.<br>
+     * タグを付加しないコーデック(Deflate)の場合は-1を返す.<br>
+     *
+     * @return int
+     */
+    public int getTag();
+
+
+    /**
+     * 圧縮処理インターフェース.<br>
+     *
+     * @param src 圧縮対象
+     * @return 圧縮済み返却値(先頭はタグ)
+     * @throws Exception
+     */
+    public byte[] compress(byte[] src) throws Exception;
+
+
+    /**
+     * 圧縮解除処理インターフェース.<br>
+     *
+     * @param src compressメソッドで返却した値
+     * @return 圧縮解除済み返却値
+     * @throws Exception
+     */
+    public byte[] decompress(byte[] src) throws Exception;
+}
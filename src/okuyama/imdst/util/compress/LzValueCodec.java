@@ -0,0 +1,248 @@
+package okuyama.imdst.util.compress;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * LZ系の高速なコーデック.<br>
+ * LZ4のブロック形式と同様の形式で圧縮する.圧縮率はDeflateより低いが、圧縮、圧縮解除ともに高速.<br>
+ * 圧縮後のデータのレイアウトは以下.<br>
+ * [タグ(1byte)][圧縮前のレングス(可変長)][シーケンス]...<br>
+ * シーケンスは以下のレイアウトで、最後のシーケンスはリテラルのみとなる.<br>
+ * [トークン(上位4bit=リテラル長、下位4bit=一致長-4)][リテラル長の拡張][リテラル][一致位置までの距離(2byte)][一致長の拡張]<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class LzValueCodec implements IValueCodec {
+
+    // 圧縮データの先頭に付加するタグ("L")
+    public static final int codecTag = 76;
+
+    // 一致とみなす最小長
+    private static final int minMatch = 4;
+
+    // 末尾のこのサイズは必ずリテラルとする
+    private static final int lastLiterals = 5;
+
+    // 一致の探索を開始しない末尾のサイズ
+    private static final int matchFindLimit = 12;
+
+    private static final int maxDistance = 65535;
+
+    private static final int hashLog = 12;
+
+    // 一致を探すためのHashテーブル(スレッド毎)
+    private static ThreadLocal hashTableLocal = new ThreadLocal() {
+        protected Object initialValue() {
+            return new int[1 << hashLog];
+        }
+    };
+
+
+    public int getTag() {
+        return codecTag;
+    }
+
+
+    /**
+     * 圧縮処理.<br>
+     *
+     * @param src
+     * @return byte[]
+     */
+    public byte[] compress(byte[] src) throws Exception {
+        int srcLen = src.length;
+        byte[] dst = new byte[1 + 5 + srcLen + (srcLen / 255) + 16];
+
+        dst[0] = (byte)codecTag;
+        int dp = writeVarInt(dst, 1, srcLen);
+
+        int anchor = 0;
+        if (srcLen >= matchFindLimit + 1) {
+
+            int[] hashTable = (int[])hashTableLocal.get();
+            Arrays.fill(hashTable, -1);
+
+            int matchLimit = srcLen - matchFindLimit;
+            int extendLimit = srcLen - lastLiterals;
+            int sp = 0;
+
+            while (sp < matchLimit) {
+                int seq = readInt(src, sp);
+                int hash = hash(seq);
+                int ref = hashTable[hash];
+                hashTable[hash] = sp;
+
+                if (ref < 0 || (sp - ref) > maxDistance || readInt(src, ref) != seq) {
+                    // 一致しない期間が長いほど探索間隔を広げる
+                    sp = sp + 1 + ((sp - anchor) >>> 6);
+                    continue;
+                }
+
+                // 後方に一致を拡張
+                while (sp > anchor && ref > 0 && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+
+                // 前方に一致を拡張
+                int matchLen = minMatch;
+                while ((sp + matchLen) < extendLimit && src[sp + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                dp = writeSequence(dst, dp, src, anchor, sp - anchor, sp - ref, matchLen);
+                sp = sp + matchLen;
+                anchor = sp;
+
+                if (sp < matchLimit) hashTable[hash(readInt(src, sp - 2))] = sp - 2;
+            }
+        }
+
+        // 残りをリテラルとして書き込む
+        dp = writeSequence(dst, dp, src, anchor, srcLen - anchor, 0, 0);
+        return Arrays.copyOf(dst, dp);
+    }
+
+
+    /**
+     * 圧縮解除処理.<br>
+     *
+     * @param src
+     * @return byte[]
+     */
+    public byte[] decompress(byte[] src) throws Exception {
+        if ((src[0] & 0xFF) != codecTag) throw new IOException("Codec tag mismatch " + src[0]);
+
+        int sp = 1;
+        int dstLen = 0;
+        int shift = 0;
+        while (true) {
+            int b = src[sp++];
+            dstLen = dstLen | ((b & 0x7F) << shift);
+            if ((b & 0x80) == 0) break;
+            shift = shift + 7;
+        }
+
+        byte[] dst = new byte[dstLen];
+        int dp = 0;
+
+        while (true) {
+            int token = src[sp++] & 0xFF;
+
+            // リテラル
+            int literalLen = token >>> 4;
+            if (literalLen == 15) {
+                int b = 0;
+                do {
+                    b = src[sp++] & 0xFF;
+                    literalLen = literalLen + b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, sp, dst, dp, literalLen);
+            sp = sp + literalLen;
+            dp = dp + literalLen;
+
+            // 最後のシーケンスはリテラルのみ
+            if (sp >= src.length) break;
+
+            // 一致
+            int distance = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+            sp = sp + 2;
+            int matchLen = token & 0x0F;
+            if (matchLen == 15) {
+                int b = 0;
+                do {
+                    b = src[sp++] & 0xFF;
+                    matchLen = matchLen + b;
+                } while (b == 255);
+            }
+            matchLen = matchLen + minMatch;
+
+            int ref = dp - distance;
+            if (distance == 0 || ref < 0) throw new IOException("Illegal match distance " + distance);
+
+            if (distance >= matchLen) {
+                System.arraycopy(dst, ref, dst, dp, matchLen);
+            } else {
+                // 重なりのある一致は1byteずつコピー
+                for (int i = 0; i < matchLen; i++) {
+                    dst[dp + i] = dst[ref + i];
+                }
+            }
+            dp = dp + matchLen;
+        }
+
+        if (dp != dstLen) throw new IOException("Decompress size mismatch " + dp + " != " + dstLen);
+        return dst;
+    }
+
+
+    // リテラルと一致を1シーケンスとして書き込む
+    // matchLenが0の場合はリテラルのみ
+    private static int writeSequence(byte[] dst, int dp, byte[] src, int literalStart, int literalLen, int distance, int matchLen) {
+        int tokenPos = dp;
+        dp++;
+
+        int token = 0;
+        if (literalLen >= 15) {
+            token = 15 << 4;
+            dp = writeLength(dst, dp, literalLen - 15);
+        } else {
+            token = literalLen << 4;
+        }
+
+        System.arraycopy(src, literalStart, dst, dp, literalLen);
+        dp = dp + literalLen;
+
+        if (matchLen > 0) {
+            dst[dp] = (byte)distance;
+            dst[dp + 1] = (byte)(distance >>> 8);
+            dp = dp + 2;
+
+            int extMatchLen = matchLen - minMatch;
+            if (extMatchLen >= 15) {
+                token = token | 15;
+                dp = writeLength(dst, dp, extMatchLen - 15);
+            } else {
+                token = token | extMatchLen;
+            }
+        }
+
+        dst[tokenPos] = (byte)token;
+        return dp;
+    }
+
+
+    private static int writeLength(byte[] dst, int dp, int len) {
+        while (len >= 255) {
+            dst[dp] = (byte)255;
+            dp++;
+            len = len - 255;
+        }
+        dst[dp] = (byte)len;
+        return dp + 1;
+    }
+
+
+    private static int writeVarInt(byte[] dst, int dp, int value) {
+        while (value >= 0x80) {
+            dst[dp] = (byte)((value & 0x7F) | 0x80);
+            value = value >>> 7;
+            dp++;
+        }
+        dst[dp] = (byte)value;
+        return dp + 1;
+    }
+
+
+    private static int readInt(byte[] src, int pos) {
+        return (src[pos] & 0xFF) | ((src[pos + 1] & 0xFF) << 8) | ((src[pos + 2] & 0xFF) << 16) | ((src[pos + 3] & 0xFF) << 24);
+    }
+
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - hashLog);
+    }
+}
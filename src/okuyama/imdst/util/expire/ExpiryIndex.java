@@ -0,0 +1,218 @@
+package okuyama.imdst.util.expire;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * 有効期限が設定されたKeyを有効期限の時間帯(バケット)毎に管理するIndex.<br>
+ * バケットは有効期限の時間順に並んでおり、有効期限切れのKeyは先頭のバケットから順に取り出すため、<br>
+ * 取り出しのコストは有効期限切れのKeyの数にのみ比例し、全てのKeyを走査する必要がない.<br>
+ * 同一のKeyは1つのバケットにのみ登録され、再登録時は以前のバケットから削除される.<br>
+ * 登録内容と実際の値はずれる可能性があるため、取り出したKeyは利用側で値を再確認して削除する.<br>
+ * スレッドセーフに並列アクセスが可能.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class ExpiryIndex {
+
+    // 有効期限が設定されていない
+    public static final long noExpireTime = -1L;
+
+    // 1バケットの時間幅(ミリ秒)
+    private static final long bucketInterval = 1000L;
+
+    // バケット番号(Long) -> Bucket
+    private ConcurrentSkipListMap buckets = new ConcurrentSkipListMap();
+
+    // Key -> 有効期限(Long)
+    private ConcurrentHashMap expireTimes = new ConcurrentHashMap(1024, 0.75f, 64);
+
+
+    /**
+     * Keyの有効期限を登録する.<br>
+     * 有効期限が設定されていない場合は登録を削除する.<br>
+     *
+     * @param key
+     * @param expireTime 有効期限(noExpireTimeの場合は期限なし)
+     */
+    public void register(String key, long expireTime) {
+        if (expireTime == noExpireTime) {
+            this.unregister(key);
+            return;
+        }
+
+        Long bucketNo = new Long(expireTime / bucketInterval);
+        Long before = (Long)this.expireTimes.put(key, new Long(expireTime));
+        if (before != null) {
+            Long beforeBucketNo = new Long(before.longValue() / bucketInterval);
+            if (beforeBucketNo.equals(bucketNo)) return;
+
+            Bucket beforeBucket = (Bucket)this.buckets.get(beforeBucketNo);
+            if (beforeBucket != null) beforeBucket.remove(key);
+        }
+
+        while (true) {
+            Bucket bucket = (Bucket)this.buckets.get(bucketNo);
+            if (bucket == null) {
+                bucket = new Bucket();
+                Bucket exists = (Bucket)this.buckets.putIfAbsent(bucketNo, bucket);
+                if (exists != null) bucket = exists;
+            }
+
+            // 取り出し済みのバケットの場合は作り直す
+            if (bucket.add(key)) break;
+            this.buckets.remove(bucketNo, bucket);
+        }
+    }
+
+
+    /**
+     * Keyの登録を削除する.<br>
+     *
+     * @param key
+     */
+    public void unregister(String key) {
+        Long before = (Long)this.expireTimes.remove(key);
+        if (before == null) return;
+
+        Bucket bucket = (Bucket)this.buckets.get(new Long(before.longValue() / bucketInterval));
+        if (bucket != null) bucket.remove(key);
+    }
+
+
+    /**
+     * 登録されている有効期限を返す.<br>
+     *
+     * @param key
+     * @return long 有効期限(登録されていない場合はnoExpireTime)
+     */
+    public long getExpireTime(String key) {
+        Long expireTime = (Long)this.expireTimes.get(key);
+        if (expireTime == null) return noExpireTime;
+        return expireTime.longValue();
+    }
+
+
+    /**
+     * 有効期限が指定の時間より前のKeyを全て取り出す.<br>
+     * 取り出したKeyの登録は削除されるため、削除しなかった場合は再度registerを呼び出す.<br>
+     * 判定は1バケット分の時間幅の単位で行うため、指定の時間直前のKeyは次回以降に取り出される.<br>
+     *
+     * @param time
+     * @return List 有効期限切れのKey
+     */
+    public List pollExpiredKeys(long time) {
+        List ret = new ArrayList();
+
+        while (true) {
+            Map.Entry first = this.buckets.firstEntry();
+            if (first == null) break;
+
+            // バケットの時間幅全体が指定の時間より前の場合のみ対象
+            long bucketNo = ((Long)first.getKey()).longValue();
+            if ((bucketNo + 1) * bucketInterval > time) break;
+
+            Bucket bucket = (Bucket)first.getValue();
+            this.buckets.remove(first.getKey(), bucket);
+
+            int start = ret.size();
+            bucket.drain(ret);
+            for (int i = start; i < ret.size(); i++) {
+                Long expireTime = (Long)this.expireTimes.get(ret.get(i));
+                if (expireTime != null && (expireTime.longValue() / bucketInterval) == bucketNo) this.expireTimes.remove(ret.get(i), expireTime);
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * 有効期限が登録されているKeyの数を返す.<br>
+     *
+     * @return int
+     */
+    public int size() {
+        return this.expireTimes.size();
+    }
+
+
+    /**
+     * 全ての登録を削除する.<br>
+     */
+    public void clear() {
+        this.buckets.clear();
+        this.expireTimes.clear();
+    }
+
+
+    /**
+     * Valueのメタ情報から有効期限を取り出す.<br>
+     * Valueは"Value,メタ情報!バージョン"形式で、メタ情報を"-"で区切った2番目の値が有効期限となる.<br>
+     * Stringの分割を行わずに位置の探索のみで取り出す.<br>
+     * 有効期限が"0"または存在しない場合はnoExpireTime、数値でない場合は既に有効期限切れ(0)とする.<br>
+     *
+     * @param value
+     * @return long
+     */
+    public static long parseExpireTime(String value) {
+        if (value == null) return noExpireTime;
+
+        int end = value.indexOf(ImdstDefine.setTimeParamSep);
+        if (end == -1) end = value.length();
+
+        int metaStart = value.indexOf(ImdstDefine.keyHelperClientParamSep);
+        if (metaStart == -1 || metaStart >= end) return noExpireTime;
+        metaStart++;
+
+        int metaEnd = value.indexOf(ImdstDefine.keyHelperClientParamSep, metaStart);
+        if (metaEnd == -1 || metaEnd > end) metaEnd = end;
+
+        int columnStart = value.indexOf(ImdstDefine.valueMetaColumnSep, metaStart);
+        if (columnStart == -1 || columnStart >= metaEnd) return noExpireTime;
+        columnStart++;
+
+        int columnEnd = value.indexOf(ImdstDefine.valueMetaColumnSep, columnStart);
+        if (columnEnd == -1 || columnEnd > metaEnd) columnEnd = metaEnd;
+
+        String expireTimeStr = value.substring(columnStart, columnEnd).trim();
+        if (expireTimeStr.length() == 0 || expireTimeStr.equals("0")) return noExpireTime;
+
+        try {
+            return Long.parseLong(expireTimeStr);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+
+    /**
+     * 同一の時間帯に有効期限を迎えるKeyの集合.<br>
+     * 取り出し後は追加できない.<br>
+     */
+    static class Bucket {
+
+        private HashSet keys = new HashSet();
+
+        private boolean drained = false;
+
+        synchronized boolean add(String key) {
+            if (this.drained) return false;
+            this.keys.add(key);
+            return true;
+        }
+
+        synchronized void remove(String key) {
+            this.keys.remove(key);
+        }
+
+        synchronized void drain(List ret) {
+            this.drained = true;
+            ret.addAll(this.keys);
+            this.keys.clear();
+        }
+    }
+}
@@ -20,8 +20,7 @@ abstract public class AbstractDataRandomAccess extends RandomAccessFile {
 
     protected DataFilePageCacheMapper dataCacheMapper = null;
 
-    protected ValueCacheMap highReferenceFrequencyMap = null;
-    protected ConcurrentHashMap highReferencedMapCopy = null;
+    protected ConcurrentValueCache highReferenceFrequencyMap = null;
 
     protected boolean execMappingFlg = ImdstDefine.pageCacheMappendFlg;
 
@@ -34,8 +33,8 @@ abstract public class AbstractDataRandomAccess extends RandomAccessFile {
         this.dataFile = target;
         try {
             if(execMappingFlg) {
-                this.highReferencedMapCopy = new ConcurrentHashMap(pageCacheMappendSize);
-                this.highReferenceFrequencyMap = new ValueCacheMap(pageCacheMappendSize, this.highReferencedMapCopy);
+                // 1データの重みを1として参照頻度の高いseek位置をpageCacheMappendSize件保持する
+                this.highReferenceFrequencyMap = new ConcurrentValueCache(pageCacheMappendSize, pageCacheMappendSize);
                 this.dataCacheMapper = new DataFilePageCacheMapper(target);
                 this.dataCacheMapper.start();
             }
@@ -61,7 +60,7 @@ abstract public class AbstractDataRandomAccess extends RandomAccessFile {
 
     public void putHighReferenceData(long seekPoint) {
         if (execMappingFlg) {
-            highReferenceFrequencyMap.put(new Long(seekPoint), null);
+            highReferenceFrequencyMap.put(new Long(seekPoint), Boolean.TRUE, 1);
         }
     }
 
@@ -84,15 +83,14 @@ abstract public class AbstractDataRandomAccess extends RandomAccessFile {
                     RandomAccessFile raf = new RandomAccessFile(this.dataFile, "r");
                     byte[] data = new byte[ImdstDefine.dataFileWriteMaxSize];  
                     
-                    Set entrySet = highReferencedMapCopy.entrySet();
-                    Iterator entryIte = entrySet.iterator(); 
+                    Set keySet = highReferenceFrequencyMap.keySet();
+                    Iterator keyIte = keySet.iterator(); 
                     int count = 0;
-                    while(entryIte.hasNext()) {
+                    while(keyIte.hasNext()) {
             
-                        Map.Entry obj = (Map.Entry)entryIte.next();
-                        if (obj == null) continue;
+                        Long seekPoint = (Long)keyIte.next();
+                        if (seekPoint == null) continue;
                         try {
-                            Long seekPoint = (Long)obj.getKey();
                             raf.seek(seekPoint.longValue());
                             raf.read(data, 0, ImdstDefine.dataFileWriteMaxSize);
                             if ((count % 10) == 0) {
@@ -100,8 +98,7 @@ abstract public class AbstractDataRandomAccess extends RandomAccessFile {
                                 Thread.sleep(30);
                             }
                         } catch (IOException e) {
-                            highReferenceFrequencyMap.remove(obj.getKey());
-                            highReferencedMapCopy.remove(obj.getKey());
+                            highReferenceFrequencyMap.remove(seekPoint);
                         }
                         count++;
                     }
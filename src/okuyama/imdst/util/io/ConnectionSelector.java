@@ -0,0 +1,119 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import okuyama.base.util.ILogger;
+import okuyama.base.util.LoggerFactory;
+
+/**
+ * 1つのSelectorで接続の受信を監視するスレッド.<br>
+ * 受信待ちの接続で1リクエスト分のデータを受信したものを処理スレッドに渡し、<br>
+ * 処理中の接続はストリームが待っている受信、送信の通知を行う.<br>
+ * 1秒毎に無操作時間が上限に達した受信待ちの接続をクローズする.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+class ConnectionSelector extends Thread {
+
+    private static ILogger logger = LoggerFactory.createLogger(ConnectionSelector.class);
+
+    private SelectorFrontEnd frontEnd = null;
+
+    private Selector selector = null;
+
+    // 登録待ちの接続
+    private ConcurrentLinkedQueue registerQueue = new ConcurrentLinkedQueue();
+
+    private Set connections = Collections.newSetFromMap(new ConcurrentHashMap());
+
+
+    ConnectionSelector(SelectorFrontEnd frontEnd) throws IOException {
+        this.frontEnd = frontEnd;
+        this.selector = Selector.open();
+        this.setDaemon(true);
+        this.setName("ConnectionSelector-" + this.getId());
+    }
+
+
+    void register(SelectorConnection connection) {
+        this.registerQueue.add(connection);
+        this.selector.wakeup();
+    }
+
+
+    void closed(SelectorConnection connection) {
+        this.connections.remove(connection);
+        this.frontEnd.closed(connection);
+    }
+
+
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+
+        while (true) {
+            try {
+                this.selector.select(1000L);
+
+                SelectorConnection newConnection = null;
+                while ((newConnection = (SelectorConnection)this.registerQueue.poll()) != null) {
+                    try {
+                        newConnection.register(this.selector);
+                        this.connections.add(newConnection);
+                    } catch (IOException ie) {
+                        newConnection.close();
+                    }
+                }
+
+                Iterator ite = this.selector.selectedKeys().iterator();
+                while (ite.hasNext()) {
+                    SelectionKey key = (SelectionKey)ite.next();
+                    ite.remove();
+
+                    SelectorConnection connection = (SelectorConnection)key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+
+                        if (key.isWritable()) connection.writeReady();
+                        if (key.isReadable()) {
+                            if (connection.readReady()) {
+                                this.frontEnd.dispatch(connection);
+                            } else if (connection.isIdleEof()) {
+                                connection.close();
+                            }
+                        }
+                    } catch (CancelledKeyException ce) {
+                        connection.close();
+                    } catch (IOException ie) {
+                        connection.close();
+                    }
+                }
+
+                if ((System.currentTimeMillis() - lastIdleCheck) >= 1000L) {
+                    this.closeIdleConnections();
+                    lastIdleCheck = System.currentTimeMillis();
+                }
+            } catch (Throwable te) {
+                logger.error("ConnectionSelector - run - Error", te);
+            }
+        }
+    }
+
+
+    // 無操作時間が上限に達した受信待ちの接続と、処理スレッドでクローズされた接続を除去する
+    private void closeIdleConnections() {
+        long idleTimeout = this.frontEnd.getIdleTimeout();
+        long now = System.currentTimeMillis();
+
+        for (Iterator ite = this.connections.iterator(); ite.hasNext();) {
+            SelectorConnection connection = (SelectorConnection)ite.next();
+            if (connection.isClosed() || (idleTimeout != -1 && connection.isIdle() && (now - connection.lastAccess) >= idleTimeout)) {
+                connection.close();
+            }
+        }
+    }
+}
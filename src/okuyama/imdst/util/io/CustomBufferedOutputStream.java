@@ -0,0 +1,34 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+
+/**
+ * IOのBufferedOutputStreamのラッパー.<br>
+ * SystemUtil.diskAccessSyncでfsyncするためにFileDescriptorを取得可能とする.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class CustomBufferedOutputStream extends BufferedOutputStream {
+
+    private FileOutputStream fos = null;
+
+    public CustomBufferedOutputStream(FileOutputStream fos) {
+        super(fos);
+        this.fos = fos;
+    }
+
+    public CustomBufferedOutputStream(FileOutputStream fos, int sz) {
+        super(fos, sz);
+        this.fos = fos;
+    }
+
+    public FileDescriptor getFD() throws Exception {
+        try {
+            return this.fos.getFD();
+        } catch (Exception e) {
+
+            throw e;
+        }
+    }
+}
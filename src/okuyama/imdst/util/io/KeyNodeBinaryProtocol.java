@@ -0,0 +1,338 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * MasterNodeとDataNode間の多重化された接続で使用するバイナリ形式の要求、応答.<br>
+ * 接続毎にネゴシエーションを行い、DataNodeが対応している場合のみ使用する.<br>
+ * ネゴシエーションはテキスト形式の要求"9101,プロトコルバージョン"に"9101,true,プロトコルバージョン"が返された場合に成立し、<br>
+ * 以降その接続はバイナリ形式のフレームのみを送受信する.<br>
+ * DataNodeは未対応のネゴシエーションに"処理番号,false"を応答するため、成立以外の応答の場合はテキスト形式で接続し直す.<br>
+ * 拒否の応答に対応していない従来のDataNodeは不明な処理番号に応答しないため、接続タイムアウト時間(DataNode毎に初回のみ)<br>
+ * 応答を待った後にテキスト形式で接続し直す.<br>
+ * <br>
+ * 1フレームは以下の形式(数値はビッグエンディアン).<br>
+ * [以降のバイト数(4byte)][オペコード(1byte)][フラグ(1byte)][要求番号(8byte)][バージョン(8byte)]<br>
+ * [Keyのバイト数(4byte)][Key][オプションのバイト数(4byte)][オプション][Valueのバイト数(4byte)][Value]<br>
+ * オペコードはテキスト形式の処理番号と同じでset(1)、get(2)、remove(5)、setOnlyOnce(6).<br>
+ * オプションは要求ではTransactionCode、応答では処理結果のメッセージ("OK"、"NG:～").<br>
+ * Valueの末尾の保存バージョン(setTimeParamSep + 数値)はValueから分離してバージョンに格納する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class KeyNodeBinaryProtocol {
+
+    // ネゴシエーションの処理番号
+    public static final String negotiationMethodNo = "9101";
+
+    // プロトコルバージョン
+    public static final String protocolVersion = "1";
+
+    // ネゴシエーションの要求
+    public static final String negotiationRequest = negotiationMethodNo + ImdstDefine.keyHelperClientParamSep + protocolVersion;
+
+    // ネゴシエーションの成立時の応答
+    public static final String negotiationResponse = negotiationMethodNo + ImdstDefine.keyHelperClientParamSep + "true" + ImdstDefine.keyHelperClientParamSep + protocolVersion;
+
+    public static final byte opSet = 1;
+    public static final byte opGet = 2;
+    public static final byte opRemove = 5;
+    public static final byte opSetOnlyOnce = 6;
+
+    // 処理結果がtrue(応答のみ)
+    public static final byte flagSuccess = 1;
+
+    // バージョンが格納されている
+    public static final byte flagVersion = 2;
+
+    // レングスを除いたヘッダーのバイト数
+    private static final int headerSize = 1 + 1 + 8 + 8 + 4 + 4 + 4;
+
+    // 1フレームの最大バイト数
+    private static final int maxFrameSize = 1024 * 1024 * 64;
+
+    private static final Charset charset = Charset.forName(ImdstDefine.keyHelperClientParamEncoding);
+
+    private static final byte[] emptyBytes = new byte[0];
+
+    // 区切り文字(ASCII)
+    private static final byte paramSep = (byte)ImdstDefine.keyHelperClientParamSep.charAt(0);
+
+    private static final byte versionSep = (byte)ImdstDefine.setTimeParamSep.charAt(0);
+
+
+    /**
+     * テキスト形式の要求をフレームに変換する(MasterNode側).<br>
+     * 要求はMultiplexKeyNodeChannel.isMultiplexRequestがtrueとなるもの.<br>
+     * 区切り文字はASCIIのため、要求を1度だけバイト列に変換し、バイト列上で分解する.<br>
+     *
+     * @param requestNo 要求番号
+     * @param requestLine テキスト形式の要求
+     * @return byte[] レングスを含むフレーム
+     * @throw IOException 変換出来ない要求
+     */
+    public static byte[] encodeRequest(long requestNo, String requestLine) throws IOException {
+        byte[] line = requestLine.getBytes(charset);
+
+        int sep1 = indexOf(line, paramSep, 0);
+        if (sep1 < 1 || sep1 > 2) throw new IOException("Illegal Request =[" + requestLine + "]");
+
+        byte opcode = 0;
+        for (int i = 0; i < sep1; i++) {
+            if (line[i] < '0' || line[i] > '9') throw new IOException("Illegal Request =[" + requestLine + "]");
+            opcode = (byte)(opcode * 10 + (line[i] - '0'));
+        }
+
+        int sep2 = indexOf(line, paramSep, sep1 + 1);
+
+        switch (opcode) {
+
+            case opGet :
+
+                return encode(opcode, (byte)0, requestNo, line, sep1 + 1, line.length, null, 0, 0, null, 0, 0);
+            case opRemove :
+
+                if (sep2 == -1) throw new IOException("Illegal Request =[" + requestLine + "]");
+                return encode(opcode, (byte)0, requestNo, line, sep1 + 1, sep2, line, sep2 + 1, line.length, null, 0, 0);
+            case opSet :
+            case opSetOnlyOnce :
+
+                int sep3 = sep2 == -1 ? -1 : indexOf(line, paramSep, sep2 + 1);
+                if (sep3 == -1) throw new IOException("Illegal Request =[" + requestLine + "]");
+
+                // 値の中にセパレータ文字列が入っている場合もデータとしてあつかう
+                return encode(opcode, (byte)0, requestNo, line, sep1 + 1, sep2, line, sep2 + 1, sep3, line, sep3 + 1, line.length);
+            default :
+
+                throw new IOException("Binary request not supported =[" + requestLine + "]");
+        }
+    }
+
+
+    /**
+     * 処理結果をフレームに変換する(DataNode側).<br>
+     *
+     * @param requestNo 要求番号
+     * @param opcode 要求のオペコード
+     * @param retParams 処理結果(KeyManagerHelperの処理メソッドの戻り値)
+     * @return byte[] レングスを含むフレーム
+     */
+    public static byte[] encodeResponse(long requestNo, byte opcode, String[] retParams) {
+        byte flags = 0;
+        if (retParams.length > 1 && "true".equals(retParams[1])) flags = flagSuccess;
+
+        byte[] message = null;
+        byte[] value = null;
+        if (retParams.length > 2 && retParams[2] != null) {
+
+            // get、removeの成功時は取得した値、それ以外は処理結果のメッセージ
+            if (flags == flagSuccess && (opcode == opGet || opcode == opRemove)) {
+                value = retParams[2].getBytes(charset);
+            } else {
+                message = retParams[2].getBytes(charset);
+            }
+        }
+
+        return encode(opcode, flags, requestNo, null, 0, 0,
+                      message, 0, message == null ? 0 : message.length,
+                      value, 0, value == null ? 0 : value.length);
+    }
+
+
+    /**
+     * フレームを1件読み込む.<br>
+     *
+     * @param dis
+     * @return Frame 接続が切断された場合はnull
+     * @throw IOException
+     */
+    public static Frame readFrame(DataInputStream dis) throws IOException {
+        int length = 0;
+        try {
+            length = dis.readInt();
+        } catch (EOFException ee) {
+            return null;
+        }
+        if (length < headerSize || length > maxFrameSize) throw new IOException("Illegal frame length =[" + length + "]");
+
+        Frame frame = new Frame();
+        frame.opcode = dis.readByte();
+        frame.flags = dis.readByte();
+        frame.requestNo = dis.readLong();
+        frame.version = dis.readLong();
+        frame.key = readField(dis);
+        frame.option = readField(dis);
+        frame.value = readField(dis);
+        return frame;
+    }
+
+
+    /**
+     * 応答のフレームをテキスト形式の応答に変換する(MasterNode側).<br>
+     * 変換結果はテキスト形式でDataNodeが返す応答と同一.<br>
+     *
+     * @param frame
+     * @return String
+     */
+    public static String toResponseLine(Frame frame) {
+        StringBuilder head = new StringBuilder(32);
+        head.append(frame.opcode);
+        head.append(ImdstDefine.keyHelperClientParamSep);
+        head.append(frame.isSuccess() ? "true" : "false");
+
+        if (frame.isSuccess() && (frame.opcode == opGet || frame.opcode == opRemove)) {
+            head.append(ImdstDefine.keyHelperClientParamSep);
+            return toString(head, frame.value, frame.getVersionSuffix());
+        } else if (frame.option.length > 0) {
+            head.append(ImdstDefine.keyHelperClientParamSep);
+            return toString(head, frame.option, null);
+        }
+        return head.toString();
+    }
+
+
+    // フレームを作成する Valueの末尾に保存バージョンが付いている場合は分離する
+    private static byte[] encode(byte opcode, byte flags, long requestNo,
+                                 byte[] key, int keyStart, int keyEnd,
+                                 byte[] option, int optionStart, int optionEnd,
+                                 byte[] value, int valueStart, int valueEnd) {
+        long version = 0L;
+        if (value != null) {
+            int versionIdx = valueEnd - 1;
+            while (versionIdx >= valueStart && value[versionIdx] >= '0' && value[versionIdx] <= '9') {
+                versionIdx--;
+            }
+
+            // longの範囲内で、数値に変換して元の文字列に戻せるもののみ分離する
+            int digits = valueEnd - versionIdx - 1;
+            if (versionIdx >= valueStart && value[versionIdx] == versionSep && digits > 0 && digits < 19 && (digits == 1 || value[versionIdx + 1] != '0')) {
+                for (int i = versionIdx + 1; i < valueEnd; i++) {
+                    version = version * 10 + (value[i] - '0');
+                }
+                flags = (byte)(flags | flagVersion);
+                valueEnd = versionIdx;
+            }
+        }
+
+        int keyLength = keyEnd - keyStart;
+        int optionLength = optionEnd - optionStart;
+        int valueLength = valueEnd - valueStart;
+
+        int length = headerSize + keyLength + optionLength + valueLength;
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.putInt(length);
+        buf.put(opcode);
+        buf.put(flags);
+        buf.putLong(requestNo);
+        buf.putLong(version);
+        buf.putInt(keyLength);
+        if (keyLength > 0) buf.put(key, keyStart, keyLength);
+        buf.putInt(optionLength);
+        if (optionLength > 0) buf.put(option, optionStart, optionLength);
+        buf.putInt(valueLength);
+        if (valueLength > 0) buf.put(value, valueStart, valueLength);
+        return buf.array();
+    }
+
+
+    private static int indexOf(byte[] buf, byte target, int start) {
+        for (int i = start; i < buf.length; i++) {
+            if (buf[i] == target) return i;
+        }
+        return -1;
+    }
+
+
+    // ASCIIの接頭辞 + フィールド + ASCIIの接尾辞を1度の変換で文字列にする
+    private static String toString(CharSequence prefix, byte[] field, String suffix) {
+        int prefixLength = prefix == null ? 0 : prefix.length();
+        int suffixLength = suffix == null ? 0 : suffix.length();
+        if (prefixLength == 0 && suffixLength == 0) return new String(field, charset);
+
+        byte[] line = new byte[prefixLength + field.length + suffixLength];
+        for (int i = 0; i < prefixLength; i++) {
+            line[i] = (byte)prefix.charAt(i);
+        }
+        System.arraycopy(field, 0, line, prefixLength, field.length);
+        for (int i = 0; i < suffixLength; i++) {
+            line[prefixLength + field.length + i] = (byte)suffix.charAt(i);
+        }
+        return new String(line, charset);
+    }
+
+
+    private static byte[] readField(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0 || length > maxFrameSize) throw new IOException("Illegal field length =[" + length + "]");
+        if (length == 0) return emptyBytes;
+
+        byte[] field = new byte[length];
+        dis.readFully(field);
+        return field;
+    }
+
+
+    /**
+     * 読み込んだ1フレーム.<br>
+     */
+    public static class Frame {
+
+        private byte opcode = 0;
+
+        private byte flags = 0;
+
+        private long requestNo = 0L;
+
+        private long version = 0L;
+
+        private byte[] key = null;
+
+        private byte[] option = null;
+
+        private byte[] value = null;
+
+
+        public byte getOpcode() {
+            return this.opcode;
+        }
+
+        public long getRequestNo() {
+            return this.requestNo;
+        }
+
+        public boolean isSuccess() {
+            return (this.flags & flagSuccess) != 0;
+        }
+
+        public String getKey() {
+            return new String(this.key, charset);
+        }
+
+        public String getOption() {
+            return new String(this.option, charset);
+        }
+
+
+        /**
+         * Valueを返す.<br>
+         * バージョンが格納されている場合はテキスト形式と同様にValueの末尾に付加する.<br>
+         *
+         * @return String
+         */
+        public String getValue() {
+            return KeyNodeBinaryProtocol.toString(null, this.value, this.getVersionSuffix());
+        }
+
+
+        // テキスト形式のValueの末尾に付加する保存バージョン
+        private String getVersionSuffix() {
+            if ((this.flags & flagVersion) == 0) return null;
+            return ImdstDefine.setTimeParamSep + this.version;
+        }
+    }
+}
@@ -9,6 +9,10 @@ import okuyama.imdst.util.*;
 
 /**
  * MasterNodeが利用するDataNodeとの接続コネクター.<br>
+ * 多重化モードの場合、set、get、removeの要求はDataNode毎に共有するMultiplexKeyNodeChannelで送受信し、<br>
+ * 自身はソケットを保持しない.<br>
+ * DataNodeが多重化に未対応の場合は多重化モードを解除し、全ての要求を自身のソケットで送受信する.<br>
+ * それ以外の要求は従来通り自身のソケットで送受信し、ソケットは初めて必要になった時点で接続する.<br>
  *
  * @author T.Okuyama
  * @license GPL(Lv3)
@@ -36,6 +40,17 @@ public class KeyNodeConnector {
     private static boolean recoverMode = false;
     private static String recoverTarget = "";
 
+    // 多重化モード
+    private MultiplexKeyNodeChannel multiplexChannel = null;
+
+    // 多重化して送信する要求(flushで送信)
+    private String multiplexSendLine = null;
+
+    // 多重化して送信済みで応答待ちの要求
+    private MultiplexKeyNodeChannel.Request multiplexRequest = null;
+
+    private int soTimeout = ImdstDefine.nodeConnectionTimeout;
+
     public KeyNodeConnector(String nodeName, int nodePort, String nodeFullName) throws Exception {
 
         this.nodeName = nodeName;
@@ -64,13 +79,43 @@ public class KeyNodeConnector {
     }
 
 
+    /**
+     * 多重化モードに設定する.<br>
+     * connectより前に呼び出す.<br>
+     * 多重化に未対応と判定済みのDataNodeの場合は何もしない.<br>
+     */
+    public void setMultiplexMode() {
+        MultiplexKeyNodeChannel channel = MultiplexKeyNodeChannel.getChannel(this.nodeName, this.nodePort, this.nodeFullName);
+        if (!channel.isRefused()) this.multiplexChannel = channel;
+    }
+
+
     /**
      * Connect処理.<br>
+     * 多重化モードの場合は共有の接続のみを確立する.<br>
      *
      * @param connectOpenTime
      * throws Exception
      */
     public void connect(int connectOpenTime) throws Exception {
+        if (this.multiplexChannel != null) {
+            try {
+                this.multiplexChannel.open(connectOpenTime);
+                this.connectTime = new Long(JavaSystemApi.currentTimeMillis);
+                return;
+            } catch (IOException ie) {
+                if (!this.multiplexChannel.isRefused()) throw ie;
+
+                // 多重化に未対応のDataNodeは自身のソケットで接続する
+                this.multiplexChannel = null;
+            }
+        }
+        this.connectSocket(connectOpenTime);
+    }
+
+
+    // 自身のソケットで接続する
+    private void connectSocket(int connectOpenTime) throws Exception {
         InetSocketAddress inetAddr = null;
 
         try {
@@ -95,7 +140,7 @@ public class KeyNodeConnector {
             if (recoverMode && recoverTarget.equals(this.nodeFullName)) {
                 this.socket.setSoTimeout(ImdstDefine.nodeConnectionTimeout4RecoverMode);
             } else {
-                this.socket.setSoTimeout(ImdstDefine.nodeConnectionTimeout);
+                this.socket.setSoTimeout(this.soTimeout);
             }
 
             this.pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream() , ImdstDefine.keyHelperClientParamEncoding)));
@@ -129,6 +174,8 @@ public class KeyNodeConnector {
 
     private String readLine(String retryStr, boolean isReady) throws Exception {
 
+        if (this.multiplexRequest != null) return this.readMultiplexLine(retryStr);
+
         String ret = null;
         try {
             this.useCount++;
@@ -169,7 +216,7 @@ public class KeyNodeConnector {
                     try {
                         //System.out.println("connect1 utime=" + uTime);
                         Thread.sleep(100);
-                        this.connect();
+                        this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
                     } catch (SocketTimeoutException ste) {
 
                         // 再リトライ
@@ -177,7 +224,7 @@ public class KeyNodeConnector {
 
                             //System.out.println("connect2 utime=" + uTime);
                             Thread.sleep(5000);
-                            this.connect();
+                            this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
                         } catch (SocketTimeoutException ste2) {
                             //System.out.println("throw Point 1 uTime=" + uTime + " nowTime=" + System.nanoTime());
                             throw ste2;
@@ -196,7 +243,7 @@ public class KeyNodeConnector {
                             //System.out.println("Retry - 1 println =[" + retryStr + "]ReadLine = null");
                             // 再度試す
                             this.close();
-                            this.connect();
+                            this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
                             this.socket.setSoTimeout(ImdstDefine.nodeConnectionTimeout*5);
                             this.pw.println(retryStr);
                             this.pw.flush();
@@ -219,9 +266,42 @@ public class KeyNodeConnector {
     }
 
 
+    // 多重化して送信した要求の応答を取得する
+    // 失敗した場合は一度だけ再送する
+    private String readMultiplexLine(String retryStr) throws Exception {
+        MultiplexKeyNodeChannel.Request request = this.multiplexRequest;
+        this.multiplexRequest = null;
+        this.useCount++;
+
+        int timeout = this.soTimeout;
+        if (recoverMode && recoverTarget.equals(this.nodeFullName)) timeout = ImdstDefine.nodeConnectionTimeout4RecoverMode;
+
+        try {
+            String ret = this.multiplexChannel.await(request, timeout);
+            this.retry = false;
+            return ret;
+        } catch (Exception e) {
+
+            // 一度でもエラーになった接続は再利用しない
+            this.useCount = Integer.MAX_VALUE;
+
+            if (this.retryConnectMode == true && this.retry == false && MultiplexKeyNodeChannel.isMultiplexRequest(retryStr)) {
+                this.retry = true;
+                Thread.sleep(100);
+
+                String ret = this.multiplexChannel.await(this.multiplexChannel.send(retryStr), ImdstDefine.nodeConnectionTimeout*5);
+                this.retry = false;
+                return ret;
+            }
+            throw e;
+        }
+    }
+
+
     public void print(String str) throws Exception {
         try {
 
+            if (this.pw == null) this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
             this.pw.print(str);
             this.retry = false;
         } catch (Exception e) {
@@ -232,6 +312,15 @@ public class KeyNodeConnector {
     public void println(String str) throws Exception {
         try {
 
+            // 多重化可能な要求はflushで共有の接続に送信する
+            if (this.multiplexChannel != null && MultiplexKeyNodeChannel.isMultiplexRequest(str)) {
+                this.multiplexSendLine = str;
+                this.retry = false;
+                return;
+            }
+
+            if (this.pw == null) this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
+
             if (str.length() < 50000) {
 
                 this.pw.println(str);
@@ -255,7 +344,7 @@ public class KeyNodeConnector {
                 this.retry = true;
                 try {
                     if (this.socket != null && this.socket.isClosed() != true) socket.close();
-                    this.connect();
+                    this.connectSocket(ImdstDefine.nodeConnectionOpenTimeout);
                     this.println(str);
                 } catch(Exception ee) {
                     throw e;
@@ -269,7 +358,13 @@ public class KeyNodeConnector {
     public void flush() throws Exception {
         try {
 
-            this.pw.flush();
+            if (this.multiplexSendLine != null) {
+                String sendLine = this.multiplexSendLine;
+                this.multiplexSendLine = null;
+                this.multiplexRequest = this.multiplexChannel.send(sendLine);
+            }
+
+            if (this.pw != null) this.pw.flush();
             this.retry = false;
         } catch (Exception e) {
             throw e;
@@ -278,6 +373,7 @@ public class KeyNodeConnector {
 
     public void setSoTimeout(int time) throws Exception {
         try {
+            this.soTimeout = time;
             if (this.socket != null)  
                 this.socket.setSoTimeout(time);
         } catch (Exception e) {
@@ -321,6 +417,9 @@ public class KeyNodeConnector {
 
     public void close() {
 
+        this.multiplexSendLine = null;
+        this.multiplexRequest = null;
+
         try {
             if (pw != null) {
                 pw.println(ImdstDefine.imdstConnectExitRequest);
@@ -378,6 +477,8 @@ public class KeyNodeConnector {
         dump.append(" / ");
         dump.append(retry);
         dump.append(" / ");
+        dump.append(multiplexChannel != null);
+        dump.append(" / ");
         return dump.toString();
     }
 }
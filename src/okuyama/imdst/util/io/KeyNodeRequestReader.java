@@ -0,0 +1,315 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * DataNodeがクライアント(MasterNode)からの要求を読み込むReader.<br>
+ * 受信したデータをバイト列のまま再利用するバッファに保持し、文字列への変換は必要な部分のみ行う.<br>
+ * readRequestはset(1、-1)、get(2)の要求を1行の文字列を作成せずにバッファ上で分解し、<br>
+ * Key、TransactionCode、Valueをそれぞれ直接文字列に変換する.<br>
+ * その他の要求はreadLineと同様に1行の文字列を返す.<br>
+ * 従来のBufferedReaderと同様に扱えるように継承しているが、BufferedReaderのバッファは使用しない.<br>
+ * 文字コードはImdstDefine.keyHelperClientParamEncoding(UTF-8)固定.<br>
+ * スレッドセーフではないため、同時に1スレッドのみが使用すること.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class KeyNodeRequestReader extends BufferedReader {
+
+    private static final Charset charset = Charset.forName(ImdstDefine.keyHelperClientParamEncoding);
+
+    private static final int initialBufferSize = 8192;
+
+    // 大きな要求で拡張したバッファを保持し続ける上限
+    private static final int maxKeepBufferSize = 1024 * 64;
+
+    private static final byte paramSep = (byte)ImdstDefine.keyHelperClientParamSep.charAt(0);
+
+    private InputStream is = null;
+
+    // 受信バッファ(posまでが読み込み済み、limitまでが受信済み)
+    private byte[] buf = new byte[initialBufferSize];
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    private int markPos = -1;
+
+    private int markLimit = 0;
+
+    // 直前のreadRequestで要求を分解したか
+    private boolean decoded = false;
+
+    private char[] singleChar = new char[1];
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param is 読み込み元
+     */
+    public KeyNodeRequestReader(InputStream is) {
+        super(new StringReader(""), 1);
+        this.is = is;
+    }
+
+
+    /**
+     * 1要求を読み込む.<br>
+     * set(1、-1)、get(2)の場合はパラメータをparamsに格納し、処理番号を返す(isDecodedがtrueとなる).<br>
+     * paramsの内容はKeyManagerHelper.clientParameterSplitと同様で、setのValueは区切り文字を含む残り全て.<br>
+     * その他の場合は1行の文字列を返す.<br>
+     *
+     * @param params パラメータの格納先(長さ4以上)
+     * @return String 処理番号もしくは1行の文字列 接続が切断された場合はnull
+     * @throw IOException
+     */
+    public String readRequest(String[] params) throws IOException {
+        this.decoded = false;
+
+        int lineEnd = this.findLineEnd();
+        if (lineEnd == -1) return this.readLine();
+
+        int start = this.pos;
+        int end = lineEnd;
+        if (end > start && this.buf[end - 1] == 13) end--;
+
+        String ret = null;
+        if (end - start > 1 && this.buf[start] == '2' && this.buf[start + 1] == paramSep) {
+
+            // Get
+            params[0] = "2";
+            params[1] = new String(this.buf, start + 2, end - start - 2, charset);
+            params[2] = null;
+            params[3] = null;
+            this.decoded = true;
+            ret = params[0];
+        } else {
+
+            // Set(-1は応答なし)
+            String methodNo = null;
+            int secondSep = -1;
+            if (end - start > 1 && this.buf[start] == '1' && this.buf[start + 1] == paramSep) {
+                methodNo = "1";
+                secondSep = this.indexOf(paramSep, start + 2, end);
+            } else if (end - start > 2 && this.buf[start] == '-' && this.buf[start + 1] == '1' && this.buf[start + 2] == paramSep) {
+                methodNo = "-1";
+                secondSep = this.indexOf(paramSep, start + 3, end);
+            }
+
+            int thirdSep = secondSep == -1 ? -1 : this.indexOf(paramSep, secondSep + 1, end);
+            if (thirdSep != -1) {
+
+                // 値の中にセパレータ文字列が入っている場合もデータとしてあつかう
+                int keyStart = start + methodNo.length() + 1;
+                params[0] = methodNo;
+                params[1] = new String(this.buf, keyStart, secondSep - keyStart, charset);
+                params[2] = new String(this.buf, secondSep + 1, thirdSep - secondSep - 1, charset);
+                params[3] = new String(this.buf, thirdSep + 1, end - thirdSep - 1, charset);
+                this.decoded = true;
+                ret = params[0];
+            } else {
+                ret = new String(this.buf, start, end - start, charset);
+            }
+        }
+
+        this.pos = lineEnd + 1;
+        this.releaseBuffer();
+        return ret;
+    }
+
+
+    /**
+     * 直前のreadRequestで要求をパラメータに分解したかを返す.<br>
+     *
+     * @return boolean
+     */
+    public boolean isDecoded() {
+        return this.decoded;
+    }
+
+
+    public String readLine() throws IOException {
+        int lineEnd = this.findLineEnd();
+
+        String line = null;
+        if (lineEnd == -1) {
+
+            // 改行無しで切断された
+            if (this.pos == this.limit) return null;
+            line = new String(this.buf, this.pos, this.limit - this.pos, charset);
+            this.pos = this.limit;
+        } else {
+
+            int end = lineEnd;
+            if (end > this.pos && this.buf[end - 1] == 13) end--;
+            line = new String(this.buf, this.pos, end - this.pos, charset);
+            this.pos = lineEnd + 1;
+        }
+
+        this.releaseBuffer();
+        return line;
+    }
+
+
+    public int read() throws IOException {
+        if (this.read(this.singleChar, 0, 1) == -1) return -1;
+        return this.singleChar[0];
+    }
+
+
+    /**
+     * 文字単位で読み込む.<br>
+     * 1文字以上読み込んだ後は受信済みのデータのみを読み込む.<br>
+     */
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (this.pos == this.limit && !this.fill()) return -1;
+
+        int readLen = 0;
+        while (readLen < len) {
+            if (this.pos == this.limit) {
+                if (this.is.available() <= 0 || !this.fill()) break;
+            }
+
+            int b = this.buf[this.pos] & 0xff;
+            if (b < 0x80) {
+                cbuf[off + readLen] = (char)b;
+                readLen++;
+                this.pos++;
+                continue;
+            }
+
+            // マルチバイト文字
+            int byteLen = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+            if (byteLen == 4 && len - readLen < 2) {
+                if (readLen > 0) break;
+
+                // サロゲートペアを格納出来ない
+                throw new IOException("Buffer too small for surrogate pair");
+            }
+
+            while (this.limit - this.pos < byteLen) {
+                if (!this.fill()) {
+                    byteLen = this.limit - this.pos;
+                    break;
+                }
+            }
+
+            String c = new String(this.buf, this.pos, byteLen, charset);
+            this.pos = this.pos + byteLen;
+            for (int i = 0; i < c.length() && readLen < len; i++) {
+                cbuf[off + readLen] = c.charAt(i);
+                readLen++;
+            }
+        }
+
+        this.releaseBuffer();
+        return readLen;
+    }
+
+
+    public long skip(long n) throws IOException {
+        char[] skipBuf = new char[(int)Math.min(n, 8192)];
+        long skipped = 0L;
+        while (skipped < n) {
+            int readLen = this.read(skipBuf, 0, (int)Math.min(n - skipped, skipBuf.length));
+            if (readLen == -1) break;
+            skipped = skipped + readLen;
+        }
+        return skipped;
+    }
+
+
+    public boolean ready() throws IOException {
+        return this.pos < this.limit || this.is.available() > 0;
+    }
+
+
+    public boolean markSupported() {
+        return true;
+    }
+
+
+    public void mark(int readAheadLimit) throws IOException {
+        this.markPos = this.pos;
+        this.markLimit = readAheadLimit;
+    }
+
+
+    public void reset() throws IOException {
+        if (this.markPos == -1) throw new IOException("Stream not marked");
+        this.pos = this.markPos;
+    }
+
+
+    public void close() throws IOException {
+        this.is.close();
+    }
+
+
+    // 改行の位置を返す 改行を受信するまで読み込み、切断された場合は-1
+    private int findLineEnd() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = this.pos + scanned; i < this.limit; i++) {
+                if (this.buf[i] == 10) return i;
+            }
+            scanned = this.limit - this.pos;
+            if (!this.fill()) return -1;
+        }
+    }
+
+
+    private int indexOf(byte target, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (this.buf[i] == target) return i;
+        }
+        return -1;
+    }
+
+
+    // 受信バッファに追加で読み込む 切断された場合はfalse
+    private boolean fill() throws IOException {
+
+        // 読み込み位置がマークの範囲を超えた場合はマークを無効にする
+        if (this.markPos != -1 && (this.pos - this.markPos) > this.markLimit) this.markPos = -1;
+
+        if (this.limit == this.buf.length) {
+
+            // 読み込み済みの領域を詰め、空きが無い場合は拡張する
+            int keepPos = this.markPos != -1 ? this.markPos : this.pos;
+            if (keepPos > 0) {
+                System.arraycopy(this.buf, keepPos, this.buf, 0, this.limit - keepPos);
+                this.limit = this.limit - keepPos;
+                this.pos = this.pos - keepPos;
+                if (this.markPos != -1) this.markPos = 0;
+            } else {
+                byte[] newBuf = new byte[this.buf.length * 2];
+                System.arraycopy(this.buf, 0, newBuf, 0, this.limit);
+                this.buf = newBuf;
+            }
+        }
+
+        int readLen = this.is.read(this.buf, this.limit, this.buf.length - this.limit);
+        if (readLen == -1) return false;
+        this.limit = this.limit + readLen;
+        return true;
+    }
+
+
+    // 全て読み込んだ場合は受信バッファを先頭から使用し、拡張したバッファは上限を超えていれば解放する
+    private void releaseBuffer() {
+        if (this.markPos != -1 && (this.pos - this.markPos) > this.markLimit) this.markPos = -1;
+        if (this.pos != this.limit || this.markPos != -1) return;
+
+        this.pos = 0;
+        this.limit = 0;
+        if (this.buf.length > maxKeepBufferSize) this.buf = new byte[initialBufferSize];
+    }
+}
@@ -0,0 +1,146 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import okuyama.imdst.util.*;
+
+
+/**
+ * IOのRandomAccessFileのラッパー.<br>
+ * データファイルをセグメント単位でMappedByteBufferにマッピングし、読み込みはマッピング領域から<br>
+ * 直接コピーする.そのためOSのページキャッシュにのっているデータの読み込みではシステムコールが発生しない.<br>
+ * マッピング範囲外となるファイル終端付近のデータは通常通りファイルから読み込み、<br>
+ * ファイルが一定サイズ以上伸長した時点でマッピングを拡張する.<br>
+ * 書き込みは通常のRandomAccessFileで行い、ページキャッシュを経由してマッピング領域に反映される.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class MappedDataRandomAccess extends AbstractDataRandomAccess {
+
+    protected Map dataPointMap = null;
+
+    // 1セグメントのサイズ
+    private int segmentSize = ImdstDefine.mappedDataFileSegmentSize;
+
+    // マッピングを拡張する契機となるファイルの伸長サイズ
+    private int remapSize = ImdstDefine.mappedDataFileRemapSize;
+
+    // 最後のセグメント以外は常にsegmentSize分マッピングされている
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private volatile long mappedLength = 0L;
+
+    private Object remapSync = new Object();
+
+
+    public MappedDataRandomAccess(File target, String type) throws FileNotFoundException {
+        super(target, type);
+        try {
+            this.remap(this.length());
+        } catch (IOException ie) {
+            // マッピングに失敗した場合は全てファイルから読み込む
+            ie.printStackTrace();
+        }
+    }
+
+    public void setDataPointMap(Map dataPointMap) {
+        this.dataPointMap = dataPointMap;
+    }
+
+    public void requestSeekPoint(long seekPoint, int start, int size) {
+
+    }
+
+    public void seek(long seekPoint) throws IOException {
+        super.seek(seekPoint);
+    }
+
+    public void write(byte[] data, int start, int size) throws IOException {
+        super.write(data, start, size);
+    }
+
+
+    public int seekAndRead(long seekPoint, byte[] data, int start, int size, Object key) throws IOException {
+
+        if ((seekPoint + size) > this.mappedLength) {
+
+            // ファイルが伸長している場合はマッピングを拡張する
+            // 伸長分が小さい間はマッピングを拡張せずにファイルから読み込む
+            long fileLength = this.length();
+            if ((fileLength - this.mappedLength) >= this.remapSize) this.remap(fileLength);
+        }
+
+        MappedByteBuffer[] nowSegments = this.segments;
+        int segmentIdx = (int)(seekPoint / this.segmentSize);
+        int segmentPoint = (int)(seekPoint % this.segmentSize);
+
+        // セグメントをまたがないデータはマッピング領域からコピー
+        if (segmentIdx < nowSegments.length && (segmentPoint + size) <= nowSegments[segmentIdx].limit()) {
+            ByteBuffer readBuf = nowSegments[segmentIdx].duplicate();
+            readBuf.position(segmentPoint);
+            readBuf.get(data, start, size);
+            return size;
+        }
+
+        return this.channelRead(seekPoint, data, start, size);
+    }
+
+
+    // マッピング範囲外のデータをファイルポインタを移動せずに読み込む
+    private int channelRead(long seekPoint, byte[] data, int start, int size) throws IOException {
+        FileChannel channel = this.getChannel();
+        ByteBuffer readBuf = ByteBuffer.wrap(data, start, size);
+
+        while (readBuf.hasRemaining()) {
+            int readLen = channel.read(readBuf, seekPoint + (readBuf.position() - start));
+            if (readLen == -1) break;
+        }
+
+        int ret = readBuf.position() - start;
+        if (ret == 0) return -1;
+        return ret;
+    }
+
+
+    // 指定されたファイル長までマッピングを拡張する
+    // 既に全体がマッピングされているセグメントは再利用する
+    private void remap(long fileLength) throws IOException {
+        synchronized (this.remapSync) {
+            if (fileLength <= this.mappedLength) return;
+
+            MappedByteBuffer[] nowSegments = this.segments;
+            int segmentCount = (int)((fileLength + this.segmentSize - 1) / this.segmentSize);
+            MappedByteBuffer[] newSegments = new MappedByteBuffer[segmentCount];
+
+            FileChannel channel = this.getChannel();
+            for (int i = 0; i < segmentCount; i++) {
+
+                long mapStart = (long)i * this.segmentSize;
+                long mapSize = fileLength - mapStart;
+                if (mapSize > this.segmentSize) mapSize = this.segmentSize;
+
+                if (i < nowSegments.length && nowSegments[i].limit() == mapSize) {
+                    newSegments[i] = nowSegments[i];
+                } else {
+                    newSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapSize);
+                }
+            }
+
+            this.segments = newSegments;
+            this.mappedLength = fileLength;
+        }
+    }
+
+
+    public void close() throws IOException {
+        // マッピング領域の解放はGCに任せる
+        this.segments = new MappedByteBuffer[0];
+        this.mappedLength = 0L;
+        super.close();
+    }
+}
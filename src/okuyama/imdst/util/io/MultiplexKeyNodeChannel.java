@@ -0,0 +1,495 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+import okuyama.base.util.HelperPool;
+import okuyama.base.util.ILogger;
+import okuyama.base.util.LoggerFactory;
+import okuyama.imdst.util.*;
+
+/**
+ * MasterNodeからDataNodeへの要求を少数の接続で多重化して送受信するチャネル.<br>
+ * DataNode1台につき1インスタンスを全てのMasterManagerHelperで共有する.<br>
+ * 要求には要求番号を付与して"接頭辞 + 要求番号 + 区切り文字 + 通常の要求"の1行で送信し、<br>
+ * DataNodeは同じ形式で応答を返す.<br>
+ * 応答は要求の順番に関係なく返されるため、接続毎の受信スレッドが要求番号で待機中の要求に振り分ける.<br>
+ * 多重化出来る要求は1行の要求に1行で応答するset(1)、get(2)、remove(5)、setOnlyOnce(6)のみ.<br>
+ * 接続毎に多重化のネゴシエーションを行い、成立しなかったDataNode(多重化に未対応)はisRefusedがtrueとなるため、<br>
+ * 呼び出し元は以降そのDataNodeに要求毎の接続で送信する.<br>
+ * ImdstDefine.binaryDataNodeProtocolがtrueの場合は先にバイナリ形式をネゴシエーションし、<br>
+ * 成立した接続ではKeyNodeBinaryProtocolのフレームで送受信する(要求、応答はテキスト形式と相互に変換する).<br>
+ * 成立しなかったDataNode(バイナリ形式に未対応)には以降テキスト形式で接続する.<br>
+ * DataNodeは未対応のネゴシエーションに拒否を応答するため、即座に判定出来る.<br>
+ * 拒否の応答に対応していない従来のDataNodeはネゴシエーションに応答しないため、判定には接続タイムアウト時間がかかる(DataNode毎に初回のみ).<br>
+ * 要求を送信するスレッドは仮想スレッドの場合があるため、待機と排他はReentrantLockで行う.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class MultiplexKeyNodeChannel {
+
+    private static ILogger logger = LoggerFactory.createLogger(MultiplexKeyNodeChannel.class);
+
+    // ノードのフルネーム -> チャネル
+    private static ConcurrentHashMap channelMap = new ConcurrentHashMap(64, 0.75f, 16);
+
+    private static AtomicLong requestNoSeq = new AtomicLong(0L);
+
+    // 多重化する要求の最大長(これ以上の長さのsetは1001で送信されるため多重化しない)
+    private static final int multiplexRequestMaxLength = 50000;
+
+    private String nodeName = null;
+
+    private int nodePort = -1;
+
+    private String nodeFullName = null;
+
+    private ChannelSocket[] sockets = null;
+
+    private AtomicInteger socketIndex = new AtomicInteger(0);
+
+    // DataNodeがバイナリ形式に未対応
+    private volatile boolean binaryRefused = false;
+
+    // DataNodeが多重化に未対応
+    private volatile boolean multiplexRefused = false;
+
+    // 接続を確立する際のLock
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    // 要求番号(Long) -> 応答待ちのRequest
+    private ConcurrentHashMap waitRequestMap = new ConcurrentHashMap(1024, 0.75f, 64);
+
+
+    private MultiplexKeyNodeChannel(String nodeName, int nodePort, String nodeFullName, int socketCount) {
+        this.nodeName = nodeName;
+        this.nodePort = nodePort;
+        this.nodeFullName = nodeFullName;
+        this.sockets = new ChannelSocket[socketCount];
+    }
+
+
+    /**
+     * 指定のDataNodeのチャネルを返す.<br>
+     * 存在しない場合は作成する(接続は送信時に行う).<br>
+     *
+     * @param nodeName
+     * @param nodePort
+     * @param nodeFullName
+     * @return MultiplexKeyNodeChannel
+     */
+    public static MultiplexKeyNodeChannel getChannel(String nodeName, int nodePort, String nodeFullName) {
+        MultiplexKeyNodeChannel channel = (MultiplexKeyNodeChannel)channelMap.get(nodeFullName);
+        if (channel != null) return channel;
+
+        int socketCount = ImdstDefine.multiplexDataNodeConnectionSockets;
+        if (socketCount < 1) socketCount = 1;
+        channelMap.putIfAbsent(nodeFullName, new MultiplexKeyNodeChannel(nodeName, nodePort, nodeFullName, socketCount));
+        return (MultiplexKeyNodeChannel)channelMap.get(nodeFullName);
+    }
+
+
+    /**
+     * 多重化して送信可能な要求かを返す.<br>
+     *
+     * @param requestLine 要求
+     * @return boolean
+     */
+    public static boolean isMultiplexRequest(String requestLine) {
+        if (requestLine == null || requestLine.length() >= multiplexRequestMaxLength) return false;
+
+        if (requestLine.indexOf("1,") == 0 || requestLine.indexOf("5,") == 0 || requestLine.indexOf("6,") == 0) return true;
+
+        // 複数キーの一括取得は対象外
+        if (requestLine.indexOf("2,") == 0 && requestLine.indexOf(";") == -1) return true;
+        return false;
+    }
+
+
+    /**
+     * DataNodeが多重化に未対応かを返す.<br>
+     * trueの場合は多重化せずに要求毎の接続で送信する.<br>
+     *
+     * @return boolean
+     */
+    public boolean isRefused() {
+        return this.multiplexRefused;
+    }
+
+
+    /**
+     * 全ての接続を確立する.<br>
+     * 確立済みの接続は何もしない.<br>
+     *
+     * @param connectOpenTime 接続タイムアウト時間(ミリ秒)
+     * @throw IOException 多重化に未対応の場合もthrowされ、isRefusedがtrueとなる
+     */
+    public void open(int connectOpenTime) throws IOException {
+        for (int i = 0; i < this.sockets.length; i++) {
+            this.getSocket(i, connectOpenTime);
+        }
+    }
+
+
+    /**
+     * 要求を送信する.<br>
+     * 応答はawaitで取得する.<br>
+     *
+     * @param requestLine 要求(isMultiplexRequestがtrueとなるもの)
+     * @return Request
+     * @throw IOException
+     */
+    public Request send(String requestLine) throws IOException {
+        int idx = ((this.socketIndex.getAndIncrement() << 1) >>> 1) % this.sockets.length;
+        ChannelSocket channelSocket = this.getSocket(idx, ImdstDefine.nodeConnectionOpenTimeout);
+
+        Request request = new Request(requestNoSeq.incrementAndGet(), channelSocket);
+        Long requestNo = new Long(request.requestNo);
+
+        // 変換出来ない要求は接続を切断せずにエラーとする
+        byte[] frame = null;
+        if (channelSocket.isBinary()) frame = KeyNodeBinaryProtocol.encodeRequest(request.requestNo, requestLine);
+
+        this.waitRequestMap.put(requestNo, request);
+
+        try {
+            channelSocket.write(request.requestNo, requestLine, frame);
+        } catch (IOException ie) {
+            this.waitRequestMap.remove(requestNo);
+            channelSocket.close(ie);
+            throw ie;
+        }
+        return request;
+    }
+
+
+    /**
+     * 要求の応答を待ち受ける.<br>
+     *
+     * @param request sendの戻り値
+     * @param timeout 待機時間(ミリ秒) 0は無制限
+     * @return String 応答
+     * @throw IOException 接続が切断された場合、SocketTimeoutException 待機時間を超過した場合
+     */
+    public String await(Request request, int timeout) throws IOException {
+        try {
+            return request.await(timeout);
+        } finally {
+            this.waitRequestMap.remove(new Long(request.requestNo));
+        }
+    }
+
+
+    // 指定位置の接続を返す 未接続、切断済みの場合は接続する
+    private ChannelSocket getSocket(int idx, int connectOpenTime) throws IOException {
+        ChannelSocket channelSocket = this.sockets[idx];
+        if (channelSocket != null && !channelSocket.isClosed()) return channelSocket;
+
+        this.connectLock.lock();
+        try {
+            channelSocket = this.sockets[idx];
+            if (channelSocket == null || channelSocket.isClosed()) {
+                channelSocket = new ChannelSocket();
+                channelSocket.connect(connectOpenTime);
+                HelperPool.getHelperThreadFactory("MultiplexKeyNodeChannel-" + this.nodeFullName + "-" + idx).newThread(channelSocket).start();
+                this.sockets[idx] = channelSocket;
+            }
+        } finally {
+            this.connectLock.unlock();
+        }
+        return channelSocket;
+    }
+
+
+    // 応答を待機中の要求に渡す
+    private void receive(String responseLine) {
+        int sepIdx = responseLine.indexOf(ImdstDefine.keyHelperClientParamSep);
+        if (responseLine.indexOf(ImdstDefine.keyNodeMultiplexPrefix) != 0 || sepIdx == -1) {
+            logger.error("MultiplexKeyNodeChannel - receive - Illegal Response [" + this.nodeFullName + "] =[" + responseLine + "]");
+            return;
+        }
+
+        try {
+            Long requestNo = new Long(responseLine.substring(ImdstDefine.keyNodeMultiplexPrefix.length(), sepIdx));
+            this.receive(requestNo, responseLine.substring(sepIdx + 1));
+        } catch (NumberFormatException nfe) {
+            logger.error("MultiplexKeyNodeChannel - receive - Illegal Response [" + this.nodeFullName + "] =[" + responseLine + "]");
+        }
+    }
+
+
+    private void receive(Long requestNo, String response) {
+        Request request = (Request)this.waitRequestMap.remove(requestNo);
+
+        // タイムアウト済みの要求の応答は破棄する
+        if (request != null) request.complete(response, null);
+    }
+
+
+    // 切断された接続で応答を待機中の要求をエラーとする
+    private void failRequests(ChannelSocket channelSocket, IOException cause) {
+        for (Iterator ite = this.waitRequestMap.values().iterator(); ite.hasNext();) {
+            Request request = (Request)ite.next();
+            if (request.channelSocket == channelSocket) {
+                ite.remove();
+                request.complete(null, cause);
+            }
+        }
+    }
+
+
+    /**
+     * 送信済みで応答待ちの要求.<br>
+     */
+    public static class Request {
+
+        private long requestNo = 0L;
+
+        private ChannelSocket channelSocket = null;
+
+        private String response = null;
+
+        private IOException error = null;
+
+        private boolean end = false;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition endCondition = lock.newCondition();
+
+
+        Request(long requestNo, ChannelSocket channelSocket) {
+            this.requestNo = requestNo;
+            this.channelSocket = channelSocket;
+        }
+
+
+        void complete(String response, IOException error) {
+            this.lock.lock();
+            try {
+                this.response = response;
+                this.error = error;
+                this.end = true;
+                this.endCondition.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+
+        String await(int timeout) throws IOException {
+            long limit = System.currentTimeMillis() + timeout;
+
+            this.lock.lock();
+            try {
+                while (!this.end) {
+                    if (timeout == 0) {
+                        this.endCondition.await();
+                    } else {
+                        long remaining = limit - System.currentTimeMillis();
+                        if (remaining <= 0) throw new SocketTimeoutException("Multiplex response timed out RequestNo=" + this.requestNo);
+                        this.endCondition.await(remaining, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                if (this.error != null) throw this.error;
+                return this.response;
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * DataNodeとの1接続.<br>
+     * 送信は要求単位で排他し、受信はHelperと同じ種類のスレッド(仮想スレッド時は仮想スレッド)で行う.<br>
+     */
+    class ChannelSocket implements Runnable {
+
+        private Socket socket = null;
+
+        private PrintWriter pw = null;
+
+        private BufferedReader br = null;
+
+        // バイナリ形式のネゴシエーションが成立した
+        private boolean binary = false;
+
+        private DataOutputStream dos = null;
+
+        private DataInputStream dis = null;
+
+        private AtomicBoolean closed = new AtomicBoolean(false);
+
+        // 送信の排他
+        private ReentrantLock writeLock = new ReentrantLock();
+
+
+        void connect(int connectOpenTime) throws IOException {
+            if (multiplexRefused) throw new SocketException("DataNode does not support multiplex connection [" + nodeFullName + "]");
+
+            this.openSocket(connectOpenTime);
+
+            if (ImdstDefine.binaryDataNodeProtocol && !binaryRefused) {
+                if (this.negotiate(KeyNodeBinaryProtocol.negotiationRequest, KeyNodeBinaryProtocol.negotiationResponse, connectOpenTime)) {
+
+                    this.binary = true;
+                    this.socket.setSoTimeout(0);
+                    this.dos = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), 8192 * 4));
+                    this.dis = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 8192 * 4));
+                    return;
+                }
+
+                // 拒否の応答、もしくは応答が無い(従来のDataNode)場合は、接続し直してテキスト形式とする
+                binaryRefused = true;
+                logger.info("MultiplexKeyNodeChannel - DataNode does not support binary protocol. Text protocol is used [" + nodeFullName + "]");
+                try {
+                    this.socket.close();
+                } catch (IOException ie) {
+                }
+                this.openSocket(connectOpenTime);
+            }
+
+            // 拒否の応答、もしくは応答が無い(従来のDataNode)場合は以降多重化しない
+            if (!this.negotiate(ImdstDefine.keyNodeMultiplexNegotiationRequest, ImdstDefine.keyNodeMultiplexNegotiationResponse, connectOpenTime)) {
+
+                multiplexRefused = true;
+                logger.info("MultiplexKeyNodeChannel - DataNode does not support multiplex connection. A connection per request is used [" + nodeFullName + "]");
+                try {
+                    this.socket.close();
+                } catch (IOException ie) {
+                }
+                throw new SocketException("DataNode does not support multiplex connection [" + nodeFullName + "]");
+            }
+
+            // 応答が無い時間は要求側のタイムアウトで判定するため、受信は無制限に待つ
+            this.socket.setSoTimeout(0);
+            this.pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
+            this.br = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+        }
+
+
+        private void openSocket(int connectOpenTime) throws IOException {
+            InetSocketAddress inetAddr = new InetSocketAddress(NodeDnsUtil.getNameToReal(nodeName), nodePort);
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(ImdstDefine.tcpNoDelay);
+
+            if (ImdstDefine.tcpReceiveBufferSize != 0) {
+                this.socket.setReceiveBufferSize(ImdstDefine.tcpReceiveBufferSize);
+            }
+
+            if (ImdstDefine.tcpSendBufferSize != 0) {
+                this.socket.setSendBufferSize(ImdstDefine.tcpSendBufferSize);
+            }
+
+            this.socket.connect(inetAddr, connectOpenTime);
+        }
+
+
+        // テキスト形式でネゴシエーションの要求を送信し、成立の応答を待つ
+        // 応答は以降の送受信の前に返されるため、以降のデータを読み込まないように1バイトずつ読み込む
+        private boolean negotiate(String request, String response, int timeout) throws IOException {
+            this.socket.setSoTimeout(timeout);
+
+            OutputStream os = this.socket.getOutputStream();
+            os.write((request + "\n").getBytes(ImdstDefine.keyHelperClientParamEncoding));
+            os.flush();
+
+            InputStream is = this.socket.getInputStream();
+            ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+            try {
+                int b = 0;
+                while ((b = is.read()) != '\n') {
+
+                    // 切断された場合は未対応とは判定しない
+                    if (b == -1) throw new SocketException("Multiplex connection closed by DataNode [" + nodeFullName + "]");
+                    if (b != '\r') line.write(b);
+                    if (line.size() > 128) return false;
+                }
+            } catch (SocketTimeoutException ste) {
+                return false;
+            }
+            return line.toString(ImdstDefine.keyHelperClientParamEncoding).equals(response);
+        }
+
+
+        boolean isBinary() {
+            return this.binary;
+        }
+
+
+        void write(long requestNo, String requestLine, byte[] frame) throws IOException {
+            this.writeLock.lock();
+            try {
+                if (this.closed.get()) throw new SocketException("Multiplex connection closed [" + nodeFullName + "]");
+
+                if (this.binary) {
+                    this.dos.write(frame);
+                    this.dos.flush();
+                    return;
+                }
+
+                this.pw.print(ImdstDefine.keyNodeMultiplexPrefix);
+                this.pw.print(requestNo);
+                this.pw.print(ImdstDefine.keyHelperClientParamSep);
+                this.pw.println(requestLine);
+                this.pw.flush();
+                if (this.pw.checkError()) throw new SocketException("Multiplex connection write error [" + nodeFullName + "]");
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+
+        boolean isClosed() {
+            return this.closed.get();
+        }
+
+
+        public void run() {
+            try {
+                if (this.binary) {
+
+                    KeyNodeBinaryProtocol.Frame frame = null;
+                    while ((frame = KeyNodeBinaryProtocol.readFrame(this.dis)) != null) {
+                        receive(new Long(frame.getRequestNo()), KeyNodeBinaryProtocol.toResponseLine(frame));
+                    }
+                } else {
+
+                    String responseLine = null;
+                    while ((responseLine = this.br.readLine()) != null) {
+                        receive(responseLine);
+                    }
+                }
+                this.close(new IOException("Multiplex connection closed by DataNode [" + nodeFullName + "]"));
+            } catch (IOException ie) {
+                this.close(ie);
+            } catch (Throwable te) {
+                logger.error("MultiplexKeyNodeChannel - ChannelSocket - run - Error [" + nodeFullName + "]", te);
+                this.close(new IOException(te.toString()));
+            }
+        }
+
+
+        void close(IOException cause) {
+            if (!this.closed.compareAndSet(false, true)) return;
+
+            try {
+                this.socket.close();
+            } catch (IOException ie) {
+            }
+            failRequests(this, cause);
+        }
+    }
+}
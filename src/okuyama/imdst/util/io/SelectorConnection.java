@@ -0,0 +1,385 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * SelectorFrontEndが管理する1クライアントの接続.<br>
+ * ソケットはノンブロッキングでSelectorに登録され、読み込みはSelectorのスレッドのみが行い受信バッファに蓄える.<br>
+ * 処理スレッド(Helper)はgetInputStream、getOutputStreamで取得したストリームで従来のソケットと同様に読み書きを行う.<br>
+ * ストリームは受信バッファにデータが無い場合や送信できない場合にSelectorに通知を依頼して待機する.<br>
+ * 読み込みの待機時間はソケットのSoTimeoutに従い、超過した場合はSocketTimeoutExceptionとなる.<br>
+ * 処理スレッドは仮想スレッドの場合があるため、待機はsynchronizedではなくReentrantLockのConditionで行う.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class SelectorConnection {
+
+    // 受信バッファのサイズ
+    private static final int readBufferSize = 1024 * 64;
+
+    private SocketChannel channel = null;
+
+    private ConnectionSelector owner = null;
+
+    private SelectionKey key = null;
+
+    // 受信バッファ(positionまでが受信済み、readPosまでが読み込み済み)
+    private ByteBuffer readBuffer = ByteBuffer.allocate(readBufferSize);
+
+    private int readPos = 0;
+
+    private boolean eof = false;
+
+    private volatile boolean closed = false;
+
+    // 処理スレッドが処理中(false:Selectorがリクエストの受信を待っている)
+    private boolean busy = false;
+
+    private boolean readWaiting = false;
+
+    private boolean writeWaiting = false;
+
+    // 処理スレッドに渡す接続情報
+    Object[] clientMap = null;
+
+    volatile long lastAccess = System.currentTimeMillis();
+
+    // 受信バッファと状態の排他
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 受信データの到着、切断を待つ
+    private final Condition readCondition = lock.newCondition();
+
+    // 送信可能になるのを待つ
+    private final Condition writeCondition = lock.newCondition();
+
+    private InputStream inputStream = new SelectorInputStream();
+
+    private OutputStream outputStream = new SelectorOutputStream();
+
+
+    SelectorConnection(SocketChannel channel, ConnectionSelector owner) {
+        this.channel = channel;
+        this.owner = owner;
+    }
+
+
+    public Socket getSocket() {
+        return this.channel.socket();
+    }
+
+    public InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.outputStream;
+    }
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    ConnectionSelector getOwner() {
+        return this.owner;
+    }
+
+    boolean isClosed() {
+        return this.closed || !this.channel.isOpen();
+    }
+
+    boolean isIdle() {
+        this.lock.lock();
+        try {
+            return !this.busy;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // 受信待ちの状態で切断された
+    boolean isIdleEof() {
+        this.lock.lock();
+        try {
+            return !this.busy && this.eof;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // Selectorに登録する(Selectorのスレッドから呼び出す)
+    void register(Selector selector) throws IOException {
+        this.lock.lock();
+        try {
+            this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 読み込み可能になった際にSelectorのスレッドから呼び出される.<br>
+     * 受信待ちの場合は受信データに1リクエスト分の改行が含まれるか、受信バッファが一杯の場合にtrueを返し、<br>
+     * 以降は処理スレッドが処理中として扱う.<br>
+     * 切断された場合も未処理の受信データが残っている場合はtrueを返す.<br>
+     *
+     * @return boolean true:処理スレッドに渡す
+     * @throw IOException
+     */
+    boolean readReady() throws IOException {
+        this.lock.lock();
+        try {
+            if (!this.readBuffer.hasRemaining()) this.compact();
+
+            int start = this.readBuffer.position();
+            int len = this.channel.read(this.readBuffer);
+            if (len < 0) this.eof = true;
+            if (len > 0) this.lastAccess = System.currentTimeMillis();
+
+            if (this.busy) {
+
+                // 処理スレッドが読み込みを待っている
+                this.readWaiting = false;
+                this.updateInterestOps();
+                this.readCondition.signalAll();
+                return false;
+            }
+
+            // 切断前に受信した最後のリクエストを処理するため、改行の有無を先に確認する
+            boolean dispatch = !this.readBuffer.hasRemaining();
+            byte[] buf = this.readBuffer.array();
+            for (int i = start; !dispatch && i < this.readBuffer.position(); i++) {
+                if (buf[i] == 10) dispatch = true;
+            }
+
+            // 改行の無い最後の行が残ったまま切断された場合も処理スレッドに渡し、読み込み側で終端として扱う
+            if (!dispatch && this.eof && this.available() > 0) dispatch = true;
+            if (!dispatch) return false;
+
+            this.busy = true;
+            this.updateInterestOps();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 書き込み可能になった際にSelectorのスレッドから呼び出される
+    void writeReady() {
+        this.lock.lock();
+        try {
+            this.writeWaiting = false;
+            this.updateInterestOps();
+            this.writeCondition.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 処理スレッドの処理が完了し、受信待ちに戻す.<br>
+     *
+     * @param pending 読み込み済みで未処理のデータが存在するか
+     * @return boolean true:受信済みのリクエストが存在するため、そのまま処理スレッドに渡す
+     */
+    boolean release(boolean pending) {
+        this.lock.lock();
+        try {
+            this.lastAccess = System.currentTimeMillis();
+            if (pending || this.available() > 0) return true;
+
+            this.busy = false;
+            this.updateInterestOps();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    public void close() {
+        this.lock.lock();
+        try {
+            if (this.closed) return;
+            this.closed = true;
+            this.readCondition.signalAll();
+            this.writeCondition.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException ie) {
+        }
+        this.owner.closed(this);
+    }
+
+
+    private int available() {
+        return this.readBuffer.position() - this.readPos;
+    }
+
+
+    // 読み込み済みの領域を詰める
+    private void compact() {
+        byte[] buf = this.readBuffer.array();
+        int len = this.available();
+        System.arraycopy(buf, this.readPos, buf, 0, len);
+        this.readBuffer.position(len);
+        this.readPos = 0;
+    }
+
+
+    private void updateInterestOps() {
+        if (this.key == null || !this.key.isValid()) return;
+
+        int ops = 0;
+        if (!this.busy || this.readWaiting) ops = ops | SelectionKey.OP_READ;
+        if (this.writeWaiting) ops = ops | SelectionKey.OP_WRITE;
+
+        try {
+            if (this.key.interestOps() != ops) {
+                this.key.interestOps(ops);
+                if (ops != 0) this.key.selector().wakeup();
+            }
+        } catch (CancelledKeyException ce) {
+        }
+    }
+
+
+    // 受信バッファにデータが届くまで待つ(lockを取得した状態で呼び出す)
+    private void awaitRead() throws IOException {
+        int timeout = this.channel.socket().getSoTimeout();
+        long end = System.currentTimeMillis() + timeout;
+
+        while (this.available() == 0 && !this.eof) {
+            if (this.isClosed()) throw new SocketException("Socket is closed");
+
+            this.readWaiting = true;
+            this.updateInterestOps();
+
+            try {
+                if (timeout == 0) {
+                    this.readCondition.await();
+                } else {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        this.readWaiting = false;
+                        this.updateInterestOps();
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    this.readCondition.await(remaining, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+
+    // 送信可能になるまで待つ
+    private void awaitWrite() throws IOException {
+        this.lock.lock();
+        try {
+            this.writeWaiting = true;
+            this.updateInterestOps();
+
+            while (this.writeWaiting) {
+                if (this.isClosed()) throw new SocketException("Socket is closed");
+                this.writeCondition.await(1000, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 受信バッファから読み込むストリーム.<br>
+     */
+    class SelectorInputStream extends InputStream {
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (this.read(b, 0, 1) == -1) return -1;
+            return b[0] & 0xff;
+        }
+
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            lock.lock();
+            try {
+                awaitRead();
+
+                int readLen = SelectorConnection.this.available();
+                if (readLen == 0) return -1;
+                if (readLen > len) readLen = len;
+
+                System.arraycopy(readBuffer.array(), readPos, b, off, readLen);
+                readPos = readPos + readLen;
+                if (readPos == readBuffer.position()) {
+                    readBuffer.clear();
+                    readPos = 0;
+                }
+                return readLen;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        public int available() throws IOException {
+            lock.lock();
+            try {
+                return SelectorConnection.this.available();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+
+        public void close() throws IOException {
+            SelectorConnection.this.close();
+        }
+    }
+
+
+    /**
+     * ソケットに直接書き込むストリーム.<br>
+     * バッファリングは行わないため、呼び出し元でBufferedWriter等を使用する.<br>
+     */
+    class SelectorOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte)b}, 0, 1);
+        }
+
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                if (channel.write(buf) == 0) awaitWrite();
+            }
+        }
+
+
+        public void close() throws IOException {
+            SelectorConnection.this.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package okuyama.imdst.util.io;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okuyama.base.util.HelperPool;
+import okuyama.base.util.ILogger;
+import okuyama.base.util.LoggerFactory;
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.JavaSystemApi;
+
+/**
+ * Selectorで全てのクライアントの接続を管理する接続受付部.<br>
+ * 従来のConnectHelper、AcceptHelperの代わりに使用し、1つ以上のSelectorのスレッドが全ての接続の受信を監視する.<br>
+ * 1リクエスト分(改行まで)のデータを受信した接続のみを処理スレッド(Helper)のキューに登録するため、<br>
+ * 無操作の接続はスレッドもキューも消費しない.<br>
+ * 処理スレッドは処理完了後にgetReturnQueueNamesのキューに接続情報を戻し、受信待ちに戻る.<br>
+ * 受信待ちの接続は無操作時間が上限に達するか、切断された時点でクローズする.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class SelectorFrontEnd {
+
+    private static ILogger logger = LoggerFactory.createLogger(SelectorFrontEnd.class);
+
+    private ConnectionSelector[] selectors = null;
+
+    private ReturnWatcher[] returnWatchers = null;
+
+    private String[] returnQueueNames = null;
+
+    // 処理スレッドのキュー
+    private String[] workerQueueNames = null;
+
+    // 無操作上限時間(ミリ秒) -1は切断なし
+    private long idleTimeout = -1L;
+
+    // ソケット -> SelectorConnection
+    private Map connectionMap = new ConcurrentHashMap(1024, 0.75f, 64);
+
+    private long registerCount = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     * 処理スレッドから接続情報を戻すキューを作成する.<br>
+     *
+     * @param name キュー名の接頭辞
+     * @param selectorCount Selectorのスレッド数
+     * @param workerQueueNames 処理スレッドのキュー
+     * @param idleTimeout 無操作上限時間(ミリ秒) -1は切断なし
+     */
+    public SelectorFrontEnd(String name, int selectorCount, String[] workerQueueNames, long idleTimeout) {
+        this.workerQueueNames = workerQueueNames;
+        this.idleTimeout = idleTimeout;
+
+        this.selectors = new ConnectionSelector[selectorCount];
+        this.returnWatchers = new ReturnWatcher[selectorCount];
+        this.returnQueueNames = new String[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            this.returnQueueNames[i] = name + "SelectorReturn" + i;
+            HelperPool.createUniqueHelperParamQueue(this.returnQueueNames[i], 10000);
+        }
+    }
+
+
+    /**
+     * Selectorのスレッドと、処理スレッドから戻された接続を受信待ちに戻すスレッドを開始する.<br>
+     *
+     * @throw IOException
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < this.selectors.length; i++) {
+            this.selectors[i] = new ConnectionSelector(this);
+            this.selectors[i].start();
+
+            this.returnWatchers[i] = new ReturnWatcher(this.returnQueueNames[i]);
+            this.returnWatchers[i].start();
+        }
+    }
+
+
+    /**
+     * 処理スレッドが処理完了後に接続情報を戻すキュー.<br>
+     *
+     * @return String[]
+     */
+    public String[] getReturnQueueNames() {
+        return this.returnQueueNames;
+    }
+
+
+    /**
+     * Accept済みのソケットから接続を作成する.<br>
+     * 作成後にストリームから接続情報を作成し、registerで登録する.<br>
+     *
+     * @param channel Accept済みのソケット
+     * @return SelectorConnection
+     * @throw IOException
+     */
+    public SelectorConnection createConnection(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+
+        ConnectionSelector selector = this.selectors[(int)(this.registerCount++ % this.selectors.length)];
+        SelectorConnection connection = new SelectorConnection(channel, selector);
+        this.connectionMap.put(connection.getSocket(), connection);
+        return connection;
+    }
+
+
+    /**
+     * 接続をSelectorに登録し、受信待ちとする.<br>
+     *
+     * @param connection 接続
+     * @param clientMap 処理スレッドのキューに登録する接続情報
+     */
+    public void register(SelectorConnection connection, Object[] clientMap) {
+        connection.clientMap = clientMap;
+        connection.getOwner().register(connection);
+    }
+
+
+    /**
+     * 現在の接続数を返す.<br>
+     *
+     * @return int
+     */
+    public int getConnectionCount() {
+        return this.connectionMap.size();
+    }
+
+
+    // 処理スレッドに渡す
+    void dispatch(SelectorConnection connection) {
+        try {
+            connection.clientMap[ImdstDefine.paramLast] = new Long(JavaSystemApi.currentTimeMillis);
+            Object[] queueParam = new Object[1];
+            queueParam[0] = connection.clientMap;
+
+            // 最も空いているキューに登録
+            String targetQueue = this.workerQueueNames[0];
+            int targetSize = Integer.MAX_VALUE;
+            for (int i = 0; i < this.workerQueueNames.length; i++) {
+                int size = HelperPool.getParameterQueueSize(this.workerQueueNames[i]);
+                if (size < targetSize) {
+                    targetSize = size;
+                    targetQueue = this.workerQueueNames[i];
+                    if (size == 0) break;
+                }
+            }
+            HelperPool.addSpecificationParameterQueue(targetQueue, queueParam);
+        } catch (Exception e) {
+            logger.error("SelectorFrontEnd - dispatch - Error", e);
+            connection.close();
+        }
+    }
+
+
+    void closed(SelectorConnection connection) {
+        this.connectionMap.remove(connection.getSocket());
+    }
+
+
+    long getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+
+    /**
+     * 処理スレッドから戻された接続を受信待ちに戻すスレッド.<br>
+     * 読み込み済みで未処理のデータが存在する場合はそのまま処理スレッドに渡す.<br>
+     */
+    class ReturnWatcher extends Thread {
+
+        private String queueName = null;
+
+
+        ReturnWatcher(String queueName) {
+            this.queueName = queueName;
+            this.setDaemon(true);
+            this.setName("SelectorFrontEnd-" + queueName);
+        }
+
+
+        public void run() {
+            while (true) {
+                Object[] queueParam = HelperPool.pollSpecificationParameterQueue(this.queueName);
+                if (queueParam == null || queueParam.length < 1) continue;
+
+                Object[] clientMap = (Object[])queueParam[0];
+                SelectorConnection connection = (SelectorConnection)connectionMap.get(clientMap[ImdstDefine.paramSocket]);
+                if (connection == null || connection.isClosed()) continue;
+
+                try {
+                    if (connection.release(isReaderReady(clientMap[ImdstDefine.paramBr]))) dispatch(connection);
+                } catch (Exception e) {
+                    connection.close();
+                }
+            }
+        }
+
+
+        // Readerのバッファに読み込み済みのデータが存在するか
+        private boolean isReaderReady(Object reader) throws Exception {
+            if (reader instanceof BufferedReader) return ((BufferedReader)reader).ready();
+            if (reader instanceof CustomReader) return ((CustomReader)reader).ready();
+            return false;
+        }
+    }
+}
+
@@ -0,0 +1,115 @@
+package okuyama.imdst.util.offheapmap;
+
+
+import java.io.*;
+
+import okuyama.imdst.util.segmentmap.*;
+
+
+/**
+ * データ格納Map.<br>
+ * 格納されるKeyとValueはJavaのHeap外(DirectBuffer)に確保したスラブ上に格納され、<br>
+ * Heap上にはKeyのHash値と格納位置のみを保持するIndexを持つ.<br>
+ * 大量のKeyとValueをメモリに保持した際もHeap上のオブジェクト数が増えないため、<br>
+ * GCの停止時間を抑えることが出来る.<br>
+ * セグメント単位のロック、走査、シリアライズはSegmentMapが行う.<br>
+ * KeyはCoreMapKey、Valueはbyte配列を想定している.<br>
+ * 使用するDirectBufferの総量はJVMの-XX:MaxDirectMemorySizeの制限を受ける.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class OffHeapSlabMap extends SegmentMap {
+
+    private int chunkSize = 1024 * 1024 * 4;
+
+
+    /**
+     * コンストラクタ
+     *
+     * @param size 予想格納最大数
+     * @param segmentCount ロック単位となるセグメント数
+     * @param chunkSize 1回に確保するDirectBufferのサイズ
+     */
+    public OffHeapSlabMap(int size, int segmentCount, int chunkSize) {
+        super(segmentCount);
+        System.out.println("OffHeapSlabMap SegmentCount= " + segmentCount);
+        System.out.println("OffHeapSlabMap ChunkSize= " + chunkSize);
+
+        this.chunkSize = chunkSize;
+        this.initSegments(size);
+    }
+
+
+    protected MapSegment createSegment(int initialCapacity) {
+        return new OffHeapSlabSegment(initialCapacity, this.chunkSize);
+    }
+
+
+    /**
+     * 確保済みのDirectBufferの総サイズを返す.<br>
+     *
+     * @return long byte
+     */
+    public long getAllocateSize() {
+        long ret = 0L;
+        for (int i = 0; i < this.segmentCount; i++) {
+            this.segments[i].r.lock();
+            try {
+                ret = ret + ((OffHeapSlabSegment)this.segments[i]).getAllocateSize();
+            } finally {
+                this.segments[i].r.unlock();
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * レコードとして利用中のDirectBufferのサイズを返す.<br>
+     *
+     * @return long byte
+     */
+    public long getUseSize() {
+        long ret = 0L;
+        for (int i = 0; i < this.segmentCount; i++) {
+            this.segments[i].r.lock();
+            try {
+                ret = ret + ((OffHeapSlabSegment)this.segments[i]).getUseSize();
+            } finally {
+                this.segments[i].r.unlock();
+            }
+        }
+        return ret;
+    }
+
+
+    protected void writeValue(ObjectOutputStream out, Object value) throws IOException {
+        byte[] valueBytes = (byte[])value;
+        out.writeInt(valueBytes.length);
+        out.write(valueBytes);
+    }
+
+
+    protected Object readValue(ObjectInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+
+    // バックアップファイルへの書き出し用
+    // Heap外のデータをKeyとValueの組で書き出す
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        this.writeEntries(out);
+    }
+
+
+    // バックアップファイルからの復元用
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.initSegments(this.segmentCount * 16);
+        this.readEntries(in);
+    }
+}
@@ -0,0 +1,493 @@
+package okuyama.imdst.util.offheapmap;
+
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import okuyama.imdst.util.segmentmap.MapSegment;
+
+
+/**
+ * OffHeapSlabMapの1セグメント.<br>
+ * KeyとValueはDirectBufferで確保したスラブ(チャンク)上に以下のレイアウトで連続して格納する.<br>
+ * [Keyのレングス(int)][Valueのレングス(int)][Keyのbyte配列][Valueのbyte配列]<br>
+ * レコードの格納位置は上位32bitをスラブ番号+1、下位32bitをスラブ内オフセットとしたlong値で表し、<br>
+ * Heap上にはKeyのHash値(int)と格納位置(long)のOpenAddressing方式のテーブルのみを持つ.<br>
+ * レコードはサイズ毎のクラス(1.25倍刻み)に丸めて確保し、削除時はクラス毎の空き領域リストに返却され再利用される.<br>
+ * チャンクサイズを超えるレコードは専用のDirectBufferを確保し、削除時に解放する.<br>
+ * 本クラス自体はスレッドセーフではなく、呼び出し側でr、wのロックを取得して利用する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+class OffHeapSlabSegment extends MapSegment {
+
+    // レコードのヘッダーサイズ(Keyのレングス + Valueのレングス)
+    static final int recordHeaderSize = 8;
+
+    // 最小のサイズクラス
+    private static final int minClassSize = 32;
+
+    private int chunkSize = 0;
+
+    private int[] classSizes = null;
+
+    // Index部分
+    private int[] hashes = null;
+    private long[] points = null;
+    private int mask = 0;
+    private int size = 0;
+    private int threshold = 0;
+
+    // スラブ部分
+    private ByteBuffer[] slabs = new ByteBuffer[8];
+    private int slabCount = 0;
+    private int nowChunkIdx = -1;
+    private int nowChunkPos = 0;
+
+    // 空き領域
+    private long[][] freeStacks = null;
+    private int[] freeStackSizes = null;
+    private int[] freeSlabIdxs = new int[8];
+    private int freeSlabIdxCount = 0;
+
+    // 確保済みDirectBufferのサイズ
+    private long allocateSize = 0L;
+
+    // レコードとして利用中のサイズ(クラスサイズに丸めた値)
+    private long useSize = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param initialCapacity 初期Index数
+     * @param chunkSize 1チャンクのサイズ(2のべき乗に切り上げられる)
+     */
+    OffHeapSlabSegment(int initialCapacity, int chunkSize) {
+        int realChunkSize = 1024;
+        while (realChunkSize < chunkSize) realChunkSize = realChunkSize << 1;
+        this.chunkSize = realChunkSize;
+
+        // サイズクラスを作成
+        List classList = new ArrayList();
+        int classSize = minClassSize;
+        while (classSize < (this.chunkSize / 2)) {
+            classList.add(new Integer(classSize));
+            int nextSize = (classSize + (classSize / 4) + 7) & ~7;
+            classSize = nextSize;
+        }
+        classList.add(new Integer(this.chunkSize));
+
+        this.classSizes = new int[classList.size()];
+        for (int i = 0; i < this.classSizes.length; i++) {
+            this.classSizes[i] = ((Integer)classList.get(i)).intValue();
+        }
+
+        this.freeStacks = new long[this.classSizes.length][];
+        this.freeStackSizes = new int[this.classSizes.length];
+
+        int tableSize = 16;
+        while ((tableSize * 3 / 4) < initialCapacity) tableSize = tableSize << 1;
+        this.initTable(tableSize);
+    }
+
+
+    private void initTable(int tableSize) {
+        this.hashes = new int[tableSize];
+        this.points = new long[tableSize];
+        this.mask = tableSize - 1;
+        this.threshold = tableSize * 3 / 4;
+    }
+
+
+    /**
+     * 指定KeyのValueを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return byte[] 存在しない場合はnull
+     */
+    protected byte[] get(byte[] key, int hash) {
+        int slot = this.findSlot(key, hash);
+        if (slot == -1) return null;
+        return this.readValue(this.points[slot]);
+    }
+
+
+    /**
+     * 指定Keyが存在するかを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return boolean
+     */
+    protected boolean containsKey(byte[] key, int hash) {
+        return this.findSlot(key, hash) != -1;
+    }
+
+
+    /**
+     * KeyとValueを格納する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @param valueObj byte[]
+     * @return boolean 新規のKeyの場合はtrue
+     */
+    protected boolean put(byte[] key, int hash, Object valueObj) {
+        byte[] value = (byte[])valueObj;
+        int need = recordHeaderSize + key.length + value.length;
+        int slot = this.findSlot(key, hash);
+
+        if (slot != -1) {
+
+            // 更新
+            long oldPoint = this.points[slot];
+            int oldNeed = this.recordSize(oldPoint);
+
+            if (this.sizeClass(oldNeed) == this.sizeClass(need) && this.sizeClass(need) != -1) {
+
+                // 同一クラスに収まる場合はそのまま上書き
+                this.writeRecord(oldPoint, key, value);
+            } else {
+
+                long newPoint = this.allocate(need);
+                this.writeRecord(newPoint, key, value);
+                this.points[slot] = newPoint;
+                this.free(oldPoint, oldNeed);
+            }
+            return false;
+        }
+
+        // 新規
+        if (this.size >= this.threshold) this.rehash();
+
+        long newPoint = this.allocate(need);
+        this.writeRecord(newPoint, key, value);
+
+        int idx = spread(hash) & this.mask;
+        while (this.points[idx] != 0L) {
+            idx = (idx + 1) & this.mask;
+        }
+        this.hashes[idx] = hash;
+        this.points[idx] = newPoint;
+        this.size++;
+        return true;
+    }
+
+
+    /**
+     * 指定Keyを削除する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return byte[] 削除したValue。存在しない場合はnull
+     */
+    protected byte[] remove(byte[] key, int hash) {
+        int slot = this.findSlot(key, hash);
+        if (slot == -1) return null;
+
+        long point = this.points[slot];
+        byte[] ret = this.readValue(point);
+        this.free(point, this.recordSize(point));
+        this.deleteSlot(slot);
+        this.size--;
+        return ret;
+    }
+
+
+    /**
+     * 全てのデータを削除しDirectBufferを手放す.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     */
+    protected void clear() {
+        this.initTable(16);
+        this.size = 0;
+        this.slabs = new ByteBuffer[8];
+        this.slabCount = 0;
+        this.nowChunkIdx = -1;
+        this.nowChunkPos = 0;
+        this.freeStacks = new long[this.classSizes.length][];
+        this.freeStackSizes = new int[this.classSizes.length];
+        this.freeSlabIdxs = new int[8];
+        this.freeSlabIdxCount = 0;
+        this.allocateSize = 0L;
+        this.useSize = 0L;
+    }
+
+
+    /**
+     * 格納されている全てのKeyを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @return byte[][]
+     */
+    protected byte[][] keys() {
+        byte[][] ret = new byte[this.size][];
+        int retIdx = 0;
+        for (int i = 0; i < this.points.length && retIdx < ret.length; i++) {
+            if (this.points[i] != 0L) {
+                ret[retIdx] = this.readKey(this.points[i]);
+                retIdx++;
+            }
+        }
+        return ret;
+    }
+
+
+    protected int size() {
+        return this.size;
+    }
+
+
+    long getAllocateSize() {
+        return this.allocateSize;
+    }
+
+
+    long getUseSize() {
+        return this.useSize;
+    }
+
+
+    int getIndexTableLength() {
+        return this.points.length;
+    }
+
+
+    private int findSlot(byte[] key, int hash) {
+        int idx = spread(hash) & this.mask;
+        while (true) {
+            long point = this.points[idx];
+            if (point == 0L) return -1;
+            if (this.hashes[idx] == hash && this.keyEquals(point, key)) return idx;
+            idx = (idx + 1) & this.mask;
+        }
+    }
+
+
+    // LinearProbingのため後続のエントリを詰めて削除する
+    private void deleteSlot(int slot) {
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.points[j] == 0L) break;
+
+            int k = spread(this.hashes[j]) & this.mask;
+            if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) continue;
+
+            this.hashes[i] = this.hashes[j];
+            this.points[i] = this.points[j];
+            i = j;
+        }
+        this.hashes[i] = 0;
+        this.points[i] = 0L;
+    }
+
+
+    private void rehash() {
+        int[] oldHashes = this.hashes;
+        long[] oldPoints = this.points;
+
+        this.initTable(oldPoints.length << 1);
+
+        for (int i = 0; i < oldPoints.length; i++) {
+            if (oldPoints[i] != 0L) {
+                int idx = spread(oldHashes[i]) & this.mask;
+                while (this.points[idx] != 0L) {
+                    idx = (idx + 1) & this.mask;
+                }
+                this.hashes[idx] = oldHashes[i];
+                this.points[idx] = oldPoints[i];
+            }
+        }
+    }
+
+
+    private boolean keyEquals(long point, byte[] key) {
+        ByteBuffer slab = this.slabs[slabIdx(point)];
+        int offset = slabOffset(point);
+        if (slab.getInt(offset) != key.length) return false;
+
+        int keyStart = offset + recordHeaderSize;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(keyStart + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+
+    private byte[] readKey(long point) {
+        ByteBuffer slab = this.slabs[slabIdx(point)];
+        int offset = slabOffset(point);
+        byte[] ret = new byte[slab.getInt(offset)];
+
+        ByteBuffer readBuf = slab.duplicate();
+        readBuf.position(offset + recordHeaderSize);
+        readBuf.get(ret);
+        return ret;
+    }
+
+
+    private byte[] readValue(long point) {
+        ByteBuffer slab = this.slabs[slabIdx(point)];
+        int offset = slabOffset(point);
+        int keyLen = slab.getInt(offset);
+        byte[] ret = new byte[slab.getInt(offset + 4)];
+
+        ByteBuffer readBuf = slab.duplicate();
+        readBuf.position(offset + recordHeaderSize + keyLen);
+        readBuf.get(ret);
+        return ret;
+    }
+
+
+    private int recordSize(long point) {
+        ByteBuffer slab = this.slabs[slabIdx(point)];
+        int offset = slabOffset(point);
+        return recordHeaderSize + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+
+    private void writeRecord(long point, byte[] key, byte[] value) {
+        ByteBuffer writeBuf = this.slabs[slabIdx(point)].duplicate();
+        writeBuf.position(slabOffset(point));
+        writeBuf.putInt(key.length);
+        writeBuf.putInt(value.length);
+        writeBuf.put(key);
+        writeBuf.put(value);
+    }
+
+
+    // 必要サイズに合うクラスを返す。チャンクに収まらない場合は-1
+    private int sizeClass(int need) {
+        if (need > this.chunkSize) return -1;
+
+        int low = 0;
+        int high = this.classSizes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.classSizes[mid] < need) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    private long allocate(int need) {
+        int cls = this.sizeClass(need);
+
+        if (cls == -1) {
+
+            // チャンクに収まらないレコードは専用に確保
+            int idx = this.registerSlab(ByteBuffer.allocateDirect(need));
+            this.allocateSize = this.allocateSize + need;
+            this.useSize = this.useSize + need;
+            return toPoint(idx, 0);
+        }
+
+        int classSize = this.classSizes[cls];
+        this.useSize = this.useSize + classSize;
+
+        // 空き領域を再利用
+        if (this.freeStackSizes[cls] > 0) {
+            this.freeStackSizes[cls]--;
+            return this.freeStacks[cls][this.freeStackSizes[cls]];
+        }
+
+        if (this.nowChunkIdx == -1 || (this.nowChunkPos + classSize) > this.chunkSize) {
+            this.nowChunkIdx = this.registerSlab(ByteBuffer.allocateDirect(this.chunkSize));
+            this.nowChunkPos = 0;
+            this.allocateSize = this.allocateSize + this.chunkSize;
+        }
+
+        long point = toPoint(this.nowChunkIdx, this.nowChunkPos);
+        this.nowChunkPos = this.nowChunkPos + classSize;
+        return point;
+    }
+
+
+    private void free(long point, int need) {
+        int cls = this.sizeClass(need);
+
+        if (cls == -1) {
+
+            // 専用領域は解放
+            int idx = slabIdx(point);
+            this.slabs[idx] = null;
+            if (this.freeSlabIdxCount == this.freeSlabIdxs.length) {
+                int[] newIdxs = new int[this.freeSlabIdxs.length << 1];
+                System.arraycopy(this.freeSlabIdxs, 0, newIdxs, 0, this.freeSlabIdxCount);
+                this.freeSlabIdxs = newIdxs;
+            }
+            this.freeSlabIdxs[this.freeSlabIdxCount] = idx;
+            this.freeSlabIdxCount++;
+            this.allocateSize = this.allocateSize - need;
+            this.useSize = this.useSize - need;
+            return;
+        }
+
+        long[] stack = this.freeStacks[cls];
+        if (stack == null) {
+            stack = new long[16];
+            this.freeStacks[cls] = stack;
+        } else if (this.freeStackSizes[cls] == stack.length) {
+            long[] newStack = new long[stack.length << 1];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+            this.freeStacks[cls] = stack;
+        }
+        stack[this.freeStackSizes[cls]] = point;
+        this.freeStackSizes[cls]++;
+        this.useSize = this.useSize - this.classSizes[cls];
+    }
+
+
+    private int registerSlab(ByteBuffer slab) {
+        if (this.freeSlabIdxCount > 0) {
+            this.freeSlabIdxCount--;
+            int idx = this.freeSlabIdxs[this.freeSlabIdxCount];
+            this.slabs[idx] = slab;
+            return idx;
+        }
+
+        if (this.slabCount == this.slabs.length) {
+            ByteBuffer[] newSlabs = new ByteBuffer[this.slabs.length << 1];
+            System.arraycopy(this.slabs, 0, newSlabs, 0, this.slabCount);
+            this.slabs = newSlabs;
+        }
+        this.slabs[this.slabCount] = slab;
+        this.slabCount++;
+        return this.slabCount - 1;
+    }
+
+
+    private static long toPoint(int slabIdx, int offset) {
+        return ((long)(slabIdx + 1) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+
+    private static int slabIdx(long point) {
+        return (int)(point >>> 32) - 1;
+    }
+
+
+    private static int slabOffset(long point) {
+        return (int)point;
+    }
+
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,116 @@
+package okuyama.imdst.util.packedmap;
+
+
+import java.io.*;
+
+import okuyama.imdst.util.segmentmap.*;
+
+
+/**
+ * Key格納用のIndexMap.<br>
+ * Keyのbyte配列はセグメント毎の大きなbyte配列(アリーナ)に詰めて格納し、<br>
+ * Valueはデータファイル上の位置などのlong値で保持する.<br>
+ * Key毎のCoreMapKey、Node、Valueのオブジェクトを持たないため、ConcurrentHashMapベースのMapと比べて<br>
+ * Key1件当たりのHeap使用量を大きく削減できる.<br>
+ * セグメント単位のロック、走査、シリアライズはSegmentMapが行う.<br>
+ * KeyはCoreMapKey、ValueはNumberを想定しており、getはLongを返す.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class PackedKeyIndexMap extends SegmentMap {
+
+    private int arenaSize = 1024 * 1024;
+
+
+    /**
+     * コンストラクタ
+     *
+     * @param size 予想格納最大数
+     * @param segmentCount ロック単位となるセグメント数
+     * @param arenaSize 1回に確保するKey格納領域の最大サイズ
+     */
+    public PackedKeyIndexMap(int size, int segmentCount, int arenaSize) {
+        super(segmentCount);
+        System.out.println("PackedKeyIndexMap SegmentCount= " + segmentCount);
+        System.out.println("PackedKeyIndexMap ArenaSize= " + arenaSize);
+
+        this.arenaSize = arenaSize;
+        this.initSegments(size);
+    }
+
+
+    protected MapSegment createSegment(int initialCapacity) {
+        return new PackedKeyIndexSegment(initialCapacity, this.arenaSize);
+    }
+
+
+    /**
+     * Index部分とKey格納領域のサイズを集計し、状態を文字列で返す.<br>
+     * BytesPerKeyはKey1件当たりのHeap使用量(byte)の概算.<br>
+     *
+     * @return String
+     */
+    public String getStatus() {
+        long keys = 0L;
+        long indexSize = 0L;
+        long arenaSize = 0L;
+        long liveSize = 0L;
+
+        for (int i = 0; i < this.segmentCount; i++) {
+            PackedKeyIndexSegment segment = (PackedKeyIndexSegment)this.segments[i];
+            segment.r.lock();
+            try {
+                keys = keys + segment.size();
+                indexSize = indexSize + segment.getIndexSize();
+                arenaSize = arenaSize + segment.getAllocateSize();
+                liveSize = liveSize + segment.getLiveSize();
+            } finally {
+                segment.r.unlock();
+            }
+        }
+
+        StringBuilder buf = new StringBuilder(128);
+        buf.append("Keys=");
+        buf.append(keys);
+        buf.append(", IndexBytes=");
+        buf.append(indexSize);
+        buf.append(", KeyArenaBytes=");
+        buf.append(liveSize);
+        buf.append("/");
+        buf.append(arenaSize);
+        buf.append(", BytesPerKey=");
+        if (keys > 0) {
+            buf.append((indexSize + arenaSize) / keys);
+        } else {
+            buf.append(0);
+        }
+        return buf.toString();
+    }
+
+
+    protected void writeValue(ObjectOutputStream out, Object value) throws IOException {
+        out.writeLong(((Number)value).longValue());
+    }
+
+
+    protected Object readValue(ObjectInputStream in) throws IOException {
+        return new Long(in.readLong());
+    }
+
+
+    // バックアップファイルへの書き出し用
+    // KeyとValueの組で書き出す
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        this.writeEntries(out);
+    }
+
+
+    // バックアップファイルからの復元用
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.initSegments(this.segmentCount * 16);
+        this.readEntries(in);
+    }
+}
@@ -0,0 +1,423 @@
+package okuyama.imdst.util.packedmap;
+
+
+import okuyama.imdst.util.segmentmap.MapSegment;
+
+
+/**
+ * PackedKeyIndexMapの1セグメント.<br>
+ * Keyのbyte配列は大きなbyte配列(アリーナ)に以下のレイアウトで連続して格納する.<br>
+ * [Keyのレングス(可変長 1～4byte)][Keyのbyte配列]<br>
+ * Keyの格納位置は上位32bitをアリーナ番号+1、下位32bitをアリーナ内オフセットとしたlong値で表し、<br>
+ * KeyのHash値(int)、Keyの格納位置(long)、Value(long)をOpenAddressing方式のテーブルで保持する.<br>
+ * Key毎のオブジェクトは作成しないため、Heap上のオブジェクト数とKey1件当たりのサイズを抑えることが出来る.<br>
+ * 削除されたKeyの領域は無効領域として集計し、有効領域を超えた時点でアリーナを詰め直す.<br>
+ * 本クラス自体はスレッドセーフではなく、呼び出し側でr、wのロックを取得して利用する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+class PackedKeyIndexSegment extends MapSegment {
+
+    // 最初に確保するアリーナのサイズ
+    private static final int minArenaSize = 1024;
+
+    // アリーナを詰め直す契機となる最小の無効領域サイズ
+    private static final int minCompactSize = 1024 * 16;
+
+    private int arenaSize = 0;
+
+    // Index部分
+    private int[] hashes = null;
+    private long[] points = null;
+    private long[] values = null;
+    private int mask = 0;
+    private int size = 0;
+    private int threshold = 0;
+
+    // アリーナ部分
+    private byte[][] arenas = new byte[8][];
+    private int arenaCount = 0;
+    private int nowArenaIdx = -1;
+    private int nowArenaPos = 0;
+    private int nextArenaSize = minArenaSize;
+
+    // 確保済みアリーナのサイズ
+    private long allocateSize = 0L;
+
+    // 有効なKeyのレコードサイズ
+    private long liveSize = 0L;
+
+    // 削除済みKeyのレコードサイズ
+    private long deadSize = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param initialCapacity 初期Index数
+     * @param arenaSize 1アリーナの最大サイズ
+     */
+    PackedKeyIndexSegment(int initialCapacity, int arenaSize) {
+        this.arenaSize = arenaSize;
+        if (this.nextArenaSize > this.arenaSize) this.nextArenaSize = this.arenaSize;
+
+        int tableSize = 16;
+        while ((tableSize * 3 / 4) < initialCapacity) tableSize = tableSize << 1;
+        this.initTable(tableSize);
+    }
+
+
+    private void initTable(int tableSize) {
+        this.hashes = new int[tableSize];
+        this.points = new long[tableSize];
+        this.values = new long[tableSize];
+        this.mask = tableSize - 1;
+        this.threshold = tableSize * 3 / 4;
+    }
+
+
+    /**
+     * 指定KeyのValueを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return Long 存在しない場合はnull
+     */
+    protected Long get(byte[] key, int hash) {
+        int slot = this.findSlot(key, hash);
+        if (slot == -1) return null;
+        return new Long(this.values[slot]);
+    }
+
+
+    /**
+     * 指定Keyが存在するかを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return boolean
+     */
+    protected boolean containsKey(byte[] key, int hash) {
+        return this.findSlot(key, hash) != -1;
+    }
+
+
+    /**
+     * KeyとValueを格納する.<br>
+     * 既に存在するKeyの場合はValueのみを更新し、アリーナには書き込まない.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @param valueObj Number
+     * @return boolean 新規のKeyの場合はtrue
+     */
+    protected boolean put(byte[] key, int hash, Object valueObj) {
+        long value = ((Number)valueObj).longValue();
+        int slot = this.findSlot(key, hash);
+
+        if (slot != -1) {
+            this.values[slot] = value;
+            return false;
+        }
+
+        // 新規
+        if (this.size >= this.threshold) this.rehash();
+
+        long newPoint = this.writeKey(key);
+
+        int idx = spread(hash) & this.mask;
+        while (this.points[idx] != 0L) {
+            idx = (idx + 1) & this.mask;
+        }
+        this.hashes[idx] = hash;
+        this.points[idx] = newPoint;
+        this.values[idx] = value;
+        this.size++;
+        return true;
+    }
+
+
+    /**
+     * 指定Keyを削除する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return Long 削除したValue。存在しない場合はnull
+     */
+    protected Long remove(byte[] key, int hash) {
+        int slot = this.findSlot(key, hash);
+        if (slot == -1) return null;
+
+        Long ret = new Long(this.values[slot]);
+        int recordSize = varIntSize(key.length) + key.length;
+        this.liveSize = this.liveSize - recordSize;
+        this.deadSize = this.deadSize + recordSize;
+
+        this.deleteSlot(slot);
+        this.size--;
+
+        if (this.deadSize >= minCompactSize && this.deadSize > this.liveSize) this.compactArena();
+        return ret;
+    }
+
+
+    /**
+     * 全てのデータを削除しアリーナを手放す.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     */
+    protected void clear() {
+        this.initTable(16);
+        this.size = 0;
+        this.resetArena();
+    }
+
+
+    /**
+     * 格納されている全てのKeyを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @return byte[][]
+     */
+    protected byte[][] keys() {
+        byte[][] ret = new byte[this.size][];
+        int retIdx = 0;
+        for (int i = 0; i < this.points.length && retIdx < ret.length; i++) {
+            if (this.points[i] != 0L) {
+                ret[retIdx] = this.readKey(this.points[i]);
+                retIdx++;
+            }
+        }
+        return ret;
+    }
+
+
+    protected int size() {
+        return this.size;
+    }
+
+
+    // Index部分のサイズ(byte)
+    long getIndexSize() {
+        return (long)this.points.length * (4 + 8 + 8);
+    }
+
+
+    long getAllocateSize() {
+        return this.allocateSize;
+    }
+
+
+    long getLiveSize() {
+        return this.liveSize;
+    }
+
+
+    private int findSlot(byte[] key, int hash) {
+        int idx = spread(hash) & this.mask;
+        while (true) {
+            long point = this.points[idx];
+            if (point == 0L) return -1;
+            if (this.hashes[idx] == hash && this.keyEquals(point, key)) return idx;
+            idx = (idx + 1) & this.mask;
+        }
+    }
+
+
+    // LinearProbingのため後続のエントリを詰めて削除する
+    private void deleteSlot(int slot) {
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.points[j] == 0L) break;
+
+            int k = spread(this.hashes[j]) & this.mask;
+            if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) continue;
+
+            this.hashes[i] = this.hashes[j];
+            this.points[i] = this.points[j];
+            this.values[i] = this.values[j];
+            i = j;
+        }
+        this.hashes[i] = 0;
+        this.points[i] = 0L;
+        this.values[i] = 0L;
+    }
+
+
+    private void rehash() {
+        int[] oldHashes = this.hashes;
+        long[] oldPoints = this.points;
+        long[] oldValues = this.values;
+
+        this.initTable(oldPoints.length << 1);
+
+        for (int i = 0; i < oldPoints.length; i++) {
+            if (oldPoints[i] != 0L) {
+                int idx = spread(oldHashes[i]) & this.mask;
+                while (this.points[idx] != 0L) {
+                    idx = (idx + 1) & this.mask;
+                }
+                this.hashes[idx] = oldHashes[i];
+                this.points[idx] = oldPoints[i];
+                this.values[idx] = oldValues[i];
+            }
+        }
+    }
+
+
+    // 有効なKeyのみを新しいアリーナに詰め直す
+    private void compactArena() {
+        byte[][] oldArenas = this.arenas;
+
+        this.resetArena();
+
+        for (int i = 0; i < this.points.length; i++) {
+            if (this.points[i] != 0L) {
+                byte[] arena = oldArenas[arenaIdx(this.points[i])];
+                int offset = arenaOffset(this.points[i]);
+                int keyLen = readVarInt(arena, offset);
+                int recordSize = varIntSize(keyLen) + keyLen;
+
+                long newPoint = this.allocate(recordSize);
+                System.arraycopy(arena, offset, this.arenas[arenaIdx(newPoint)], arenaOffset(newPoint), recordSize);
+                this.points[i] = newPoint;
+                this.liveSize = this.liveSize + recordSize;
+            }
+        }
+    }
+
+
+    private void resetArena() {
+        this.arenas = new byte[8][];
+        this.arenaCount = 0;
+        this.nowArenaIdx = -1;
+        this.nowArenaPos = 0;
+        this.nextArenaSize = minArenaSize;
+        if (this.nextArenaSize > this.arenaSize) this.nextArenaSize = this.arenaSize;
+        this.allocateSize = 0L;
+        this.liveSize = 0L;
+        this.deadSize = 0L;
+    }
+
+
+    private boolean keyEquals(long point, byte[] key) {
+        byte[] arena = this.arenas[arenaIdx(point)];
+        int offset = arenaOffset(point);
+        if (readVarInt(arena, offset) != key.length) return false;
+
+        int keyStart = offset + varIntSize(key.length);
+        for (int i = 0; i < key.length; i++) {
+            if (arena[keyStart + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+
+    private byte[] readKey(long point) {
+        byte[] arena = this.arenas[arenaIdx(point)];
+        int offset = arenaOffset(point);
+        byte[] ret = new byte[readVarInt(arena, offset)];
+        System.arraycopy(arena, offset + varIntSize(ret.length), ret, 0, ret.length);
+        return ret;
+    }
+
+
+    private long writeKey(byte[] key) {
+        int recordSize = varIntSize(key.length) + key.length;
+        long point = this.allocate(recordSize);
+
+        byte[] arena = this.arenas[arenaIdx(point)];
+        int offset = writeVarInt(arena, arenaOffset(point), key.length);
+        System.arraycopy(key, 0, arena, offset, key.length);
+
+        this.liveSize = this.liveSize + recordSize;
+        return point;
+    }
+
+
+    private long allocate(int recordSize) {
+        if (this.nowArenaIdx == -1 || (this.nowArenaPos + recordSize) > this.arenas[this.nowArenaIdx].length) {
+
+            // アリーナのサイズは上限まで倍々で拡張する
+            int newSize = this.nextArenaSize;
+            if (newSize < this.arenaSize) this.nextArenaSize = newSize << 1;
+            if (this.nextArenaSize > this.arenaSize) this.nextArenaSize = this.arenaSize;
+            if (newSize < recordSize) newSize = recordSize;
+
+            if (this.arenaCount == this.arenas.length) {
+                byte[][] newArenas = new byte[this.arenas.length << 1][];
+                System.arraycopy(this.arenas, 0, newArenas, 0, this.arenaCount);
+                this.arenas = newArenas;
+            }
+            this.arenas[this.arenaCount] = new byte[newSize];
+            this.nowArenaIdx = this.arenaCount;
+            this.nowArenaPos = 0;
+            this.arenaCount++;
+            this.allocateSize = this.allocateSize + newSize;
+        }
+
+        long point = toPoint(this.nowArenaIdx, this.nowArenaPos);
+        this.nowArenaPos = this.nowArenaPos + recordSize;
+        return point;
+    }
+
+
+    private static int varIntSize(int value) {
+        if (value < 0x80) return 1;
+        if (value < 0x4000) return 2;
+        if (value < 0x200000) return 3;
+        return 4;
+    }
+
+
+    // 書き込み後の位置を返す
+    private static int writeVarInt(byte[] buf, int offset, int value) {
+        while (value >= 0x80) {
+            buf[offset] = (byte)((value & 0x7F) | 0x80);
+            value = value >>> 7;
+            offset++;
+        }
+        buf[offset] = (byte)value;
+        return offset + 1;
+    }
+
+
+    private static int readVarInt(byte[] buf, int offset) {
+        int ret = 0;
+        int shift = 0;
+        while (true) {
+            int b = buf[offset];
+            ret = ret | ((b & 0x7F) << shift);
+            if ((b & 0x80) == 0) return ret;
+            shift = shift + 7;
+            offset++;
+        }
+    }
+
+
+    private static long toPoint(int arenaIdx, int offset) {
+        return ((long)(arenaIdx + 1) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+
+    private static int arenaIdx(long point) {
+        return (int)(point >>> 32) - 1;
+    }
+
+
+    private static int arenaOffset(long point) {
+        return (int)point;
+    }
+
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,84 @@
+package okuyama.imdst.util.segmentmap;
+
+
+import java.util.concurrent.locks.*;
+
+
+/**
+ * SegmentMapの1セグメント.<br>
+ * KeyのHash値から導き出されたセグメント単位のデータ格納領域とロックを持つ.<br>
+ * 本クラス自体はスレッドセーフではなく、呼び出し側でr、wのロックを取得して利用する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public abstract class MapSegment {
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    public final Lock r = rwl.readLock();
+    public final Lock w = rwl.writeLock();
+
+
+    /**
+     * 指定KeyのValueを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return Object 存在しない場合はnull
+     */
+    protected abstract Object get(byte[] key, int hash);
+
+
+    /**
+     * 指定Keyが存在するかを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return boolean
+     */
+    protected abstract boolean containsKey(byte[] key, int hash);
+
+
+    /**
+     * KeyとValueを格納する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @param value
+     * @return boolean 新規のKeyの場合はtrue
+     */
+    protected abstract boolean put(byte[] key, int hash, Object value);
+
+
+    /**
+     * 指定Keyを削除する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     *
+     * @param key
+     * @param hash
+     * @return Object 削除したValue。存在しない場合はnull
+     */
+    protected abstract Object remove(byte[] key, int hash);
+
+
+    /**
+     * 全てのデータを削除する.<br>
+     * w.lockを取得して呼び出すこと.<br>
+     */
+    protected abstract void clear();
+
+
+    /**
+     * 格納されている全てのKeyを返す.<br>
+     * r.lockを取得して呼び出すこと.<br>
+     *
+     * @return byte[][]
+     */
+    protected abstract byte[][] keys();
+
+
+    protected abstract int size();
+}
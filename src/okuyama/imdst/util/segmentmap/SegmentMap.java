@@ -0,0 +1,299 @@
+package okuyama.imdst.util.segmentmap;
+
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import okuyama.imdst.util.*;
+
+
+/**
+ * セグメント分割されたデータ格納Mapの基底クラス.<br>
+ * Key値のHash値から導き出されたセグメント単位でロックを行い、スレッドセーフに並列アクセスが可能.<br>
+ * セグメント内のデータの持ち方はサブクラスが作成するMapSegmentが決める.<br>
+ * KeyはCoreMapKeyを想定している.<br>
+ * シリアライズ時はサブクラスのwriteObject、readObjectからwriteEntries、readEntriesを呼び出し、<br>
+ * KeyとValueの組で書き出す.Valueの書き出し形式はwriteValue、readValueで決める.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public abstract class SegmentMap extends AbstractMap implements Cloneable, Serializable, ICoreStorage {
+
+    protected transient MapSegment[] segments = null;
+
+    private transient AtomicInteger nowSize = null;
+
+    protected int segmentCount = 256;
+
+
+    /**
+     * コンストラクタ.<br>
+     * セグメントの作成はサブクラスの初期化後にinitSegmentsで行う.<br>
+     *
+     * @param segmentCount ロック単位となるセグメント数
+     */
+    protected SegmentMap(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+
+    /**
+     * 1セグメントを作成する.<br>
+     *
+     * @param initialCapacity 初期Index数
+     * @return MapSegment
+     */
+    protected abstract MapSegment createSegment(int initialCapacity);
+
+
+    /**
+     * シリアライズ時にValueを1件書き出す.<br>
+     *
+     * @param out
+     * @param value
+     * @throw IOException
+     */
+    protected abstract void writeValue(ObjectOutputStream out, Object value) throws IOException;
+
+
+    /**
+     * シリアライズからの復元時にValueを1件読み込む.<br>
+     *
+     * @param in
+     * @return Object
+     * @throw IOException
+     */
+    protected abstract Object readValue(ObjectInputStream in) throws IOException;
+
+
+    protected void initSegments(int size) {
+        int segmentInitSize = (size / this.segmentCount) + 1;
+
+        this.segments = new MapSegment[this.segmentCount];
+        for (int i = 0; i < this.segmentCount; i++) {
+            this.segments[i] = this.createSegment(segmentInitSize);
+        }
+        this.nowSize = new AtomicInteger(0);
+    }
+
+
+    private int hashPointCalc(int hash) {
+        return ((hash << 1) >>> 1) % this.segmentCount;
+    }
+
+
+    // CoreMapKeyと同様のHash値を算出する
+    private static int keyHash(Object key, byte[] keyBytes) {
+        if (key instanceof CoreMapKey) return key.hashCode();
+
+        int ret = 1;
+        for (int i = 0; i < keyBytes.length; i++) {
+            ret = ret * 31 + keyBytes[i];
+        }
+        return ret;
+    }
+
+
+    private static byte[] keyBytes(Object key) {
+        if (key instanceof CoreMapKey) return ((CoreMapKey)key).getDatas();
+        if (key instanceof byte[]) return (byte[])key;
+        return key.toString().getBytes();
+    }
+
+
+    /**
+     * set<br>
+     *
+     * @param key
+     * @param value
+     */
+    public Object put(Object key, Object value) {
+        byte[] keyBytes = keyBytes(key);
+        int hash = keyHash(key, keyBytes);
+        MapSegment segment = this.segments[hashPointCalc(hash)];
+
+        boolean incrFlg = false;
+        segment.w.lock();
+        try {
+            incrFlg = segment.put(keyBytes, hash, value);
+        } finally {
+            segment.w.unlock();
+        }
+
+        // sizeを加算
+        if (incrFlg) this.nowSize.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * get<br>
+     *
+     * @param key
+     * @return Object
+     */
+    public Object get(Object key) {
+        byte[] keyBytes = keyBytes(key);
+        int hash = keyHash(key, keyBytes);
+        MapSegment segment = this.segments[hashPointCalc(hash)];
+
+        segment.r.lock();
+        try {
+            return segment.get(keyBytes, hash);
+        } finally {
+            segment.r.unlock();
+        }
+    }
+
+
+    /**
+     * remove<br>
+     *
+     * @param key
+     * @return Object
+     */
+    public Object remove(Object key) {
+        byte[] keyBytes = keyBytes(key);
+        int hash = keyHash(key, keyBytes);
+        MapSegment segment = this.segments[hashPointCalc(hash)];
+
+        Object ret = null;
+        segment.w.lock();
+        try {
+            ret = segment.remove(keyBytes, hash);
+        } finally {
+            segment.w.unlock();
+        }
+
+        // sizeを減算
+        if (ret != null) this.nowSize.decrementAndGet();
+        return ret;
+    }
+
+
+    /**
+     * containsKey<br>
+     *
+     * @param key
+     * @return boolean
+     */
+    public boolean containsKey(Object key) {
+        byte[] keyBytes = keyBytes(key);
+        int hash = keyHash(key, keyBytes);
+        MapSegment segment = this.segments[hashPointCalc(hash)];
+
+        segment.r.lock();
+        try {
+            return segment.containsKey(keyBytes, hash);
+        } finally {
+            segment.r.unlock();
+        }
+    }
+
+
+    /**
+     * clear<br>
+     *
+     */
+    public void clear() {
+        for (int i = 0; i < this.segmentCount; i++) {
+            this.segments[i].w.lock();
+            try {
+                int segmentSize = this.segments[i].size();
+                this.segments[i].clear();
+                this.nowSize.addAndGet(segmentSize * -1);
+            } finally {
+                this.segments[i].w.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * size<br>
+     *
+     * @return int
+     */
+    public int size() {
+        return this.nowSize.get();
+    }
+
+
+    /**
+     * entrySet<br>
+     * 返却されるSetのIteratorはセグメント単位でKeyのスナップショットを取得しながら走査する.<br>
+     *
+     * @return Set
+     */
+    public Set entrySet() {
+        return new SegmentMapSet(this);
+    }
+
+
+    int getSegmentCount() {
+        return this.segmentCount;
+    }
+
+
+    /**
+     * 指定セグメントのKeyのスナップショットを返す.<br>
+     *
+     * @param segmentIdx
+     * @return byte[][]
+     */
+    byte[][] segmentKeys(int segmentIdx) {
+        MapSegment segment = this.segments[segmentIdx];
+        segment.r.lock();
+        try {
+            return segment.keys();
+        } finally {
+            segment.r.unlock();
+        }
+    }
+
+
+    /**
+     * 全てのKeyとValueを書き出す(バックアップファイルへの書き出し用).<br>
+     * セグメント単位でKeyのスナップショットを取得し、Valueは1件ずつ取得する.<br>
+     * スナップショット取得後に削除されたKeyは書き出さない.<br>
+     *
+     * @param out
+     * @throw IOException
+     */
+    protected void writeEntries(ObjectOutputStream out) throws IOException {
+        for (int i = 0; i < this.segmentCount; i++) {
+            byte[][] keys = this.segmentKeys(i);
+
+            for (int idx = 0; idx < keys.length; idx++) {
+                Object value = this.get(new CoreMapKey(keys[idx]));
+                if (value == null) continue;
+
+                out.writeInt(keys[idx].length);
+                out.write(keys[idx]);
+                this.writeValue(out, value);
+            }
+        }
+        out.writeInt(-1);
+    }
+
+
+    /**
+     * writeEntriesで書き出したKeyとValueを読み込み格納する(バックアップファイルからの復元用).<br>
+     * initSegmentsを呼び出した後に呼び出すこと.<br>
+     *
+     * @param in
+     * @throw IOException
+     */
+    protected void readEntries(ObjectInputStream in) throws IOException {
+        while (true) {
+            int keyLen = in.readInt();
+            if (keyLen == -1) break;
+
+            byte[] key = new byte[keyLen];
+            in.readFully(key);
+            this.put(new CoreMapKey(key), this.readValue(in));
+        }
+    }
+}
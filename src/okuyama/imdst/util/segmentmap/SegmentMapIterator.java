@@ -0,0 +1,108 @@
+package okuyama.imdst.util.segmentmap;
+
+import java.util.*;
+import okuyama.imdst.util.*;
+/**
+ * Iterator実装.<br>
+ * セグメント単位でKeyのスナップショットを取得し走査する.<br>
+ * Valueは取得時にMapから読み込むため、走査中に削除されたKeyのValueはnullとなる.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class SegmentMapIterator implements Iterator {
+
+    private SegmentMap segmentMap = null;
+
+    private int nowSegmentIdx = -1;
+    private byte[][] nowKeys = null;
+    private int nowKeyIdx = 0;
+    private Map.Entry nowEntry = null;
+
+    // コンストラクタ
+    public SegmentMapIterator(SegmentMap segmentMap) {
+
+        this.segmentMap = segmentMap;
+    }
+
+
+    /**
+     * hasNext<br>
+     *
+     */
+    public boolean hasNext() {
+        if (this.nowKeys != null && this.nowKeyIdx < this.nowKeys.length) return true;
+
+        while ((this.nowSegmentIdx + 1) < this.segmentMap.getSegmentCount()) {
+            this.nowSegmentIdx++;
+            this.nowKeys = this.segmentMap.segmentKeys(this.nowSegmentIdx);
+            this.nowKeyIdx = 0;
+            if (this.nowKeys.length > 0) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * next<br>
+     *
+     */
+    public Object next() {
+        if (!this.hasNext()) throw new NoSuchElementException();
+
+        this.nowEntry = new SegmentMapEntry(new CoreMapKey(this.nowKeys[this.nowKeyIdx]), this.segmentMap);
+        this.nowKeyIdx++;
+        return this.nowEntry;
+    }
+
+
+    /**
+     * remove<br>
+     *
+     */
+    public void remove() {
+        if (this.nowEntry == null) throw new IllegalStateException();
+
+        this.segmentMap.remove(this.nowEntry.getKey());
+        this.nowEntry = null;
+    }
+
+
+    /**
+     * Map.Entry実装.<br>
+     * Valueは参照時にMapから取得する.<br>
+     */
+    static class SegmentMapEntry implements Map.Entry {
+
+        private CoreMapKey key = null;
+        private SegmentMap map = null;
+
+        SegmentMapEntry(CoreMapKey key, SegmentMap map) {
+            this.key = key;
+            this.map = map;
+        }
+
+        public Object getKey() {
+            return this.key;
+        }
+
+        public Object getValue() {
+            return this.map.get(this.key);
+        }
+
+        public Object setValue(Object value) {
+            Object ret = this.map.get(this.key);
+            this.map.put(this.key, value);
+            return ret;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            return this.key.equals(((Map.Entry)o).getKey());
+        }
+
+        public int hashCode() {
+            return this.key.hashCode();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package okuyama.imdst.util.segmentmap;
+
+
+import java.util.*;
+
+
+/**
+ * AbstractSet拡張.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class SegmentMapSet extends AbstractSet implements Set {
+
+    private SegmentMap segmentMap = null;
+
+    // コンストラクタ
+    public SegmentMapSet(SegmentMap map) {
+        this.segmentMap = map;
+    }
+
+
+    public int size() {
+        return this.segmentMap.size();
+    }
+
+
+    public Iterator iterator() {
+
+        return new SegmentMapIterator(this.segmentMap);
+    }
+}
@@ -0,0 +1,388 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * 差分モード中の更新内容を連番付きで記録するファイルベースのログ.<br>
+ * 記録はセグメントファイルに追記し、メモリは書き込みバッファとセグメントの管理情報のみ使用する.<br>
+ * 読み込みは連番を指定して開始するCursorで行い、読み込んでも記録は削除されないため、<br>
+ * 中断した読み込みを途中の連番から再開できる.<br>
+ * 追記に失敗した場合、またはclose後は、最後の連番の取得と読み込みがIOExceptionとなり、<br>
+ * 欠落したままの差分データが読み込まれることはない.<br>
+ * セグメントファイルは"ファイル名.セグメント番号"で作成し、closeで全て削除する.<br>
+ * 1レコードは[レングス(4byte)][文字列]の形式.<br>
+ * スレッドセーフに追記と読み込みを並行して行うことが可能.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class DiffChangeLog {
+
+    private static final Charset charset = Charset.forName(ImdstDefine.keyWorkFileEncoding);
+
+    // 1セグメントの最大サイズ(バイト)
+    private static final long segmentMaxSize = 64L * 1024L * 1024L;
+
+    private static final int writeBufferSize = 8192 * 8;
+
+    private String baseFilePath = null;
+
+    // セグメントの先頭の連番(Long) -> セグメントファイル
+    private TreeMap segments = new TreeMap();
+
+    private FileOutputStream fos = null;
+
+    private DataOutputStream dos = null;
+
+    private long segmentSize = 0L;
+
+    // 全セグメントの合計サイズ(バイト)
+    private volatile long dataSize = 0L;
+
+    // 次に記録する連番
+    private long nextSeq = 1L;
+
+    // ファイルに書き出し済みの最後の連番
+    private volatile long flushedSeq = 0L;
+
+    private volatile boolean closed = false;
+
+    private IOException error = null;
+
+    // 追記と読み込みを排他するロック
+    // ロック中にファイルの読み書きを行うため、仮想スレッドで実行されるHelperがキャリアスレッドを占有しないReentrantLockを使用する
+    private ReentrantLock lock = new ReentrantLock();
+
+
+    /**
+     * コンストラクタ.<br>
+     * 同名のセグメントファイルが存在する場合は削除する.<br>
+     *
+     * @param baseFilePath セグメントファイルのファイル名
+     */
+    public DiffChangeLog(String baseFilePath) {
+        this.baseFilePath = baseFilePath;
+
+        File baseFile = new File(baseFilePath).getAbsoluteFile();
+        String prefix = baseFile.getName() + ".";
+        String[] names = baseFile.getParentFile().list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].startsWith(prefix)) new File(baseFile.getParentFile(), names[i]).delete();
+        }
+    }
+
+
+    /**
+     * 1件記録する.<br>
+     * 書き込みに失敗した場合は以降の記録は行わず、getLastSeqとCursorの読み込みは常にIOExceptionとなる.<br>
+     *
+     * @param record
+     * @return long 記録した連番 失敗した場合は-1
+     */
+    public long append(String record) {
+        this.lock.lock();
+        try {
+            if (this.closed || this.error != null) return -1L;
+
+            try {
+                if (this.dos == null || this.segmentSize >= segmentMaxSize) this.nextSegment();
+
+                byte[] data = record.getBytes(charset);
+                this.dos.writeInt(data.length);
+                this.dos.write(data);
+                this.segmentSize = this.segmentSize + 4 + data.length;
+                this.dataSize = this.dataSize + 4 + data.length;
+            } catch (IOException e) {
+                this.error = e;
+                return -1L;
+            }
+            return this.nextSeq++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 現在のセグメントを閉じて新しいセグメントを開始する
+    private void nextSegment() throws IOException {
+        this.flush();
+        if (this.dos != null) this.dos.close();
+
+        File segmentFile = new File(this.baseFilePath + "." + this.segments.size());
+        this.fos = new FileOutputStream(segmentFile, false);
+        this.dos = new DataOutputStream(new BufferedOutputStream(this.fos, writeBufferSize));
+        this.segments.put(new Long(this.nextSeq), segmentFile);
+        this.segmentSize = 0L;
+    }
+
+
+    // 記録済みのデータをファイルに書き出す
+    private void flush() throws IOException {
+        this.lock.lock();
+        try {
+            this.checkError();
+            if (this.dos == null || this.flushedSeq == this.nextSeq - 1) return;
+
+            this.dos.flush();
+            this.flushedSeq = this.nextSeq - 1;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 最初のレコードの連番を返す.<br>
+     *
+     * @return long
+     */
+    public long getFirstSeq() {
+        return 1L;
+    }
+
+
+    /**
+     * 最後に記録したレコードの連番を返す.<br>
+     * 記録が存在しない場合は0.<br>
+     *
+     * @return long
+     * @throw IOException 追記に失敗している、またはclose済みの場合
+     */
+    public long getLastSeq() throws IOException {
+        this.lock.lock();
+        try {
+            this.checkError();
+            return this.nextSeq - 1;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 記録したレコード数を返す.<br>
+     *
+     * @return long
+     * @throw IOException 追記に失敗している、またはclose済みの場合
+     */
+    public long size() throws IOException {
+        return this.getLastSeq();
+    }
+
+
+    /**
+     * 全セグメントの合計サイズ(バイト)を返す.<br>
+     *
+     * @return long
+     */
+    public long getDataSize() {
+        return this.dataSize;
+    }
+
+
+    // 追記に失敗している場合、close済みの場合はIOException
+    private void checkError() throws IOException {
+        this.lock.lock();
+        try {
+            if (this.error != null) throw this.error;
+            if (this.closed) throw new IOException("DiffChangeLog closed");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 転送する1行の先頭に、行に含まれる最後の差分データの連番を付加する.<br>
+     * 転送先は取り込み済みの連番の次から転送を再開出来る.<br>
+     *
+     * @param seq 行に含まれる最後の差分データの連番
+     * @param line 転送する1行
+     * @return String "連番,行"形式の文字列
+     */
+    public static String createTransferLine(long seq, String line) {
+        return seq + ImdstDefine.keyHelperClientParamSep + line;
+    }
+
+
+    /**
+     * createTransferLineで作成した行の先頭の連番を返す.<br>
+     * 連番を付加しないバージョンのDataNodeが転送した行("+"や"-"で始まる差分データ)の場合は-1を返す.<br>
+     *
+     * @param transferLine 転送された1行
+     * @return long 連番 付加されていない場合は-1
+     */
+    public static long parseTransferLineSeq(String transferLine) {
+        int sepIdx = transferLine.indexOf(ImdstDefine.keyHelperClientParamSep);
+        if (sepIdx < 1 || sepIdx > 19) return -1L;
+
+        for (int i = 0; i < sepIdx; i++) {
+            if (!Character.isDigit(transferLine.charAt(i))) return -1L;
+        }
+        return Long.parseLong(transferLine.substring(0, sepIdx));
+    }
+
+
+    /**
+     * createTransferLineで作成した行から連番を除いた行を返す.<br>
+     * 連番が付加されていない場合はそのまま返す.<br>
+     *
+     * @param transferLine 転送された1行
+     * @return String
+     */
+    public static String getTransferLineData(String transferLine) {
+        if (parseTransferLineSeq(transferLine) < 0L) return transferLine;
+        return transferLine.substring(transferLine.indexOf(ImdstDefine.keyHelperClientParamSep) + 1);
+    }
+
+
+    /**
+     * 指定の連番から読み込むCursorを作成する.<br>
+     *
+     * @param fromSeq 読み込みを開始する連番(最初のレコードより前の場合は最初から)
+     * @return Cursor
+     */
+    public Cursor openCursor(long fromSeq) {
+        return new Cursor(fromSeq < this.getFirstSeq() ? this.getFirstSeq() : fromSeq);
+    }
+
+
+    /**
+     * 記録を終了し、全てのセグメントファイルを削除する.<br>
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            try {
+                if (this.dos != null) this.dos.close();
+            } catch (IOException e) {
+            }
+            this.dos = null;
+
+            for (Iterator ite = this.segments.values().iterator(); ite.hasNext();) {
+                ((File)ite.next()).delete();
+            }
+            this.segments.clear();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 指定の連番を含むセグメントの[先頭の連番, ファイル]を返す
+    private Object[] findSegment(long seq) throws IOException {
+        this.lock.lock();
+        try {
+            this.flushTo(seq);
+
+            Map.Entry entry = this.segments.floorEntry(new Long(seq));
+            if (entry == null) throw new IOException("Segment not found Seq=" + seq);
+            return new Object[]{entry.getKey(), entry.getValue()};
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 指定の連番まで書き出し済みとする
+    private void flushTo(long seq) throws IOException {
+        this.lock.lock();
+        try {
+            this.checkError();
+            if (this.flushedSeq < seq) this.flush();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    // 指定の連番がセグメントの先頭か
+    private boolean isSegmentStart(long seq) {
+        this.lock.lock();
+        try {
+            return this.segments.containsKey(new Long(seq));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * 連番順にレコードを読み込む.<br>
+     * 読み込み中も追記されたレコードは順次読み込まれる.<br>
+     */
+    public class Cursor {
+
+        private long nextReadSeq = 0L;
+
+        private DataInputStream dis = null;
+
+        private byte[] buf = new byte[1024];
+
+
+        Cursor(long fromSeq) {
+            this.nextReadSeq = fromSeq;
+        }
+
+
+        /**
+         * 次のレコードを返す.<br>
+         * 全ての記録済みのレコードを読み込んだ場合はnull.<br>
+         * 追記に失敗している場合は読み込み済みの位置に関わらずIOExceptionとなる.<br>
+         *
+         * @return String
+         * @throw IOException
+         */
+        public String next() throws IOException {
+            // getLastSeqで毎回追記の失敗を確認する
+            if (this.nextReadSeq > getLastSeq()) return null;
+
+            if (this.dis == null || isSegmentStart(this.nextReadSeq)) this.open();
+            if (flushedSeq < this.nextReadSeq) flushTo(this.nextReadSeq);
+
+            int length = this.dis.readInt();
+            if (this.buf.length < length) this.buf = new byte[length];
+            this.dis.readFully(this.buf, 0, length);
+            this.nextReadSeq++;
+            return new String(this.buf, 0, length, charset);
+        }
+
+
+        // 読み込む連番を含むセグメントを開き、連番の位置まで読み飛ばす
+        private void open() throws IOException {
+            this.close();
+
+            Object[] segment = findSegment(this.nextReadSeq);
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream((File)segment[1]), writeBufferSize));
+            for (long seq = ((Long)segment[0]).longValue(); seq < this.nextReadSeq; seq++) {
+                int length = this.dis.readInt();
+                this.dis.skipBytes(length);
+            }
+        }
+
+
+        /**
+         * 次に読み込むレコードの連番を返す.<br>
+         *
+         * @return long
+         */
+        public long getNextSeq() {
+            return this.nextReadSeq;
+        }
+
+
+        public void close() {
+            try {
+                if (this.dis != null) this.dis.close();
+            } catch (IOException e) {
+            }
+            this.dis = null;
+        }
+    }
+}
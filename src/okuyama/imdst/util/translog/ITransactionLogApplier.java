@@ -0,0 +1,29 @@
+package okuyama.imdst.util.translog;
+
+/**
+ * トランザクションログから復元したレコードを反映するインターフェース.<br>
+ * TransactionLogReplayerの複数のスレッドから呼び出されるため、スレッドセーフであること.<br>
+ * 同一のKeyのレコードは同一のスレッドからログの順番に呼び出される.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public interface ITransactionLogApplier {
+
+    /**
+     * 登録レコードを反映する.<br>
+     *
+     * @param key
+     * @param data
+     * @param time 登録時間
+     */
+    public void applySet(String key, String data, long time);
+
+    /**
+     * 削除レコードを反映する.<br>
+     *
+     * @param key
+     * @param time 削除時間
+     */
+    public void applyRemove(String key, long time);
+}
@@ -0,0 +1,226 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+import java.util.*;
+
+import okuyama.imdst.util.KeyManagerValueMap;
+
+/**
+ * アーカイブから指定の時間のDataNodeのデータを復元する.<br>
+ * 指定の時間以前に作成が完了したチェックポイントを読み込み、チェックポイント時間より後で指定の時間以前の<br>
+ * トランザクションログのレコードを並列に再実行した後、単独のバックアップファイルとして書き出す.<br>
+ * トランザクションログがパーティションに分割されている場合は、パーティション毎のログをレコードの時間順にマージして再実行する.<br>
+ * 書き出したファイルをDataNodeのバックアップファイル(KeyMapManager.keyObjBkupFilePath)とし、<br>
+ * トランザクションログが存在しない状態で起動することで復元したデータで稼働する.<br>
+ * チェックポイントはメモリモードのDataNodeのみアーカイブされるため、メモリモードのみ対応する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class PointInTimeRestorer {
+
+    // 復元に使用するMapの初期サイズ
+    private static final int restoreMapSize = 500000;
+
+    private File archiveDir = null;
+
+    private long targetTime = 0L;
+
+    // アーカイブされていないトランザクションログ(nullの場合はアーカイブのみ使用)
+    private String workKeyFilePath = null;
+
+    // パーティションのログが作成されるKeyファイルのディレクトリ(nullの場合はトランザクションログと同じディレクトリのみ)
+    private String[] keyFileDirs = null;
+
+    private int replayThreads = 1;
+
+    private long checkpointTime = 0L;
+
+    private int restoreCount = 0;
+
+    private String replayStatus = null;
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param archiveDir アーカイブのディレクトリ
+     * @param targetTime 復元する時間
+     * @param workKeyFilePath DataNodeのトランザクションログ(アーカイブされていないログも復元に使用する場合に指定 不要な場合はnull)
+     * @param replayThreads ログの再実行を行うスレッド数
+     */
+    public PointInTimeRestorer(File archiveDir, long targetTime, String workKeyFilePath, int replayThreads) {
+        this(archiveDir, targetTime, workKeyFilePath, null, replayThreads);
+    }
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param archiveDir アーカイブのディレクトリ
+     * @param targetTime 復元する時間
+     * @param workKeyFilePath DataNodeのトランザクションログ(アーカイブされていないログも復元に使用する場合に指定 不要な場合はnull)
+     * @param keyFileDirs DataNodeのKeyファイルのディレクトリ(パーティションのログの検索に使用する 不要な場合はnull)
+     * @param replayThreads ログの再実行を行うスレッド数
+     */
+    public PointInTimeRestorer(File archiveDir, long targetTime, String workKeyFilePath, String[] keyFileDirs, int replayThreads) {
+        this.archiveDir = archiveDir;
+        this.targetTime = targetTime;
+        this.workKeyFilePath = workKeyFilePath;
+        this.keyFileDirs = keyFileDirs;
+        this.replayThreads = replayThreads;
+    }
+
+
+    /**
+     * 復元を行い、バックアップファイルを書き出す.<br>
+     *
+     * @param outputFile 書き出し先のバックアップファイル
+     * @throw Exception
+     */
+    public void restore(File outputFile) throws Exception {
+        TransactionLogArchive archive = new TransactionLogArchive(this.archiveDir);
+        File checkpointFile = archive.selectCheckpoint(this.targetTime);
+        if (checkpointFile == null) throw new Exception("No archived checkpoint before " + new Date(this.targetTime));
+
+        final KeyManagerValueMap keyMapObj = new KeyManagerValueMap(restoreMapSize, true, null, false, checkpointFile, null);
+        this.checkpointTime = keyMapObj.useStorageObjectTime;
+        if (this.checkpointTime == 0L) throw new Exception("Archived checkpoint read error " + checkpointFile.getAbsolutePath());
+
+        // パーティション番号 -> ログのList(アーカイブ済みのログの後にアーカイブされていないログ)
+        Map partitionLogFiles = archive.getPartitionLogFiles(this.checkpointTime);
+        if (this.workKeyFilePath != null) addWorkKeyFiles(partitionLogFiles, this.workKeyFilePath, this.keyFileDirs);
+        if (partitionLogFiles.size() == 0) partitionLogFiles.put(new Integer(0), new ArrayList());
+
+        File[][] logFiles = new File[partitionLogFiles.size()][];
+        int partitionIdx = 0;
+        for (Iterator ite = partitionLogFiles.values().iterator(); ite.hasNext(); partitionIdx++) {
+            logFiles[partitionIdx] = (File[])((List)ite.next()).toArray(new File[0]);
+        }
+
+        TransactionLogReplayer replayer = new TransactionLogReplayer(new ITransactionLogApplier() {
+
+            public void applySet(String key, String data, long time) {
+                keyMapObj.put(key, data);
+            }
+
+            public void applyRemove(String key, long time) {
+                keyMapObj.remove(key);
+            }
+        }, this.checkpointTime, this.replayThreads);
+        replayer.setMaxTime(this.targetTime);
+        replayer.setTruncateBrokenTail(false);
+        replayer.replay(logFiles);
+        this.replayStatus = replayer.getStatus();
+
+        this.restoreCount = keyMapObj.size();
+        keyMapObj.fileStoreMapObject(outputFile, true);
+    }
+
+
+    public long getCheckpointTime() {
+        return this.checkpointTime;
+    }
+
+    public int getRestoreCount() {
+        return this.restoreCount;
+    }
+
+    public String getReplayStatus() {
+        return this.replayStatus;
+    }
+
+
+    /**
+     * アーカイブされていないトランザクションログをパーティション毎のListに追加する.<br>
+     * パーティション0は"ファイル名"と"ファイル名インデックス番号"、<br>
+     * パーティション1以降は"ファイル名.p番号"と"ファイル名.p番号.インデックス番号"で、<br>
+     * トランザクションログのディレクトリとKeyファイルのディレクトリから検索する.<br>
+     * 各パーティションのローテーション済みのログ(インデックス番号順)の後に現在のログを追加する.<br>
+     *
+     * @param partitionLogFiles パーティション番号(Integer) -> ログ(File)のList
+     * @param workKeyFilePath トランザクションログ
+     * @param keyFileDirs Keyファイルのディレクトリ
+     */
+    private static void addWorkKeyFiles(Map partitionLogFiles, String workKeyFilePath, String[] keyFileDirs) {
+        File logFile = new File(workKeyFilePath).getAbsoluteFile();
+        String partitionPrefix = logFile.getName() + ".p";
+
+        List dirList = new ArrayList();
+        dirList.add(logFile.getParentFile());
+        for (int i = 0; keyFileDirs != null && i < keyFileDirs.length; i++) {
+            File dir = new File(keyFileDirs[i]).getAbsoluteFile();
+            if (!dirList.contains(dir)) dirList.add(dir);
+        }
+
+        // パーティション番号 -> 現在のログのファイル名
+        Map partitionPaths = new TreeMap();
+        partitionPaths.put(new Integer(0), logFile.getAbsolutePath());
+        for (int i = 0; i < dirList.size(); i++) {
+            String[] names = ((File)dirList.get(i)).list();
+            for (int idx = 0; names != null && idx < names.length; idx++) {
+                if (!names[idx].startsWith(partitionPrefix)) continue;
+
+                String[] parts = names[idx].substring(partitionPrefix.length()).split("\\.");
+                if (parts.length > 2 || !isNumber(parts[0]) || (parts.length == 2 && !isNumber(parts[1]))) continue;
+
+                Integer partition = new Integer(parts[0]);
+                if (partition.intValue() > 0 && !partitionPaths.containsKey(partition)) {
+                    partitionPaths.put(partition, new File((File)dirList.get(i), partitionPrefix + parts[0]).getAbsolutePath());
+                }
+            }
+        }
+
+        for (Iterator ite = partitionPaths.entrySet().iterator(); ite.hasNext();) {
+            Map.Entry entry = (Map.Entry)ite.next();
+            String partitionPath = (String)entry.getValue();
+
+            // パーティション0のローテーション済みのログは"ファイル名インデックス番号"
+            File[] files = getWorkKeyFiles(partitionPath, ((Integer)entry.getKey()).intValue() == 0 ? partitionPath : partitionPath + ".");
+            if (files.length == 0) continue;
+
+            List partitionLogList = (List)partitionLogFiles.get(entry.getKey());
+            if (partitionLogList == null) {
+                partitionLogList = new ArrayList();
+                partitionLogFiles.put(entry.getKey(), partitionLogList);
+            }
+            partitionLogList.addAll(Arrays.asList(files));
+        }
+    }
+
+
+    // ローテーション済みのログ(インデックス番号順)と現在のログを返す
+    private static File[] getWorkKeyFiles(String filePath, String rotatedPrefix) {
+        File rotatedPrefixFile = new File(rotatedPrefix).getAbsoluteFile();
+        String rotatedPrefixName = rotatedPrefixFile.getName();
+        String[] names = rotatedPrefixFile.getParentFile().list();
+
+        List indexList = new ArrayList();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (!names[i].startsWith(rotatedPrefixName)) continue;
+
+            String indexStr = names[i].substring(rotatedPrefixName.length());
+            if (indexStr.length() == 0 || indexStr.length() > 9 || !isNumber(indexStr)) continue;
+            indexList.add(new Integer(indexStr));
+        }
+        Collections.sort(indexList);
+
+        List ret = new ArrayList();
+        for (int i = 0; i < indexList.size(); i++) {
+            ret.add(new File(rotatedPrefixFile.getAbsolutePath() + indexList.get(i)));
+        }
+
+        File nowFile = new File(filePath);
+        if (nowFile.exists()) ret.add(nowFile);
+        return (File[])ret.toArray(new File[0]);
+    }
+
+
+    private static boolean isNumber(String str) {
+        if (str.length() == 0) return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (!Character.isDigit(str.charAt(i))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,284 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import okuyama.base.util.ILogger;
+import okuyama.base.util.LoggerFactory;
+import okuyama.imdst.util.checkpoint.CheckpointStore;
+
+/**
+ * ローテーション済みのトランザクションログとチェックポイントを保存するアーカイブ.<br>
+ * ログは"translog.最終更新時間.インデックス番号"(パーティションのログはインデックス番号を"パーティション番号 * 1000000000 + インデックス番号"とする)、<br>
+ * チェックポイントはベースイメージと差分を"checkpoint.チェックポイント時間.作成完了時間"ディレクトリにまとめて保存する.<br>
+ * チェックポイントと、そのチェックポイント時間より新しいログを組み合わせることで、<br>
+ * 保存期間内の任意の時間のデータを復元できる.<br>
+ * 1つのアーカイブは1つのDataNodeのみで使用する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class TransactionLogArchive {
+
+    private static ILogger logger = LoggerFactory.createLogger(TransactionLogArchive.class);
+
+    private static final String logPrefix = "translog.";
+
+    private static final String checkpointPrefix = "checkpoint.";
+
+    // チェックポイントのディレクトリ内のベースイメージのファイル名
+    private static final String checkpointFileName = "checkpoint.obj";
+
+    private static final String tmpSuffix = ".tmp";
+
+    /**
+     * パーティション毎のインデックス番号の範囲.<br>
+     * アーカイブ時のインデックス番号は"パーティション番号 * partitionIndexRange + インデックス番号"とする.<br>
+     */
+    public static final long partitionIndexRange = 1000000000L;
+
+    private File archiveDir = null;
+
+
+    public TransactionLogArchive(File archiveDir) {
+        this.archiveDir = archiveDir;
+    }
+
+
+    /**
+     * ローテーション済みのトランザクションログをアーカイブに移動する.<br>
+     * 別のファイルシステムの場合等で移動できない場合はコピー後に削除する.<br>
+     *
+     * @param logFile ローテーション済みのログ
+     * @param index ローテーション時のインデックス番号
+     * @throw IOException
+     */
+    public void archiveLog(File logFile, long index) throws IOException {
+        this.archiveDir.mkdirs();
+
+        File archiveFile = new File(this.archiveDir, logPrefix + logFile.lastModified() + "." + index);
+        if (logFile.renameTo(archiveFile)) return;
+
+        File tmpFile = new File(archiveFile.getAbsolutePath() + tmpSuffix);
+        copyFile(logFile, tmpFile);
+        if (!tmpFile.renameTo(archiveFile)) throw new IOException("Archive rename error " + archiveFile.getAbsolutePath());
+        if (!logFile.delete()) throw new IOException("Archived log delete error " + logFile.getAbsolutePath());
+    }
+
+
+    /**
+     * チェックポイント(ベースイメージと差分)をアーカイブにコピーする.<br>
+     * 一時ディレクトリにコピーし、完了後にディレクトリ名を変更する.<br>
+     *
+     * @param baseFile チェックポイントのベースイメージ
+     * @param checkpointTime チェックポイント時間
+     * @throw IOException
+     */
+    public void archiveCheckpoint(File baseFile, long checkpointTime) throws IOException {
+        File[] deltaFiles = new CheckpointStore(baseFile).getDeltaFiles();
+        String baseName = baseFile.getName();
+
+        File tmpDir = new File(this.archiveDir, checkpointPrefix + checkpointTime + tmpSuffix);
+        deleteDir(tmpDir);
+        if (!tmpDir.mkdirs()) throw new IOException("Archive directory create error " + tmpDir.getAbsolutePath());
+
+        copyFile(baseFile, new File(tmpDir, checkpointFileName));
+        for (int i = 0; i < deltaFiles.length; i++) {
+            copyFile(deltaFiles[i], new File(tmpDir, checkpointFileName + deltaFiles[i].getName().substring(baseName.length())));
+        }
+
+        // 作成完了時間以前のデータのみ含まれる
+        File checkpointDir = new File(this.archiveDir, checkpointPrefix + checkpointTime + "." + System.currentTimeMillis());
+        if (!tmpDir.renameTo(checkpointDir)) throw new IOException("Archive rename error " + checkpointDir.getAbsolutePath());
+    }
+
+
+    /**
+     * 最後にアーカイブしたチェックポイントの作成完了時間を返す.<br>
+     * 存在しない場合は0.<br>
+     *
+     * @return long
+     */
+    public long getLastCheckpointCompleteTime() {
+        long[][] checkpoints = this.getCheckpoints();
+        if (checkpoints.length == 0) return 0L;
+        return checkpoints[checkpoints.length - 1][1];
+    }
+
+
+    /**
+     * 指定の時間の復元に使用するチェックポイントを返す.<br>
+     * 作成完了時間が指定の時間以前のチェックポイントのうち最も新しいもの.<br>
+     *
+     * @param targetTime 復元する時間
+     * @return File ベースイメージ 存在しない場合はnull
+     */
+    public File selectCheckpoint(long targetTime) {
+        long[][] checkpoints = this.getCheckpoints();
+        for (int i = checkpoints.length - 1; i >= 0; i--) {
+            if (checkpoints[i][1] <= targetTime) return new File(new File(this.archiveDir, checkpointPrefix + checkpoints[i][0] + "." + checkpoints[i][1]), checkpointFileName);
+        }
+        return null;
+    }
+
+
+    /**
+     * 指定の時間以降に更新されたアーカイブ済みのログを古い順に返す.<br>
+     *
+     * @param fromTime この時間より前に最終更新されたログは含めない
+     * @return File[]
+     */
+    public File[] getLogFiles(long fromTime) {
+        long[][] logs = this.getLogs();
+
+        List ret = new ArrayList();
+        for (int i = 0; i < logs.length; i++) {
+            if (logs[i][0] >= fromTime) ret.add(new File(this.archiveDir, logPrefix + logs[i][0] + "." + logs[i][1]));
+        }
+        return (File[])ret.toArray(new File[0]);
+    }
+
+
+    /**
+     * 指定の時間以降に更新されたアーカイブ済みのログをパーティション毎に古い順で返す.<br>
+     *
+     * @param fromTime この時間より前に最終更新されたログは含めない
+     * @return Map パーティション番号(Integer) -> ログ(File)のList パーティション番号順
+     */
+    public Map getPartitionLogFiles(long fromTime) {
+        long[][] logs = this.getLogs();
+
+        Map ret = new TreeMap();
+        for (int i = 0; i < logs.length; i++) {
+            if (logs[i][0] < fromTime) continue;
+
+            Integer partition = new Integer((int)(logs[i][1] / partitionIndexRange));
+            List partitionLogList = (List)ret.get(partition);
+            if (partitionLogList == null) {
+                partitionLogList = new ArrayList();
+                ret.put(partition, partitionLogList);
+            }
+            partitionLogList.add(new File(this.archiveDir, logPrefix + logs[i][0] + "." + logs[i][1]));
+        }
+        return ret;
+    }
+
+
+    /**
+     * 保存期間を過ぎたチェックポイントとログを削除する.<br>
+     * 保存期間の境界時点を復元できるように、境界より前に作成が完了したチェックポイントのうち最も新しいものと、<br>
+     * そのチェックポイント時間以降のログは残す.<br>
+     * チェックポイントが存在しない場合は境界より前に最終更新されたログを削除する.<br>
+     *
+     * @param retentionTime 保存期間(ミリ秒)
+     * @return int 削除したチェックポイントとログの数
+     */
+    public int prune(long retentionTime) {
+        long boundary = System.currentTimeMillis() - retentionTime;
+        int ret = 0;
+
+        long[][] checkpoints = this.getCheckpoints();
+        long logBoundary = checkpoints.length == 0 ? boundary : 0L;
+        int anchor = -1;
+        for (int i = 0; i < checkpoints.length; i++) {
+            if (checkpoints[i][1] <= boundary) anchor = i;
+        }
+
+        if (anchor != -1) {
+            logBoundary = checkpoints[anchor][0];
+            for (int i = 0; i < anchor; i++) {
+                File checkpointDir = new File(this.archiveDir, checkpointPrefix + checkpoints[i][0] + "." + checkpoints[i][1]);
+                if (deleteDir(checkpointDir)) {
+                    logger.info("TransactionLogArchive - Deleted [" + checkpointDir.getAbsolutePath() + "]");
+                    ret++;
+                }
+            }
+        }
+
+        long[][] logs = this.getLogs();
+        for (int i = 0; i < logs.length; i++) {
+            if (logs[i][0] >= logBoundary) break;
+
+            File logFile = new File(this.archiveDir, logPrefix + logs[i][0] + "." + logs[i][1]);
+            if (logFile.delete()) {
+                logger.info("TransactionLogArchive - Deleted [" + logFile.getAbsolutePath() + "]");
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+
+    // アーカイブ済みのチェックポイントの[チェックポイント時間, 作成完了時間]を古い順に返す
+    private long[][] getCheckpoints() {
+        return this.listNames(checkpointPrefix);
+    }
+
+
+    // アーカイブ済みのログの[最終更新時間, インデックス番号]を古い順に返す
+    private long[][] getLogs() {
+        return this.listNames(logPrefix);
+    }
+
+
+    // "接頭辞.数値.数値"形式の名前の数値を古い順に返す
+    private long[][] listNames(String prefix) {
+        String[] names = this.archiveDir.list();
+        if (names == null) return new long[0][];
+
+        List ret = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].startsWith(prefix)) continue;
+
+            String[] parts = names[i].substring(prefix.length()).split("\\.");
+            if (parts.length != 2) continue;
+            try {
+                ret.add(new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        Collections.sort(ret, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long[] names1 = (long[])o1;
+                long[] names2 = (long[])o2;
+                if (names1[0] != names2[0]) return names1[0] < names2[0] ? -1 : 1;
+                return names1[1] < names2[1] ? -1 : (names1[1] == names2[1] ? 0 : 1);
+            }
+        });
+        return (long[][])ret.toArray(new long[0][]);
+    }
+
+
+    private static void copyFile(File src, File dest) throws IOException {
+        FileInputStream fis = new FileInputStream(src);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(dest, false);
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+
+            long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                position = position + in.transferTo(position, size - position, out);
+            }
+            fos.getFD().sync();
+        } finally {
+            fis.close();
+            if (fos != null) fos.close();
+        }
+    }
+
+
+    private static boolean deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        return dir.delete();
+    }
+}
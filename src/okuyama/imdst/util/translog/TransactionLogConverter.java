@@ -0,0 +1,88 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * テキストフォーマットのトランザクションログをバイナリフォーマットに変換する.<br>
+ * テキストフォーマットは1行1レコードで、以下のいずれか.<br>
+ * 種別,Key,Value,登録時間,終端文字<br>
+ * 種別,Key,Value(前半),Value(後半),登録時間,終端文字<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class TransactionLogConverter {
+
+    private static String workFileSeq = ImdstDefine.keyWorkFileSep;
+
+
+    /**
+     * 変換処理.<br>
+     * 不正な行は読み飛ばす.<br>
+     *
+     * @param textLogFile 変換元のテキストフォーマットのログ
+     * @param binaryLogFile 変換後のバイナリフォーマットのログ
+     * @return int 変換したレコード数
+     * @throw IOException
+     */
+    public static int convert(File textLogFile, File binaryLogFile) throws IOException {
+        int count = 0;
+        BufferedReader br = null;
+        OutputStream os = null;
+
+        try {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(textLogFile), ImdstDefine.keyWorkFileEncoding));
+            os = new BufferedOutputStream(new FileOutputStream(binaryLogFile), 8192 * 24);
+            os.write(TransactionLogFormat.fileHeader);
+
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (line.equals("")) continue;
+
+                byte[] record = convertLine(line);
+                if (record != null) {
+                    os.write(record);
+                    count++;
+                }
+            }
+            os.flush();
+        } finally {
+            if (br != null) br.close();
+            if (os != null) os.close();
+        }
+        return count;
+    }
+
+
+    /**
+     * テキストフォーマットの1行をレコードに変換する.<br>
+     *
+     * @param line
+     * @return byte[] 不正な行の場合はnull
+     */
+    public static byte[] convertLine(String line) {
+        String[] workSplitStrs = line.split(workFileSeq);
+
+        try {
+            if (workSplitStrs.length == 5) {
+
+                if (workSplitStrs[0].equals("+")) {
+                    return TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, workSplitStrs[1], workSplitStrs[2], Long.parseLong(workSplitStrs[3]));
+                } else if (workSplitStrs[0].equals("-")) {
+                    return TransactionLogFormat.createRecord(TransactionLogFormat.typeRemove, workSplitStrs[1], null, Long.parseLong(workSplitStrs[3]));
+                }
+            } else if (workSplitStrs.length == 6) {
+
+                if (workSplitStrs[0].equals("+")) {
+                    return TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, workSplitStrs[1], workSplitStrs[2] + workFileSeq + workSplitStrs[3], Long.parseLong(workSplitStrs[4]));
+                } else if (workSplitStrs[0].equals("-")) {
+                    return TransactionLogFormat.createRecord(TransactionLogFormat.typeRemove, workSplitStrs[1], null, Long.parseLong(workSplitStrs[3]));
+                }
+            }
+        } catch (NumberFormatException nfe) {
+        }
+        return null;
+    }
+}
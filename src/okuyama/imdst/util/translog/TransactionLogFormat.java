@@ -0,0 +1,190 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32C;
+
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * トランザクションログ(WALログ)のバイナリフォーマット定義.<br>
+ * ファイルの先頭にヘッダー(マジック"OKTL" + バージョン)を持ち、以降はレコードが連続する.<br>
+ * レコードのレイアウトは以下.数値は全てビッグエンディアン.<br>
+ * [本体のレングス(4byte)][種別(1byte)][Keyのレングス(4byte)][Key][Valueのレングス(4byte)][Value][登録時間(8byte)][CRC32C(4byte)]<br>
+ * CRC32Cは種別から登録時間までの本体部分に対して算出する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class TransactionLogFormat {
+
+    // フォーマットのバージョン
+    public static final int formatVersion = 1;
+
+    // ファイルヘッダー
+    public static final byte[] fileHeader = {'O', 'K', 'T', 'L', 0, 0, 0, (byte)formatVersion};
+
+    // レコード種別:登録
+    public static final byte typeSet = '+';
+
+    // レコード種別:削除
+    public static final byte typeRemove = '-';
+
+    // Key,Valueのレングス以外の本体部分のサイズ(種別 + Keyのレングス + Valueのレングス + 登録時間)
+    public static final int bodyFixedSize = 1 + 4 + 4 + 8;
+
+    // 本体のレングス + CRC32C
+    public static final int recordFrameSize = 4 + 4;
+
+    public static final Charset charset = Charset.forName(ImdstDefine.keyWorkFileEncoding);
+
+    private static final byte[] emptyBytes = new byte[0];
+
+
+    /**
+     * 1件分のレコードを作成する.<br>
+     *
+     * @param type 種別(typeSet or typeRemove)
+     * @param key Key
+     * @param data Value(削除時はnull)
+     * @param time 登録時間
+     * @return byte[] レコード
+     */
+    public static byte[] createRecord(byte type, String key, String data, long time) {
+        byte[] keyBytes = key.getBytes(charset);
+        byte[] dataBytes = data == null ? emptyBytes : data.getBytes(charset);
+
+        int bodyLen = bodyFixedSize + keyBytes.length + dataBytes.length;
+        byte[] ret = new byte[bodyLen + recordFrameSize];
+
+        int idx = writeInt(ret, 0, bodyLen);
+        ret[idx] = type;
+        idx++;
+        idx = writeInt(ret, idx, keyBytes.length);
+        System.arraycopy(keyBytes, 0, ret, idx, keyBytes.length);
+        idx = idx + keyBytes.length;
+        idx = writeInt(ret, idx, dataBytes.length);
+        System.arraycopy(dataBytes, 0, ret, idx, dataBytes.length);
+        idx = idx + dataBytes.length;
+        idx = writeLong(ret, idx, time);
+
+        writeInt(ret, idx, checksum(ret, 4, bodyLen));
+        return ret;
+    }
+
+
+    /**
+     * 指定のファイルがバイナリフォーマットのトランザクションログかを返す.<br>
+     * ファイルが存在しない、または空の場合はfalse.<br>
+     *
+     * @param logFile
+     * @return boolean
+     * @throw IOException
+     */
+    public static boolean isBinaryLog(File logFile) throws IOException {
+        if (!logFile.exists() || logFile.length() < fileHeader.length) return false;
+
+        byte[] header = new byte[fileHeader.length];
+        DataInputStream dis = new DataInputStream(new FileInputStream(logFile));
+        try {
+            dis.readFully(header);
+        } finally {
+            dis.close();
+        }
+        return checkHeader(header);
+    }
+
+
+    /**
+     * ファイルヘッダーを検証する.<br>
+     * バージョンが本フォーマットより新しい場合はIOException.<br>
+     *
+     * @param header
+     * @return boolean
+     * @throw IOException
+     */
+    public static boolean checkHeader(byte[] header) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            if (header[i] != fileHeader[i]) return false;
+        }
+
+        int version = readInt(header, 4);
+        if (version > formatVersion) throw new IOException("Unsupported transaction log version " + version);
+        return true;
+    }
+
+
+    /**
+     * レコード本体(種別から登録時間まで)から種別を取得する.<br>
+     */
+    public static byte getType(byte[] body) {
+        return body[0];
+    }
+
+    /**
+     * レコード本体からKeyを取得する.<br>
+     */
+    public static String getKey(byte[] body) {
+        return new String(body, 5, readInt(body, 1), charset);
+    }
+
+    /**
+     * レコード本体からValueを取得する.<br>
+     */
+    public static String getData(byte[] body) {
+        int dataIdx = 5 + readInt(body, 1);
+        return new String(body, dataIdx + 4, readInt(body, dataIdx), charset);
+    }
+
+    /**
+     * レコード本体から登録時間を取得する.<br>
+     */
+    public static long getTime(byte[] body) {
+        return readLong(body, body.length - 8);
+    }
+
+    /**
+     * レコード本体のKey部分のハッシュ値を返す.<br>
+     * 同一のKeyは同一の値となる.<br>
+     */
+    public static int keyHash(byte[] body) {
+        int keyLen = readInt(body, 1);
+        int hash = 0;
+        for (int i = 5; i < 5 + keyLen; i++) {
+            hash = 31 * hash + body[i];
+        }
+        return hash;
+    }
+
+
+    public static int checksum(byte[] buf, int offset, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf, offset, len);
+        return (int)crc.getValue();
+    }
+
+
+    public static int readInt(byte[] buf, int idx) {
+        return ((buf[idx] & 0xFF) << 24) | ((buf[idx + 1] & 0xFF) << 16) | ((buf[idx + 2] & 0xFF) << 8) | (buf[idx + 3] & 0xFF);
+    }
+
+
+    public static long readLong(byte[] buf, int idx) {
+        return ((long)readInt(buf, idx) << 32) | (readInt(buf, idx + 4) & 0xFFFFFFFFL);
+    }
+
+
+    private static int writeInt(byte[] buf, int idx, int value) {
+        buf[idx] = (byte)(value >>> 24);
+        buf[idx + 1] = (byte)(value >>> 16);
+        buf[idx + 2] = (byte)(value >>> 8);
+        buf[idx + 3] = (byte)value;
+        return idx + 4;
+    }
+
+
+    private static int writeLong(byte[] buf, int idx, long value) {
+        writeInt(buf, idx, (int)(value >>> 32));
+        return writeInt(buf, idx + 4, (int)value);
+    }
+}
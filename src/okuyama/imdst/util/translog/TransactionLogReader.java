@@ -0,0 +1,175 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+
+/**
+ * バイナリフォーマットのトランザクションログを先頭から順に読み込む.<br>
+ * レコード毎にレングスとCRC32Cを検証し、書き込み途中で停止した等で不完全なレコードを検出した場合は<br>
+ * そこで読み込みを終了する.以降のデータは読み込まない.<br>
+ * 読み込みを終了した時点の有効なデータの終端はgetValidLengthで取得できる.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class TransactionLogReader {
+
+    private File logFile = null;
+
+    private InputStream is = null;
+
+    private long fileLength = 0L;
+
+    // 有効なレコードの終端位置
+    private long validLength = 0L;
+
+    // 不完全なレコードを検出したか
+    private boolean brokenTail = false;
+
+    private String brokenReason = null;
+
+    private byte[] buf = new byte[8];
+
+    private byte type = 0;
+
+    private String key = null;
+
+    private String data = null;
+
+    private long time = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     * ファイルヘッダーが不正な場合はIOException.<br>
+     *
+     * @param logFile
+     * @throw IOException
+     */
+    public TransactionLogReader(File logFile) throws IOException {
+        this.logFile = logFile;
+        this.fileLength = logFile.length();
+        this.is = new BufferedInputStream(new FileInputStream(logFile), 8192 * 24);
+
+        byte[] header = new byte[TransactionLogFormat.fileHeader.length];
+        if (this.read(header, header.length) != header.length || !TransactionLogFormat.checkHeader(header)) {
+            this.close();
+            throw new IOException("Not binary transaction log " + logFile.getAbsolutePath());
+        }
+        this.validLength = header.length;
+    }
+
+
+    /**
+     * 次のレコードを読み込む.<br>
+     *
+     * @return boolean true:読み込めた false:終端または不完全なレコード
+     * @throw IOException
+     */
+    public boolean next() throws IOException {
+        byte[] body = this.nextRecord();
+        if (body == null) return false;
+
+        this.type = TransactionLogFormat.getType(body);
+        this.key = TransactionLogFormat.getKey(body);
+        this.data = TransactionLogFormat.getData(body);
+        this.time = TransactionLogFormat.getTime(body);
+        return true;
+    }
+
+
+    /**
+     * 次のレコードを検証し、本体(種別から登録時間まで)をデコードせずに返す.<br>
+     * 本体の内容はTransactionLogFormatのgetType、getKey等で取得する.<br>
+     *
+     * @return byte[] 終端または不完全なレコードの場合はnull
+     * @throw IOException
+     */
+    public byte[] nextRecord() throws IOException {
+        if (this.brokenTail) return null;
+
+        long remaining = this.fileLength - this.validLength;
+        if (remaining == 0L) return null;
+        if (remaining < TransactionLogFormat.recordFrameSize) return this.broken("Record header is torn");
+
+        if (this.read(this.buf, 4) != 4) return this.broken("Record header is torn");
+        int bodyLen = TransactionLogFormat.readInt(this.buf, 0);
+        if (bodyLen < TransactionLogFormat.bodyFixedSize || bodyLen > (remaining - TransactionLogFormat.recordFrameSize)) return this.broken("Illegal record length " + bodyLen);
+
+        byte[] body = new byte[bodyLen];
+        if (this.read(body, bodyLen) != bodyLen || this.read(this.buf, 4) != 4) return this.broken("Record body is torn");
+
+        if (TransactionLogFormat.checksum(body, 0, bodyLen) != TransactionLogFormat.readInt(this.buf, 0)) return this.broken("Checksum mismatch");
+
+        byte recordType = body[0];
+        if (recordType != TransactionLogFormat.typeSet && recordType != TransactionLogFormat.typeRemove) return this.broken("Illegal record type " + recordType);
+
+        int keyLen = TransactionLogFormat.readInt(body, 1);
+        if (keyLen < 0 || keyLen > (bodyLen - TransactionLogFormat.bodyFixedSize)) return this.broken("Illegal key length " + keyLen);
+
+        int dataLen = TransactionLogFormat.readInt(body, 5 + keyLen);
+        if (dataLen != (bodyLen - TransactionLogFormat.bodyFixedSize - keyLen)) return this.broken("Illegal data length " + dataLen);
+
+        this.validLength = this.validLength + TransactionLogFormat.recordFrameSize + bodyLen;
+        return body;
+    }
+
+
+    public byte getType() {
+        return this.type;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public String getData() {
+        return this.data;
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    public long getValidLength() {
+        return this.validLength;
+    }
+
+    public boolean isBrokenTail() {
+        return this.brokenTail;
+    }
+
+    public String getBrokenReason() {
+        return this.brokenReason;
+    }
+
+    public File getLogFile() {
+        return this.logFile;
+    }
+
+
+    public void close() {
+        try {
+            if (this.is != null) this.is.close();
+        } catch (Exception e) {
+        }
+        this.is = null;
+    }
+
+
+    private byte[] broken(String reason) {
+        this.brokenTail = true;
+        this.brokenReason = reason + " (offset=" + this.validLength + ")";
+        return null;
+    }
+
+
+    private int read(byte[] dst, int len) throws IOException {
+        int readLen = 0;
+        while (readLen < len) {
+            int ret = this.is.read(dst, readLen, len - readLen);
+            if (ret == -1) break;
+            readLen = readLen + ret;
+        }
+        return readLen;
+    }
+}
@@ -0,0 +1,609 @@
+package okuyama.imdst.util.translog;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okuyama.base.util.ILogger;
+import okuyama.base.util.LoggerFactory;
+import okuyama.imdst.util.ImdstDefine;
+
+/**
+ * 起動時にトランザクションログを並列に復元する.<br>
+ * ログファイルは1スレッドで先頭から順に読み込み、レコードの検証のみ行う.<br>
+ * レコードのデコードと反映はKeyのハッシュ値で振り分けた複数のワーカースレッドで行うため、<br>
+ * 同一のKeyのレコードはログの順番に反映される.<br>
+ * バイナリフォーマットとテキストフォーマットのログの両方に対応する.<br>
+ *
+ * @author T.Okuyama
+ * @license GPL(Lv3)
+ */
+public class TransactionLogReplayer {
+
+    private static ILogger logger = LoggerFactory.createLogger(TransactionLogReplayer.class);
+
+    // ワーカーに渡す1回分のレコード数
+    private static final int batchSize = 512;
+
+    // 進捗をログに出力する間隔(ミリ秒)
+    private static final long progressLogInterval = 10000L;
+
+    private static String workFileSeq = ImdstDefine.keyWorkFileSep;
+
+    private ITransactionLogApplier applier = null;
+
+    // この時間より新しいレコードのみ反映する
+    private long minTime = 0L;
+
+    // この時間以前のレコードのみ反映する
+    private long maxTime = Long.MAX_VALUE;
+
+    // 最後のファイルの不完全なレコードを切り詰めるかの指定
+    private boolean truncateBrokenTail = true;
+
+    private ReplayWorker[] workers = null;
+
+    private Object[][] batches = null;
+
+    private int[] batchCounts = null;
+
+    private volatile int fileCount = 0;
+
+    private volatile int nowFileIndex = 0;
+
+    private volatile long totalBytes = 0L;
+
+    private volatile long readBytes = 0L;
+
+    private volatile long readCount = 0L;
+
+    private AtomicLong appliedCount = new AtomicLong(0L);
+
+    private AtomicLong skipCount = new AtomicLong(0L);
+
+    private volatile long startTime = 0L;
+
+    private volatile long endTime = 0L;
+
+    private volatile Throwable error = null;
+
+    private long lastRecordTime = 0L;
+
+    private long lastProgressLogTime = 0L;
+
+
+    /**
+     * コンストラクタ.<br>
+     *
+     * @param applier レコードの反映先
+     * @param minTime この時間より新しいレコードのみ反映する
+     * @param workerCount 反映を行うスレッド数(1以下の場合は読み込みスレッドで反映する)
+     */
+    public TransactionLogReplayer(ITransactionLogApplier applier, long minTime, int workerCount) {
+        this.applier = applier;
+        this.minTime = minTime;
+
+        if (workerCount > 1) {
+            this.workers = new ReplayWorker[workerCount];
+            this.batches = new Object[workerCount][];
+            this.batchCounts = new int[workerCount];
+        }
+    }
+
+
+    /**
+     * 反映するレコードの時間の上限を指定する.<br>
+     * 指定の時間より新しいレコードは読み飛ばす.<br>
+     *
+     * @param maxTime この時間以前のレコードのみ反映する
+     */
+    public void setMaxTime(long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+
+    /**
+     * 最後のファイルで不完全なレコードを検出した場合に切り詰めるかを指定する.<br>
+     * アーカイブ済みのログ等、追記しないファイルを復元する場合はfalseを指定する.<br>
+     *
+     * @param truncateBrokenTail true:切り詰める(デフォルト) false:切り詰めない
+     */
+    public void setTruncateBrokenTail(boolean truncateBrokenTail) {
+        this.truncateBrokenTail = truncateBrokenTail;
+    }
+
+
+    /**
+     * 指定のログファイルを順番に復元する.<br>
+     * 最後のファイルは現在のログファイルとして扱い、不完全なレコードを検出した場合は以降のレコードを追記できるように切り詰める.<br>
+     * ローテーション済みのファイル(最後以外)で不正なレコードを検出した場合は、以降の更新が失われるため例外とする.<br>
+     *
+     * @param logFiles 復元するログファイル(古い順)
+     * @throw Exception 反映に失敗した場合、ローテーション済みのファイルに不正なレコードが存在する場合
+     */
+    public void replay(File[] logFiles) throws Exception {
+        this.startTime = System.currentTimeMillis();
+        this.lastProgressLogTime = this.startTime;
+        this.fileCount = logFiles.length;
+        for (int i = 0; i < logFiles.length; i++) {
+            this.totalBytes = this.totalBytes + logFiles[i].length();
+        }
+
+        this.startWorkers();
+
+        try {
+            long completedBytes = 0L;
+            for (int i = 0; i < logFiles.length; i++) {
+
+                this.nowFileIndex = i + 1;
+                logger.info("TransactionLogReplayer - Read - start File=[" + logFiles[i].getAbsolutePath() + "]");
+                if (TransactionLogFormat.isBinaryLog(logFiles[i])) {
+                    this.readBinaryLog(logFiles[i], completedBytes, i == (logFiles.length - 1));
+                } else {
+                    this.readTextLog(logFiles[i], completedBytes);
+                }
+                completedBytes = completedBytes + logFiles[i].length();
+                this.readBytes = completedBytes;
+                logger.info("TransactionLogReplayer - Read - end File=[" + logFiles[i].getAbsolutePath() + "]");
+            }
+        } finally {
+            this.finishWorkers();
+        }
+
+        this.endTime = System.currentTimeMillis();
+        logger.info("TransactionLogReplayer - End " + this.getStatus());
+        if (this.error != null) throw new Exception("TransactionLogReplayer - Apply Error", this.error);
+    }
+
+
+    // バイナリフォーマットのログの読み込み
+    private void readBinaryLog(File logFile, long completedBytes, boolean lastFile) throws Exception {
+        TransactionLogReader reader = new TransactionLogReader(logFile);
+        try {
+            byte[] body = null;
+            while ((body = reader.nextRecord()) != null) {
+                this.readCount++;
+                this.dispatch(body, TransactionLogFormat.keyHash(body));
+
+                if ((this.readCount & 4095) == 0) {
+                    this.readBytes = completedBytes + reader.getValidLength();
+                    this.progressLog();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (reader.isBrokenTail()) this.brokenRecord(logFile, reader, lastFile);
+    }
+
+
+    // 不正なレコードを検出した
+    // 書き込み途中で停止した等の不完全なレコード以降は復元しない
+    // 現在のログファイルの場合は以降のレコードを追記できるように切り詰める
+    // ローテーション済みのファイルの場合は以降の更新が失われ、後続のファイルの更新が欠落した状態に反映されるため例外とする
+    private void brokenRecord(File logFile, TransactionLogReader reader, boolean lastFile) throws Exception {
+        logger.error("TransactionLogReplayer - Broken record " + reader.getBrokenReason() + " File=[" + logFile.getAbsolutePath() + "]");
+
+        if (!lastFile) {
+            this.error = new IOException("Broken record in rotated transaction log " + reader.getBrokenReason() + " File=[" + logFile.getAbsolutePath() + "]");
+            throw new Exception("TransactionLogReplayer - Broken rotated log", this.error);
+        }
+
+        if (this.truncateBrokenTail) {
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                raf.setLength(reader.getValidLength());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+
+    // テキストフォーマットのログの読み込み
+    private void readTextLog(File logFile, long completedBytes) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), ImdstDefine.keyWorkFileEncoding), 8192 * 24);
+        try {
+            long fileReadBytes = 0L;
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                fileReadBytes = fileReadBytes + line.length() + 1;
+                if (line.equals("")) continue;
+
+                this.readCount++;
+
+                this.dispatch(line, textKeyHash(line));
+
+                if ((this.readCount & 4095) == 0) {
+                    this.readBytes = completedBytes + fileReadBytes;
+                    this.progressLog();
+                }
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+
+    /**
+     * パーティションに分割されたトランザクションログを復元する.<br>
+     * 各パーティションのログを先頭から順に読み込み、レコードの時間順にマージして反映する.<br>
+     * 同一のKeyのレコードは同一のパーティションに記録されるため、パーティション内の順番のまま反映される.<br>
+     * パーティション数の変更等で複数のパーティションに記録されたKeyは時間順(同一時間の場合はパーティション番号順)に反映される.<br>
+     * 各パーティションの最後のファイルは現在のログファイルとして扱う.<br>
+     * ローテーション済みのファイルで不正なレコードを検出した場合は例外とする.<br>
+     *
+     * @param partitionLogFiles パーティション毎の復元するログファイル(古い順)
+     * @throw Exception 反映に失敗した場合、ローテーション済みのファイルに不正なレコードが存在する場合
+     */
+    public void replay(File[][] partitionLogFiles) throws Exception {
+        if (partitionLogFiles.length == 1) {
+            this.replay(partitionLogFiles[0]);
+            return;
+        }
+
+        this.startTime = System.currentTimeMillis();
+        this.lastProgressLogTime = this.startTime;
+        for (int i = 0; i < partitionLogFiles.length; i++) {
+            this.fileCount = this.fileCount + partitionLogFiles[i].length;
+            for (int j = 0; j < partitionLogFiles[i].length; j++) {
+                this.totalBytes = this.totalBytes + partitionLogFiles[i][j].length();
+            }
+        }
+
+        this.startWorkers();
+
+        PartitionCursor[] cursors = new PartitionCursor[partitionLogFiles.length];
+        try {
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new PartitionCursor(partitionLogFiles[i]);
+                cursors[i].next();
+            }
+
+            while (true) {
+
+                // 最も古いレコードを持つパーティション(同一時間の場合はパーティション番号が小さい方)
+                PartitionCursor oldest = null;
+                for (int i = 0; i < cursors.length; i++) {
+                    if (cursors[i].record != null && (oldest == null || cursors[i].time < oldest.time)) oldest = cursors[i];
+                }
+                if (oldest == null) break;
+
+                this.readCount++;
+                this.dispatch(oldest.record, oldest.hash);
+                oldest.next();
+
+                if ((this.readCount & 4095) == 0) this.progressLog();
+            }
+        } finally {
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] != null) cursors[i].close();
+            }
+            this.finishWorkers();
+        }
+
+        this.endTime = System.currentTimeMillis();
+        logger.info("TransactionLogReplayer - End " + this.getStatus());
+        if (this.error != null) throw new Exception("TransactionLogReplayer - Apply Error", this.error);
+    }
+
+
+    private void startWorkers() {
+        if (this.workers == null) return;
+
+        for (int i = 0; i < this.workers.length; i++) {
+            this.batches[i] = new Object[batchSize];
+            this.workers[i] = new ReplayWorker();
+            this.workers[i].start();
+        }
+    }
+
+
+    // テキストフォーマットのレコードのKeyのハッシュ値(種別の後ろがKey)
+    private static int textKeyHash(String line) {
+        int keyStart = line.indexOf(workFileSeq) + 1;
+        int keyEnd = line.indexOf(workFileSeq, keyStart);
+        if (keyEnd == -1) keyEnd = line.length();
+        int hash = 0;
+        for (int i = keyStart; i < keyEnd; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        return hash;
+    }
+
+
+    // テキストフォーマットのレコードの時間(終端文字の前)
+    // 取得できない場合は0
+    private static long textRecordTime(String line) {
+        int end = line.lastIndexOf(workFileSeq);
+        if (end <= 0) return 0L;
+        int start = line.lastIndexOf(workFileSeq, end - 1) + 1;
+
+        try {
+            return Long.parseLong(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+
+    // Keyのハッシュ値でワーカーに振り分ける
+    private void dispatch(Object record, int hash) throws Exception {
+        if (this.workers == null) {
+            this.apply(record);
+            return;
+        }
+
+        int idx = ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % this.workers.length;
+        this.batches[idx][this.batchCounts[idx]] = record;
+        this.batchCounts[idx]++;
+
+        if (this.batchCounts[idx] == batchSize) {
+            this.workers[idx].queue.put(this.batches[idx]);
+            this.batches[idx] = new Object[batchSize];
+            this.batchCounts[idx] = 0;
+        }
+    }
+
+
+    private void finishWorkers() throws Exception {
+        if (this.workers == null) return;
+
+        for (int i = 0; i < this.workers.length; i++) {
+            if (this.batchCounts[i] > 0) this.workers[i].queue.put(Arrays.copyOf(this.batches[i], this.batchCounts[i]));
+            this.batchCounts[i] = 0;
+
+            // 終了の通知
+            this.workers[i].queue.put(new Object[0]);
+        }
+
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].join();
+            if (this.workers[i].lastTime > this.lastRecordTime) this.lastRecordTime = this.workers[i].lastTime;
+        }
+    }
+
+
+    // 1レコードを反映し、反映したレコードの時間を返す
+    // 反映しなかった場合は-1
+    private long apply(Object record) {
+        long time = -1L;
+
+        if (record instanceof byte[]) {
+
+            byte[] body = (byte[])record;
+            time = TransactionLogFormat.getTime(body);
+
+            // CoreStorageのバックアップデータ作成時間より新しいログデータのみ復元対象とする
+            if (this.minTime < time && time <= this.maxTime) {
+                if (TransactionLogFormat.getType(body) == TransactionLogFormat.typeSet) {
+                    this.applier.applySet(TransactionLogFormat.getKey(body), TransactionLogFormat.getData(body), time);
+                } else {
+                    this.applier.applyRemove(TransactionLogFormat.getKey(body), time);
+                }
+            } else {
+                time = -1L;
+            }
+        } else {
+
+            // データは必ず5つか6つに分解できる
+            String[] workSplitStrs = ((String)record).split(workFileSeq);
+            if (workSplitStrs.length == 5 || workSplitStrs.length == 6) {
+
+                if (workSplitStrs[0].equals("+")) {
+
+                    time = Long.parseLong(workSplitStrs[workSplitStrs.length - 2]);
+                    if (this.minTime < time && time <= this.maxTime) {
+                        if (workSplitStrs.length == 5) {
+                            this.applier.applySet(workSplitStrs[1], workSplitStrs[2], time);
+                        } else {
+                            this.applier.applySet(workSplitStrs[1], workSplitStrs[2] + workFileSeq + workSplitStrs[3], time);
+                        }
+                    } else {
+                        time = -1L;
+                    }
+                } else if (workSplitStrs[0].equals("-")) {
+
+                    time = Long.parseLong(workSplitStrs[3]);
+                    if (this.minTime < time && time <= this.maxTime) {
+                        this.applier.applyRemove(workSplitStrs[1], time);
+                    } else {
+                        time = -1L;
+                    }
+                }
+            } else {
+
+                // 不正データ
+                logger.error("TransactionLogReplayer - Illegal Line Data = [" + record + "]");
+            }
+        }
+
+        if (time == -1L) {
+            this.skipCount.incrementAndGet();
+        } else {
+            this.appliedCount.incrementAndGet();
+            if (this.workers == null && time > this.lastRecordTime) this.lastRecordTime = time;
+        }
+        return time;
+    }
+
+
+    private void progressLog() {
+        long now = System.currentTimeMillis();
+        if ((now - this.lastProgressLogTime) > progressLogInterval) {
+            logger.info("TransactionLogReplayer - Progress " + this.getStatus());
+            this.lastProgressLogTime = now;
+        }
+    }
+
+
+    /**
+     * 反映したレコードの中で最も新しい時間を返す.<br>
+     *
+     * @return long
+     */
+    public long getLastRecordTime() {
+        return this.lastRecordTime;
+    }
+
+
+    /**
+     * 現在の復元状況を返す.<br>
+     *
+     * @return String
+     */
+    public String getStatus() {
+        long end = this.endTime == 0L ? System.currentTimeMillis() : this.endTime;
+        long elapsed = end - this.startTime;
+        long applied = this.appliedCount.get();
+        long skipped = this.skipCount.get();
+
+        StringBuilder buf = new StringBuilder(ImdstDefine.stringBufferMiddleSize);
+        buf.append("Status=").append(this.endTime == 0L ? "Running" : "End");
+        buf.append(", Files=").append(this.nowFileIndex).append("/").append(this.fileCount);
+        buf.append(", ReadBytes=").append(this.readBytes).append("/").append(this.totalBytes);
+        buf.append(", ReadRecords=").append(this.readCount);
+        buf.append(", AppliedRecords=").append(applied);
+        buf.append(", SkippedRecords=").append(skipped);
+        buf.append(", Workers=").append(this.workers == null ? 1 : this.workers.length);
+        buf.append(", ElapsedMs=").append(elapsed);
+        buf.append(", RecordsPerSec=").append(elapsed > 0 ? ((applied + skipped) * 1000L / elapsed) : 0);
+        return buf.toString();
+    }
+
+
+    /**
+     * 1パーティションのログファイルを順番に読み込む.<br>
+     * recordがnullの場合は全て読み込み済み.<br>
+     */
+    class PartitionCursor {
+
+        private File[] logFiles = null;
+
+        private int fileIndex = -1;
+
+        private TransactionLogReader binaryReader = null;
+
+        private BufferedReader textReader = null;
+
+        Object record = null;
+
+        int hash = 0;
+
+        long time = 0L;
+
+
+        PartitionCursor(File[] logFiles) {
+            this.logFiles = logFiles;
+        }
+
+
+        // 次のレコードを読み込む
+        void next() throws Exception {
+            this.record = null;
+
+            while (true) {
+                if (this.binaryReader != null) {
+
+                    byte[] body = this.binaryReader.nextRecord();
+                    if (body != null) {
+                        this.record = body;
+                        this.hash = TransactionLogFormat.keyHash(body);
+                        this.time = TransactionLogFormat.getTime(body);
+                        return;
+                    }
+                    this.closeFile();
+                } else if (this.textReader != null) {
+
+                    String line = null;
+                    while ((line = this.textReader.readLine()) != null) {
+                        if (line.equals("")) continue;
+
+                        this.record = line;
+                        this.hash = textKeyHash(line);
+                        this.time = textRecordTime(line);
+                        return;
+                    }
+                    this.closeFile();
+                }
+
+                this.fileIndex++;
+                if (this.fileIndex >= this.logFiles.length) return;
+
+                nowFileIndex++;
+                logger.info("TransactionLogReplayer - Read - start File=[" + this.logFiles[this.fileIndex].getAbsolutePath() + "]");
+                if (TransactionLogFormat.isBinaryLog(this.logFiles[this.fileIndex])) {
+                    this.binaryReader = new TransactionLogReader(this.logFiles[this.fileIndex]);
+                } else {
+                    this.textReader = new BufferedReader(new InputStreamReader(new FileInputStream(this.logFiles[this.fileIndex]), ImdstDefine.keyWorkFileEncoding), 8192 * 24);
+                }
+            }
+        }
+
+
+        // 読み込み中のファイルを閉じる
+        // 不正なレコードを検出していた場合はbrokenRecordで処理する
+        private void closeFile() throws Exception {
+            File logFile = this.logFiles[this.fileIndex];
+
+            if (this.binaryReader != null) {
+                TransactionLogReader reader = this.binaryReader;
+                this.binaryReader = null;
+                reader.close();
+                if (reader.isBrokenTail()) brokenRecord(logFile, reader, this.fileIndex == (this.logFiles.length - 1));
+            }
+
+            if (this.textReader != null) {
+                this.textReader.close();
+                this.textReader = null;
+            }
+
+            readBytes = readBytes + logFile.length();
+            logger.info("TransactionLogReplayer - Read - end File=[" + logFile.getAbsolutePath() + "]");
+        }
+
+
+        void close() {
+            try {
+                if (this.binaryReader != null) this.binaryReader.close();
+                if (this.textReader != null) this.textReader.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+
+    /**
+     * Keyのハッシュ値で振り分けられたレコードを反映するスレッド.<br>
+     */
+    class ReplayWorker extends Thread {
+
+        ArrayBlockingQueue queue = new ArrayBlockingQueue(16);
+
+        long lastTime = 0L;
+
+        public void run() {
+            while (true) {
+                Object[] batch = null;
+                try {
+                    batch = (Object[])this.queue.take();
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                if (batch.length == 0) break;
+
+                for (int i = 0; i < batch.length; i++) {
+                    try {
+                        long time = apply(batch[i]);
+                        if (time > this.lastTime) this.lastTime = time;
+                    } catch (Throwable te) {
+                        logger.error("TransactionLogReplayer - Apply Error", te);
+                        error = te;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import okuyama.imdst.util.Base64ValuePacker;
+import okuyama.imdst.util.MemoryModeCoreValueCnv;
+import okuyama.imdst.util.OriginalValueMemoryModeCoreValueCnv;
+
+import org.junit.Test;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+/**
+ * Base64ValuePackerクラスのテスト。
+ *
+ */
+public class Base64ValuePackerTest {
+
+	@Test
+	public void Base64部分がバイナリで格納される() {
+		Random rnd = new Random(1);
+		for (int size = 12; size < 200; size++) {
+			byte[] raw = new byte[size];
+			rnd.nextBytes(raw);
+			String value = new String(BASE64EncoderStream.encode(raw)) + "-1300000000!0";
+
+			byte[] packed = Base64ValuePacker.pack(value.getBytes(), 1);
+			assertNotNull(packed);
+			if (size >= 30) assertTrue(packed.length < value.length() - (size / 4));
+			assertEquals(value, new String(Base64ValuePacker.unpack(packed, 1)));
+		}
+	}
+
+	@Test
+	public void 同一の文字列に戻らない部分はそのまま格納される() {
+		String[] values = {"QUJDREVGR0hJSktMTU5PUA==", "QUJDREVGR0hJSktMTU5PUB==", "QUJDREVGR0hJSktMTU5PUEI=", "QUJDREVGR0hJSktMTU5PUEJ=",
+		                   "QUJDREVGR0hJSktMTU5PUEJD", "QUJDREVGR0hJSktMTU5PUEJDR", "QUJDREVGR0hJSktMTU5PU===,1", "QUJDREVGR0hJSktMTU5PUEJD\r\nRA=="};
+		for (int i = 0; i < values.length; i++) {
+			byte[] packed = Base64ValuePacker.pack(values[i].getBytes(), 0);
+			assertNotNull(packed);
+			assertEquals(values[i], new String(Base64ValuePacker.unpack(packed, 0)));
+		}
+
+		// Base64部分が短い場合は対象外
+		assertNull(Base64ValuePacker.pack("(B)!0".getBytes(), 1));
+		assertNull(Base64ValuePacker.pack("dmFsdWU=".getBytes(), 1));
+	}
+
+	@Test
+	public void コンバータで変換したValueが取得できる() {
+		MemoryModeCoreValueCnv cnv = new MemoryModeCoreValueCnv();
+		OriginalValueMemoryModeCoreValueCnv originalCnv = new OriginalValueMemoryModeCoreValueCnv();
+
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			buf.append("okuyama value ").append(i);
+		}
+		String[] values = {new String(BASE64EncoderStream.encode("short value".getBytes())) + "!0",
+		                   new String(BASE64EncoderStream.encode(buf.toString().getBytes())) + "-0!1300000000",
+		                   "(B)!0"};
+
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], cnv.convertDecodeValue(cnv.convertEncodeValue(values[i])));
+			assertEquals(values[i], originalCnv.convertDecodeValue(originalCnv.convertEncodeValue(values[i])));
+		}
+
+		// 変換前に格納されたValue
+		assertEquals("dmFsdWU=!0", originalCnv.convertDecodeValue("dmFsdWU=!0".getBytes()));
+	}
+}
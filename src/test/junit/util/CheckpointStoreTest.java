@@ -0,0 +1,112 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okuyama.imdst.util.checkpoint.CheckpointStore;
+import okuyama.imdst.util.checkpoint.CheckpointWriter;
+import okuyama.imdst.util.checkpoint.DirtyBucketTracker;
+import okuyama.imdst.util.checkpoint.ICheckpointApplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CheckpointStoreクラスのテスト。
+ *
+ */
+public class CheckpointStoreTest {
+
+	private static final int bucketCount = 64;
+
+	private File baseFile = null;
+
+	private Map data = new ConcurrentHashMap();
+
+	private DirtyBucketTracker tracker = new DirtyBucketTracker(bucketCount);
+
+	@Before
+	public void setUp() throws Exception {
+		baseFile = File.createTempFile("okuyama_checkpoint", ".obj");
+
+		// ベースイメージ
+		for (int i = 0; i < 1000; i++) {
+			data.put("key" + i, "value" + i);
+		}
+		store(true, 100L);
+
+		// 更新、削除を差分で書き出す
+		Random rnd = new Random(1);
+		for (int round = 0; round < 3; round++) {
+			int[] before = tracker.snapshot();
+			tracker.commit(before);
+			for (int i = 0; i < 10; i++) {
+				String key = "key" + rnd.nextInt(1200);
+				if (rnd.nextInt(3) == 0) {
+					data.remove(key);
+				} else {
+					data.put(key, "update" + round + "_" + i);
+				}
+				tracker.mark(key);
+			}
+			store(false, 200L + round);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		new CheckpointStore(baseFile).deleteDeltas();
+		baseFile.delete();
+	}
+
+	private void store(boolean base, long time) throws Exception {
+		BitSet buckets = tracker.getDirtyBuckets(tracker.snapshot());
+		if (base) buckets.set(0, bucketCount);
+
+		Map dataSizeMap = new ConcurrentHashMap();
+		dataSizeMap.put("all", new AtomicLong(time));
+
+		CheckpointWriter writer = new CheckpointStore(baseFile).createWriter(base, time, bucketCount, buckets, dataSizeMap);
+		for (Object key : data.keySet()) {
+			int bucket = tracker.bucket(key);
+			if (buckets.get(bucket)) writer.write(bucket, (String)key, (String)data.get(key));
+		}
+		writer.commit();
+	}
+
+	private Map restore() throws Exception {
+		final Map ret = new ConcurrentHashMap();
+		CheckpointStore store = new CheckpointStore(baseFile);
+		store.restore(new ICheckpointApplier() {
+			public void applyEntry(String key, String value) {
+				assertNull(ret.put(key, value));
+			}
+		});
+		assertEquals(202L, store.getCheckpointTime());
+		assertEquals(202L, ((AtomicLong)store.getDataSizeMap().get("all")).get());
+		return ret;
+	}
+
+	@Test
+	public void 差分を含めて最新の状態に復元される() throws Exception {
+		assertEquals(3, new CheckpointStore(baseFile).getDeltaCount());
+		assertEquals(data, restore());
+	}
+
+	@Test
+	public void 差分を統合しても同一の状態に復元される() throws Exception {
+		CheckpointStore store = new CheckpointStore(baseFile);
+		store.merge();
+
+		assertEquals(0, store.getDeltaCount());
+		assertEquals(bucketCount, store.getBaseBucketCount());
+		assertEquals(data, restore());
+	}
+}
@@ -0,0 +1,99 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import okuyama.imdst.util.ConcurrentValueCache;
+
+import org.junit.Test;
+
+/**
+ * ConcurrentValueCacheクラスのテスト。
+ *
+ */
+public class ConcurrentValueCacheTest {
+
+	@Test
+	public void 登録したValueが取得できる() {
+		ConcurrentValueCache cache = new ConcurrentValueCache(1000, 100);
+		cache.put("key1", "value1", 10);
+		cache.put("key2", "value2", 10);
+
+		assertEquals("value1", cache.get("key1"));
+		assertEquals("value2", cache.get("key2"));
+		assertNull(cache.get("key3"));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(20, cache.getWeight());
+
+		cache.put("key1", "update1", 30);
+		assertEquals("update1", cache.get("key1"));
+		assertEquals(40, cache.getWeight());
+
+		assertEquals("update1", cache.remove("key1"));
+		assertNull(cache.get("key1"));
+		assertEquals(10, cache.getWeight());
+	}
+
+	@Test
+	public void 重みの合計が上限を超えない() {
+		ConcurrentValueCache cache = new ConcurrentValueCache(1000, 100);
+		for (int i = 0; i < 1000; i++) {
+			cache.get("key" + i);
+			cache.put("key" + i, "value" + i, 10);
+			assertTrue(cache.getWeight() <= 1000);
+		}
+		assertEquals(1000, cache.getWeight());
+		assertTrue(cache.getEvictionCount() > 0);
+
+		// 上限を超えるValueは登録されない
+		cache.put("large", "large", 1001);
+		assertNull(cache.get("large"));
+	}
+
+	@Test
+	public void 参照頻度の高いValueが残る() {
+		ConcurrentValueCache cache = new ConcurrentValueCache(100, 100);
+		for (int i = 0; i < 10; i++) {
+			cache.put("hot" + i, "value" + i, 10);
+		}
+		for (int count = 0; count < 5; count++) {
+			for (int i = 0; i < 10; i++) {
+				cache.get("hot" + i);
+			}
+		}
+
+		// 1度しか参照されないKeyでは置き換わらない
+		for (int i = 0; i < 1000; i++) {
+			cache.get("cold" + i);
+			cache.put("cold" + i, "value" + i, 10);
+		}
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals("value" + i, cache.get("hot" + i));
+		}
+		assertTrue(cache.getRejectCount() > 0);
+	}
+
+	@Test
+	public void 削除と更新を繰り返してもCLOCKが伸び続けない() {
+		ConcurrentValueCache cache = new ConcurrentValueCache(32L * 1024L * 1024L, 100);
+		for (int i = 0; i < 200000; i++) {
+			String key = "key" + (i % 100);
+			cache.remove(key);
+			cache.put(key, "value" + i, 200);
+		}
+		assertEquals(100, cache.size());
+		assertEquals(20000, cache.getWeight());
+		assertEquals(0, cache.getEvictionCount());
+		assertTrue("clock=" + cache.getClockSize(), cache.getClockSize() <= 100 * 4);
+
+		for (int i = 0; i < 200000; i++) {
+			String key = "key" + (i % 100);
+			cache.put(key, "update" + i, 200);
+		}
+		assertEquals(100, cache.size());
+		assertEquals(20000, cache.getWeight());
+		assertTrue("clock=" + cache.getClockSize(), cache.getClockSize() <= 100 * 4);
+		assertEquals("update199999", cache.get("key99"));
+	}
+}
@@ -0,0 +1,142 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import okuyama.imdst.util.translog.DiffChangeLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DiffChangeLogクラスのテスト。
+ *
+ */
+public class DiffChangeLogTest {
+
+	private File baseFile = null;
+
+	private DiffChangeLog changeLog = null;
+
+	@Before
+	public void setUp() throws Exception {
+		baseFile = File.createTempFile("okuyama_diff", ".difflog");
+		changeLog = new DiffChangeLog(baseFile.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		changeLog.close();
+		baseFile.delete();
+	}
+
+	@Test
+	public void 記録した順に連番で読み込まれる() throws Exception {
+		for (int i = 1; i <= 10000; i++) {
+			assertEquals(i, changeLog.append("+,a2V5" + i + ",dmFsdWU" + i));
+		}
+		assertEquals(10000L, changeLog.getLastSeq());
+
+		DiffChangeLog.Cursor cursor = changeLog.openCursor(0L);
+		for (int i = 1; i <= 10000; i++) {
+			assertEquals(i, cursor.getNextSeq());
+			assertEquals("+,a2V5" + i + ",dmFsdWU" + i, cursor.next());
+		}
+		assertNull(cursor.next());
+		cursor.close();
+	}
+
+	@Test
+	public void 途中の連番から再開でき読み込み中の追記も読み込まれる() throws Exception {
+		for (int i = 1; i <= 100; i++) {
+			changeLog.append("-,a2V5" + i);
+		}
+
+		DiffChangeLog.Cursor cursor = changeLog.openCursor(51L);
+		assertEquals("-,a2V551", cursor.next());
+
+		for (int i = 101; i <= 200; i++) {
+			changeLog.append("-,a2V5" + i);
+		}
+		for (int i = 52; i <= 200; i++) {
+			assertEquals("-,a2V5" + i, cursor.next());
+		}
+		assertNull(cursor.next());
+
+		// 読み込んだ後も記録は残る
+		DiffChangeLog.Cursor resume = changeLog.openCursor(150L);
+		assertEquals("-,a2V5150", resume.next());
+		resume.close();
+		cursor.close();
+	}
+
+	@Test
+	public void closeでセグメントファイルが削除される() throws Exception {
+		changeLog.append("-,a2V5");
+		File segmentFile = new File(baseFile.getAbsolutePath() + ".0");
+		assertTrue(segmentFile.exists());
+
+		changeLog.close();
+		assertFalse(segmentFile.exists());
+		assertEquals(-1L, changeLog.append("-,a2V5"));
+		try {
+			changeLog.getLastSeq();
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void 追記に失敗した後は読み込みがエラーとなる() throws Exception {
+		for (int i = 1; i <= 10; i++) {
+			changeLog.append("-,a2V5" + i);
+		}
+		DiffChangeLog.Cursor cursor = changeLog.openCursor(0L);
+		assertEquals("-,a2V51", cursor.next());
+
+		// セグメントファイルと同名のディレクトリを作成し、次のセグメントの作成を失敗させる
+		File segmentDir = new File(baseFile.getAbsolutePath() + ".1");
+		segmentDir.mkdir();
+		try {
+			Field segmentSize = DiffChangeLog.class.getDeclaredField("segmentSize");
+			segmentSize.setAccessible(true);
+			segmentSize.setLong(changeLog, Long.MAX_VALUE);
+			assertEquals(-1L, changeLog.append("-,a2V511"));
+
+			try {
+				cursor.next();
+				fail();
+			} catch (IOException e) {
+			}
+			try {
+				changeLog.getLastSeq();
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			cursor.close();
+			segmentDir.delete();
+		}
+	}
+
+	@Test
+	public void 転送行の連番を取り出せる() {
+		String line = DiffChangeLog.createTransferLine(31L, "+,a2V5,dmFsdWU=");
+		assertEquals(31L, DiffChangeLog.parseTransferLineSeq(line));
+		assertEquals("+,a2V5,dmFsdWU=", DiffChangeLog.getTransferLineData(line));
+	}
+
+	@Test
+	public void 連番のない転送行はそのまま扱う() {
+		// 連番を付加しないバージョンのDataNodeが転送する行
+		String[] lines = {"+,a2V5,dmFsdWU=", "-,a2V5", "+,a2V5,dmFsdWU=:-,a2V52", ""};
+		for (int i = 0; i < lines.length; i++) {
+			assertEquals(-1L, DiffChangeLog.parseTransferLineSeq(lines[i]));
+			assertEquals(lines[i], DiffChangeLog.getTransferLineData(lines[i]));
+		}
+	}
+}
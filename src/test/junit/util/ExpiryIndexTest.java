@@ -0,0 +1,63 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import okuyama.imdst.util.expire.ExpiryIndex;
+
+import org.junit.Test;
+
+/**
+ * ExpiryIndexクラスのテスト。
+ *
+ */
+public class ExpiryIndexTest {
+
+	@Test
+	public void Valueのメタ情報から有効期限を取り出す() throws Exception {
+		assertEquals(1300000000123L, ExpiryIndex.parseExpireTime("dmFsdWU=,0-1300000000123!5"));
+		assertEquals(1300000000123L, ExpiryIndex.parseExpireTime("dmFsdWU=,0-1300000000123-60!5"));
+		assertEquals(1300000000123L, ExpiryIndex.parseExpireTime("dmFsdWU=,0-1300000000123-60,abc!5"));
+		assertEquals(ExpiryIndex.noExpireTime, ExpiryIndex.parseExpireTime("dmFsdWU=,0-0!5"));
+		assertEquals(ExpiryIndex.noExpireTime, ExpiryIndex.parseExpireTime("dmFsdWU=!5"));
+		assertEquals(ExpiryIndex.noExpireTime, ExpiryIndex.parseExpireTime("dmFsdWU=,0!5"));
+		assertEquals(ExpiryIndex.noExpireTime, ExpiryIndex.parseExpireTime("dmFsdWU=!5,0-1300000000123"));
+		assertEquals(0L, ExpiryIndex.parseExpireTime("dmFsdWU=,0-abc!5"));
+	}
+
+	@Test
+	public void 有効期限切れのKeyのみ取り出される() throws Exception {
+		ExpiryIndex index = new ExpiryIndex();
+		index.register("key1", 10000L);
+		index.register("key2", 20000L);
+		index.register("key3", 30000L);
+		index.register("key4", ExpiryIndex.noExpireTime);
+
+		// 再登録で有効期限を延長
+		index.register("key1", 40000L);
+		assertEquals(3, index.size());
+
+		List keys = index.pollExpiredKeys(25000L);
+		assertEquals(1, keys.size());
+		assertEquals("key2", keys.get(0));
+		assertEquals(ExpiryIndex.noExpireTime, index.getExpireTime("key2"));
+
+		index.unregister("key3");
+		keys = index.pollExpiredKeys(50000L);
+		assertEquals(1, keys.size());
+		assertEquals("key1", keys.get(0));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void 取り出し後に再登録したKeyは再度取り出される() throws Exception {
+		ExpiryIndex index = new ExpiryIndex();
+		index.register("key1", 10000L);
+		assertEquals(1, index.pollExpiredKeys(20000L).size());
+
+		index.register("key1", 10000L);
+		assertEquals(10000L, index.getExpireTime("key1"));
+		assertEquals(1, index.pollExpiredKeys(20000L).size());
+	}
+}
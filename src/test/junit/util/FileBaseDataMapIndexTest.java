@@ -0,0 +1,106 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import okuyama.imdst.util.FileBaseDataMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * FileBaseDataMapのValueサイズ指定有り(FixWriteCoreFileBaseKeyMap)のインデックスファイルのテスト。
+ *
+ */
+public class FileBaseDataMapIndexTest {
+
+	private File baseDir = null;
+
+	private String[] dirs = null;
+
+	@Before
+	public void setUp() throws Exception {
+		baseDir = new File(System.getProperty("java.io.tmpdir"), "FileBaseDataMapIndexTest" + System.nanoTime());
+		dirs = new String[] {baseDir.getAbsolutePath() + "/data1/", baseDir.getAbsolutePath() + "/data2/"};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		delete(baseDir);
+	}
+
+	@Test
+	public void 登録更新削除したValueが取得できる() {
+		FileBaseDataMap map = new FileBaseDataMap(dirs, 100, 0.01, 32, true);
+		for (int i = 0; i < 3000; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		for (int i = 0; i < 3000; i = i + 3) {
+			map.put("key" + i, "update" + i);
+		}
+		for (int i = 1; i < 3000; i = i + 3) {
+			map.remove("key" + i);
+		}
+
+		assertEquals(2000, map.size());
+		for (int i = 0; i < 3000; i++) {
+			if ((i % 3) == 0) {
+				assertEquals("update" + i, map.get("key" + i));
+			} else if ((i % 3) == 1) {
+				assertNull(map.get("key" + i));
+			} else {
+				assertEquals("value" + i, map.get("key" + i));
+			}
+		}
+		assertNull(map.get("key3000"));
+	}
+
+	@Test
+	public void インデックスファイルが無いデータから移行できる() {
+		FileBaseDataMap map = new FileBaseDataMap(dirs, 100, 0.01, 32, true);
+		for (int i = 0; i < 1000; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		map.remove("key0");
+
+		// インデックス導入前のデータを再現
+		assertTrue(deleteIndex(baseDir) > 0);
+
+		FileBaseDataMap restoreMap = new FileBaseDataMap(dirs, 100, 0.01, 32, false);
+		assertNull(restoreMap.get("key0"));
+		for (int i = 1; i < 1000; i++) {
+			assertEquals("value" + i, restoreMap.get("key" + i));
+		}
+
+		restoreMap.put("key0", "value0");
+		restoreMap.put("key1000", "value1000");
+		assertEquals("value0", restoreMap.get("key0"));
+		assertEquals("value1000", restoreMap.get("key1000"));
+	}
+
+	private int deleteIndex(File file) {
+		int ret = 0;
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				ret = ret + deleteIndex(files[i]);
+			}
+		} else if (file.getName().endsWith(".idx")) {
+			file.delete();
+			ret++;
+		}
+		return ret;
+	}
+
+	private void delete(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+}
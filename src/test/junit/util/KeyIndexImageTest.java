@@ -0,0 +1,93 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okuyama.imdst.util.checkpoint.ICheckpointApplier;
+import okuyama.imdst.util.checkpoint.KeyIndexImageReader;
+import okuyama.imdst.util.checkpoint.KeyIndexImageWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * KeyIndexImageWriter、KeyIndexImageReaderクラスのテスト。
+ *
+ */
+public class KeyIndexImageTest {
+
+	private File bkupFile = null;
+
+	private File imageFile = null;
+
+	private Map data = new ConcurrentHashMap();
+
+	@Before
+	public void setUp() throws Exception {
+		bkupFile = File.createTempFile("okuyama_image", ".obj");
+		imageFile = KeyIndexImageReader.getImageFile(bkupFile);
+
+		// 複数のセクションに分かれる件数
+		for (int i = 0; i < 200000; i++) {
+			data.put("a2V5" + i, (i + 1) + ":" + (i % 512));
+		}
+
+		Map dataSizeMap = new ConcurrentHashMap();
+		dataSizeMap.put("all", new AtomicLong(12345L));
+
+		KeyIndexImageWriter writer = new KeyIndexImageWriter(imageFile, 100L, dataSizeMap);
+		for (Object key : data.keySet()) {
+			writer.write((String)key, (String)data.get(key));
+		}
+		writer.commit();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		imageFile.delete();
+		bkupFile.delete();
+	}
+
+	private Map load(int threadCount) throws Exception {
+		final Map ret = new ConcurrentHashMap();
+		new KeyIndexImageReader(imageFile).load(new ICheckpointApplier() {
+			public void applyEntry(String key, String value) {
+				assertNull(ret.put(key, value));
+			}
+		}, threadCount);
+		return ret;
+	}
+
+	@Test
+	public void 書き出した全てのデータが並列に読み込まれる() throws Exception {
+		assertTrue(KeyIndexImageReader.isKeyIndexImage(imageFile));
+
+		KeyIndexImageReader reader = new KeyIndexImageReader(imageFile);
+		assertEquals(100L, reader.getCheckpointTime());
+		assertEquals(12345L, ((AtomicLong)reader.getDataSizeMap().get("all")).get());
+		assertEquals(data.size(), reader.getEntryCount());
+		assertTrue(reader.getSectionCount() > 1);
+
+		assertEquals(data, load(4));
+		assertEquals(data, load(1));
+	}
+
+	@Test(expected = IOException.class)
+	public void セクションが破損している場合は例外となる() throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(imageFile, "rw");
+		raf.seek(raf.length() / 2);
+		int b = raf.read();
+		raf.seek(raf.length() / 2);
+		raf.write(b ^ 0xFF);
+		raf.close();
+
+		load(4);
+	}
+}
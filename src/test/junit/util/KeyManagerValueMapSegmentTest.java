@@ -0,0 +1,205 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.KeyManagerValueMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * KeyManagerValueMapの共有データファイルのセグメント管理と圧縮のテスト。
+ *
+ */
+public class KeyManagerValueMapSegmentTest {
+
+	private File baseDir = null;
+
+	private File dataFile = null;
+
+	private KeyManagerValueMap map = null;
+
+	private int defaultSegmentLineCount = 0;
+
+	private int[] defaultSlotSizes = null;
+
+	private long defaultReuseWaitTime = 0L;
+
+	private boolean defaultSegmentMode = false;
+
+	private boolean defaultSegmentMigration = false;
+
+	@Before
+	public void setUp() throws Exception {
+		defaultSegmentLineCount = ImdstDefine.dataFileSegmentLineCount;
+		defaultSlotSizes = ImdstDefine.dataFileSlabSlotSizes;
+		defaultReuseWaitTime = ImdstDefine.dataFileSegmentReuseWaitTime;
+		defaultSegmentMode = ImdstDefine.dataFileSegmentMode;
+		defaultSegmentMigration = ImdstDefine.dataFileSegmentMigration;
+
+		ImdstDefine.dataFileSegmentMode = true;
+		ImdstDefine.dataFileSegmentMigration = false;
+		// 1セグメントに256バイトのデータが50件格納される
+		ImdstDefine.dataFileSegmentLineCount = 1;
+		ImdstDefine.dataFileSlabSlotSizes = new int[] {256};
+		ImdstDefine.dataFileSegmentReuseWaitTime = 0L;
+
+		baseDir = new File(System.getProperty("java.io.tmpdir"), "KeyManagerValueMapSegmentTest" + System.nanoTime());
+		baseDir.mkdirs();
+		dataFile = new File(baseDir, "test.data");
+		map = new KeyManagerValueMap(1000, false, null, true, null, null);
+		map.initNoMemoryModeSetting(dataFile.getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		map.close();
+		ImdstDefine.dataFileSegmentLineCount = defaultSegmentLineCount;
+		ImdstDefine.dataFileSlabSlotSizes = defaultSlotSizes;
+		ImdstDefine.dataFileSegmentReuseWaitTime = defaultReuseWaitTime;
+		ImdstDefine.dataFileSegmentMode = defaultSegmentMode;
+		ImdstDefine.dataFileSegmentMigration = defaultSegmentMigration;
+		delete(baseDir);
+	}
+
+	@Test
+	public void 更新したValueは新しい位置に書き込まれる() {
+		for (int i = 0; i < 64; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		assertEquals(64, map.getAllDataCount());
+
+		for (int i = 0; i < 64; i++) {
+			map.put("key" + i, "update" + i);
+		}
+		assertEquals(128, map.getAllDataCount());
+
+		for (int i = 0; i < 64; i++) {
+			assertEquals("update" + i, map.get("key" + i));
+		}
+	}
+
+	@Test
+	public void サイズの異なるValueが取得できる() {
+		int[] sizes = {0, 1, 254, 255, 256, 1000, ImdstDefine.dataFileWriteMaxSize, ImdstDefine.dataFileWriteMaxSize + 1, ImdstDefine.dataFileWriteMaxSize * 3};
+		for (int i = 0; i < sizes.length; i++) {
+			map.put("key" + i, createValue(sizes[i], (char)('a' + i)));
+		}
+		for (int i = 0; i < sizes.length; i++) {
+			assertEquals(createValue(sizes[i], (char)('a' + i)), map.get("key" + i));
+		}
+
+		// 小さいValueに更新
+		for (int i = 0; i < sizes.length; i++) {
+			map.put("key" + i, "small" + i);
+		}
+		for (int i = 0; i < sizes.length; i++) {
+			assertEquals("small" + i, map.get("key" + i));
+		}
+	}
+
+	@Test
+	public void 小さいValueは密に格納される() {
+		for (int i = 0; i < 100; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		// 100件で2セグメント
+		assertTrue(dataFile.length() <= (ImdstDefine.dataFileWriteMaxSize + 1) * 2);
+	}
+
+	@Test
+	public void 圧縮したセグメントが再利用される() throws Exception {
+		// 4セグメント分登録
+		for (int i = 0; i < 200; i++) {
+			map.put("key" + i, "value" + i);
+		}
+		// 先頭2セグメントの大半を無効データにする
+		for (int i = 0; i < 100; i++) {
+			if ((i % 10) != 0) map.remove("key" + i);
+		}
+		// 3、4セグメント目の全データを更新して無効データにする
+		for (int i = 100; i < 200; i++) {
+			map.put("key" + i, "update" + i);
+		}
+
+		assertEquals(4, map.compactDataSegment(4));
+		for (int i = 0; i < 100; i++) {
+			if ((i % 10) == 0) {
+				assertEquals("value" + i, map.get("key" + i));
+			} else {
+				assertNull(map.get("key" + i));
+			}
+		}
+
+		// 再利用されたセグメントに書き込まれるためファイルは伸長しない
+		long fileLength = dataFile.length();
+		for (int i = 0; i < 50; i++) {
+			map.put("new" + i, "new" + i);
+		}
+		assertEquals(fileLength, dataFile.length());
+
+		for (int i = 0; i < 50; i++) {
+			assertEquals("new" + i, map.get("new" + i));
+		}
+		for (int i = 100; i < 200; i++) {
+			assertEquals("update" + i, map.get("key" + i));
+		}
+	}
+
+	@Test
+	public void 固定長のデータファイルは変換指定がある場合のみ変換される() throws Exception {
+		File fixedFile = new File(baseDir, "fixed.data");
+		File segmentClassFile = new File(fixedFile.getAbsolutePath() + ".seg");
+
+		ImdstDefine.dataFileSegmentMode = false;
+		KeyManagerValueMap fixedMap = new KeyManagerValueMap(1000, false, null, true, null, null);
+		fixedMap.initNoMemoryModeSetting(fixedFile.getAbsolutePath());
+		assertFalse(fixedMap.isDataSegmentMode());
+		for (int i = 0; i < 100; i++) {
+			fixedMap.put("key" + i, "value" + i);
+		}
+		fixedMap.close();
+
+		// セグメント管理を指定しても変換指定がない場合は従来通り
+		ImdstDefine.dataFileSegmentMode = true;
+		fixedMap.initNoMemoryModeSetting(fixedFile.getAbsolutePath());
+		assertFalse(fixedMap.isDataSegmentMode());
+		assertFalse(segmentClassFile.exists());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value" + i, fixedMap.get("key" + i));
+		}
+		fixedMap.close();
+
+		ImdstDefine.dataFileSegmentMigration = true;
+		fixedMap.initNoMemoryModeSetting(fixedFile.getAbsolutePath());
+		assertTrue(fixedMap.isDataSegmentMode());
+		assertTrue(segmentClassFile.exists());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value" + i, fixedMap.get("key" + i));
+		}
+		fixedMap.put("key0", "update0");
+		assertEquals("update0", fixedMap.get("key0"));
+		fixedMap.close();
+	}
+
+	private String createValue(int size, char c) {
+		char[] value = new char[size];
+		Arrays.fill(value, c);
+		return new String(value);
+	}
+
+	private void delete(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,232 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+
+import okuyama.imdst.helper.KeyManagerHelper;
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.io.KeyNodeBinaryProtocol;
+import okuyama.imdst.util.io.KeyNodeRequestReader;
+import okuyama.imdst.util.io.MultiplexKeyNodeChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * KeyNodeBinaryProtocolクラスのテスト。
+ *
+ */
+public class KeyNodeBinaryProtocolTest {
+
+	private ServerSocket serverSocket = null;
+
+	private Socket client = null;
+
+	private int orgSockets = 0;
+
+	private boolean orgBinary = false;
+
+	@Before
+	public void setUp() throws Exception {
+		orgSockets = ImdstDefine.multiplexDataNodeConnectionSockets;
+		orgBinary = ImdstDefine.binaryDataNodeProtocol;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ImdstDefine.multiplexDataNodeConnectionSockets = orgSockets;
+		ImdstDefine.binaryDataNodeProtocol = orgBinary;
+		if (client != null) client.close();
+		serverSocket.close();
+	}
+
+	@Test
+	public void setの要求はKeyとTransactionCodeとValueとバージョンに分解される() throws Exception {
+		byte[] bytes = KeyNodeBinaryProtocol.encodeRequest(10L, "1,a2V5,0,dmFs,dWU=!123");
+		KeyNodeBinaryProtocol.Frame frame = read(bytes);
+
+		assertEquals(KeyNodeBinaryProtocol.opSet, frame.getOpcode());
+		assertEquals(10L, frame.getRequestNo());
+		assertEquals("a2V5", frame.getKey());
+		assertEquals("0", frame.getOption());
+		assertEquals("dmFs,dWU=!123", frame.getValue());
+	}
+
+	@Test
+	public void 数値に戻せないバージョンはValueの一部として扱われる() throws Exception {
+		KeyNodeBinaryProtocol.Frame frame = read(KeyNodeBinaryProtocol.encodeRequest(1L, "1,a2V5,0,dmFsdWU=!0123"));
+		assertEquals("dmFsdWU=!0123", frame.getValue());
+
+		frame = read(KeyNodeBinaryProtocol.encodeRequest(1L, "1,a2V5,0,dmFsdWU=!12345678901234567890"));
+		assertEquals("dmFsdWU=!12345678901234567890", frame.getValue());
+	}
+
+	@Test
+	public void getとremoveの要求が分解される() throws Exception {
+		KeyNodeBinaryProtocol.Frame frame = read(KeyNodeBinaryProtocol.encodeRequest(2L, "2,a2V5"));
+		assertEquals(KeyNodeBinaryProtocol.opGet, frame.getOpcode());
+		assertEquals("a2V5", frame.getKey());
+
+		frame = read(KeyNodeBinaryProtocol.encodeRequest(3L, "5,a2V5,0"));
+		assertEquals(KeyNodeBinaryProtocol.opRemove, frame.getOpcode());
+		assertEquals(3L, frame.getRequestNo());
+		assertEquals("a2V5", frame.getKey());
+		assertEquals("0", frame.getOption());
+	}
+
+	@Test
+	public void 変換出来ない要求はIOExceptionとなる() throws Exception {
+		String[] requests = {"3,a2V5,0", "1,a2V5", "5,a2V5", "x,a2V5", "123,a2V5", "a2V5"};
+		for (int i = 0; i < requests.length; i++) {
+			try {
+				KeyNodeBinaryProtocol.encodeRequest(1L, requests[i]);
+				fail(requests[i]);
+			} catch (IOException ie) {
+			}
+		}
+	}
+
+	@Test
+	public void 応答はテキスト形式と同一の応答に変換される() throws Exception {
+		byte[] bytes = KeyNodeBinaryProtocol.encodeResponse(5L, KeyNodeBinaryProtocol.opGet, new String[] {"2", "true", "dmFsdWU=!99"});
+		KeyNodeBinaryProtocol.Frame frame = read(bytes);
+		assertEquals(5L, frame.getRequestNo());
+		assertTrue(frame.isSuccess());
+		assertEquals("2,true,dmFsdWU=!99", KeyNodeBinaryProtocol.toResponseLine(frame));
+
+		frame = read(KeyNodeBinaryProtocol.encodeResponse(6L, KeyNodeBinaryProtocol.opGet, new String[] {"2", "false"}));
+		assertFalse(frame.isSuccess());
+		assertEquals("2,false", KeyNodeBinaryProtocol.toResponseLine(frame));
+
+		frame = read(KeyNodeBinaryProtocol.encodeResponse(7L, KeyNodeBinaryProtocol.opSet, new String[] {"1", "false", "NG:エラー"}));
+		assertEquals("1,false,NG:エラー", KeyNodeBinaryProtocol.toResponseLine(frame));
+	}
+
+	@Test
+	public void 連続したフレームを順に読み込み終端ではnullを返す() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(KeyNodeBinaryProtocol.encodeRequest(1L, "2,a2V5MQ=="));
+		bos.write(KeyNodeBinaryProtocol.encodeRequest(2L, "2,a2V5Mg=="));
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals("a2V5MQ==", KeyNodeBinaryProtocol.readFrame(dis).getKey());
+		assertEquals("a2V5Mg==", KeyNodeBinaryProtocol.readFrame(dis).getKey());
+		assertNull(KeyNodeBinaryProtocol.readFrame(dis));
+	}
+
+	@Test
+	public void 不正なレングスのフレームはIOExceptionとなる() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new DataOutputStream(bos).writeInt(3);
+		try {
+			KeyNodeBinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+			fail();
+		} catch (IOException ie) {
+		}
+	}
+
+	@Test
+	public void DataNodeはネゴシエーションの成立後にフレームで応答する() throws Exception {
+		startHelper();
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding));
+		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+
+		// 未対応のネゴシエーションは拒否が応答され、同一の接続で続けて要求出来る
+		pw.println("9150,1");
+		pw.flush();
+		assertEquals("9150,false", br.readLine());
+
+		pw.println(KeyNodeBinaryProtocol.negotiationRequest);
+		pw.flush();
+		assertEquals(KeyNodeBinaryProtocol.negotiationResponse, br.readLine());
+
+		OutputStream os = client.getOutputStream();
+		os.write(KeyNodeBinaryProtocol.encodeRequest(77L, "2,a2V5"));
+		os.flush();
+
+		// データ管理部が無いため処理はエラーとなるが、要求番号を付けたフレームで応答される
+		KeyNodeBinaryProtocol.Frame frame = KeyNodeBinaryProtocol.readFrame(new DataInputStream(client.getInputStream()));
+		assertEquals(77L, frame.getRequestNo());
+		assertFalse(frame.isSuccess());
+	}
+
+	@Test
+	public void 拒否が応答された場合はタイムアウトを待たずにテキスト形式で接続する() throws Exception {
+		ImdstDefine.multiplexDataNodeConnectionSockets = 1;
+		ImdstDefine.binaryDataNodeProtocol = true;
+
+		final Exception[] error = new Exception[1];
+		Thread dataNode = new Thread() {
+			public void run() {
+				try {
+					Socket binary = serverSocket.accept();
+					BufferedReader binaryBr = new BufferedReader(new InputStreamReader(binary.getInputStream(), "UTF-8"));
+					PrintWriter binaryPw = new PrintWriter(new OutputStreamWriter(binary.getOutputStream(), "UTF-8"));
+					assertEquals(KeyNodeBinaryProtocol.negotiationRequest, binaryBr.readLine());
+					binaryPw.println(KeyNodeBinaryProtocol.negotiationMethodNo + ",false");
+					binaryPw.flush();
+
+					Socket socket = serverSocket.accept();
+					BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+					assertEquals(ImdstDefine.keyNodeMultiplexNegotiationRequest, br.readLine());
+					pw.println(ImdstDefine.keyNodeMultiplexNegotiationResponse);
+					pw.flush();
+					br.readLine();
+					socket.close();
+					binary.close();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		dataNode.start();
+
+		MultiplexKeyNodeChannel channel = MultiplexKeyNodeChannel.getChannel("127.0.0.1", serverSocket.getLocalPort(), "127.0.0.1:" + serverSocket.getLocalPort());
+		long start = System.currentTimeMillis();
+		channel.open(10000);
+		assertTrue((System.currentTimeMillis() - start) < 5000);
+		assertFalse(channel.isRefused());
+
+		serverSocket.close();
+		dataNode.join(5000);
+		if (error[0] != null) throw error[0];
+	}
+
+	// 接続専用のKeyManagerHelperをDataNodeとして起動する
+	private void startHelper() throws Exception {
+		client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+		Socket socket = serverSocket.accept();
+
+		Object[] clientMap = new Object[9];
+		clientMap[ImdstDefine.paramSocket] = socket;
+		clientMap[ImdstDefine.paramPw] = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
+		clientMap[ImdstDefine.paramBr] = new KeyNodeRequestReader(socket.getInputStream());
+		clientMap[ImdstDefine.paramStart] = new Long(System.currentTimeMillis());
+		clientMap[ImdstDefine.paramLast] = new Long(System.currentTimeMillis());
+		clientMap[ImdstDefine.paramCheckCount] = new Integer(0);
+		clientMap[ImdstDefine.paramBis] = socket.getInputStream();
+		clientMap[ImdstDefine.paramBos] = socket.getOutputStream();
+
+		final KeyManagerHelper helper = new KeyManagerHelper();
+		helper.setParameters(new Object[] {null, null, null, null, clientMap});
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					helper.executeHelper(null);
+				} catch (Exception e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static KeyNodeBinaryProtocol.Frame read(byte[] bytes) throws IOException {
+		return KeyNodeBinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+}
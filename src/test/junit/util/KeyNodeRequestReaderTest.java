@@ -0,0 +1,241 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import okuyama.imdst.util.io.KeyNodeRequestReader;
+
+import org.junit.Test;
+
+/**
+ * KeyNodeRequestReaderクラスのテスト。
+ *
+ */
+public class KeyNodeRequestReaderTest {
+
+	@Test
+	public void LFとCRLFのどちらの改行でも要求が分解される() throws Exception {
+		KeyNodeRequestReader reader = createReader("2,a2V5\n2,a2V5Mg==\r\n1,a2V5,0,dmFs,dWU=!1\r\n-1,a2V5,1,dmFsdWU=\n9999,a\r\n", 0);
+		String[] params = new String[4];
+
+		assertEquals("2", reader.readRequest(params));
+		assertTrue(reader.isDecoded());
+		assertEquals("a2V5", params[1]);
+
+		assertEquals("2", reader.readRequest(params));
+		assertEquals("a2V5Mg==", params[1]);
+
+		assertEquals("1", reader.readRequest(params));
+		assertTrue(reader.isDecoded());
+		assertEquals("a2V5", params[1]);
+		assertEquals("0", params[2]);
+		assertEquals("dmFs,dWU=!1", params[3]);
+
+		assertEquals("-1", reader.readRequest(params));
+		assertEquals("1", params[2]);
+		assertEquals("dmFsdWU=", params[3]);
+
+		// 分解対象外の要求は改行を除いた1行を返す
+		assertEquals("9999,a", reader.readRequest(params));
+		assertFalse(reader.isDecoded());
+		assertNull(reader.readRequest(params));
+	}
+
+	@Test
+	public void readLineはLFとCRLFの改行を取り除く() throws Exception {
+		KeyNodeRequestReader reader = createReader("a\nb\r\n\r\n\nc", 0);
+
+		assertEquals("a", reader.readLine());
+		assertEquals("b", reader.readLine());
+		assertEquals("", reader.readLine());
+		assertEquals("", reader.readLine());
+		assertEquals("c", reader.readLine());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	public void 受信バッファより長い要求を分割して受信しても読み込める() throws Exception {
+		String value = repeat("dmFsdWU=", 20000);
+		String line = "1,a2V5," + "0," + value;
+		KeyNodeRequestReader reader = createReader(line + "\r\n2,a2V5\n", 1000);
+		String[] params = new String[4];
+
+		assertEquals("1", reader.readRequest(params));
+		assertEquals("a2V5", params[1]);
+		assertEquals(value, params[3]);
+
+		// 拡張したバッファを解放した後も続けて読み込める
+		assertEquals("2", reader.readRequest(params));
+		assertEquals("a2V5", params[1]);
+		assertNull(reader.readRequest(params));
+	}
+
+	@Test
+	public void 受信バッファより長い行をreadLineで読み込める() throws Exception {
+		String line = repeat("0123456789", 2000);
+		KeyNodeRequestReader reader = createReader(line + "\n" + line + "\r\n", 777);
+
+		assertEquals(line, reader.readLine());
+		assertEquals(line, reader.readLine());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	public void 処理番号1001のデータ長を指定した読み込みが行える() throws Exception {
+		String data = "1001,a2V5,0,dmFs,dWU=" + repeat("データ", 4000);
+		KeyNodeRequestReader reader = createReader("1001\n" + data.length() + "\n" + data + "2,a2V5\n", 500);
+		String[] params = new String[4];
+
+		assertEquals("1001", reader.readRequest(params));
+		assertFalse(reader.isDecoded());
+
+		// KeyManagerHelperと同様に指定長の文字を読み込む
+		int readDataLen = Integer.parseInt(reader.readLine());
+		char[] strBufChar = new char[readDataLen];
+		int readLen = reader.read(strBufChar);
+		while (readLen != readDataLen) {
+			int nowRead = reader.read(strBufChar, readLen, (readDataLen - readLen));
+			assertTrue(nowRead > 0);
+			readLen = readLen + nowRead;
+		}
+		assertEquals(data, new String(strBufChar));
+
+		assertEquals("2", reader.readRequest(params));
+		assertEquals("a2V5", params[1]);
+	}
+
+	@Test
+	public void マルチバイト文字とサロゲートペアを読み込める() throws Exception {
+		String text = "あいう𠮷漢字😀";
+
+		// 1バイトずつ受信し、文字の途中で受信が分割される
+		KeyNodeRequestReader reader = createReader("1,キー,0," + text + "\n" + text + "\n" + text, 1);
+		String[] params = new String[4];
+
+		assertEquals("1", reader.readRequest(params));
+		assertEquals("キー", params[1]);
+		assertEquals(text, params[3]);
+
+		assertEquals(text, reader.readLine());
+
+		StringBuilder buf = new StringBuilder();
+		char[] cbuf = new char[3];
+		int readLen = 0;
+		while ((readLen = reader.read(cbuf, 0, cbuf.length)) != -1) {
+			buf.append(cbuf, 0, readLen);
+		}
+		assertEquals(text, buf.toString());
+	}
+
+	@Test
+	public void サロゲートペアを1文字分の領域に読み込む場合はIOExceptionとなる() throws Exception {
+		KeyNodeRequestReader reader = createReader("𠮷", 0);
+		try {
+			reader.read();
+			fail();
+		} catch (IOException ie) {
+		}
+	}
+
+	@Test
+	public void markとresetの後にreadRequestで要求を読み込める() throws Exception {
+		KeyNodeRequestReader reader = createReader("2,a2V5\n9999,a\n", 1);
+		String[] params = new String[4];
+
+		// KeyManagerHelperの同一クライアントの再処理と同様に1文字先読みして戻す
+		assertTrue(reader.markSupported());
+		reader.mark(1);
+		assertEquals('2', reader.read());
+		reader.reset();
+
+		assertEquals("2", reader.readRequest(params));
+		assertTrue(reader.isDecoded());
+		assertEquals("a2V5", params[1]);
+
+		reader.mark(1);
+		assertEquals('9', reader.read());
+		reader.reset();
+
+		// 分解対象外の要求はreadLineと同様に1行を返す
+		assertEquals("9999,a", reader.readRequest(params));
+		assertFalse(reader.isDecoded());
+		assertNull(reader.readRequest(params));
+	}
+
+	@Test
+	public void マークしていない場合のresetはIOExceptionとなる() throws Exception {
+		KeyNodeRequestReader reader = createReader("2,a2V5\n", 0);
+		try {
+			reader.reset();
+			fail();
+		} catch (IOException ie) {
+		}
+	}
+
+	@Test
+	public void 改行の無い最後の行は1行として返される() throws Exception {
+		String[] params = new String[4];
+
+		KeyNodeRequestReader reader = createReader("2,a2V5\n2,a2V5Mg==", 3);
+		assertEquals("2", reader.readRequest(params));
+		assertTrue(reader.isDecoded());
+
+		// 切断時の最後の行は分解せずにreadLineと同様に返す
+		assertEquals("2,a2V5Mg==", reader.readRequest(params));
+		assertFalse(reader.isDecoded());
+		assertNull(reader.readRequest(params));
+
+		reader = createReader("9999,データ", 0);
+		assertEquals("9999,データ", reader.readLine());
+		assertNull(reader.readLine());
+		assertEquals(-1, reader.read());
+	}
+
+	// chunkSizeが0以外の場合は1回の読み込みでchunkSizeバイトまでを返す
+	private static KeyNodeRequestReader createReader(String data, int chunkSize) throws Exception {
+		byte[] bytes = data.getBytes("UTF-8");
+		if (chunkSize == 0) return new KeyNodeRequestReader(new ByteArrayInputStream(bytes));
+		return new KeyNodeRequestReader(new ChunkedInputStream(bytes, chunkSize));
+	}
+
+	private static String repeat(String str, int count) {
+		StringBuilder buf = new StringBuilder(str.length() * count);
+		for (int i = 0; i < count; i++) {
+			buf.append(str);
+		}
+		return buf.toString();
+	}
+
+	// ネットワーク越しの受信と同様に、少しずつ受信し受信済みのデータ以外はavailableに含めない
+	private static class ChunkedInputStream extends InputStream {
+
+		private byte[] data = null;
+
+		private int pos = 0;
+
+		private int chunkSize = 0;
+
+		ChunkedInputStream(byte[] data, int chunkSize) {
+			this.data = data;
+			this.chunkSize = chunkSize;
+		}
+
+		public int read() throws IOException {
+			if (this.pos == this.data.length) return -1;
+			return this.data[this.pos++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.pos == this.data.length) return -1;
+			int readLen = Math.min(Math.min(len, this.chunkSize), this.data.length - this.pos);
+			System.arraycopy(this.data, this.pos, b, off, readLen);
+			this.pos = this.pos + readLen;
+			return readLen;
+		}
+
+		public int available() throws IOException {
+			return 0;
+		}
+	}
+}
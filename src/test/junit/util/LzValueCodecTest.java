@@ -0,0 +1,185 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.MemoryModeCoreValueCnv;
+import okuyama.imdst.util.SystemUtil;
+import okuyama.imdst.util.compress.IValueCodec;
+import okuyama.imdst.util.compress.LzValueCodec;
+
+import org.junit.Test;
+
+/**
+ * LzValueCodecクラスのテスト。
+ *
+ */
+public class LzValueCodecTest {
+
+	private LzValueCodec codec = new LzValueCodec();
+
+	@Test
+	public void 圧縮したデータを復元できる() throws Exception {
+		Random rnd = new Random(1);
+		int[] sizes = {0, 1, 12, 13, 100, 1000, 70000, 300000};
+
+		for (int i = 0; i < sizes.length; i++) {
+			// 繰り返しの多いデータ
+			byte[] repeat = new byte[sizes[i]];
+			for (int idx = 0; idx < repeat.length; idx++) {
+				repeat[idx] = (byte)('a' + ((idx / 7) % 5));
+			}
+			assertArrayEquals(repeat, codec.decompress(codec.compress(repeat)));
+
+			// ランダムなデータ
+			byte[] random = new byte[sizes[i]];
+			rnd.nextBytes(random);
+			assertArrayEquals(random, codec.decompress(codec.compress(random)));
+		}
+	}
+
+	@Test
+	public void 繰り返しの多いデータは圧縮される() throws Exception {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			buf.append("{\"id\":").append(i).append(",\"name\":\"okuyama\",\"status\":\"active\"}");
+		}
+		byte[] src = buf.toString().getBytes();
+		byte[] compressed = codec.compress(src);
+
+		assertEquals(LzValueCodec.codecTag, compressed[0]);
+		assertTrue(compressed.length < (src.length / 3));
+	}
+
+	@Test
+	public void 異なるコーデックで圧縮したValueが混在していても取得できる() throws Exception {
+		String defaultCodec = ImdstDefine.valueCompressCodec;
+		try {
+			MemoryModeCoreValueCnv cnv = new MemoryModeCoreValueCnv();
+			StringBuilder buf = new StringBuilder();
+			for (int i = 0; i < 100; i++) {
+				buf.append("dmFsdWU=").append(i);
+			}
+			String value = buf.toString();
+
+			ImdstDefine.valueCompressCodec = "okuyama.imdst.util.compress.DeflateValueCodec";
+			Object deflateValue = cnv.convertEncodeValue(value);
+			ImdstDefine.valueCompressCodec = "okuyama.imdst.util.compress.LzValueCodec";
+			Object lzValue = cnv.convertEncodeValue(value);
+
+			assertEquals(LzValueCodec.codecTag, ((byte[])lzValue)[0]);
+			assertEquals(value, cnv.convertDecodeValue(deflateValue));
+			assertEquals(value, cnv.convertDecodeValue(lzValue));
+		} finally {
+			ImdstDefine.valueCompressCodec = defaultCodec;
+		}
+	}
+
+	@Test
+	public void 起動時に登録したコーデックで圧縮解除できる() throws Exception {
+		String defaultCodec = ImdstDefine.valueCompressCodec;
+		try {
+			// 再起動前に圧縮されたデータ(このプロセスではまだ圧縮していない)
+			byte[] src = "value".getBytes();
+			byte[] compressed = new TagCodec().compress(src);
+
+			ImdstDefine.valueCompressCodec = TagCodec.class.getName();
+			SystemUtil.initValueCodec();
+			assertArrayEquals(src, SystemUtil.valueDecompress(compressed));
+		} finally {
+			ImdstDefine.valueCompressCodec = defaultCodec;
+			SystemUtil.initValueCodec();
+		}
+	}
+
+	@Test
+	public void 既存のデータの先頭と重複するタグのコーデックは登録できない() throws Exception {
+		String defaultCodec = ImdstDefine.valueCompressCodec;
+		int[] tags = {0x78, '!', 0xB0, 0xB1, LzValueCodec.codecTag, -1, 256};
+		try {
+			for (int i = 0; i < tags.length; i++) {
+				ReservedTagCodec.tag = tags[i];
+				ImdstDefine.valueCompressCodec = ReservedTagCodec.class.getName();
+				try {
+					SystemUtil.initValueCodec();
+					fail("tag=" + tags[i]);
+				} catch (IllegalArgumentException e) {
+				}
+			}
+		} finally {
+			ImdstDefine.valueCompressCodec = defaultCodec;
+			SystemUtil.initValueCodec();
+		}
+	}
+
+	@Test
+	public void 圧縮に失敗した場合はDeflateで圧縮される() throws Exception {
+		String defaultCodec = ImdstDefine.valueCompressCodec;
+		boolean defaultCompress = ImdstDefine.saveValueCompress;
+		try {
+			ImdstDefine.saveValueCompress = true;
+			ImdstDefine.valueCompressCodec = FailCodec.class.getName();
+			SystemUtil.initValueCodec();
+
+			byte[] src = "value-value-value-value".getBytes();
+			byte[] compressed = SystemUtil.valueCompress(src);
+			assertNotNull(compressed);
+			assertArrayEquals(src, SystemUtil.valueDecompress(compressed));
+		} finally {
+			ImdstDefine.valueCompressCodec = defaultCodec;
+			ImdstDefine.saveValueCompress = defaultCompress;
+			SystemUtil.initValueCodec();
+		}
+	}
+
+	/**
+	 * 先頭にタグを付けるだけのコーデック。
+	 */
+	public static class TagCodec implements IValueCodec {
+
+		public int getTag() {
+			return 0x43;
+		}
+
+		public byte[] compress(byte[] src) throws Exception {
+			byte[] dst = new byte[src.length + 1];
+			dst[0] = (byte)getTag();
+			System.arraycopy(src, 0, dst, 1, src.length);
+			return dst;
+		}
+
+		public byte[] decompress(byte[] src) throws Exception {
+			byte[] dst = new byte[src.length - 1];
+			System.arraycopy(src, 1, dst, 0, dst.length);
+			return dst;
+		}
+	}
+
+	/**
+	 * タグを指定出来るコーデック。
+	 */
+	public static class ReservedTagCodec extends TagCodec {
+
+		static int tag = 0;
+
+		public int getTag() {
+			return tag;
+		}
+	}
+
+	/**
+	 * 圧縮に失敗するコーデック。
+	 */
+	public static class FailCodec extends TagCodec {
+
+		public int getTag() {
+			return 0x44;
+		}
+
+		public byte[] compress(byte[] src) throws Exception {
+			throw new Exception("compress failed");
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.io.KeyNodeConnector;
+import okuyama.imdst.util.io.MultiplexKeyNodeChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * MultiplexKeyNodeChannelクラスのテスト。
+ *
+ */
+public class MultiplexKeyNodeChannelTest {
+
+	private ServerSocket serverSocket = null;
+
+	private int orgSockets = 0;
+
+	private boolean orgBinary = false;
+
+	@Before
+	public void setUp() throws Exception {
+		orgSockets = ImdstDefine.multiplexDataNodeConnectionSockets;
+		orgBinary = ImdstDefine.binaryDataNodeProtocol;
+		ImdstDefine.multiplexDataNodeConnectionSockets = 1;
+		ImdstDefine.binaryDataNodeProtocol = false;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ImdstDefine.multiplexDataNodeConnectionSockets = orgSockets;
+		ImdstDefine.binaryDataNodeProtocol = orgBinary;
+		serverSocket.close();
+	}
+
+	@Test
+	public void 応答は要求番号で送信元の要求に振り分けられる() throws Exception {
+		final Exception[] error = new Exception[1];
+		Thread dataNode = new Thread() {
+			public void run() {
+				try {
+					Socket socket = serverSocket.accept();
+					BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+					assertEquals(ImdstDefine.keyNodeMultiplexNegotiationRequest, br.readLine());
+					pw.println(ImdstDefine.keyNodeMultiplexNegotiationResponse);
+					pw.flush();
+
+					String first = br.readLine();
+					String second = br.readLine();
+
+					// 後から受信した要求を先に応答する
+					pw.println(response(second));
+					pw.println(response(first));
+					pw.flush();
+					br.readLine();
+					socket.close();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		dataNode.start();
+
+		MultiplexKeyNodeChannel channel = getChannel();
+		channel.open(5000);
+		assertFalse(channel.isRefused());
+
+		MultiplexKeyNodeChannel.Request first = channel.send("2,a2V5MQ==");
+		MultiplexKeyNodeChannel.Request second = channel.send("2,a2V5Mg==");
+
+		assertEquals("2,true,a2V5Mg==", channel.await(second, 5000));
+		assertEquals("2,true,a2V5MQ==", channel.await(first, 5000));
+
+		serverSocket.close();
+		dataNode.join(5000);
+		if (error[0] != null) throw error[0];
+	}
+
+	@Test
+	public void 切断された場合は応答待ちの要求がエラーになる() throws Exception {
+		Thread dataNode = new Thread() {
+			public void run() {
+				try {
+					Socket socket = serverSocket.accept();
+					BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+					br.readLine();
+					pw.println(ImdstDefine.keyNodeMultiplexNegotiationResponse);
+					pw.flush();
+
+					// 要求を受信したら応答せずに切断する
+					br.readLine();
+					socket.close();
+				} catch (Exception e) {
+				}
+			}
+		};
+		dataNode.start();
+
+		MultiplexKeyNodeChannel channel = getChannel();
+		MultiplexKeyNodeChannel.Request request = channel.send("2,a2V5MQ==");
+		try {
+			channel.await(request, 5000);
+			fail();
+		} catch (SocketTimeoutException ste) {
+			fail();
+		} catch (IOException ie) {
+		}
+		dataNode.join(5000);
+	}
+
+	@Test
+	public void 多重化に未対応のDataNodeには要求毎の接続で送信する() throws Exception {
+		final Exception[] error = new Exception[1];
+		Thread dataNode = new Thread() {
+			public void run() {
+				try {
+					// 従来のDataNodeは不明な要求に応答しない
+					Socket negotiation = serverSocket.accept();
+					BufferedReader negotiationBr = new BufferedReader(new InputStreamReader(negotiation.getInputStream(), "UTF-8"));
+					assertEquals(ImdstDefine.keyNodeMultiplexNegotiationRequest, negotiationBr.readLine());
+
+					Socket socket = serverSocket.accept();
+					BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+					assertEquals("2,a2V5MQ==", br.readLine());
+					pw.println("2,true,dmFsdWU=");
+					pw.flush();
+					br.readLine();
+					socket.close();
+					negotiation.close();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		dataNode.start();
+
+		KeyNodeConnector connector = new KeyNodeConnector("127.0.0.1", serverSocket.getLocalPort(), nodeFullName());
+		connector.setMultiplexMode();
+		connector.connect(500);
+		assertTrue(getChannel().isRefused());
+
+		connector.println("2,a2V5MQ==");
+		connector.flush();
+		assertEquals("2,true,dmFsdWU=", connector.readLine());
+		connector.close();
+
+		dataNode.join(5000);
+		if (error[0] != null) throw error[0];
+	}
+
+	// テスト毎に異なるポートのためチャネルも異なる
+	private MultiplexKeyNodeChannel getChannel() {
+		return MultiplexKeyNodeChannel.getChannel("127.0.0.1", serverSocket.getLocalPort(), nodeFullName());
+	}
+
+	private String nodeFullName() {
+		return "127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	// 要求と同じ要求番号、Keyで応答を作成する
+	private static String response(String requestLine) {
+		int sep = requestLine.indexOf(",");
+		String requestNo = requestLine.substring(0, sep);
+		String key = requestLine.substring(requestLine.lastIndexOf(",") + 1);
+		return requestNo + ",2,true," + key;
+	}
+}
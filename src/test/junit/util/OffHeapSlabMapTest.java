@@ -0,0 +1,44 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import okuyama.imdst.util.CoreMapKey;
+import okuyama.imdst.util.offheapmap.OffHeapSlabMap;
+import okuyama.imdst.util.segmentmap.SegmentMap;
+
+import org.junit.Test;
+
+/**
+ * OffHeapSlabMapクラスのテスト。
+ * 共通のテストはSegmentMapTestBase。
+ *
+ */
+public class OffHeapSlabMapTest extends SegmentMapTestBase {
+
+	protected SegmentMap createMap() {
+		return new OffHeapSlabMap(100, 4, 4096);
+	}
+
+	protected Object createValue(int i) {
+		return ("value" + i).getBytes();
+	}
+
+	protected String valueString(Object value) {
+		return value == null ? null : new String((byte[])value);
+	}
+
+	@Test
+	public void 異なるサイズのValueで更新できる() {
+		map.put(new CoreMapKey("key1"), "a".getBytes());
+		map.put(new CoreMapKey("key1"), new byte[1000]);
+		assertEquals(1000, ((byte[])map.get(new CoreMapKey("key1"))).length);
+
+		// チャンクサイズを超えるValue
+		map.put(new CoreMapKey("key1"), new byte[10000]);
+		assertEquals(10000, ((byte[])map.get(new CoreMapKey("key1"))).length);
+
+		map.put(new CoreMapKey("key1"), "b".getBytes());
+		assertEquals("b", new String((byte[])map.get(new CoreMapKey("key1"))));
+		assertEquals(1, map.size());
+	}
+}
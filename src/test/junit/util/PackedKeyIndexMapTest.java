@@ -0,0 +1,68 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import okuyama.imdst.util.CoreMapKey;
+import okuyama.imdst.util.PackedFileModeCoreValueCnv;
+import okuyama.imdst.util.packedmap.PackedKeyIndexMap;
+import okuyama.imdst.util.segmentmap.SegmentMap;
+
+import org.junit.Test;
+
+/**
+ * PackedKeyIndexMapクラスのテスト。
+ * 共通のテストはSegmentMapTestBase(削除のテストではアリーナの詰め直しが発生する)。
+ *
+ */
+public class PackedKeyIndexMapTest extends SegmentMapTestBase {
+
+	protected SegmentMap createMap() {
+		return new PackedKeyIndexMap(100, 4, 4096);
+	}
+
+	protected Object createValue(int i) {
+		return new Long(i);
+	}
+
+	protected String valueString(Object value) {
+		return value == null ? null : value.toString();
+	}
+
+	@Test
+	public void Longの範囲とアリーナサイズを超えるKeyを格納できる() {
+		map.put(new CoreMapKey("key1"), new Long(Long.MAX_VALUE));
+		assertEquals(new Long(Long.MAX_VALUE), map.get(new CoreMapKey("key1")));
+
+		// アリーナサイズを超えるKey
+		String bigKey = new String(new char[10000]).replace('\0', 'a');
+		map.put(new CoreMapKey(bigKey), new Long(4L));
+		assertEquals(new Long(4L), map.get(new CoreMapKey(bigKey)));
+	}
+
+	@Test
+	public void データファイルの位置を変換できる() {
+		PackedFileModeCoreValueCnv cnv = new PackedFileModeCoreValueCnv();
+
+		Object[] values = {"123:456", "2147483647:2147483647", "0:0", "789", new Integer(12345)};
+		for (int i = 0; i < values.length; i++) {
+			map.put(new CoreMapKey("key" + i), cnv.convertEncodeValue(values[i]));
+		}
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], cnv.convertDecodeValue(map.get(new CoreMapKey("key" + i))));
+		}
+	}
+
+	@Test
+	public void 負数の位置は変換できない() {
+		PackedFileModeCoreValueCnv cnv = new PackedFileModeCoreValueCnv();
+
+		Object[] values = {"-1:456", "123:-1", "-789", new Integer(-12345)};
+		for (int i = 0; i < values.length; i++) {
+			try {
+				cnv.convertEncodeValue(values[i]);
+				fail("negative value encoded " + values[i]);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}
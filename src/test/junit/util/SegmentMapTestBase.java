@@ -0,0 +1,124 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+import okuyama.imdst.util.CoreMapKey;
+import okuyama.imdst.util.segmentmap.SegmentMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SegmentMapを継承したMapの共通のテスト。
+ * サブクラスでMapとValueの作成方法を指定する。
+ *
+ */
+public abstract class SegmentMapTestBase {
+
+	protected SegmentMap map = null;
+
+	protected abstract SegmentMap createMap();
+
+	protected abstract Object createValue(int i);
+
+	// 比較用にValueを文字列にする
+	protected abstract String valueString(Object value);
+
+	@Before
+	public void setUp() throws Exception {
+		map = createMap();
+	}
+
+	@Test
+	public void 登録したValueが取得できる() {
+		map.put(new CoreMapKey("key1"), createValue(1));
+		map.put(new CoreMapKey("key2"), createValue(2));
+		map.put(new CoreMapKey("key1"), createValue(3));
+
+		assertEquals(2, map.size());
+		assertEquals(valueString(createValue(3)), valueString(map.get(new CoreMapKey("key1"))));
+		assertEquals(valueString(createValue(2)), valueString(map.get(new CoreMapKey("key2"))));
+		assertNull(map.get(new CoreMapKey("key3")));
+	}
+
+	@Test
+	public void 削除後も他のKeyが取得できる() {
+		for (int i = 0; i < 20000; i++) {
+			map.put(new CoreMapKey("key" + i), createValue(i));
+		}
+		for (int i = 0; i < 20000; i++) {
+			if ((i % 4) != 0) assertEquals(valueString(createValue(i)), valueString(map.remove(new CoreMapKey("key" + i))));
+		}
+
+		assertEquals(5000, map.size());
+		for (int i = 0; i < 20000; i++) {
+			if ((i % 4) == 0) {
+				assertEquals(valueString(createValue(i)), valueString(map.get(new CoreMapKey("key" + i))));
+			} else {
+				assertFalse(map.containsKey(new CoreMapKey("key" + i)));
+			}
+		}
+	}
+
+	@Test
+	public void 全てのKeyを走査できる() {
+		for (int i = 0; i < 1000; i++) {
+			map.put(new CoreMapKey("key" + i), createValue(i));
+		}
+
+		int count = 0;
+		Iterator ite = map.entrySet().iterator();
+		while (ite.hasNext()) {
+			Map.Entry entry = (Map.Entry)ite.next();
+			String key = entry.getKey().toString();
+			assertEquals(valueString(createValue(Integer.parseInt(key.substring(3)))), valueString(entry.getValue()));
+			count++;
+		}
+		assertEquals(1000, count);
+	}
+
+	@Test
+	public void 走査中に削除できる() {
+		for (int i = 0; i < 1000; i++) {
+			map.put(new CoreMapKey("key" + i), createValue(i));
+		}
+
+		Iterator ite = map.entrySet().iterator();
+		while (ite.hasNext()) {
+			Map.Entry entry = (Map.Entry)ite.next();
+			if ((Integer.parseInt(entry.getKey().toString().substring(3)) % 2) == 0) ite.remove();
+		}
+
+		assertEquals(500, map.size());
+		assertFalse(map.containsKey(new CoreMapKey("key0")));
+		assertTrue(map.containsKey(new CoreMapKey("key1")));
+	}
+
+	@Test
+	public void シリアライズ後に復元できる() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			map.put(new CoreMapKey("key" + i), createValue(i));
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(map);
+		oos.close();
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		SegmentMap restoreMap = (SegmentMap)ois.readObject();
+
+		assertEquals(map.getClass(), restoreMap.getClass());
+		assertEquals(1000, restoreMap.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(valueString(createValue(i)), valueString(restoreMap.get(new CoreMapKey("key" + i))));
+		}
+	}
+}
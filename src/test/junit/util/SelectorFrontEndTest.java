@@ -0,0 +1,158 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+import okuyama.base.util.HelperPool;
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.io.SelectorConnection;
+import okuyama.imdst.util.io.SelectorFrontEnd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SelectorFrontEndクラスのテスト。
+ *
+ */
+public class SelectorFrontEndTest {
+
+	private ServerSocketChannel serverChannel = null;
+
+	private SelectorFrontEnd frontEnd = null;
+
+	private String workerQueueName = null;
+
+	private Socket client = null;
+
+	@Before
+	public void setUp() throws Exception {
+		String name = "SelectorFrontEndTest" + System.nanoTime();
+		workerQueueName = name + "Worker";
+		HelperPool.createUniqueHelperParamQueue(workerQueueName, 100);
+
+		frontEnd = new SelectorFrontEnd(name, 1, new String[] {workerQueueName}, -1L);
+		frontEnd.start();
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client != null) client.close();
+		serverChannel.close();
+	}
+
+	@Test
+	public void 改行まで受信した接続のみ処理スレッドに渡される() throws Exception {
+		Object[] clientMap = connect();
+		OutputStream out = client.getOutputStream();
+
+		out.write("get".getBytes());
+		out.flush();
+		assertNull(takeRequest(300));
+
+		out.write("1\n".getBytes());
+		out.flush();
+		assertSame(clientMap, takeRequest(5000));
+
+		BufferedReader br = (BufferedReader)clientMap[ImdstDefine.paramBr];
+		PrintWriter pw = (PrintWriter)clientMap[ImdstDefine.paramPw];
+		assertEquals("get1", br.readLine());
+		pw.println("ok1");
+		pw.flush();
+
+		BufferedReader clientBr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals("ok1", clientBr.readLine());
+
+		// 処理完了後は受信待ちに戻り、次のリクエストで再度渡される
+		returnConnection(clientMap);
+		assertNull(takeRequest(300));
+		out.write("get2\n".getBytes());
+		out.flush();
+		assertSame(clientMap, takeRequest(5000));
+		assertEquals("get2", br.readLine());
+	}
+
+	@Test
+	public void 切断前に受信したリクエストが処理される() throws Exception {
+		Object[] clientMap = connect();
+		OutputStream out = client.getOutputStream();
+
+		out.write("last\n".getBytes());
+		out.flush();
+		client.shutdownOutput();
+
+		assertSame(clientMap, takeRequest(5000));
+		BufferedReader br = (BufferedReader)clientMap[ImdstDefine.paramBr];
+		assertEquals("last", br.readLine());
+		assertNull(br.readLine());
+	}
+
+	@Test
+	public void 改行の無い最後の行が処理される() throws Exception {
+		Object[] clientMap = connect();
+		OutputStream out = client.getOutputStream();
+
+		out.write("last".getBytes());
+		out.flush();
+		assertNull(takeRequest(300));
+		client.shutdownOutput();
+
+		assertSame(clientMap, takeRequest(5000));
+		BufferedReader br = (BufferedReader)clientMap[ImdstDefine.paramBr];
+		assertEquals("last", br.readLine());
+		assertNull(br.readLine());
+	}
+
+	@Test
+	public void 受信待ちで切断された接続はクローズされる() throws Exception {
+		connect();
+		assertEquals(1, frontEnd.getConnectionCount());
+
+		client.close();
+		client = null;
+
+		long end = System.currentTimeMillis() + 5000;
+		while (frontEnd.getConnectionCount() > 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, frontEnd.getConnectionCount());
+		assertNull(takeRequest(100));
+	}
+
+	// クライアントから接続し、Accept済みのソケットをSelectorに登録する
+	private Object[] connect() throws Exception {
+		client = new Socket("127.0.0.1", serverChannel.socket().getLocalPort());
+		SocketChannel channel = serverChannel.accept();
+		channel.socket().setSoTimeout(5000);
+
+		SelectorConnection connection = frontEnd.createConnection(channel);
+		Object[] clientMap = new Object[9];
+		clientMap[ImdstDefine.paramSocket] = connection.getSocket();
+		clientMap[ImdstDefine.paramPw] = new PrintWriter(new OutputStreamWriter(connection.getOutputStream()));
+		clientMap[ImdstDefine.paramBr] = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+		frontEnd.register(connection, clientMap);
+		return clientMap;
+	}
+
+	// 処理スレッドのキューに渡された接続情報を取り出す
+	private Object[] takeRequest(long timeout) throws Exception {
+		long end = System.currentTimeMillis() + timeout;
+		while (HelperPool.getParameterQueueSize(workerQueueName) == 0) {
+			if (System.currentTimeMillis() >= end) return null;
+			Thread.sleep(10);
+		}
+		return (Object[])HelperPool.pollSpecificationParameterQueue(workerQueueName)[0];
+	}
+
+	// 処理完了後に接続情報を戻す
+	private void returnConnection(Object[] clientMap) throws Exception {
+		HelperPool.addSpecificationParameterQueue(frontEnd.getReturnQueueNames()[0], new Object[] {clientMap});
+	}
+}
@@ -0,0 +1,170 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import okuyama.imdst.util.KeyManagerValueMap;
+import okuyama.imdst.util.translog.PointInTimeRestorer;
+import okuyama.imdst.util.translog.TransactionLogArchive;
+import okuyama.imdst.util.translog.TransactionLogFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TransactionLogArchive、PointInTimeRestorerクラスのテスト。
+ *
+ */
+public class TransactionLogArchiveTest {
+
+	private File workDir = null;
+
+	private File archiveDir = null;
+
+	private TransactionLogArchive archive = null;
+
+	@Before
+	public void setUp() throws Exception {
+		workDir = File.createTempFile("okuyama_archive", "");
+		workDir.delete();
+		workDir.mkdirs();
+		archiveDir = new File(workDir, "archive");
+		archive = new TransactionLogArchive(archiveDir);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		deleteAll(workDir);
+	}
+
+	private void deleteAll(File file) {
+		File[] files = file.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			deleteAll(files[i]);
+		}
+		file.delete();
+	}
+
+	private File createLog(String name, long startTime, int count) throws Exception {
+		File logFile = new File(workDir, name);
+		FileOutputStream fos = new FileOutputStream(logFile);
+		fos.write(TransactionLogFormat.fileHeader);
+		for (int i = 0; i < count; i++) {
+			fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "a2V5" + (i % 10), "dmFsdWU" + i + "!0", startTime + i));
+		}
+		fos.close();
+		logFile.setLastModified(startTime + count);
+		return logFile;
+	}
+
+	@Test
+	public void 指定時間のデータが復元される() throws Exception {
+		File bkupFile = new File(workDir, "keymap.obj");
+		KeyManagerValueMap keyMapObj = new KeyManagerValueMap(1000, true, null, true, null, null);
+		for (int i = 0; i < 10; i++) {
+			keyMapObj.put("a2V5" + i, "aW5pdA==!0");
+		}
+		long checkpointTime = keyMapObj.fileStoreMapObject(bkupFile, false);
+		assertTrue(checkpointTime > 0L);
+		archive.archiveCheckpoint(bkupFile, checkpointTime);
+
+		// チェックポイント作成完了後のレコード
+		long start = System.currentTimeMillis() + 1000L;
+		archive.archiveLog(createLog("keymap.work0", start, 100), 0);
+		File nowLog = createLog("keymap.work", start + 100, 100);
+
+		File outputFile = new File(workDir, "restore.obj");
+		PointInTimeRestorer restorer = new PointInTimeRestorer(archiveDir, start + 54, null, 4);
+		restorer.restore(outputFile);
+		assertEquals(checkpointTime, restorer.getCheckpointTime());
+		assertEquals(10, restorer.getRestoreCount());
+
+		KeyManagerValueMap restored = new KeyManagerValueMap(1000, true, null, false, outputFile, null);
+		assertEquals("dmFsdWU54!0", restored.get("a2V54"));
+		assertEquals("dmFsdWU45!0", restored.get("a2V55"));
+
+		// アーカイブされていないログも使用する
+		restorer = new PointInTimeRestorer(archiveDir, start + 150, new File(workDir, "keymap.work").getAbsolutePath(), 4);
+		restorer.restore(outputFile);
+		restored = new KeyManagerValueMap(1000, true, null, false, outputFile, null);
+		assertEquals("dmFsdWU50!0", restored.get("a2V50"));
+		assertEquals("dmFsdWU41!0", restored.get("a2V51"));
+		assertTrue(nowLog.exists());
+	}
+
+	// keyOffsetから5種類のKeyのレコードを持つパーティションのログを作成する
+	private File createPartitionLog(File logFile, int keyOffset, long startTime, int count) throws Exception {
+		FileOutputStream fos = new FileOutputStream(logFile);
+		fos.write(TransactionLogFormat.fileHeader);
+		for (int i = 0; i < count; i++) {
+			fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "a2V5" + (keyOffset + (i % 5)), "dmFsdWU" + i + "!0", startTime + i));
+		}
+		fos.close();
+		logFile.setLastModified(startTime + count);
+		return logFile;
+	}
+
+	@Test
+	public void パーティションに分割されたログから復元される() throws Exception {
+		File bkupFile = new File(workDir, "keymap.obj");
+		KeyManagerValueMap keyMapObj = new KeyManagerValueMap(1000, true, null, true, null, null);
+		for (int i = 0; i < 10; i++) {
+			keyMapObj.put("a2V5" + i, "aW5pdA==!0");
+		}
+		long checkpointTime = keyMapObj.fileStoreMapObject(bkupFile, false);
+		archive.archiveCheckpoint(bkupFile, checkpointTime);
+
+		// パーティション0はKey0～4、パーティション1はKey5～9をKeyファイルのディレクトリに記録
+		File keyDir = new File(workDir, "keydir");
+		keyDir.mkdirs();
+		long start = System.currentTimeMillis() + 1000L;
+		archive.archiveLog(createPartitionLog(new File(workDir, "keymap.work0"), 0, start, 50), 0);
+		archive.archiveLog(createPartitionLog(new File(keyDir, "keymap.work.p1.0"), 5, start, 50), TransactionLogArchive.partitionIndexRange + 0);
+		createPartitionLog(new File(workDir, "keymap.work"), 0, start + 50, 50);
+		createPartitionLog(new File(keyDir, "keymap.work.p1.1"), 5, start + 50, 50);
+		createPartitionLog(new File(keyDir, "keymap.work.p1"), 5, start + 100, 50);
+
+		assertEquals(2, archive.getPartitionLogFiles(0L).size());
+
+		File outputFile = new File(workDir, "restore.obj");
+		PointInTimeRestorer restorer = new PointInTimeRestorer(archiveDir, start + 120, new File(workDir, "keymap.work").getAbsolutePath(), new String[]{keyDir.getAbsolutePath()}, 4);
+		restorer.restore(outputFile);
+		assertEquals(10, restorer.getRestoreCount());
+
+		KeyManagerValueMap restored = new KeyManagerValueMap(1000, true, null, false, outputFile, null);
+		assertEquals("dmFsdWU45!0", restored.get("a2V50"));
+		assertEquals("dmFsdWU49!0", restored.get("a2V54"));
+		assertEquals("dmFsdWU20!0", restored.get("a2V55"));
+		assertEquals("dmFsdWU16!0", restored.get("a2V56"));
+		assertEquals("dmFsdWU19!0", restored.get("a2V59"));
+
+		// Keyファイルのディレクトリを指定しない場合はパーティション1のアーカイブされていないログは使用されない
+		restorer = new PointInTimeRestorer(archiveDir, start + 120, new File(workDir, "keymap.work").getAbsolutePath(), 4);
+		restorer.restore(outputFile);
+		restored = new KeyManagerValueMap(1000, true, null, false, outputFile, null);
+		assertEquals("dmFsdWU49!0", restored.get("a2V54"));
+		assertEquals("dmFsdWU45!0", restored.get("a2V55"));
+	}
+
+	@Test
+	public void 保存期間を過ぎたログとチェックポイントが削除される() throws Exception {
+		long now = System.currentTimeMillis();
+		new File(archiveDir, "checkpoint.1000.2000").mkdirs();
+		new File(archiveDir, "checkpoint.5000.6000").mkdirs();
+		new File(archiveDir, "checkpoint." + (now - 1000L) + "." + now).mkdirs();
+		archive.archiveLog(createLog("keymap.work0", 500L, 10), 0);
+		archive.archiveLog(createLog("keymap.work1", 3000L, 10), 1);
+		archive.archiveLog(createLog("keymap.work2", 7000L, 10), 2);
+
+		// 境界より前の最も新しいチェックポイントと、以降のログは残る
+		assertEquals(3, archive.prune(60000L));
+		assertNull(archive.selectCheckpoint(5999L));
+		assertEquals("checkpoint.5000.6000", archive.selectCheckpoint(6000L).getParentFile().getName());
+		assertEquals(now, archive.getLastCheckpointCompleteTime());
+		assertEquals(1, archive.getLogFiles(0L).length);
+		assertTrue(archive.getLogFiles(0L)[0].getName().endsWith(".2"));
+	}
+}
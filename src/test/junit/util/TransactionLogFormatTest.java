@@ -0,0 +1,140 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import okuyama.imdst.util.translog.TransactionLogConverter;
+import okuyama.imdst.util.translog.TransactionLogFormat;
+import okuyama.imdst.util.translog.TransactionLogReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * バイナリフォーマットのトランザクションログのテスト。
+ *
+ */
+public class TransactionLogFormatTest {
+
+	private File logFile = null;
+
+	private File textLogFile = null;
+
+	@Before
+	public void setUp() throws Exception {
+		logFile = File.createTempFile("okuyama_tlog", ".work");
+		textLogFile = File.createTempFile("okuyama_tlog", ".txt");
+	}
+
+	@After
+	public void tearDown() {
+		logFile.delete();
+		textLogFile.delete();
+	}
+
+	@Test
+	public void 書き込んだレコードを読み込める() throws Exception {
+		writeRecords(100);
+
+		TransactionLogReader reader = new TransactionLogReader(logFile);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(reader.next());
+			if (i % 10 == 0) {
+				assertEquals(TransactionLogFormat.typeRemove, reader.getType());
+				assertEquals("", reader.getData());
+			} else {
+				assertEquals(TransactionLogFormat.typeSet, reader.getType());
+				assertEquals("dmFsdWU=" + i + ",1300000000!0", reader.getData());
+			}
+			assertEquals("a2V5" + i, reader.getKey());
+			assertEquals(1300000000000L + i, reader.getTime());
+		}
+		assertFalse(reader.next());
+		assertFalse(reader.isBrokenTail());
+		assertEquals(logFile.length(), reader.getValidLength());
+		reader.close();
+	}
+
+	@Test
+	public void 不完全な末尾のレコードは読み込まない() throws Exception {
+		writeRecords(10);
+		long fullLength = logFile.length();
+		byte[] lastRecord = TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "a2V5OQ==", "dmFsdWU=", 1L);
+
+		// 書き込み途中で停止
+		for (int cut = 1; cut < lastRecord.length; cut++) {
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			raf.setLength(fullLength);
+			raf.seek(fullLength);
+			raf.write(lastRecord, 0, cut);
+			raf.close();
+
+			assertEquals(10, readAll(true));
+		}
+
+		// CRCの不一致
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		raf.setLength(fullLength);
+		raf.seek(fullLength);
+		lastRecord[10] = (byte)(lastRecord[10] + 1);
+		raf.write(lastRecord);
+		raf.close();
+		assertEquals(10, readAll(true));
+	}
+
+	@Test
+	public void テキストフォーマットのログを変換できる() throws Exception {
+		FileOutputStream fos = new FileOutputStream(textLogFile);
+		fos.write("+,a2V5MQ==,dmFsdWU=!0,1300000000001,;\n".getBytes());
+		fos.write("\n".getBytes());
+		fos.write("+,a2V5Mg==,dmFsdWU=,1300000000!0,1300000000002,;\n".getBytes());
+		fos.write("-,a2V5MQ==, ,1300000000003,;\n".getBytes());
+		fos.write("+,a2V5Mw==,dmFsdW".getBytes());
+		fos.close();
+
+		assertFalse(TransactionLogFormat.isBinaryLog(textLogFile));
+		assertEquals(3, TransactionLogConverter.convert(textLogFile, logFile));
+		assertTrue(TransactionLogFormat.isBinaryLog(logFile));
+
+		TransactionLogReader reader = new TransactionLogReader(logFile);
+		assertTrue(reader.next());
+		assertEquals("a2V5MQ==", reader.getKey());
+		assertEquals("dmFsdWU=!0", reader.getData());
+		assertTrue(reader.next());
+		assertEquals("dmFsdWU=,1300000000!0", reader.getData());
+		assertEquals(1300000000002L, reader.getTime());
+		assertTrue(reader.next());
+		assertEquals(TransactionLogFormat.typeRemove, reader.getType());
+		assertEquals(1300000000003L, reader.getTime());
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	private void writeRecords(int count) throws Exception {
+		FileOutputStream fos = new FileOutputStream(logFile);
+		fos.write(TransactionLogFormat.fileHeader);
+		for (int i = 0; i < count; i++) {
+			if (i % 10 == 0) {
+				fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeRemove, "a2V5" + i, null, 1300000000000L + i));
+			} else {
+				fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "a2V5" + i, "dmFsdWU=" + i + ",1300000000!0", 1300000000000L + i));
+			}
+		}
+		fos.close();
+	}
+
+	private int readAll(boolean broken) throws Exception {
+		TransactionLogReader reader = new TransactionLogReader(logFile);
+		int ret = 0;
+		while (reader.next()) {
+			ret++;
+		}
+		assertEquals(broken, reader.isBrokenTail());
+		reader.close();
+		return ret;
+	}
+}
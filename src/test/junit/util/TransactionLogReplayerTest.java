@@ -0,0 +1,210 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okuyama.imdst.util.translog.ITransactionLogApplier;
+import okuyama.imdst.util.translog.TransactionLogFormat;
+import okuyama.imdst.util.translog.TransactionLogReplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TransactionLogReplayerクラスのテスト。
+ *
+ */
+public class TransactionLogReplayerTest {
+
+	private File[] logFiles = new File[3];
+
+	@Before
+	public void setUp() throws Exception {
+		Random rnd = new Random(1);
+		int seq = 0;
+		for (int i = 0; i < logFiles.length; i++) {
+			logFiles[i] = File.createTempFile("okuyama_replay", ".work");
+			FileOutputStream fos = new FileOutputStream(logFiles[i]);
+
+			if (i == 1) {
+				// ローテーション済みのテキストフォーマットのログ
+				for (int j = 0; j < 5000; j++) {
+					int key = rnd.nextInt(500);
+					seq++;
+					if (rnd.nextInt(10) == 0) {
+						fos.write(("-,key" + key + ", ," + seq + ",;\n").getBytes());
+					} else {
+						fos.write(("+,key" + key + ",value" + seq + ",!0," + seq + ",;\n").getBytes());
+					}
+				}
+			} else {
+				fos.write(TransactionLogFormat.fileHeader);
+				for (int j = 0; j < 5000; j++) {
+					int key = rnd.nextInt(500);
+					seq++;
+					if (rnd.nextInt(10) == 0) {
+						fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeRemove, "key" + key, null, seq));
+					} else {
+						fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "key" + key, "value" + seq + "!0", seq));
+					}
+				}
+			}
+			fos.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (int i = 0; i < logFiles.length; i++) {
+			logFiles[i].delete();
+		}
+	}
+
+	@Test
+	public void 並列で復元した結果が逐次の復元と一致する() throws Exception {
+		Map sequential = replay(1, 0L);
+		Map parallel = replay(4, 0L);
+
+		assertEquals(sequential, parallel);
+		assertTrue(sequential.size() > 0);
+	}
+
+	@Test
+	public void 指定時間以前のレコードは反映しない() throws Exception {
+		TestApplier applier = new TestApplier();
+		TransactionLogReplayer replayer = new TransactionLogReplayer(applier, 14990L, 4);
+		replayer.replay(logFiles);
+
+		assertTrue(applier.map.size() <= 10);
+		assertEquals(15000L, replayer.getLastRecordTime());
+		assertTrue(replayer.getStatus().indexOf("SkippedRecords=14990") != -1);
+	}
+
+	@Test
+	public void 上限時間より後のレコードは反映しない() throws Exception {
+		TestApplier applier = new TestApplier();
+		TransactionLogReplayer replayer = new TransactionLogReplayer(applier, 0L, 4);
+		replayer.setMaxTime(10000L);
+		replayer.setTruncateBrokenTail(false);
+		replayer.replay(logFiles);
+
+		assertEquals(10000L, replayer.getLastRecordTime());
+		assertTrue(replayer.getStatus().indexOf("SkippedRecords=5000") != -1);
+	}
+
+	@Test
+	public void パーティションのログは時間順にマージして復元される() throws Exception {
+		// 同一のKeyが複数のパーティションに記録されている場合(パーティション数の変更時)も時間順に反映される
+		Random rnd = new Random(2);
+		Map expected = new ConcurrentHashMap();
+		File[][] partitionLogFiles = new File[3][2];
+		FileOutputStream[] streams = new FileOutputStream[6];
+		for (int i = 0; i < streams.length; i++) {
+			partitionLogFiles[i / 2][i % 2] = File.createTempFile("okuyama_partition", ".work");
+			streams[i] = new FileOutputStream(partitionLogFiles[i / 2][i % 2]);
+			streams[i].write(TransactionLogFormat.fileHeader);
+		}
+
+		try {
+			for (int seq = 1; seq <= 15000; seq++) {
+				int key = rnd.nextInt(500);
+				FileOutputStream fos = streams[(seq % 3) * 2 + (seq > 7500 ? 1 : 0)];
+				if (rnd.nextInt(10) == 0) {
+					fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeRemove, "key" + key, null, seq));
+					expected.remove("key" + key);
+				} else {
+					fos.write(TransactionLogFormat.createRecord(TransactionLogFormat.typeSet, "key" + key, "value" + seq + "!0", seq));
+					expected.put("key" + key, "value" + seq + "!0");
+				}
+			}
+			for (int i = 0; i < streams.length; i++) {
+				streams[i].close();
+			}
+
+			TestApplier applier = new TestApplier();
+			TransactionLogReplayer replayer = new TransactionLogReplayer(applier, 0L, 4);
+			replayer.replay(partitionLogFiles);
+
+			assertEquals(expected, applier.map);
+			assertEquals(15000L, replayer.getLastRecordTime());
+			assertTrue(replayer.getStatus().indexOf("ReadRecords=15000") != -1);
+		} finally {
+			for (int i = 0; i < streams.length; i++) {
+				partitionLogFiles[i / 2][i % 2].delete();
+			}
+		}
+	}
+
+	@Test
+	public void ローテーション済みのログに不正なレコードがある場合はエラーとなる() throws Exception {
+		corrupt(logFiles[0]);
+
+		TransactionLogReplayer replayer = new TransactionLogReplayer(new TestApplier(), 0L, 4);
+		try {
+			replayer.replay(logFiles);
+			fail();
+		} catch (Exception e) {
+		}
+
+		// パーティションに分割されている場合も同様
+		replayer = new TransactionLogReplayer(new TestApplier(), 0L, 4);
+		try {
+			replayer.replay(new File[][]{{logFiles[0], logFiles[2]}, {logFiles[1]}});
+			fail();
+		} catch (Exception e) {
+		}
+	}
+
+	@Test
+	public void 現在のログの不正なレコード以降は切り詰められる() throws Exception {
+		long length = logFiles[2].length();
+		corrupt(logFiles[2]);
+
+		TransactionLogReplayer replayer = new TransactionLogReplayer(new TestApplier(), 0L, 4);
+		replayer.replay(logFiles);
+
+		assertTrue(logFiles[2].length() < length);
+		assertTrue(replayer.getLastRecordTime() < 15000L);
+	}
+
+	// ファイルの中央の1byteを書き換える
+	private void corrupt(File file) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() / 2);
+			int b = raf.read();
+			raf.seek(raf.length() / 2);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private Map replay(int workerCount, long minTime) throws Exception {
+		TestApplier applier = new TestApplier();
+		TransactionLogReplayer replayer = new TransactionLogReplayer(applier, minTime, workerCount);
+		replayer.replay(logFiles);
+		assertEquals(15000L, replayer.getLastRecordTime());
+		return applier.map;
+	}
+
+	class TestApplier implements ITransactionLogApplier {
+
+		Map map = new ConcurrentHashMap();
+
+		public void applySet(String key, String data, long time) {
+			map.put(key, data);
+		}
+
+		public void applyRemove(String key, long time) {
+			map.remove(key);
+		}
+	}
+}
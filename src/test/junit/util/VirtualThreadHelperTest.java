@@ -0,0 +1,137 @@
+package test.junit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.net.*;
+import java.util.concurrent.ThreadFactory;
+
+import okuyama.base.util.HelperPool;
+import okuyama.imdst.helper.KeyManagerHelper;
+import okuyama.imdst.util.ImdstDefine;
+import okuyama.imdst.util.io.KeyNodeRequestReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 仮想スレッド時に接続毎に起動するKeyManagerHelperのテスト。
+ *
+ */
+public class VirtualThreadHelperTest {
+
+	private ServerSocket serverSocket = null;
+
+	private Socket client = null;
+
+	private Object orgThreadFactory = null;
+
+	@Before
+	public void setUp() throws Exception {
+		orgThreadFactory = getThreadFactoryField().get(null);
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		getThreadFactoryField().set(null, orgThreadFactory);
+		if (client != null) client.close();
+		serverSocket.close();
+	}
+
+	@Test
+	public void 仮想スレッドが利用可能な場合はHelperのスレッドが仮想スレッドになる() throws Exception {
+		boolean supported = true;
+		try {
+			Thread.class.getMethod("ofVirtual", new Class[0]);
+		} catch (NoSuchMethodException e) {
+			supported = false;
+		}
+
+		assertEquals(supported, HelperPool.useVirtualThread());
+		assertEquals(supported, HelperPool.isVirtualThread());
+
+		Thread thread = HelperPool.getHelperThreadFactory("VirtualThreadHelperTest").newThread(new Runnable() {
+			public void run() {
+			}
+		});
+		if (supported) {
+			assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual", new Class[0]).invoke(thread, new Object[0]));
+		} else {
+			assertTrue(thread.isDaemon());
+		}
+	}
+
+	@Test
+	public void 接続専用のHelperは同一の接続を処理し多重化の接続に引き渡して終了する() throws Exception {
+		HelperPool.useVirtualThread();
+
+		client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+		Socket socket = serverSocket.accept();
+
+		final KeyManagerHelper helper = new KeyManagerHelper();
+		helper.setParameters(new Object[] {null, null, null, null, createClientMap(socket)});
+
+		ThreadFactory factory = HelperPool.getHelperThreadFactory("VirtualThreadHelperTest");
+		Thread thread = factory.newThread(new Runnable() {
+			public void run() {
+				try {
+					helper.executeHelper(null);
+				} catch (Exception e) {
+				}
+			}
+		});
+		thread.start();
+
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding));
+		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), ImdstDefine.keyHelperClientParamEncoding));
+
+		// 応答の無い要求の後もキューを経由せずに同一の接続の要求を処理する
+		pw.println("9999,a");
+		pw.println(ImdstDefine.keyNodeMultiplexNegotiationRequest);
+		pw.flush();
+		assertEquals(ImdstDefine.keyNodeMultiplexNegotiationResponse, br.readLine());
+
+		// 以降の要求は多重化の接続が処理し、Helperは終了する
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		pw.println("#1,99,a");
+		pw.println("#2,99,b");
+		pw.flush();
+		assertEquals("#1,99,false,NG:Multiplex request not supported", br.readLine());
+		assertEquals("#2,99,false,NG:Multiplex request not supported", br.readLine());
+
+		// 切断されたら多重化の接続もクローズする
+		client.close();
+		client = null;
+		long end = System.currentTimeMillis() + 5000;
+		while (!socket.isClosed() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertTrue(socket.isClosed());
+	}
+
+	// KeyManagerJobと同様の接続情報を作成する
+	private Object[] createClientMap(Socket socket) throws Exception {
+		Object[] clientMap = new Object[9];
+		clientMap[ImdstDefine.paramSocket] = socket;
+		clientMap[ImdstDefine.paramPw] = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), ImdstDefine.keyHelperClientParamEncoding)));
+		clientMap[ImdstDefine.paramBr] = new KeyNodeRequestReader(socket.getInputStream());
+		clientMap[ImdstDefine.paramStart] = new Long(System.currentTimeMillis());
+		clientMap[ImdstDefine.paramLast] = new Long(System.currentTimeMillis());
+		clientMap[ImdstDefine.paramCheckCount] = new Integer(0);
+		clientMap[ImdstDefine.paramBis] = socket.getInputStream();
+		clientMap[ImdstDefine.paramBos] = socket.getOutputStream();
+		return clientMap;
+	}
+
+	// テスト後に通常のスレッドに戻すため、HelperPoolのThreadFactoryを参照する
+	private Field getThreadFactoryField() throws Exception {
+		Field field = HelperPool.class.getDeclaredField("helperThreadFactory");
+		field.setAccessible(true);
+		return field;
+	}
+}
@@ -0,0 +1,106 @@
+package test;
+
+import java.io.*;
+import java.util.*;
+
+import okuyama.imdst.util.*;
+
+/**
+ * FileBaseDataMapのスレッド数に対するスループット計測.<br>
+ * FixWriteCoreFileBaseKeyMap(Valueサイズ指定有り)とDelayWriteCoreFileBaseKeyMap(Valueサイズ指定無し)の<br>
+ * それぞれに対して、スレッド数を変えながら一定時間get/putを実行し、秒間の実行数を出力する.<br>
+ *
+ * 実行方法:java test.FileBaseDataMapTest 作業ディレクトリ 最大スレッド数 計測秒数 事前登録件数 put比率(%)<br>
+ * 例:java test.FileBaseDataMapTest ./fbmtest/ 16 10 50000 10<br>
+ */
+public class FileBaseDataMapTest extends Thread {
+
+    private static volatile boolean status = true;
+
+    private Map testMap = null;
+
+    private int threadPrefix = 0;
+
+    private int keyCount = 0;
+
+    private int putPercent = 0;
+
+    public long execCount = 0L;
+
+
+    public FileBaseDataMapTest(Map testMap, int prefix, int keyCount, int putPercent) {
+        this.testMap = testMap;
+        this.threadPrefix = prefix;
+        this.keyCount = keyCount;
+        this.putPercent = putPercent;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String workDir = args[0];
+            int maxThreads = Integer.parseInt(args[1]);
+            int execTime = Integer.parseInt(args[2]);
+            int keyCount = Integer.parseInt(args[3]);
+            int putPercent = Integer.parseInt(args[4]);
+
+            // 0=DelayWriteCoreFileBaseKeyMap, 32=FixWriteCoreFileBaseKeyMap
+            int[] valueLengths = {32, 0};
+            String[] mapNames = {"FixWriteCoreFileBaseKeyMap", "DelayWriteCoreFileBaseKeyMap"};
+
+            for (int mapIdx = 0; mapIdx < valueLengths.length; mapIdx++) {
+
+                String[] dirs = {workDir + "/" + mapNames[mapIdx] + "/data1/", workDir + "/" + mapNames[mapIdx] + "/data2/"};
+                FileBaseDataMap testMap = new FileBaseDataMap(dirs, keyCount, 0.05, valueLengths[mapIdx], 1024, 1024*101, true);
+
+                for (int i = 0; i < keyCount; i++) {
+                    testMap.put("key_" + i, String.valueOf(i));
+                }
+
+                for (int threads = 1; threads <= maxThreads; threads = threads * 2) {
+
+                    FileBaseDataMapTest.status = true;
+                    FileBaseDataMapTest[] tList = new FileBaseDataMapTest[threads];
+
+                    for (int idx = 0; idx < threads; idx++) {
+                        tList[idx] = new FileBaseDataMapTest(testMap, idx, keyCount, putPercent);
+                        tList[idx].start();
+                    }
+
+                    Thread.sleep(execTime * 1000L);
+                    FileBaseDataMapTest.status = false;
+
+                    long totalExecCount = 0L;
+                    for (int idx = 0; idx < threads; idx++) {
+                        tList[idx].join();
+                        totalExecCount = totalExecCount + tList[idx].execCount;
+                    }
+                    System.out.println(mapNames[mapIdx] + " Threads = " + threads + " QPS = " + (totalExecCount / execTime));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // DelayWriteCoreFileBaseKeyMapの書き込みスレッドが残るため明示的に終了
+        System.exit(0);
+    }
+
+    public void run () {
+        try {
+            Random rnd = new Random(this.threadPrefix);
+
+            while (FileBaseDataMapTest.status) {
+                int keyNo = rnd.nextInt(this.keyCount);
+
+                if (rnd.nextInt(100) < this.putPercent) {
+                    // DelayWriteCoreFileBaseKeyMapのValue長(11byte)に収まる値を登録
+                    this.testMap.put("key_" + keyNo, String.valueOf(keyNo));
+                } else {
+                    this.testMap.get("key_" + keyNo);
+                }
+                this.execCount++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package test;
+
+import java.io.*;
+import java.util.*;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+import okuyama.imdst.util.*;
+import okuyama.imdst.util.io.KeyNodeBinaryProtocol;
+
+/**
+ * MasterNodeとDataNode間のテキスト形式とバイナリ形式(KeyNodeBinaryProtocol)の比較.<br>
+ * setKeyValue(1)、getKeyValue(2)の多重化された要求、応答を1接続で連続して送受信した場合を模して、<br>
+ * MasterNodeでの要求の送信、DataNodeでの要求の解析と応答の送信、MasterNodeでの応答の解析までを<br>
+ * メモリ上のストリームで行い、秒間の処理件数と1件あたりの送受信バイト数を出力する.<br>
+ * ネットワークとデータの保存処理は含まない.<br>
+ *
+ * 実行方法:java test.InterNodeProtocolBenchmark 計測秒数 Key数<br>
+ * 例:java test.InterNodeProtocolBenchmark 5 10000<br>
+ */
+public class InterNodeProtocolBenchmark {
+
+    private static final String sep = ImdstDefine.keyHelperClientParamSep;
+
+    private static final String encoding = ImdstDefine.keyHelperClientParamEncoding;
+
+
+    public static void main(String[] args) {
+        try {
+            int execTime = Integer.parseInt(args[0]);
+            int keyCount = Integer.parseInt(args[1]);
+
+            String[] keys = new String[keyCount];
+            String[] values = new String[keyCount];
+            Random rnd = new Random(1);
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = new String(BASE64EncoderStream.encode(("key" + i).getBytes()));
+
+                byte[] value = new byte[256 + rnd.nextInt(4096)];
+                rnd.nextBytes(value);
+                values[i] = new String(BASE64EncoderStream.encode(value));
+            }
+
+            String[] methods = {"set", "get"};
+            for (int i = 0; i < methods.length; i++) {
+
+                ProtocolRunner text = new TextRunner(methods[i], keys, values);
+                ProtocolRunner binary = new BinaryRunner(methods[i], keys, values);
+
+                // 変換結果の確認とウォームアップ
+                text.check();
+                binary.check();
+                run(text, 1);
+                run(binary, 1);
+
+                long textBytes = text.transferBytes();
+                long binaryBytes = binary.transferBytes();
+                double textOps = run(text, execTime);
+                double binaryOps = run(binary, execTime);
+
+                System.out.println(methods[i]
+                                   + " Text = " + (long)textOps + "ops/s"
+                                   + " Binary = " + (long)binaryOps + "ops/s"
+                                   + " (" + ((long)(binaryOps * 100 / textOps)) + "%)"
+                                   + " Bytes/op Text = " + (textBytes / keyCount)
+                                   + " Binary = " + (binaryBytes / keyCount));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // 指定秒数実行し、秒間の処理件数を返す
+    private static double run(ProtocolRunner runner, int execTime) throws Exception {
+        long count = 0L;
+        long start = System.nanoTime();
+        long end = start + execTime * 1000L * 1000L * 1000L;
+        long now = start;
+
+        while (now < end) {
+            count = count + runner.execute();
+            now = System.nanoTime();
+        }
+        return count / ((now - start) / 1000000000.0);
+    }
+
+
+    /**
+     * 全てのKeyの要求、応答を1回送受信する.<br>
+     */
+    static abstract class ProtocolRunner {
+
+        protected String method = null;
+
+        protected String[] keys = null;
+
+        protected String[] values = null;
+
+        protected long version = System.currentTimeMillis();
+
+        // MasterNode -> DataNode
+        protected ByteArrayOutputStream requestBytes = new ByteArrayOutputStream(1024 * 1024);
+
+        // DataNode -> MasterNode
+        protected ByteArrayOutputStream responseBytes = new ByteArrayOutputStream(1024 * 1024);
+
+        protected String[] responses = null;
+
+        // DataNodeに保存済みのデータ(Key -> Value + 保存バージョン)
+        protected HashMap storedValues = new HashMap();
+
+
+        ProtocolRunner(String method, String[] keys, String[] values) {
+            this.method = method;
+            this.keys = keys;
+            this.values = values;
+            this.responses = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                this.storedValues.put(keys[i], values[i] + ImdstDefine.setTimeParamSep + this.version);
+            }
+        }
+
+
+        // MasterNodeで送信するテキスト形式の要求
+        protected String createRequestLine(int idx) {
+            StringBuilder buf = new StringBuilder(this.values[idx].length() + 64);
+            if (this.method.equals("set")) {
+                buf.append("1");
+                buf.append(sep);
+                buf.append(this.keys[idx]);
+                buf.append(sep);
+                buf.append("0");
+                buf.append(sep);
+                buf.append(this.values[idx]);
+                buf.append(ImdstDefine.setTimeParamSep);
+                buf.append(this.version);
+            } else {
+                buf.append("2");
+                buf.append(sep);
+                buf.append(this.keys[idx]);
+            }
+            return buf.toString();
+        }
+
+
+        // DataNodeの処理結果
+        protected String[] createRetParams(String key, String value, String transactionCode) {
+            if (this.method.equals("set")) {
+                if (value == null || transactionCode == null) throw new IllegalStateException("Illegal request " + key);
+                return new String[]{"1", "true", "OK"};
+            }
+            return new String[]{"2", "true", (String)this.storedValues.get(key)};
+        }
+
+
+        void check() throws Exception {
+            this.execute();
+            for (int i = 0; i < this.keys.length; i++) {
+                String expected = this.method.equals("set") ? "1,true,OK" : "2,true," + this.values[i] + ImdstDefine.setTimeParamSep + this.version;
+                if (!expected.equals(this.responses[i])) throw new Exception("Response error " + this.getClass().getName() + " " + this.method + " " + i);
+            }
+        }
+
+
+        long transferBytes() throws Exception {
+            this.execute();
+            return this.requestBytes.size() + this.responseBytes.size();
+        }
+
+
+        abstract int execute() throws Exception;
+    }
+
+
+    /**
+     * テキスト形式(接頭辞 + 要求番号 + 区切り文字 + 通常の要求、応答).<br>
+     */
+    static class TextRunner extends ProtocolRunner {
+
+        TextRunner(String method, String[] keys, String[] values) {
+            super(method, keys, values);
+        }
+
+
+        int execute() throws Exception {
+            this.requestBytes.reset();
+            this.responseBytes.reset();
+
+            // MasterNode:要求の送信
+            PrintWriter masterPw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(this.requestBytes, encoding)));
+            for (int i = 0; i < this.keys.length; i++) {
+                masterPw.print(ImdstDefine.keyNodeMultiplexPrefix);
+                masterPw.print(i);
+                masterPw.print(sep);
+                masterPw.println(this.createRequestLine(i));
+            }
+            masterPw.flush();
+
+            // DataNode:要求の解析と応答の送信
+            BufferedReader dataNodeBr = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.requestBytes.toByteArray()), encoding));
+            PrintWriter dataNodePw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(this.responseBytes, encoding)));
+            String requestLine = null;
+            while ((requestLine = dataNodeBr.readLine()) != null) {
+                int sepIdx = requestLine.indexOf(sep);
+                String requestNo = requestLine.substring(ImdstDefine.keyNodeMultiplexPrefix.length(), sepIdx);
+                String[] clientParameterList = split(requestLine.substring(sepIdx + 1));
+
+                String[] retParams = null;
+                if (Integer.parseInt(clientParameterList[0]) == 1) {
+                    retParams = this.createRetParams(clientParameterList[1], clientParameterList[3], clientParameterList[2]);
+                } else {
+                    retParams = this.createRetParams(clientParameterList[1], null, null);
+                }
+
+                StringBuilder retBuf = new StringBuilder(ImdstDefine.stringBufferSmallSize);
+                retBuf.append(ImdstDefine.keyNodeMultiplexPrefix);
+                retBuf.append(requestNo);
+                for (int i = 0; i < retParams.length; i++) {
+                    retBuf.append(sep);
+                    retBuf.append(retParams[i]);
+                }
+                dataNodePw.println(retBuf.toString());
+            }
+            dataNodePw.flush();
+
+            // MasterNode:応答の解析
+            BufferedReader masterBr = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.responseBytes.toByteArray()), encoding));
+            String responseLine = null;
+            while ((responseLine = masterBr.readLine()) != null) {
+                int sepIdx = responseLine.indexOf(sep);
+                int requestNo = Integer.parseInt(responseLine.substring(ImdstDefine.keyNodeMultiplexPrefix.length(), sepIdx));
+                this.responses[requestNo] = responseLine.substring(sepIdx + 1);
+            }
+            return this.keys.length;
+        }
+
+
+        // KeyManagerHelper.clientParameterSplitと同様の分解
+        private String[] split(String targetStr) {
+            if (targetStr.indexOf("2,") == 0) {
+                String[] retSplit = new String[2];
+                retSplit[0] = "2";
+                retSplit[1] = targetStr.substring(2);
+                return retSplit;
+            }
+
+            int secondSep = targetStr.indexOf(sep, 2);
+            int thirdSep = targetStr.indexOf(sep, secondSep+1);
+            String[] retSplit = new String[4];
+            retSplit[0] = "1";
+            retSplit[1] = targetStr.substring(2, secondSep);
+            retSplit[2] = targetStr.substring(secondSep+1, thirdSep);
+            retSplit[3] = targetStr.substring(thirdSep+1);
+            return retSplit;
+        }
+    }
+
+
+    /**
+     * バイナリ形式(KeyNodeBinaryProtocol).<br>
+     */
+    static class BinaryRunner extends ProtocolRunner {
+
+        BinaryRunner(String method, String[] keys, String[] values) {
+            super(method, keys, values);
+        }
+
+
+        int execute() throws Exception {
+            this.requestBytes.reset();
+            this.responseBytes.reset();
+
+            // MasterNode:要求の送信
+            DataOutputStream masterDos = new DataOutputStream(new BufferedOutputStream(this.requestBytes, 8192 * 4));
+            for (int i = 0; i < this.keys.length; i++) {
+                masterDos.write(KeyNodeBinaryProtocol.encodeRequest(i, this.createRequestLine(i)));
+            }
+            masterDos.flush();
+
+            // DataNode:要求の解析と応答の送信
+            DataInputStream dataNodeDis = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(this.requestBytes.toByteArray()), 8192 * 4));
+            DataOutputStream dataNodeDos = new DataOutputStream(new BufferedOutputStream(this.responseBytes, 8192 * 4));
+            KeyNodeBinaryProtocol.Frame frame = null;
+            while ((frame = KeyNodeBinaryProtocol.readFrame(dataNodeDis)) != null) {
+
+                String[] retParams = null;
+                if (frame.getOpcode() == KeyNodeBinaryProtocol.opSet) {
+                    retParams = this.createRetParams(frame.getKey(), frame.getValue(), frame.getOption());
+                } else {
+                    retParams = this.createRetParams(frame.getKey(), null, null);
+                }
+                dataNodeDos.write(KeyNodeBinaryProtocol.encodeResponse(frame.getRequestNo(), frame.getOpcode(), retParams));
+            }
+            dataNodeDos.flush();
+
+            // MasterNode:応答の解析
+            DataInputStream masterDis = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(this.responseBytes.toByteArray()), 8192 * 4));
+            while ((frame = KeyNodeBinaryProtocol.readFrame(masterDis)) != null) {
+                this.responses[(int)frame.getRequestNo()] = KeyNodeBinaryProtocol.toResponseLine(frame);
+            }
+            return this.keys.length;
+        }
+    }
+}
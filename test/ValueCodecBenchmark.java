@@ -0,0 +1,157 @@
+package test;
+
+import java.util.*;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+import okuyama.imdst.util.*;
+import okuyama.imdst.util.compress.*;
+
+/**
+ * Value圧縮コーデックの比較.<br>
+ * メモリ保存時のValue(Base64エンコード済みの文字列)を模したデータに対して、<br>
+ * Deflate(レベル1、9)とLZの圧縮、圧縮解除の秒間の処理量(MB/s)と圧縮率を出力する.<br>
+ * 各コーデックはウォームアップ後に一定時間実行して計測する.<br>
+ *
+ * 実行方法:java test.ValueCodecBenchmark 計測秒数 Value数<br>
+ * 例:java test.ValueCodecBenchmark 5 10000<br>
+ */
+public class ValueCodecBenchmark {
+
+    private static String[] words = {"okuyama", "datanode", "master", "key", "value", "tag", "status", "active",
+                                     "user", "session", "item", "price", "2011-05-01", "tokyo", "true", "false"};
+
+
+    public static void main(String[] args) {
+        try {
+            int execTime = Integer.parseInt(args[0]);
+            int valueCount = Integer.parseInt(args[1]);
+
+            String[] dataNames = {"json", "text", "random"};
+            for (int dataIdx = 0; dataIdx < dataNames.length; dataIdx++) {
+
+                byte[][] values = createValues(dataNames[dataIdx], valueCount);
+
+                ImdstDefine.valueCompresserLevel = java.util.zip.Deflater.BEST_SPEED;
+                execute(dataNames[dataIdx], "Deflate(1)", new DeflateValueCodec(), values, execTime);
+
+                // 生成済みのプールはレベル1で作成されているため、レベル9は都度生成する
+                execute(dataNames[dataIdx], "Deflate(9)", new Deflate9Codec(), values, execTime);
+
+                execute(dataNames[dataIdx], "LZ", new LzValueCodec(), values, execTime);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    private static void execute(String dataName, String codecName, IValueCodec codec, byte[][] values, int execTime) throws Exception {
+        long srcSize = 0L;
+        long compressedSize = 0L;
+        byte[][] compressed = new byte[values.length][];
+
+        for (int i = 0; i < values.length; i++) {
+            compressed[i] = codec.compress(values[i]);
+            srcSize = srcSize + values[i].length;
+            compressedSize = compressedSize + compressed[i].length;
+            if (!Arrays.equals(values[i], codec.decompress(compressed[i]))) throw new Exception("Decompress error " + codecName);
+        }
+
+        // ウォームアップ
+        run(codec, values, compressed, 1, true);
+        run(codec, values, compressed, 1, false);
+
+        double compressMb = run(codec, values, compressed, execTime, true);
+        double decompressMb = run(codec, values, compressed, execTime, false);
+
+        System.out.println(dataName + " " + codecName
+                           + " Ratio = " + ((compressedSize * 1000L / srcSize) / 10.0) + "%"
+                           + " Compress = " + ((long)(compressMb * 10) / 10.0) + "MB/s"
+                           + " Decompress = " + ((long)(decompressMb * 10) / 10.0) + "MB/s");
+    }
+
+
+    // 指定秒数実行し、圧縮前のサイズ換算の秒間の処理量(MB)を返す
+    private static double run(IValueCodec codec, byte[][] values, byte[][] compressed, int execTime, boolean compress) throws Exception {
+        long processSize = 0L;
+        long start = System.nanoTime();
+        long end = start + execTime * 1000L * 1000L * 1000L;
+        long now = start;
+
+        while (now < end) {
+            for (int i = 0; i < values.length; i++) {
+                if (compress) {
+                    codec.compress(values[i]);
+                } else {
+                    codec.decompress(compressed[i]);
+                }
+                processSize = processSize + values[i].length;
+            }
+            now = System.nanoTime();
+        }
+        return (processSize / 1024.0 / 1024.0) / ((now - start) / 1000000000.0);
+    }
+
+
+    // メモリ保存時と同様にBase64エンコード済みの文字列をValueとする
+    private static byte[][] createValues(String dataName, int valueCount) {
+        Random rnd = new Random(1);
+        byte[][] ret = new byte[valueCount][];
+
+        for (int i = 0; i < valueCount; i++) {
+            StringBuilder buf = new StringBuilder();
+            int size = 256 + rnd.nextInt(4096);
+
+            if (dataName.equals("json")) {
+                while (buf.length() < size) {
+                    buf.append("{\"id\":").append(rnd.nextInt(100000));
+                    buf.append(",\"").append(words[rnd.nextInt(words.length)]).append("\":\"").append(words[rnd.nextInt(words.length)]).append("\"}");
+                }
+            } else if (dataName.equals("text")) {
+                while (buf.length() < size) {
+                    buf.append(words[rnd.nextInt(words.length)]).append(" ");
+                }
+            } else {
+                byte[] random = new byte[size];
+                rnd.nextBytes(random);
+                buf.append(new String(random));
+            }
+            ret[i] = new String(BASE64EncoderStream.encode(buf.toString().getBytes())).getBytes();
+        }
+        return ret;
+    }
+
+
+    /**
+     * 圧縮レベル9のDeflate.<br>
+     */
+    static class Deflate9Codec implements IValueCodec {
+
+        public int getTag() {
+            return -1;
+        }
+
+        public byte[] compress(byte[] src) throws Exception {
+            java.util.zip.Deflater compresser = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_COMPRESSION);
+            try {
+                compresser.setInput(src);
+                compresser.finish();
+
+                java.io.ByteArrayOutputStream compos = new java.io.ByteArrayOutputStream();
+                byte[] buf = new byte[2048];
+                while (!compresser.finished()) {
+                    int count = compresser.deflate(buf);
+                    compos.write(buf, 0, count);
+                }
+                return compos.toByteArray();
+            } finally {
+                compresser.end();
+            }
+        }
+
+        public byte[] decompress(byte[] src) throws Exception {
+            return SystemUtil.dataDecompress(src);
+        }
+    }
+}